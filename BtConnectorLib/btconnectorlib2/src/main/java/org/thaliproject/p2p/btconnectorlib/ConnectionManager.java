@@ -207,6 +207,22 @@ public class ConnectionManager
      * @return True, if the connection process was started successfully.
      */
     public synchronized boolean connect(PeerProperties peerToConnectTo) {
+        return connect(peerToConnectTo, null);
+    }
+
+    /**
+     * Tries to connect to the given device and sends the given initial application payload with
+     * the handshake, which saves a round trip compared to writing it after the connection has been
+     * established. The peer receives the payload with the connection, see
+     * PeerProperties.getEarlyData(). The payload can be attached to the handshake only, if the
+     * binary handshake is enabled (see ConnectionManagerSettings.setBinaryHandshakeEnabled()).
+     * Otherwise, it is written to the socket right after the handshake.
+     *
+     * @param peerToConnectTo The peer to connect to.
+     * @param earlyData The payload to send with the handshake (max 512 bytes) or null, if none.
+     * @return True, if the connection process was started successfully.
+     */
+    public synchronized boolean connect(PeerProperties peerToConnectTo, byte[] earlyData) {
         boolean success = false;
 
         if (peerToConnectTo != null) {
@@ -214,7 +230,7 @@ public class ConnectionManager
 
             try {
                 BluetoothDevice device = mBluetoothManager.getRemoteDevice(peerToConnectTo.getBluetoothMacAddress());
-                success = mBluetoothConnector.connect(device, peerToConnectTo);
+                success = mBluetoothConnector.connect(device, peerToConnectTo, earlyData);
             } catch (NullPointerException e) {
                 Log.e(TAG, "connect: Failed to start connecting to peer "
                         + peerToConnectTo.toString() + ": " + e.getMessage(), e);
@@ -274,6 +290,20 @@ public class ConnectionManager
         mBluetoothConnector.setConnectionTimeout(mSettings.getConnectionTimeout());
         mBluetoothConnector.setInsecureRfcommSocketPort(mSettings.getInsecureRfcommSocketPortNumber());
         mBluetoothConnector.setMaxNumberOfOutgoingConnectionAttemptRetries(mSettings.getMaxNumberOfConnectionAttemptRetries());
+        mBluetoothConnector.setCompressionEnabled(mSettings.getCompressionEnabled());
+        mBluetoothConnector.setTypedFramingEnabled(mSettings.getTypedFramingEnabled());
+        mBluetoothConnector.setFlowControlWindowSize(mSettings.getFlowControlWindowSize());
+        mBluetoothConnector.setPersistentServerSocket(mSettings.getPersistentServerSocket());
+        mBluetoothConnector.setBinaryHandshakeEnabled(mSettings.getBinaryHandshakeEnabled());
+        mBluetoothConnector.setConnectionRacingEnabled(mSettings.getConnectionRacingEnabled());
+        mBluetoothConnector.setMaxNumberOfConcurrentConnectionAttempts(
+                mSettings.getMaxNumberOfConcurrentConnectionAttempts());
+        mBluetoothConnector.setPeerBackoffEnabled(mSettings.getPeerBackoffEnabled());
+        mBluetoothConnector.setDuplicateConnectionArbitrationEnabled(
+                mSettings.getDuplicateConnectionArbitrationEnabled());
+        mBluetoothConnector.setPeerPortCacheEnabled(mSettings.getPeerPortCacheEnabled());
+        mBluetoothConnector.setAdaptiveConnectionTimeoutEnabled(mSettings.getAdaptiveConnectionTimeoutEnabled());
+        mBluetoothConnector.setHandshakeExecutorEnabled(mSettings.getHandshakeExecutorEnabled());
     }
 
     /**
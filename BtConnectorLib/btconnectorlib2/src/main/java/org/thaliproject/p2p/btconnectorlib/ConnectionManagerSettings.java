@@ -25,12 +25,37 @@ public class ConnectionManagerSettings extends AbstractSettings {
     public static final int DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT = BluetoothConnector.DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT;
     public static final int DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES = BluetoothConnector.DEFAULT_MAX_NUMBER_OF_RETRIES;
     public static final boolean DEFAULT_HANDSHAKE_REQUIRED = BluetoothConnector.DEFAULT_HANDSHAKE_REQUIRED;
+    public static final boolean DEFAULT_COMPRESSION_ENABLED = BluetoothConnector.DEFAULT_COMPRESSION_ENABLED;
+    public static final boolean DEFAULT_TYPED_FRAMING_ENABLED = BluetoothConnector.DEFAULT_TYPED_FRAMING_ENABLED;
+    public static final int DEFAULT_FLOW_CONTROL_WINDOW_SIZE_IN_BYTES = BluetoothConnector.DEFAULT_FLOW_CONTROL_WINDOW_SIZE_IN_BYTES;
+    public static final boolean DEFAULT_PERSISTENT_SERVER_SOCKET = BluetoothConnector.DEFAULT_PERSISTENT_SERVER_SOCKET;
+    public static final boolean DEFAULT_BINARY_HANDSHAKE_ENABLED = BluetoothConnector.DEFAULT_BINARY_HANDSHAKE_ENABLED;
+    public static final boolean DEFAULT_CONNECTION_RACING_ENABLED = BluetoothConnector.DEFAULT_CONNECTION_RACING_ENABLED;
+    public static final int UNLIMITED_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS = BluetoothConnector.UNLIMITED_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS;
+    public static final int DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS = BluetoothConnector.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS;
+    public static final boolean DEFAULT_PEER_BACKOFF_ENABLED = BluetoothConnector.DEFAULT_PEER_BACKOFF_ENABLED;
+    public static final boolean DEFAULT_DUPLICATE_CONNECTION_ARBITRATION_ENABLED = BluetoothConnector.DEFAULT_DUPLICATE_CONNECTION_ARBITRATION_ENABLED;
+    public static final boolean DEFAULT_PEER_PORT_CACHE_ENABLED = BluetoothConnector.DEFAULT_PEER_PORT_CACHE_ENABLED;
+    public static final boolean DEFAULT_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED = BluetoothConnector.DEFAULT_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED;
+    public static final boolean DEFAULT_HANDSHAKE_EXECUTOR_ENABLED = BluetoothConnector.DEFAULT_HANDSHAKE_EXECUTOR_ENABLED;
 
     // Keys for shared preferences
     private static final String KEY_CONNECTION_TIMEOUT = "connection_timeout";
     private static final String KEY_PORT_NUMBER = "port_number";
     private static final String KEY_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES = "max_number_of_connection_attempt_retries";
     private static final String KEY_HANDSHAKE_REQUIRED = "require_handshake";
+    private static final String KEY_COMPRESSION_ENABLED = "compression_enabled";
+    private static final String KEY_TYPED_FRAMING_ENABLED = "typed_framing_enabled";
+    private static final String KEY_FLOW_CONTROL_WINDOW_SIZE = "flow_control_window_size";
+    private static final String KEY_PERSISTENT_SERVER_SOCKET = "persistent_server_socket";
+    private static final String KEY_BINARY_HANDSHAKE_ENABLED = "binary_handshake_enabled";
+    private static final String KEY_CONNECTION_RACING_ENABLED = "connection_racing_enabled";
+    private static final String KEY_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS = "max_number_of_concurrent_connection_attempts";
+    private static final String KEY_PEER_BACKOFF_ENABLED = "peer_backoff_enabled";
+    private static final String KEY_DUPLICATE_CONNECTION_ARBITRATION_ENABLED = "duplicate_connection_arbitration_enabled";
+    private static final String KEY_PEER_PORT_CACHE_ENABLED = "peer_port_cache_enabled";
+    private static final String KEY_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED = "adaptive_connection_timeout_enabled";
+    private static final String KEY_HANDSHAKE_EXECUTOR_ENABLED = "handshake_executor_enabled";
 
     private static final String TAG = ConnectionManagerSettings.class.getName();
     private static final int MAX_INSECURE_RFCOMM_SOCKET_PORT = 30;
@@ -41,6 +66,18 @@ public class ConnectionManagerSettings extends AbstractSettings {
     private int mInsecureRfcommSocketPortNumber = DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT;
     private int mMaxNumberOfConnectionAttemptRetries = DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES;
     private boolean mHandshakeRequired = DEFAULT_HANDSHAKE_REQUIRED;
+    private boolean mCompressionEnabled = DEFAULT_COMPRESSION_ENABLED;
+    private boolean mTypedFramingEnabled = DEFAULT_TYPED_FRAMING_ENABLED;
+    private int mFlowControlWindowSizeInBytes = DEFAULT_FLOW_CONTROL_WINDOW_SIZE_IN_BYTES;
+    private boolean mPersistentServerSocket = DEFAULT_PERSISTENT_SERVER_SOCKET;
+    private boolean mBinaryHandshakeEnabled = DEFAULT_BINARY_HANDSHAKE_ENABLED;
+    private boolean mConnectionRacingEnabled = DEFAULT_CONNECTION_RACING_ENABLED;
+    private int mMaxNumberOfConcurrentConnectionAttempts = DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS;
+    private boolean mPeerBackoffEnabled = DEFAULT_PEER_BACKOFF_ENABLED;
+    private boolean mDuplicateConnectionArbitrationEnabled = DEFAULT_DUPLICATE_CONNECTION_ARBITRATION_ENABLED;
+    private boolean mPeerPortCacheEnabled = DEFAULT_PEER_PORT_CACHE_ENABLED;
+    private boolean mAdaptiveConnectionTimeoutEnabled = DEFAULT_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED;
+    private boolean mHandshakeExecutorEnabled = DEFAULT_HANDSHAKE_EXECUTOR_ENABLED;
 
     /**
      * @param context The application context for the shared preferences.
@@ -239,6 +276,355 @@ public class ConnectionManagerSettings extends AbstractSettings {
         }
     }
 
+    /**
+     * @return True, if the frame compression is offered in the handshake.
+     */
+    public boolean getCompressionEnabled() {
+        return mCompressionEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether we offer the frame compression in the handshake. The
+     * compression is used only with the peers that offer it too, see
+     * PeerProperties.isCompressionEnabled().
+     * @param compressionEnabled True, if the compression should be offered.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        if (mCompressionEnabled != compressionEnabled) {
+            Log.d(TAG, "setCompressionEnabled: " + mCompressionEnabled + " -> " + compressionEnabled);
+            mCompressionEnabled = compressionEnabled;
+            mSharedPreferencesEditor.putBoolean(KEY_COMPRESSION_ENABLED, mCompressionEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True, if the typed framing is offered in the handshake.
+     */
+    public boolean getTypedFramingEnabled() {
+        return mTypedFramingEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether we offer the typed framing in the handshake. The typed
+     * framing is required by the keepalive, and it is offered regardless of this value, if the
+     * compression or the flow control is. See PeerProperties.isTypedFramingEnabled().
+     * @param typedFramingEnabled True, if the typed framing should be offered.
+     */
+    public void setTypedFramingEnabled(boolean typedFramingEnabled) {
+        if (mTypedFramingEnabled != typedFramingEnabled) {
+            Log.d(TAG, "setTypedFramingEnabled: " + mTypedFramingEnabled + " -> " + typedFramingEnabled);
+            mTypedFramingEnabled = typedFramingEnabled;
+            mSharedPreferencesEditor.putBoolean(KEY_TYPED_FRAMING_ENABLED, mTypedFramingEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The flow control window size offered in the handshake in bytes or zero, if none.
+     */
+    public int getFlowControlWindowSize() {
+        return mFlowControlWindowSizeInBytes;
+    }
+
+    /**
+     * Sets the flow control window size we offer in the handshake. The flow control is used only
+     * with the peers that offer it too, see PeerProperties.getFlowControlWindowSize().
+     * @param flowControlWindowSizeInBytes The window size in bytes or zero to not offer the flow control.
+     */
+    public void setFlowControlWindowSize(int flowControlWindowSizeInBytes) {
+        if (flowControlWindowSizeInBytes < 0) {
+            Log.e(TAG, "setFlowControlWindowSize: Invalid value: " + flowControlWindowSizeInBytes);
+        } else if (mFlowControlWindowSizeInBytes != flowControlWindowSizeInBytes) {
+            Log.d(TAG, "setFlowControlWindowSize: " + mFlowControlWindowSizeInBytes + " -> " + flowControlWindowSizeInBytes);
+            mFlowControlWindowSizeInBytes = flowControlWindowSizeInBytes;
+            mSharedPreferencesEditor.putInt(KEY_FLOW_CONTROL_WINDOW_SIZE, mFlowControlWindowSizeInBytes);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True, if the Bluetooth server socket is kept open between the accepted connections.
+     */
+    public boolean getPersistentServerSocket() {
+        return mPersistentServerSocket;
+    }
+
+    /**
+     * Sets the value indicating whether the Bluetooth server socket is kept open between the
+     * accepted connections instead of recreating it (and the service record) after every one.
+     * @param persistentServerSocket True, if the server socket should be kept open.
+     */
+    public void setPersistentServerSocket(boolean persistentServerSocket) {
+        if (mPersistentServerSocket != persistentServerSocket) {
+            Log.d(TAG, "setPersistentServerSocket: " + mPersistentServerSocket + " -> " + persistentServerSocket);
+            mPersistentServerSocket = persistentServerSocket;
+            mSharedPreferencesEditor.putBoolean(KEY_PERSISTENT_SERVER_SOCKET, mPersistentServerSocket);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True, if the compact binary handshake message is sent instead of the JSON identity string.
+     */
+    public boolean getBinaryHandshakeEnabled() {
+        return mBinaryHandshakeEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether we send the compact binary handshake message, when
+     * connecting to a peer. Incoming handshakes are accepted and responded to in either format.
+     * Note that the peers with an older version of this library only understand the JSON format.
+     * @param binaryHandshakeEnabled True, if the binary handshake message should be sent.
+     */
+    public void setBinaryHandshakeEnabled(boolean binaryHandshakeEnabled) {
+        if (mBinaryHandshakeEnabled != binaryHandshakeEnabled) {
+            Log.d(TAG, "setBinaryHandshakeEnabled: " + mBinaryHandshakeEnabled + " -> " + binaryHandshakeEnabled);
+            mBinaryHandshakeEnabled = binaryHandshakeEnabled;
+            mSharedPreferencesEditor.putBoolean(KEY_BINARY_HANDSHAKE_ENABLED, mBinaryHandshakeEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True, if the socket creation strategies are raced against each other, when connecting.
+     */
+    public boolean getConnectionRacingEnabled() {
+        return mConnectionRacingEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether the socket creation strategies (the chosen insecure RFCOMM
+     * socket port, the system decided port and the rotating port) are started with staggered
+     * delays and the first one to connect is used, when connecting to a peer. Otherwise, the
+     * strategies are tried one after another.
+     * @param connectionRacingEnabled True, if the strategies should be raced.
+     */
+    public void setConnectionRacingEnabled(boolean connectionRacingEnabled) {
+        if (mConnectionRacingEnabled != connectionRacingEnabled) {
+            Log.d(TAG, "setConnectionRacingEnabled: " + mConnectionRacingEnabled + " -> " + connectionRacingEnabled);
+            mConnectionRacingEnabled = connectionRacingEnabled;
+            mSharedPreferencesEditor.putBoolean(KEY_CONNECTION_RACING_ENABLED, mConnectionRacingEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The maximum number of outgoing connection attempts running at the same time.
+     */
+    public int getMaxNumberOfConcurrentConnectionAttempts() {
+        return mMaxNumberOfConcurrentConnectionAttempts;
+    }
+
+    /**
+     * Sets the maximum number of outgoing connection attempts running at the same time. The
+     * attempts exceeding the limit are queued and started, when the running ones end.
+     * @param maxNumberOfConcurrentConnectionAttempts The maximum number of concurrent attempts or
+     *                                                UNLIMITED_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS.
+     */
+    public void setMaxNumberOfConcurrentConnectionAttempts(int maxNumberOfConcurrentConnectionAttempts) {
+        if (maxNumberOfConcurrentConnectionAttempts < UNLIMITED_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS) {
+            Log.e(TAG, "setMaxNumberOfConcurrentConnectionAttempts: Invalid value: "
+                    + maxNumberOfConcurrentConnectionAttempts);
+        } else if (mMaxNumberOfConcurrentConnectionAttempts != maxNumberOfConcurrentConnectionAttempts) {
+            Log.d(TAG, "setMaxNumberOfConcurrentConnectionAttempts: " + mMaxNumberOfConcurrentConnectionAttempts
+                    + " -> " + maxNumberOfConcurrentConnectionAttempts);
+            mMaxNumberOfConcurrentConnectionAttempts = maxNumberOfConcurrentConnectionAttempts;
+            mSharedPreferencesEditor.putInt(
+                    KEY_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS, mMaxNumberOfConcurrentConnectionAttempts);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True, if connecting to the peers, which keep failing, is backed off from.
+     */
+    public boolean getPeerBackoffEnabled() {
+        return mPeerBackoffEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether to back off from the peers, which keep failing. If
+     * enabled, the connection attempts to a peer fail right away after several consecutive
+     * failures until a backoff time, which grows exponentially with every further failure, has
+     * passed.
+     * @param peerBackoffEnabled True, if connecting to the failing peers should be backed off from.
+     */
+    public void setPeerBackoffEnabled(boolean peerBackoffEnabled) {
+        if (mPeerBackoffEnabled != peerBackoffEnabled) {
+            Log.d(TAG, "setPeerBackoffEnabled: " + mPeerBackoffEnabled + " -> " + peerBackoffEnabled);
+            mPeerBackoffEnabled = peerBackoffEnabled;
+            mSharedPreferencesEditor.putBoolean(KEY_PEER_BACKOFF_ENABLED, mPeerBackoffEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True, if the simultaneous connections between us and a peer are arbitrated so that
+     * only one link survives.
+     */
+    public boolean getDuplicateConnectionArbitrationEnabled() {
+        return mDuplicateConnectionArbitrationEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether to arbitrate the simultaneous connections between us and
+     * a peer, when both connect to each other at the same time. The duplicate is declined during
+     * the handshake (see BluetoothConnector.setDuplicateConnectionArbitrationEnabled()).
+     * @param duplicateConnectionArbitrationEnabled True, if the duplicate connections should be avoided.
+     */
+    public void setDuplicateConnectionArbitrationEnabled(boolean duplicateConnectionArbitrationEnabled) {
+        if (mDuplicateConnectionArbitrationEnabled != duplicateConnectionArbitrationEnabled) {
+            Log.d(TAG, "setDuplicateConnectionArbitrationEnabled: " + mDuplicateConnectionArbitrationEnabled
+                    + " -> " + duplicateConnectionArbitrationEnabled);
+            mDuplicateConnectionArbitrationEnabled = duplicateConnectionArbitrationEnabled;
+            mSharedPreferencesEditor.putBoolean(
+                    KEY_DUPLICATE_CONNECTION_ARBITRATION_ENABLED, mDuplicateConnectionArbitrationEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True, if the socket port, which last worked with a peer, is tried first when
+     * connecting to the same peer again.
+     */
+    public boolean getPeerPortCacheEnabled() {
+        return mPeerPortCacheEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether to remember the socket port (the system decided port or
+     * a specific RFCOMM channel), which last worked with each peer, and to try it first when
+     * connecting to the same peer again instead of the insecure RFCOMM socket port number setting.
+     * @param peerPortCacheEnabled True, if the ports of the peers should be remembered.
+     */
+    public void setPeerPortCacheEnabled(boolean peerPortCacheEnabled) {
+        if (mPeerPortCacheEnabled != peerPortCacheEnabled) {
+            Log.d(TAG, "setPeerPortCacheEnabled: " + mPeerPortCacheEnabled + " -> " + peerPortCacheEnabled);
+            mPeerPortCacheEnabled = peerPortCacheEnabled;
+            mSharedPreferencesEditor.putBoolean(KEY_PEER_PORT_CACHE_ENABLED, mPeerPortCacheEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True, if the connection timeout is derived from the observed connect times.
+     */
+    public boolean getAdaptiveConnectionTimeoutEnabled() {
+        return mAdaptiveConnectionTimeoutEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether to derive the connection timeout of each attempt from
+     * the times the successful connections (globally and to the same peer) have taken. If
+     * enabled, the connection timeout setting is the maximum timeout.
+     * @param adaptiveConnectionTimeoutEnabled True, if the connection timeout should be adaptive.
+     */
+    public void setAdaptiveConnectionTimeoutEnabled(boolean adaptiveConnectionTimeoutEnabled) {
+        if (mAdaptiveConnectionTimeoutEnabled != adaptiveConnectionTimeoutEnabled) {
+            Log.d(TAG, "setAdaptiveConnectionTimeoutEnabled: " + mAdaptiveConnectionTimeoutEnabled
+                    + " -> " + adaptiveConnectionTimeoutEnabled);
+            mAdaptiveConnectionTimeoutEnabled = adaptiveConnectionTimeoutEnabled;
+            mSharedPreferencesEditor.putBoolean(
+                    KEY_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED, mAdaptiveConnectionTimeoutEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True, if the handshakes of the incoming connections are run on a handshake executor.
+     */
+    public boolean getHandshakeExecutorEnabled() {
+        return mHandshakeExecutorEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether to run the handshakes of the incoming connections on a
+     * fixed number of worker threads with a deadline for each handshake instead of a thread per
+     * connection (see HandshakeExecutor).
+     * @param handshakeExecutorEnabled True, if the handshake executor should be used.
+     */
+    public void setHandshakeExecutorEnabled(boolean handshakeExecutorEnabled) {
+        if (mHandshakeExecutorEnabled != handshakeExecutorEnabled) {
+            Log.d(TAG, "setHandshakeExecutorEnabled: " + mHandshakeExecutorEnabled + " -> " + handshakeExecutorEnabled);
+            mHandshakeExecutorEnabled = handshakeExecutorEnabled;
+            mSharedPreferencesEditor.putBoolean(KEY_HANDSHAKE_EXECUTOR_ENABLED, mHandshakeExecutorEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
     @Override
     public void load() {
         if (!mLoaded) {
@@ -250,12 +636,45 @@ public class ConnectionManagerSettings extends AbstractSettings {
             mMaxNumberOfConnectionAttemptRetries = mSharedPreferences.getInt(
                     KEY_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES, DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES);
             mHandshakeRequired = mSharedPreferences.getBoolean(KEY_HANDSHAKE_REQUIRED, DEFAULT_HANDSHAKE_REQUIRED);
+            mCompressionEnabled = mSharedPreferences.getBoolean(KEY_COMPRESSION_ENABLED, DEFAULT_COMPRESSION_ENABLED);
+            mTypedFramingEnabled = mSharedPreferences.getBoolean(KEY_TYPED_FRAMING_ENABLED, DEFAULT_TYPED_FRAMING_ENABLED);
+            mFlowControlWindowSizeInBytes = mSharedPreferences.getInt(
+                    KEY_FLOW_CONTROL_WINDOW_SIZE, DEFAULT_FLOW_CONTROL_WINDOW_SIZE_IN_BYTES);
+            mPersistentServerSocket = mSharedPreferences.getBoolean(
+                    KEY_PERSISTENT_SERVER_SOCKET, DEFAULT_PERSISTENT_SERVER_SOCKET);
+            mBinaryHandshakeEnabled = mSharedPreferences.getBoolean(
+                    KEY_BINARY_HANDSHAKE_ENABLED, DEFAULT_BINARY_HANDSHAKE_ENABLED);
+            mConnectionRacingEnabled = mSharedPreferences.getBoolean(
+                    KEY_CONNECTION_RACING_ENABLED, DEFAULT_CONNECTION_RACING_ENABLED);
+            mMaxNumberOfConcurrentConnectionAttempts = mSharedPreferences.getInt(
+                    KEY_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS, DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS);
+            mPeerBackoffEnabled = mSharedPreferences.getBoolean(KEY_PEER_BACKOFF_ENABLED, DEFAULT_PEER_BACKOFF_ENABLED);
+            mDuplicateConnectionArbitrationEnabled = mSharedPreferences.getBoolean(
+                    KEY_DUPLICATE_CONNECTION_ARBITRATION_ENABLED, DEFAULT_DUPLICATE_CONNECTION_ARBITRATION_ENABLED);
+            mPeerPortCacheEnabled = mSharedPreferences.getBoolean(
+                    KEY_PEER_PORT_CACHE_ENABLED, DEFAULT_PEER_PORT_CACHE_ENABLED);
+            mAdaptiveConnectionTimeoutEnabled = mSharedPreferences.getBoolean(
+                    KEY_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED, DEFAULT_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED);
+            mHandshakeExecutorEnabled = mSharedPreferences.getBoolean(
+                    KEY_HANDSHAKE_EXECUTOR_ENABLED, DEFAULT_HANDSHAKE_EXECUTOR_ENABLED);
 
             Log.v(TAG, "load: "
                     + "\n    - Connection timeout in milliseconds: " + mConnectionTimeoutInMilliseconds
                     + "\n    - Insecure RFCOMM socket port number: " + mInsecureRfcommSocketPortNumber
                     + "\n    - Maximum number of connection attempt retries: " + mMaxNumberOfConnectionAttemptRetries
-                    + "\n    - Handshake required: " + mHandshakeRequired);
+                    + "\n    - Handshake required: " + mHandshakeRequired
+                    + "\n    - Compression enabled: " + mCompressionEnabled
+                    + "\n    - Typed framing enabled: " + mTypedFramingEnabled
+                    + "\n    - Flow control window size in bytes: " + mFlowControlWindowSizeInBytes
+                    + "\n    - Persistent server socket: " + mPersistentServerSocket
+                    + "\n    - Binary handshake enabled: " + mBinaryHandshakeEnabled
+                    + "\n    - Connection racing enabled: " + mConnectionRacingEnabled
+                    + "\n    - Maximum number of concurrent connection attempts: " + mMaxNumberOfConcurrentConnectionAttempts
+                    + "\n    - Peer backoff enabled: " + mPeerBackoffEnabled
+                    + "\n    - Duplicate connection arbitration enabled: " + mDuplicateConnectionArbitrationEnabled
+                    + "\n    - Peer port cache enabled: " + mPeerPortCacheEnabled
+                    + "\n    - Adaptive connection timeout enabled: " + mAdaptiveConnectionTimeoutEnabled
+                    + "\n    - Handshake executor enabled: " + mHandshakeExecutorEnabled);
         } else {
             Log.v(TAG, "load: Already loaded");
         }
@@ -267,5 +686,17 @@ public class ConnectionManagerSettings extends AbstractSettings {
         setInsecureRfcommSocketPortNumber(SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
         setMaxNumberOfConnectionAttemptRetries(DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES);
         setHandshakeRequired(DEFAULT_HANDSHAKE_REQUIRED);
+        setCompressionEnabled(DEFAULT_COMPRESSION_ENABLED);
+        setTypedFramingEnabled(DEFAULT_TYPED_FRAMING_ENABLED);
+        setFlowControlWindowSize(DEFAULT_FLOW_CONTROL_WINDOW_SIZE_IN_BYTES);
+        setPersistentServerSocket(DEFAULT_PERSISTENT_SERVER_SOCKET);
+        setBinaryHandshakeEnabled(DEFAULT_BINARY_HANDSHAKE_ENABLED);
+        setConnectionRacingEnabled(DEFAULT_CONNECTION_RACING_ENABLED);
+        setMaxNumberOfConcurrentConnectionAttempts(DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS);
+        setPeerBackoffEnabled(DEFAULT_PEER_BACKOFF_ENABLED);
+        setDuplicateConnectionArbitrationEnabled(DEFAULT_DUPLICATE_CONNECTION_ARBITRATION_ENABLED);
+        setPeerPortCacheEnabled(DEFAULT_PEER_PORT_CACHE_ENABLED);
+        setAdaptiveConnectionTimeoutEnabled(DEFAULT_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED);
+        setHandshakeExecutorEnabled(DEFAULT_HANDSHAKE_EXECUTOR_ENABLED);
     }
 }
@@ -17,6 +17,11 @@ public class PeerProperties {
     private String mDeviceName;
     private String mDeviceAddress;
     private int mExtraInformation;
+    private boolean mTypedFramingEnabled = false; // True, if the typed framing was negotiated in the handshake
+    private boolean mCompressionEnabled = false; // True, if the compression was negotiated in the handshake
+    private int mFlowControlWindowSize = 0; // The flow control window negotiated in the handshake
+    private byte[] mEarlyData = null; // The early data attached to the handshake
+    private byte[] mBufferedData = null; // The bytes read past the handshake
 
     /**
      * Constructor.
@@ -126,6 +131,71 @@ public class PeerProperties {
         mExtraInformation = extraInformation;
     }
 
+    /**
+     * @return True, if both we and the peer support the typed framing (the framing the
+     * compression, the flow control and the keepalive require), as negotiated in the handshake.
+     * See BluetoothSocketIoThread.applyNegotiatedFraming() for applying the negotiated framing and
+     * its features.
+     */
+    public boolean isTypedFramingEnabled() {
+        return mTypedFramingEnabled;
+    }
+
+    public void setTypedFramingEnabled(boolean typedFramingEnabled) {
+        mTypedFramingEnabled = typedFramingEnabled;
+    }
+
+    /**
+     * @return True, if both we and the peer support the frame compression, as negotiated in the
+     * handshake. The compression is negotiated only together with the typed framing.
+     */
+    public boolean isCompressionEnabled() {
+        return mCompressionEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        mCompressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * @return The flow control window size in bytes negotiated in the handshake (the smaller of
+     * the ones offered by us and the peer) or zero, if either of us does not use the flow control.
+     */
+    public int getFlowControlWindowSize() {
+        return mFlowControlWindowSize;
+    }
+
+    public void setFlowControlWindowSize(int flowControlWindowSize) {
+        mFlowControlWindowSize = flowControlWindowSize;
+    }
+
+    /**
+     * @return The early data (the initial application payload) the peer attached to its binary
+     * handshake message or null, if none.
+     */
+    public byte[] getEarlyData() {
+        return mEarlyData;
+    }
+
+    public void setEarlyData(byte[] earlyData) {
+        mEarlyData = earlyData;
+    }
+
+    /**
+     * @return The bytes the peer wrote after its handshake message, which were read from the
+     * socket together with the handshake, or null, if none. The bytes belong to the stream of the
+     * connection e.g. they may be frames, so they are not read from the socket again: If these
+     * properties are set to BluetoothSocketIoThread before it is started, it reads these bytes
+     * before the socket (see BluetoothSocketIoThread.setPeerProperties()).
+     */
+    public byte[] getBufferedData() {
+        return mBufferedData;
+    }
+
+    public void setBufferedData(byte[] bufferedData) {
+        mBufferedData = bufferedData;
+    }
+
     /**
      * Copies the content of the given source to this one.
      * @param sourcePeerProperties The source peer properties.
@@ -138,6 +208,11 @@ public class PeerProperties {
             mDeviceName = sourcePeerProperties.mDeviceName;
             mDeviceAddress = sourcePeerProperties.mDeviceAddress;
             mExtraInformation = sourcePeerProperties.mExtraInformation;
+            mTypedFramingEnabled = sourcePeerProperties.mTypedFramingEnabled;
+            mCompressionEnabled = sourcePeerProperties.mCompressionEnabled;
+            mFlowControlWindowSize = sourcePeerProperties.mFlowControlWindowSize;
+            mEarlyData = sourcePeerProperties.mEarlyData;
+            mBufferedData = sourcePeerProperties.mBufferedData;
         }
     }
 
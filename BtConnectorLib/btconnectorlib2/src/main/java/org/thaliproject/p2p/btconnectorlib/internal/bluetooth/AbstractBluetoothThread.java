@@ -3,7 +3,15 @@
  */
 package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
 
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
+import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
 import org.thaliproject.p2p.btconnectorlib.utils.CommonUtils;
+import org.thaliproject.p2p.btconnectorlib.utils.SocketIoEngine;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
@@ -11,9 +19,16 @@ import java.util.UUID;
  * An abstract base class for BluetoothClientThread and BluetoothServerThread.
  */
 abstract class AbstractBluetoothThread extends Thread {
+    private static final String TAG = AbstractBluetoothThread.class.getName();
+    protected static final int HANDSHAKE_BUFFER_SIZE_IN_BYTES = 1024; // Fits the early data and the bytes past it
     protected UUID mServiceRecordUuid = null;
     protected String mMyIdentityString = null;
     protected boolean mHandshakeRequired = false;
+    protected boolean mTypedFramingSupported = false;
+    protected boolean mCompressionSupported = false;
+    protected int mFlowControlWindowSize = 0;
+    protected boolean mBinaryHandshakeEnabled = false;
+    protected SocketIoEngine mIoEngine = null;
 
     /**
      * Constructor.
@@ -39,17 +54,178 @@ abstract class AbstractBluetoothThread extends Thread {
         mHandshakeRequired = handshakeRequired;
     }
 
+    public boolean getTypedFramingSupported() {
+        return mTypedFramingSupported;
+    }
+
+    /**
+     * Sets whether we advertise the support for the typed framing in the handshake. The typed
+     * framing is advertised also, if the compression or the flow control is, since they require it.
+     *
+     * @param typedFramingSupported If true, will advertise the support for the typed framing.
+     */
+    public void setTypedFramingSupported(boolean typedFramingSupported) {
+        mTypedFramingSupported = typedFramingSupported;
+    }
+
+    public boolean getCompressionSupported() {
+        return mCompressionSupported;
+    }
+
+    /**
+     * Sets whether we advertise the support for the frame compression in the handshake. The
+     * compression can only be negotiated, if the identity string is used for the handshake.
+     *
+     * @param compressionSupported If true, will advertise the support for the compression.
+     */
+    public void setCompressionSupported(boolean compressionSupported) {
+        mCompressionSupported = compressionSupported;
+    }
+
+    public int getFlowControlWindowSize() {
+        return mFlowControlWindowSize;
+    }
+
+    /**
+     * Sets the flow control window size we offer in the handshake. The smaller of the windows
+     * offered by us and the peer is used.
+     *
+     * @param flowControlWindowSize The window size in bytes or zero to not offer the flow control.
+     */
+    public void setFlowControlWindowSize(int flowControlWindowSize) {
+        mFlowControlWindowSize = Math.max(flowControlWindowSize, 0);
+    }
+
+    /**
+     * Checks the validity of the received handshake message and negotiates the framing features
+     * we support.
+     *
+     * @param handshakeMessage The received handshake message as a byte array.
+     * @param handshakeMessageLength The length of the handshake message.
+     * @param bluetoothSocketOfSender The Bluetooth socket of the sender.
+     * @return The resolved peer properties of the sender, if the handshake was valid. Null otherwise.
+     */
+    protected PeerProperties validateReceivedHandshakeMessage(
+            byte[] handshakeMessage, int handshakeMessageLength, BluetoothSocket bluetoothSocketOfSender) {
+        return BluetoothUtils.validateReceivedHandshakeMessage(handshakeMessage, handshakeMessageLength,
+                bluetoothSocketOfSender, mTypedFramingSupported, mCompressionSupported, mFlowControlWindowSize);
+    }
+
+    public boolean getBinaryHandshakeEnabled() {
+        return mBinaryHandshakeEnabled;
+    }
+
+    /**
+     * Sets whether we send the compact binary handshake message (see BinaryHandshake) instead of
+     * the JSON identity string. The received handshake messages are accepted in either format,
+     * but the peers with an older version of this library only understand the JSON one.
+     *
+     * @param binaryHandshakeEnabled If true, will send the binary handshake message.
+     */
+    public void setBinaryHandshakeEnabled(boolean binaryHandshakeEnabled) {
+        mBinaryHandshakeEnabled = binaryHandshakeEnabled;
+    }
+
+    /**
+     * Sets the I/O engine to run the handshake reads on. If not set, a dedicated thread is
+     * started for each handshake.
+     *
+     * @param ioEngine The I/O engine or null.
+     */
+    public void setIoEngine(SocketIoEngine ioEngine) {
+        mIoEngine = ioEngine;
+    }
+
     abstract public void shutdown();
 
+    /**
+     * Starts reading the given handshake socket either on the I/O engine, if set, or in a thread
+     * of its own. On the engine a peer closing the socket is detected by the probe of the engine,
+     * when the socket has been idle for the end of stream probe delay and a probe thread is free.
+     *
+     * @param handshakeThread The handshake socket IO thread.
+     */
+    protected void startHandshakeThread(BluetoothSocketIoThread handshakeThread) {
+        if (mIoEngine != null) {
+            handshakeThread.start(mIoEngine);
+        } else {
+            handshakeThread.start();
+        }
+    }
+
+    /**
+     * Creates a handshake message in the format set with setBinaryHandshakeEnabled().
+     *
+     * @return The handshake message as a byte array.
+     */
+    protected byte[] getHandshakeMessage() {
+        return getHandshakeMessage(mBinaryHandshakeEnabled);
+    }
+
     /**
      * Creates a handshake message. Uses the identity string for the message, if the string is
      * non-empty. Otherwise will return a simple, generic handshake message.
      *
+     * @param binary If true, will encode the identity as a binary handshake message. Falls back
+     *               to the JSON identity string, if the identity cannot be resolved.
      * @return The handshake message as a byte array.
      */
-    protected byte[] getHandshakeMessage() {
-        return (CommonUtils.isNonEmptyString(mMyIdentityString)
-                ? mMyIdentityString.getBytes(StandardCharsets.UTF_8)
-                : BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY);
+    protected byte[] getHandshakeMessage(boolean binary) {
+        return getHandshakeMessage(binary, null);
+    }
+
+    /**
+     * Creates a handshake message. Uses the identity string for the message, if the string is
+     * non-empty. Otherwise will return a simple, generic handshake message.
+     *
+     * @param binary If true, will encode the identity as a binary handshake message. Falls back
+     *               to the JSON identity string, if the identity cannot be resolved.
+     * @param earlyData The early data to attach to the binary handshake message or null, if none.
+     *                  The legacy handshake messages cannot carry early data, so the caller can
+     *                  check whether it was attached with BinaryHandshake.isBinaryHandshakeMessage().
+     * @return The handshake message as a byte array.
+     */
+    protected byte[] getHandshakeMessage(boolean binary, byte[] earlyData) {
+        if (!CommonUtils.isNonEmptyString(mMyIdentityString)) {
+            return BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY;
+        }
+
+        if (binary) {
+            try {
+                PeerProperties myPeerProperties = new PeerProperties();
+
+                if (AbstractBluetoothConnectivityAgent.getPropertiesFromIdentityString(
+                        mMyIdentityString, myPeerProperties)) {
+                    return BinaryHandshake.encode(myPeerProperties.getName(),
+                            myPeerProperties.getBluetoothMacAddress(), mTypedFramingSupported,
+                            mCompressionSupported, mFlowControlWindowSize, earlyData);
+                }
+            } catch (JSONException | IllegalArgumentException e) {
+                Log.e(TAG, "getHandshakeMessage: Failed to create a binary handshake message: " + e.getMessage(), e);
+            }
+        }
+
+        String handshakeMessage = mMyIdentityString;
+
+        if (mTypedFramingSupported || mCompressionSupported || mFlowControlWindowSize > 0) {
+            try {
+                JSONObject jsonObject = new JSONObject(mMyIdentityString);
+                jsonObject.put(BluetoothUtils.HANDSHAKE_JSON_ID_FRAMING, BluetoothUtils.HANDSHAKE_FRAMING_TYPED);
+
+                if (mCompressionSupported) {
+                    jsonObject.put(BluetoothUtils.HANDSHAKE_JSON_ID_COMPRESSION, BluetoothUtils.HANDSHAKE_COMPRESSION_DEFLATE);
+                }
+
+                if (mFlowControlWindowSize > 0) {
+                    jsonObject.put(BluetoothUtils.HANDSHAKE_JSON_ID_FLOW_CONTROL_WINDOW, mFlowControlWindowSize);
+                }
+
+                handshakeMessage = jsonObject.toString();
+            } catch (JSONException e) {
+                Log.e(TAG, "getHandshakeMessage: Failed to add the framing features: " + e.getMessage(), e);
+            }
+        }
+
+        return handshakeMessage.getBytes(StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,376 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The compact binary handshake message:
+ *
+ * | magic (2 bytes) | version (1) | flags (1) | Bluetooth MAC address (6) | name length (2) | name (UTF-8) |
+ *
+ * The flags offer the framing features: FLAG_TYPED_FRAMING offers the typed framing, which
+ * FLAG_COMPRESSION_DEFLATE (the frame compression) and FLAG_FLOW_CONTROL (the credit-based flow
+ * control) require. A feature is used, if both peers offer it. If FLAG_FLOW_CONTROL is set, the
+ * name is followed by the offered flow control window size and the smaller of the two windows is
+ * used:
+ *
+ * | flow control window size (4) |
+ *
+ * If FLAG_EARLY_DATA is set, it is followed by the early data: An initial application
+ * payload (max MAX_EARLY_DATA_SIZE_IN_BYTES) sent with the handshake so that the receiver gets it
+ * without waiting for another round trip:
+ *
+ * | early data length (2) | early data |
+ *
+ * A server declining a duplicate connection replies with the declined message instead: The
+ * magic, the version and FLAG_DECLINED without the rest of the header (see encodeDeclined()).
+ * It is too short to be taken for a handshake message by the peers not knowing it.
+ *
+ * The multi-byte values are in network byte order. The first byte of the magic is not valid as
+ * the first byte of a UTF-8 string, so the message cannot be confused with the legacy handshake
+ * messages (the JSON identity string or the simple handshake message). The decoding of a newer
+ * version reads the fields known to this version and ignores the rest.
+ *
+ * Unlike the JSON identity string, the message is parsed without intermediate strings: The MAC
+ * address is compared to the address of the socket byte by byte and the only string allocated is
+ * the peer name.
+ */
+class BinaryHandshake {
+    private static final String TAG = BinaryHandshake.class.getName();
+    static final byte MAGIC_FIRST_BYTE = (byte) 0xB7;
+    static final byte MAGIC_SECOND_BYTE = (byte) 0x48;
+    static final byte VERSION = 1;
+    static final int FLAG_COMPRESSION_DEFLATE = 0x01;
+    static final int FLAG_EARLY_DATA = 0x02;
+    static final int FLAG_TYPED_FRAMING = 0x04;
+    static final int FLAG_FLOW_CONTROL = 0x08;
+    static final int FLAG_DECLINED = 0x80;
+    static final int DECLINED_MESSAGE_SIZE_IN_BYTES = 4;
+    static final int HEADER_SIZE_IN_BYTES = 12;
+    static final int MAX_NAME_LENGTH_IN_BYTES = 0xffff;
+    static final int MAX_EARLY_DATA_SIZE_IN_BYTES = 512; // The message has to fit in a single read
+    private static final int EARLY_DATA_LENGTH_SIZE_IN_BYTES = 2;
+    private static final int FLOW_CONTROL_WINDOW_SIZE_SIZE_IN_BYTES = 4;
+    private static final int VERSION_OFFSET = 2;
+    private static final int FLAGS_OFFSET = 3;
+    private static final int BLUETOOTH_MAC_ADDRESS_OFFSET = 4;
+    private static final int NAME_LENGTH_OFFSET = 10;
+
+    /**
+     * Encodes a handshake message.
+     *
+     * @param peerName Our peer name.
+     * @param bluetoothMacAddress Our Bluetooth MAC address.
+     * @param compressionSupported True, if we support the frame compression.
+     * @return The handshake message.
+     * @throws IllegalArgumentException Thrown, if the name is empty or too long or if the Bluetooth
+     * MAC address is invalid.
+     */
+    static byte[] encode(String peerName, String bluetoothMacAddress, boolean compressionSupported)
+            throws IllegalArgumentException {
+        return encode(peerName, bluetoothMacAddress, compressionSupported, null);
+    }
+
+    /**
+     * Encodes a handshake message with the given early data.
+     *
+     * @param peerName Our peer name.
+     * @param bluetoothMacAddress Our Bluetooth MAC address.
+     * @param compressionSupported True, if we support the frame compression.
+     * @param earlyData The early data or null, if none.
+     * @return The handshake message.
+     * @throws IllegalArgumentException Thrown, if the name is empty or too long, if the Bluetooth
+     * MAC address is invalid or if the early data is too long.
+     */
+    static byte[] encode(
+            String peerName, String bluetoothMacAddress, boolean compressionSupported, byte[] earlyData)
+            throws IllegalArgumentException {
+        return encode(peerName, bluetoothMacAddress, compressionSupported, compressionSupported, 0, earlyData);
+    }
+
+    /**
+     * Encodes a handshake message offering the given framing features.
+     *
+     * @param peerName Our peer name.
+     * @param bluetoothMacAddress Our Bluetooth MAC address.
+     * @param typedFramingSupported True, if we support the typed framing. Ignored, unless true,
+     *                              if the compression or the flow control is offered.
+     * @param compressionSupported True, if we support the frame compression.
+     * @param flowControlWindowSize The flow control window size we offer in bytes or zero, if none.
+     * @param earlyData The early data or null, if none.
+     * @return The handshake message.
+     * @throws IllegalArgumentException Thrown, if the name is empty or too long, if the Bluetooth
+     * MAC address is invalid or if the early data is too long.
+     */
+    static byte[] encode(
+            String peerName, String bluetoothMacAddress, boolean typedFramingSupported,
+            boolean compressionSupported, int flowControlWindowSize, byte[] earlyData)
+            throws IllegalArgumentException {
+        if (peerName == null || peerName.isEmpty()) {
+            throw new IllegalArgumentException("The peer name is empty");
+        }
+
+        byte[] nameBytes = peerName.getBytes(StandardCharsets.UTF_8);
+
+        if (nameBytes.length > MAX_NAME_LENGTH_IN_BYTES) {
+            throw new IllegalArgumentException("The peer name is too long: " + nameBytes.length + " bytes");
+        }
+
+        final boolean hasEarlyData = (earlyData != null && earlyData.length > 0);
+
+        if (hasEarlyData && earlyData.length > MAX_EARLY_DATA_SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("The early data is too long: " + earlyData.length + " bytes");
+        }
+
+        final boolean hasFlowControl = (flowControlWindowSize > 0);
+        final int nameEnd = HEADER_SIZE_IN_BYTES + nameBytes.length;
+        final int earlyDataOffset = nameEnd + (hasFlowControl ? FLOW_CONTROL_WINDOW_SIZE_SIZE_IN_BYTES : 0);
+        byte[] message = new byte[earlyDataOffset
+                + (hasEarlyData ? EARLY_DATA_LENGTH_SIZE_IN_BYTES + earlyData.length : 0)];
+        message[0] = MAGIC_FIRST_BYTE;
+        message[1] = MAGIC_SECOND_BYTE;
+        message[VERSION_OFFSET] = VERSION;
+        message[FLAGS_OFFSET] = (byte) ((compressionSupported ? FLAG_COMPRESSION_DEFLATE : 0)
+                | (hasEarlyData ? FLAG_EARLY_DATA : 0)
+                | (typedFramingSupported || compressionSupported || hasFlowControl ? FLAG_TYPED_FRAMING : 0)
+                | (hasFlowControl ? FLAG_FLOW_CONTROL : 0));
+
+        if (bluetoothMacAddress == null
+                || !parseBluetoothMacAddress(bluetoothMacAddress, message, BLUETOOTH_MAC_ADDRESS_OFFSET)) {
+            throw new IllegalArgumentException("Invalid Bluetooth MAC address: " + bluetoothMacAddress);
+        }
+
+        message[NAME_LENGTH_OFFSET] = (byte) (nameBytes.length >>> 8);
+        message[NAME_LENGTH_OFFSET + 1] = (byte) nameBytes.length;
+        System.arraycopy(nameBytes, 0, message, HEADER_SIZE_IN_BYTES, nameBytes.length);
+
+        if (hasFlowControl) {
+            message[nameEnd] = (byte) (flowControlWindowSize >>> 24);
+            message[nameEnd + 1] = (byte) (flowControlWindowSize >>> 16);
+            message[nameEnd + 2] = (byte) (flowControlWindowSize >>> 8);
+            message[nameEnd + 3] = (byte) flowControlWindowSize;
+        }
+
+        if (hasEarlyData) {
+            message[earlyDataOffset] = (byte) (earlyData.length >>> 8);
+            message[earlyDataOffset + 1] = (byte) earlyData.length;
+            System.arraycopy(earlyData, 0, message, earlyDataOffset + EARLY_DATA_LENGTH_SIZE_IN_BYTES, earlyData.length);
+        }
+
+        return message;
+    }
+
+    /**
+     * @return The message telling the peer that its connection was declined as a duplicate.
+     */
+    static byte[] encodeDeclined() {
+        return new byte[] { MAGIC_FIRST_BYTE, MAGIC_SECOND_BYTE, VERSION, (byte) FLAG_DECLINED };
+    }
+
+    /**
+     * @param message The received handshake message.
+     * @param length The length of the message.
+     * @return True, if the given message is the declined message (see encodeDeclined()).
+     */
+    static boolean isDeclinedMessage(byte[] message, int length) {
+        return (isBinaryHandshakeMessage(message, length) && length == DECLINED_MESSAGE_SIZE_IN_BYTES
+                && message.length >= DECLINED_MESSAGE_SIZE_IN_BYTES
+                && (message[FLAGS_OFFSET] & FLAG_DECLINED) != 0);
+    }
+
+    /**
+     * @param message The received handshake message.
+     * @param length The length of the message.
+     * @return True, if the given message is a binary handshake message. Does not validate the message.
+     */
+    static boolean isBinaryHandshakeMessage(byte[] message, int length) {
+        return (message != null && length >= 2 && message.length >= 2
+                && message[0] == MAGIC_FIRST_BYTE && message[1] == MAGIC_SECOND_BYTE);
+    }
+
+    /**
+     * Decodes and validates a handshake message. The Bluetooth MAC address in the message must
+     * match the one of the sender socket.
+     *
+     * @param message The received handshake message.
+     * @param length The length of the message.
+     * @param bluetoothMacAddressOfSender The Bluetooth MAC address of the sender socket.
+     * @param compressionSupported True, if we support the frame compression (and thus the typed framing).
+     * @return The resolved peer properties of the sender, if the handshake was valid. Null otherwise.
+     */
+    static PeerProperties decode(
+            byte[] message, int length, String bluetoothMacAddressOfSender, boolean compressionSupported) {
+        return decode(message, length, bluetoothMacAddressOfSender, compressionSupported, compressionSupported, 0);
+    }
+
+    /**
+     * Decodes and validates a handshake message. The Bluetooth MAC address in the message must
+     * match the one of the sender socket.
+     *
+     * The framing features offered by both us and the sender are set to the resolved peer
+     * properties (see PeerProperties.isTypedFramingEnabled()).
+     * The early data is set to the resolved peer properties (see PeerProperties.getEarlyData()),
+     * if FLAG_EARLY_DATA is set. Any bytes read past the message (i.e. the first bytes the sender
+     * wrote after the handshake) are set as the buffered data (see
+     * PeerProperties.getBufferedData()) instead of being dropped. With a newer version, whose
+     * fields are unknown, the bytes past the known fields are ignored.
+     *
+     * @param message The received handshake message.
+     * @param length The length of the message.
+     * @param bluetoothMacAddressOfSender The Bluetooth MAC address of the sender socket.
+     * @param typedFramingSupported True, if we support the typed framing.
+     * @param compressionSupported True, if we support the frame compression.
+     * @param flowControlWindowSize The flow control window size we offer in bytes or zero, if none.
+     * @return The resolved peer properties of the sender, if the handshake was valid. Null otherwise.
+     */
+    static PeerProperties decode(
+            byte[] message, int length, String bluetoothMacAddressOfSender, boolean typedFramingSupported,
+            boolean compressionSupported, int flowControlWindowSize) {
+        if (!isBinaryHandshakeMessage(message, length) || length > message.length || length < HEADER_SIZE_IN_BYTES) {
+            Log.e(TAG, "decode: Not a valid handshake message");
+            return null;
+        }
+
+        if (message[VERSION_OFFSET] < VERSION) {
+            Log.e(TAG, "decode: Unsupported version: " + message[VERSION_OFFSET]);
+            return null;
+        }
+
+        final int nameLength = ((message[NAME_LENGTH_OFFSET] & 0xff) << 8) | (message[NAME_LENGTH_OFFSET + 1] & 0xff);
+
+        if (nameLength == 0 || HEADER_SIZE_IN_BYTES + nameLength > length) {
+            Log.e(TAG, "decode: Invalid name length: " + nameLength + " (message length: " + length + ")");
+            return null;
+        }
+
+        if (bluetoothMacAddressOfSender == null
+                || !bluetoothMacAddressEquals(message, BLUETOOTH_MAC_ADDRESS_OFFSET, bluetoothMacAddressOfSender)) {
+            Log.e(TAG, "decode: Bluetooth MAC address mismatch, was expecting \"" + bluetoothMacAddressOfSender + "\"");
+            return null;
+        }
+
+        final int flags = message[FLAGS_OFFSET];
+        int messageEnd = HEADER_SIZE_IN_BYTES + nameLength;
+        int peerFlowControlWindowSize = 0;
+        byte[] earlyData = null;
+
+        if ((flags & FLAG_FLOW_CONTROL) != 0) {
+            if (messageEnd + FLOW_CONTROL_WINDOW_SIZE_SIZE_IN_BYTES > length) {
+                Log.e(TAG, "decode: The flow control window size is missing (message length: " + length + ")");
+                return null;
+            }
+
+            peerFlowControlWindowSize = ((message[messageEnd] & 0xff) << 24) | ((message[messageEnd + 1] & 0xff) << 16)
+                    | ((message[messageEnd + 2] & 0xff) << 8) | (message[messageEnd + 3] & 0xff);
+            messageEnd += FLOW_CONTROL_WINDOW_SIZE_SIZE_IN_BYTES;
+        }
+
+        if (message[VERSION_OFFSET] == VERSION && (flags & FLAG_EARLY_DATA) != 0) {
+            final int earlyDataLength = (messageEnd + EARLY_DATA_LENGTH_SIZE_IN_BYTES <= length)
+                    ? ((message[messageEnd] & 0xff) << 8) | (message[messageEnd + 1] & 0xff) : -1;
+            messageEnd += EARLY_DATA_LENGTH_SIZE_IN_BYTES;
+
+            if (earlyDataLength <= 0 || earlyDataLength > MAX_EARLY_DATA_SIZE_IN_BYTES
+                    || messageEnd + earlyDataLength > length) {
+                Log.e(TAG, "decode: Invalid early data length: " + earlyDataLength + " (message length: " + length + ")");
+                return null;
+            }
+
+            earlyData = Arrays.copyOfRange(message, messageEnd, messageEnd + earlyDataLength);
+            messageEnd += earlyDataLength;
+        }
+
+        PeerProperties peerProperties = new PeerProperties(bluetoothMacAddressOfSender);
+        peerProperties.setName(new String(message, HEADER_SIZE_IN_BYTES, nameLength, StandardCharsets.UTF_8));
+        BluetoothUtils.negotiateFraming(peerProperties,
+                typedFramingSupported || compressionSupported || flowControlWindowSize > 0,
+                compressionSupported, flowControlWindowSize,
+                (flags & FLAG_TYPED_FRAMING) != 0, (flags & FLAG_COMPRESSION_DEFLATE) != 0, peerFlowControlWindowSize);
+
+        peerProperties.setEarlyData(earlyData);
+
+        if (message[VERSION_OFFSET] == VERSION && messageEnd < length) {
+            peerProperties.setBufferedData(Arrays.copyOfRange(message, messageEnd, length));
+        }
+
+        return peerProperties;
+    }
+
+    /**
+     * Parses the given Bluetooth MAC address (e.g. "01:23:45:67:89:AB") into the given array.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address.
+     * @param bytes The array to store the bytes of the address to.
+     * @param offset The offset of the first byte in the array.
+     * @return True, if parsed successfully. False otherwise.
+     */
+    private static boolean parseBluetoothMacAddress(String bluetoothMacAddress, byte[] bytes, int offset) {
+        return parseOrCompareBluetoothMacAddress(bluetoothMacAddress, bytes, offset, false);
+    }
+
+    /**
+     * Compares the Bluetooth MAC address in the given array to the given string without
+     * allocating memory.
+     *
+     * @param bytes The array containing the address.
+     * @param offset The offset of the first byte of the address in the array.
+     * @param bluetoothMacAddress The Bluetooth MAC address as a string.
+     * @return True, if the addresses are equal. False otherwise.
+     */
+    private static boolean bluetoothMacAddressEquals(byte[] bytes, int offset, String bluetoothMacAddress) {
+        return parseOrCompareBluetoothMacAddress(bluetoothMacAddress, bytes, offset, true);
+    }
+
+    /**
+     * Parses the given Bluetooth MAC address and either stores its bytes to or compares them with
+     * the bytes in the given array.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address as a string.
+     * @param bytes The array.
+     * @param offset The offset of the first byte of the address in the array.
+     * @param compare If true, will compare. If false, will store.
+     * @return True, if the address was valid and, when comparing, equal. False otherwise.
+     */
+    private static boolean parseOrCompareBluetoothMacAddress(
+            String bluetoothMacAddress, byte[] bytes, int offset, boolean compare) {
+        int byteIndex = 0;
+        int value = 0;
+        int numberOfDigits = 0;
+
+        for (int i = 0; i <= bluetoothMacAddress.length(); i++) {
+            final char c = (i < bluetoothMacAddress.length())
+                    ? bluetoothMacAddress.charAt(i) : BluetoothUtils.BLUETOOTH_ADDRESS_SEPARATOR.charAt(0);
+
+            if (c == BluetoothUtils.BLUETOOTH_ADDRESS_SEPARATOR.charAt(0)) {
+                if (numberOfDigits == 0 || byteIndex >= BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT) {
+                    return false;
+                }
+
+                if (!compare) {
+                    bytes[offset + byteIndex] = (byte) value;
+                } else if (bytes[offset + byteIndex] != (byte) value) {
+                    return false;
+                }
+
+                byteIndex++;
+                value = 0;
+                numberOfDigits = 0;
+            } else {
+                final int digit = Character.digit(c, 16);
+
+                if (digit < 0 || ++numberOfDigits > 2) {
+                    return false;
+                }
+
+                value = (value << 4) | digit;
+            }
+        }
+
+        return (byteIndex == BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT);
+    }
+}
@@ -10,6 +10,7 @@ import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import java.io.IOException;
 import java.util.Date;
+import java.util.Random;
 import java.util.UUID;
 
 /**
@@ -47,20 +48,38 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
          * @param who The Bluetooth client thread instance calling this callback.
          */
         void onConnectionFailed(PeerProperties peerProperties, String errorMessage, BluetoothClientThread who);
+
+        /**
+         * Called when the peer declined the connection as a duplicate of another connection
+         * between us (see BinaryHandshake.encodeDeclined()). Not a failure of the peer.
+         *
+         * @param peerProperties The peer properties.
+         * @param who The Bluetooth client thread instance calling this callback.
+         */
+        void onConnectionDeclined(PeerProperties peerProperties, BluetoothClientThread who);
     }
 
     private static final String TAG = BluetoothClientThread.class.getName();
     public static final int SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT = -1;
     public static final int DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT = 1;
     public static final int DEFAULT_MAX_NUMBER_OF_RETRIES = 0;
+    public static final long DEFAULT_CONNECTION_RACE_STAGGER_IN_MILLISECONDS = 2000; // About the typical RFCOMM connect time
     private static final int WAIT_BETWEEN_RETRIES_IN_MILLISECONDS = 300;
+    private static final int MAX_WAIT_BETWEEN_RETRIES_IN_MILLISECONDS = 2400;
     private final BluetoothDevice mBluetoothDeviceToConnectTo;
     private Listener mListener = null;
     private BluetoothSocket mBluetoothSocket = null;
-    private BluetoothSocketIoThread mHandshakeThread = null;
+    private volatile BluetoothSocketIoThread mHandshakeThread = null;
     private PeerProperties mPeerProperties;
+    private byte[] mEarlyData = null;
+    private boolean mEarlyDataSentWithHandshake = false;
     private int mInsecureRfcommSocketPort = SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
     private int mMaxNumberOfRetries = DEFAULT_MAX_NUMBER_OF_RETRIES;
+    private boolean mConnectionRacingEnabled = false;
+    private long mConnectionRaceStaggerInMilliseconds = DEFAULT_CONNECTION_RACE_STAGGER_IN_MILLISECONDS;
+    private volatile ConnectionRace mConnectionRace = null;
+    private volatile int mRotatingPortChannel = 0;
+    private volatile int mConnectedPort = 0;
     private long mTimeStarted = 0;
     private boolean mIsShuttingDown = false;
 
@@ -120,8 +139,12 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
                 mHandshakeThread = new BluetoothSocketIoThread(bluetoothSocket, this);
                 mHandshakeThread.setUncaughtExceptionHandler(this.getUncaughtExceptionHandler());
                 mHandshakeThread.setExitThreadAfterRead(true);
-                mHandshakeThread.start();
-                boolean handshakeSucceeded = mHandshakeThread.write(getHandshakeMessage()); // This does not throw exceptions
+                mHandshakeThread.setBufferSize(HANDSHAKE_BUFFER_SIZE_IN_BYTES);
+                startHandshakeThread(mHandshakeThread);
+                byte[] handshakeMessage = getHandshakeMessage(mBinaryHandshakeEnabled, mEarlyData);
+                mEarlyDataSentWithHandshake = (mEarlyData != null
+                        && BinaryHandshake.isBinaryHandshakeMessage(handshakeMessage, handshakeMessage.length));
+                boolean handshakeSucceeded = mHandshakeThread.write(handshakeMessage); // This does not throw exceptions
 
                 if (handshakeSucceeded) {
                     Log.d(TAG, "Outgoing connection initialized (*handshake* thread ID: "
@@ -168,6 +191,15 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         mInsecureRfcommSocketPort = insecureRfcommSocketPort;
     }
 
+    /**
+     * @return The port the socket was connected with: -1 for the system decided port, a value
+     * greater than zero for a specific channel (also when the rotating port was used) or 0, if
+     * not connected.
+     */
+    public int getConnectedPort() {
+        return mConnectedPort;
+    }
+
     /**
      * Sets the maximum number of socket connection attempt retries (0 means only one attempt).
      *
@@ -178,6 +210,23 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         mMaxNumberOfRetries = maxNumberOfRetries;
     }
 
+    public boolean getConnectionRacingEnabled() {
+        return mConnectionRacingEnabled;
+    }
+
+    /**
+     * Sets whether the socket creation strategies are raced against each other (see
+     * ConnectionRace) instead of falling back from one to another.
+     *
+     * @param connectionRacingEnabled If true, will race the strategies.
+     * @param staggerInMilliseconds The delay between starting the strategies.
+     */
+    public void setConnectionRacingEnabled(boolean connectionRacingEnabled, long staggerInMilliseconds) {
+        Log.i(TAG, "setConnectionRacingEnabled: " + connectionRacingEnabled + ", stagger: " + staggerInMilliseconds + " ms");
+        mConnectionRacingEnabled = connectionRacingEnabled;
+        mConnectionRaceStaggerInMilliseconds = staggerInMilliseconds;
+    }
+
     public PeerProperties getPeerProperties() {
         return mPeerProperties;
     }
@@ -191,6 +240,28 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         mPeerProperties = peerProperties;
     }
 
+    public byte[] getEarlyData() {
+        return mEarlyData;
+    }
+
+    /**
+     * Sets the initial application payload to send to the peer. The payload is attached to the
+     * handshake message, if the binary handshake is enabled, and the peer receives it with the
+     * connection callback (see PeerProperties.getEarlyData()). Otherwise, the payload is written
+     * to the socket right after a successful handshake, before the listener is notified.
+     *
+     * @param earlyData The payload or null, if none.
+     * @throws IllegalArgumentException Thrown, if the payload is longer than
+     * BinaryHandshake.MAX_EARLY_DATA_SIZE_IN_BYTES.
+     */
+    public void setEarlyData(byte[] earlyData) throws IllegalArgumentException {
+        if (earlyData != null && earlyData.length > BinaryHandshake.MAX_EARLY_DATA_SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("The early data is too long: " + earlyData.length + " bytes");
+        }
+
+        mEarlyData = (earlyData != null && earlyData.length > 0) ? earlyData : null;
+    }
+
     /**
      * Stops the IO thread and closes the socket. This is a graceful shutdown i.e. no error messages
      * are logged by run() nor will the listener be notified (onConnectionFailed), when this method
@@ -218,8 +289,23 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
 
         Log.d(TAG, "onBytesRead: Read " + size + " bytes successfully (thread ID: " + threadId + ")");
 
+        if (BinaryHandshake.isDeclinedMessage(bytes, size)) {
+            Log.i(TAG, "The peer declined the connection as a duplicate (thread ID: " + threadId + ")");
+
+            // Do not report the disconnect following the decline as a failure
+            mHandshakeThread = null;
+            who.close(true, false);
+
+            if (mListener != null) {
+                mListener.onConnectionDeclined(mPeerProperties, this);
+            }
+
+            shutdown();
+            return;
+        }
+
         PeerProperties peerProperties =
-                BluetoothUtils.validateReceivedHandshakeMessage(bytes, size, bluetoothSocket);
+                validateReceivedHandshakeMessage(bytes, size, bluetoothSocket);
 
         if (peerProperties != null) {
             Log.i(TAG, "Handshake succeeded with " + peerProperties.toString());
@@ -227,7 +313,16 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
             // Set the resolved properties to the associated thread
             who.setPeerProperties(peerProperties);
 
-            if (mListener != null) {
+            if (mEarlyData != null && !mEarlyDataSentWithHandshake && !who.write(mEarlyData)) {
+                String errorMessage = "Failed to write the early data";
+                Log.e(TAG, errorMessage);
+
+                if (mListener != null) {
+                    mListener.onConnectionFailed(mPeerProperties, errorMessage, this);
+                }
+
+                shutdown();
+            } else if (mListener != null) {
                 // On successful handshake, we'll pass the socket for the listener, so it's now
                 // the listeners responsibility to close the socket once done. Thus, do not
                 // close the socket here. Do not either close the input and output streams,
@@ -290,6 +385,12 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
      * Closes the handshake thread, if one exists, and the Bluetooth socket.
      */
     private void close() {
+        final ConnectionRace connectionRace = mConnectionRace;
+
+        if (connectionRace != null) {
+            connectionRace.cancel();
+        }
+
         if (mHandshakeThread != null) {
             mHandshakeThread.close(true, false);
         }
@@ -339,19 +440,7 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         Exception exception = null;
 
         try {
-            if (port == SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT) {
-                // Use the standard method of creating a socket
-                mBluetoothSocket = mBluetoothDeviceToConnectTo.createInsecureRfcommSocketToServiceRecord(mServiceRecordUuid);
-            } else if (port == 0) {
-                // Use a rotating port number
-                mBluetoothSocket = BluetoothUtils.createBluetoothSocketToServiceRecordWithNextPort(
-                        mBluetoothDeviceToConnectTo, mServiceRecordUuid, false);
-            } else {
-                // Use the given port number
-                mBluetoothSocket = BluetoothUtils.createBluetoothSocketToServiceRecord(
-                        mBluetoothDeviceToConnectTo, mServiceRecordUuid, port, false);
-            }
-
+            mBluetoothSocket = createSocket(port);
             socketCreatedSuccessfully = true;
         } catch (IOException e) {
             exception = e;
@@ -362,6 +451,7 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         if (socketCreatedSuccessfully && createdBluetoothSocket != null) {
             try {
                 createdBluetoothSocket.connect(); // Blocking call
+                mConnectedPort = resolvePort(port);
             } catch (IOException e) {
                 exception = e;
 
@@ -375,6 +465,100 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         return exception;
     }
 
+    /**
+     * Creates an insecure Bluetooth socket with the service record UUID.
+     *
+     * @param port If -1, will use a standard method for socket creation (OS decides).
+     *             If 0, will use a rotating port number (see BluetoothUtils.createBluetoothSocketToServiceRecordWithNextPort).
+     *             If greater than 0, will use the given port number.
+     * @return The created socket, which is not connected.
+     * @throws IOException Thrown, if the socket could not be created.
+     */
+    private BluetoothSocket createSocket(final int port) throws IOException {
+        BluetoothSocket bluetoothSocket;
+
+        if (port == SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT) {
+            // Use the standard method of creating a socket
+            bluetoothSocket = mBluetoothDeviceToConnectTo.createInsecureRfcommSocketToServiceRecord(mServiceRecordUuid);
+        } else if (port == 0) {
+            // Use a rotating port number and remember which channel it was
+            final int channel = BluetoothUtils.takeNextAlternativeChannelOrPort();
+            bluetoothSocket = BluetoothUtils.createBluetoothSocketToServiceRecord(
+                    mBluetoothDeviceToConnectTo, mServiceRecordUuid, channel, false);
+            mRotatingPortChannel = channel;
+        } else {
+            // Use the given port number
+            bluetoothSocket = BluetoothUtils.createBluetoothSocketToServiceRecord(
+                    mBluetoothDeviceToConnectTo, mServiceRecordUuid, port, false);
+        }
+
+        if (bluetoothSocket == null) {
+            // The reflection based methods return null on failure
+            throw new IOException("Failed to create a socket using " + ConnectionRace.getStrategyName(port));
+        }
+
+        return bluetoothSocket;
+    }
+
+    /**
+     * @param port The port given to createSocket.
+     * @return The given port or, if the rotating port, the channel actually used.
+     */
+    private int resolvePort(final int port) {
+        return (port == 0) ? mRotatingPortChannel : port;
+    }
+
+    /**
+     * Races the socket creation strategies (see ConnectionRace): The preferred port is started
+     * first followed by the system decided port or, if the system decided port is the preferred
+     * one, the rotating port.
+     *
+     * @return Null, if successfully connected. An exception in case of a failure.
+     */
+    private synchronized Exception raceToConnect() {
+        // Make sure the current socket, if one exists, is closed
+        if (mBluetoothSocket != null) {
+            try {
+                mBluetoothSocket.close();
+            } catch (IOException | NullPointerException e) {
+            }
+
+            mBluetoothSocket = null;
+        }
+
+        final int[] ports = (mInsecureRfcommSocketPort == SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT)
+                ? new int[] { SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT, 0 }
+                : new int[] { mInsecureRfcommSocketPort, SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT };
+
+        ConnectionRace connectionRace = new ConnectionRace(ports, mConnectionRaceStaggerInMilliseconds,
+                new ConnectionRace.SocketFactory() {
+                    @Override
+                    public BluetoothSocket createSocket(int port) throws IOException {
+                        return BluetoothClientThread.this.createSocket(port);
+                    }
+                });
+
+        mConnectionRace = connectionRace;
+        Exception exception = null;
+
+        try {
+            if (!mIsShuttingDown) {
+                mBluetoothSocket = connectionRace.run();
+                mConnectedPort = resolvePort(connectionRace.getWinningPort());
+                Log.i(TAG, "raceToConnect: Won by " + ConnectionRace.getStrategyName(connectionRace.getWinningPort())
+                        + " (thread ID: " + getId() + "), " + ConnectionRace.getStatisticsReport());
+            } else {
+                exception = new IOException("Shutting down");
+            }
+        } catch (IOException e) {
+            exception = e;
+        } finally {
+            mConnectionRace = null;
+        }
+
+        return exception;
+    }
+
     /**
      * Tries to establish a socket connection.
      *
@@ -384,9 +568,11 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         boolean socketConnectSucceeded = false;
         String errorMessage = "";
         int socketConnectAttemptNo = 1;
+        final Random random = new Random();
 
         while (!socketConnectSucceeded && !mIsShuttingDown) {
-            Exception socketException = createSocketAndConnect(mInsecureRfcommSocketPort);
+            Exception socketException = mConnectionRacingEnabled
+                    ? raceToConnect() : createSocketAndConnect(mInsecureRfcommSocketPort);
 
             if (socketException == null) {
                 final BluetoothSocket bluetoothSocket = mBluetoothSocket;
@@ -401,8 +587,10 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
                     // Log the choice of port
                     String logMessage = "Socket connection succeeded";
 
-                    if (mInsecureRfcommSocketPort == 0) {
-                        logMessage += " (using port" + BluetoothUtils.getPreviouslyUsedAlternativeChannelOrPort() + ")";
+                    if (mConnectionRacingEnabled) {
+                        logMessage += " (racing)";
+                    } else if (mInsecureRfcommSocketPort == 0) {
+                        logMessage += " (using port " + mConnectedPort + ")";
                     } else if (mInsecureRfcommSocketPort > 0) {
                         logMessage += " (using port " + mInsecureRfcommSocketPort + ")";
                     } else {
@@ -416,7 +604,7 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
                     // Shutting down probably due to connection timeout
                     Log.i(TAG, "Socket connection succeeded, but we are shutting down (thread ID: " + getId() + ")");
                 }
-            } else if (mInsecureRfcommSocketPort >= 0 && !mIsShuttingDown) {
+            } else if (!mConnectionRacingEnabled && mInsecureRfcommSocketPort >= 0 && !mIsShuttingDown) {
                 // We were using a custom port, fallback to the standard method of creating a socket
                 socketException = createSocketAndConnect(SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
 
@@ -449,11 +637,15 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
                 Log.d(TAG, errorMessage + " (thread ID: " + getId() + ")");
 
                 if (socketConnectAttemptNo < mMaxNumberOfRetries + 1) {
-                    Log.d(TAG, "Trying to connect again in " + WAIT_BETWEEN_RETRIES_IN_MILLISECONDS
+                    // Back off exponentially to give the peer (and the radio) time to recover
+                    final long waitTime = PeerFailureTracker.getBackoffTime(
+                            WAIT_BETWEEN_RETRIES_IN_MILLISECONDS, MAX_WAIT_BETWEEN_RETRIES_IN_MILLISECONDS,
+                            socketConnectAttemptNo - 1, random);
+                    Log.d(TAG, "Trying to connect again in " + waitTime
                             + " ms... (thread ID: " + getId() + ")");
 
                     try {
-                        Thread.sleep(WAIT_BETWEEN_RETRIES_IN_MILLISECONDS);
+                        Thread.sleep(waitTime);
                     } catch (InterruptedException e) {
                     }
                 } else {
@@ -8,17 +8,31 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.CountDownTimer;
 import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import org.thaliproject.p2p.btconnectorlib.ConnectionManagerSettings;
+import org.json.JSONException;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
+import org.thaliproject.p2p.btconnectorlib.utils.CommonUtils;
+import org.thaliproject.p2p.btconnectorlib.utils.CompactHistogram;
+import org.thaliproject.p2p.btconnectorlib.utils.HandshakeExecutor;
+import org.thaliproject.p2p.btconnectorlib.utils.SocketIoEngine;
 import java.io.IOException;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The main Bluetooth connectivity interface managing both incoming and outgoing connections.
@@ -76,7 +90,23 @@ public class BluetoothConnector
     public static final int DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT = BluetoothClientThread.DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT;
     public static final int DEFAULT_MAX_NUMBER_OF_RETRIES = BluetoothClientThread.DEFAULT_MAX_NUMBER_OF_RETRIES;
     public static final boolean DEFAULT_HANDSHAKE_REQUIRED = true;
-    private static final long CONNECTION_TIMEOUT_TIMER_INTERVAL_IN_MILLISECONDS = 5000;
+    public static final boolean DEFAULT_COMPRESSION_ENABLED = false;
+    public static final boolean DEFAULT_TYPED_FRAMING_ENABLED = false;
+    public static final int DEFAULT_FLOW_CONTROL_WINDOW_SIZE_IN_BYTES = 0; // No flow control
+    public static final boolean DEFAULT_PERSISTENT_SERVER_SOCKET = false;
+    public static final boolean DEFAULT_BINARY_HANDSHAKE_ENABLED = false;
+    public static final boolean DEFAULT_CONNECTION_RACING_ENABLED = false;
+    public static final int UNLIMITED_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS =
+            ConnectionAttemptScheduler.UNLIMITED_NUMBER_OF_CONCURRENT_ATTEMPTS;
+    public static final int DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS =
+            UNLIMITED_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS;
+    public static final int DEFAULT_CONNECTION_ATTEMPT_PRIORITY = ConnectionAttemptScheduler.DEFAULT_PRIORITY;
+    public static final boolean DEFAULT_PEER_BACKOFF_ENABLED = false;
+    public static final boolean DEFAULT_DUPLICATE_CONNECTION_ARBITRATION_ENABLED = false;
+    public static final boolean DEFAULT_PEER_PORT_CACHE_ENABLED = false;
+    public static final boolean DEFAULT_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED = false;
+    public static final boolean DEFAULT_HANDSHAKE_EXECUTOR_ENABLED = false;
+    private static final long DUPLICATE_CONNECTION_WINDOW_IN_MILLISECONDS = 10000;
     private static final long SERVER_RESTART_DELAY_IN_MILLISECONDS = 2000;
 
     private final BluetoothAdapter mBluetoothAdapter;
@@ -86,13 +116,35 @@ public class BluetoothConnector
     private final Handler mHandler;
     private final Thread.UncaughtExceptionHandler mUncaughtExceptionHandler;
     private String mMyIdentityString = null;
+    private String mMyBluetoothMacAddress = null;
     private BluetoothServerThread mServerThread = null;
     private CopyOnWriteArrayList<BluetoothClientThread> mClientThreads = new CopyOnWriteArrayList<>();
-    private CountDownTimer mConnectionTimeoutTimer = null;
+    private final Set<BluetoothClientThread> mSocketConnectedClientThreads =
+            Collections.newSetFromMap(new ConcurrentHashMap<BluetoothClientThread, Boolean>());
+    private final ScheduledThreadPoolExecutor mConnectionTimeoutTimer;
+    private final ConcurrentHashMap<BluetoothClientThread, ScheduledFuture<?>> mConnectionTimeouts = new ConcurrentHashMap<>();
     private long mConnectionTimeoutInMilliseconds = DEFAULT_CONNECTION_TIMEOUT_IN_MILLISECONDS;
     private int mInsecureRfcommSocketPort = SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
     private int mMaxNumberOfOutgoingConnectionAttemptRetries = DEFAULT_MAX_NUMBER_OF_RETRIES;
     private boolean mHandshakeRequired = DEFAULT_HANDSHAKE_REQUIRED;
+    private boolean mCompressionEnabled = DEFAULT_COMPRESSION_ENABLED;
+    private boolean mTypedFramingEnabled = DEFAULT_TYPED_FRAMING_ENABLED;
+    private int mFlowControlWindowSizeInBytes = DEFAULT_FLOW_CONTROL_WINDOW_SIZE_IN_BYTES;
+    private boolean mPersistentServerSocket = DEFAULT_PERSISTENT_SERVER_SOCKET;
+    private boolean mBinaryHandshakeEnabled = DEFAULT_BINARY_HANDSHAKE_ENABLED;
+    private boolean mConnectionRacingEnabled = DEFAULT_CONNECTION_RACING_ENABLED;
+    private boolean mPeerBackoffEnabled = DEFAULT_PEER_BACKOFF_ENABLED;
+    private boolean mDuplicateConnectionArbitrationEnabled = DEFAULT_DUPLICATE_CONNECTION_ARBITRATION_ENABLED;
+    private final Map<String, OutgoingConnection> mRecentOutgoingConnections = new HashMap<>(); // Key: Peer address
+    private long mNumberOfDuplicateConnectionsAvoided = 0;
+    private final ConnectionAttemptScheduler mConnectionAttemptScheduler;
+    private final PeerFailureTracker mPeerFailureTracker = new PeerFailureTracker();
+    private boolean mPeerPortCacheEnabled = DEFAULT_PEER_PORT_CACHE_ENABLED;
+    private final PeerPortCache mPeerPortCache;
+    private boolean mAdaptiveConnectionTimeoutEnabled = DEFAULT_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED;
+    private final ConnectTimeEstimator mConnectTimeEstimator = new ConnectTimeEstimator();
+    private SocketIoEngine mIoEngine = null;
+    private HandshakeExecutor mHandshakeExecutor = null;
     private boolean mIsServerThreadAlive = false;
     private boolean mIsStoppingServer = false;
     private boolean mIsShuttingDown = false;
@@ -151,6 +203,41 @@ public class BluetoothConnector
         mMaxNumberOfOutgoingConnectionAttemptRetries
                 = mConnectionManagerSettings.getMaxNumberOfConnectionAttemptRetries();
         mHandshakeRequired = mConnectionManagerSettings.getHandshakeRequired();
+        mCompressionEnabled = mConnectionManagerSettings.getCompressionEnabled();
+        mTypedFramingEnabled = mConnectionManagerSettings.getTypedFramingEnabled();
+        mFlowControlWindowSizeInBytes = mConnectionManagerSettings.getFlowControlWindowSize();
+        mPersistentServerSocket = mConnectionManagerSettings.getPersistentServerSocket();
+        mBinaryHandshakeEnabled = mConnectionManagerSettings.getBinaryHandshakeEnabled();
+        mConnectionRacingEnabled = mConnectionManagerSettings.getConnectionRacingEnabled();
+        mPeerBackoffEnabled = mConnectionManagerSettings.getPeerBackoffEnabled();
+        mDuplicateConnectionArbitrationEnabled = mConnectionManagerSettings.getDuplicateConnectionArbitrationEnabled();
+        mPeerPortCacheEnabled = mConnectionManagerSettings.getPeerPortCacheEnabled();
+        mPeerPortCache = new PeerPortCache(preferences);
+        mAdaptiveConnectionTimeoutEnabled = mConnectionManagerSettings.getAdaptiveConnectionTimeoutEnabled();
+
+        if (mConnectionManagerSettings.getHandshakeExecutorEnabled()) {
+            mHandshakeExecutor = new HandshakeExecutor();
+        }
+
+        mConnectionAttemptScheduler = new ConnectionAttemptScheduler(
+                mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts());
+        mConnectionAttemptScheduler.setListener(new ConnectionAttemptScheduler.Listener() {
+            @Override
+            public void onAttemptStarted(Thread attempt) {
+                scheduleConnectionTimeout((BluetoothClientThread) attempt);
+            }
+        });
+
+        // A single thread sleeping until the nearest deadline - no polling and no Looper needed
+        mConnectionTimeoutTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ConnectionTimeoutTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mConnectionTimeoutTimer.setRemoveOnCancelPolicy(true);
 
         mUncaughtExceptionHandler = new Thread.UncaughtExceptionHandler() {
             @Override
@@ -181,6 +268,21 @@ public class BluetoothConnector
     public void setIdentityString(String myIdentityString) {
         Log.d(TAG, "setIdentityString: " + myIdentityString);
         mMyIdentityString = myIdentityString;
+        mMyBluetoothMacAddress = null;
+
+        if (CommonUtils.isNonEmptyString(myIdentityString)) {
+            PeerProperties myPeerProperties = new PeerProperties();
+
+            try {
+                AbstractBluetoothConnectivityAgent.getPropertiesFromIdentityString(myIdentityString, myPeerProperties);
+
+                if (BluetoothUtils.isValidBluetoothMacAddress(myPeerProperties.getBluetoothMacAddress())) {
+                    mMyBluetoothMacAddress = myPeerProperties.getBluetoothMacAddress();
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "setIdentityString: Failed to resolve our Bluetooth MAC address: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -189,20 +291,21 @@ public class BluetoothConnector
      * handshake this class no longer manages the connection but the responsibility is that of the
      * listener.
      *
+     * The new timeout applies also to the connection attempts in progress; their deadlines are
+     * recalculated from the time they were started. If the adaptive connection timeout is enabled,
+     * this is the maximum timeout.
+     *
      * @param connectionTimeoutInMilliseconds The connection timeout in milliseconds.
      */
-    public void setConnectionTimeout(long connectionTimeoutInMilliseconds) {
+    public synchronized void setConnectionTimeout(long connectionTimeoutInMilliseconds) {
         if (mConnectionTimeoutInMilliseconds != connectionTimeoutInMilliseconds) {
             Log.v(TAG, "setConnectionTimeout: "
                     + mConnectionTimeoutInMilliseconds + " -> " + connectionTimeoutInMilliseconds);
             mConnectionTimeoutInMilliseconds = connectionTimeoutInMilliseconds;
 
-            if (mConnectionTimeoutInMilliseconds > 0 && mClientThreads.size() > 0) {
-                createConnectionTimeoutTimer();
-            } else {
-                if (mConnectionTimeoutTimer != null) {
-                    mConnectionTimeoutTimer.cancel();
-                    mConnectionTimeoutTimer = null;
+            for (BluetoothClientThread bluetoothClientThread : mClientThreads) {
+                if (!mConnectionAttemptScheduler.isQueued(bluetoothClientThread)) {
+                    scheduleConnectionTimeout(bluetoothClientThread);
                 }
             }
         }
@@ -258,6 +361,340 @@ public class BluetoothConnector
         }
     }
 
+    /**
+     * Sets the value indicating whether we offer the frame compression in the handshake. Whether
+     * the compression was negotiated is stored in the peer properties of the connected peer (see
+     * PeerProperties.isCompressionEnabled()). Takes effect for new connections.
+     *
+     * @param compressionEnabled True, if the compression should be offered.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        if (mCompressionEnabled != compressionEnabled) {
+            Log.v(TAG, "setCompressionEnabled: " + mCompressionEnabled + " -> " + compressionEnabled);
+            mCompressionEnabled = compressionEnabled;
+
+            if (mServerThread != null) {
+                mServerThread.setCompressionSupported(mCompressionEnabled);
+            }
+        }
+    }
+
+    /**
+     * Sets the value indicating whether we offer the typed framing in the handshake. The typed
+     * framing is required by the keepalive, the compression and the flow control, and it is
+     * offered regardless of this value, if the compression or the flow control is. Whether the
+     * typed framing was negotiated is stored in the peer properties of the connected peer (see
+     * PeerProperties.isTypedFramingEnabled()). Takes effect for new connections.
+     *
+     * @param typedFramingEnabled True, if the typed framing should be offered.
+     */
+    public void setTypedFramingEnabled(boolean typedFramingEnabled) {
+        if (mTypedFramingEnabled != typedFramingEnabled) {
+            Log.v(TAG, "setTypedFramingEnabled: " + mTypedFramingEnabled + " -> " + typedFramingEnabled);
+            mTypedFramingEnabled = typedFramingEnabled;
+
+            if (mServerThread != null) {
+                mServerThread.setTypedFramingSupported(mTypedFramingEnabled);
+            }
+        }
+    }
+
+    /**
+     * Sets the flow control window size we offer in the handshake. The negotiated window (the
+     * smaller of the ones offered by us and the peer) is stored in the peer properties of the
+     * connected peer (see PeerProperties.getFlowControlWindowSize()). Takes effect for new
+     * connections.
+     *
+     * @param flowControlWindowSizeInBytes The window size in bytes or zero to not offer the flow control.
+     */
+    public void setFlowControlWindowSize(int flowControlWindowSizeInBytes) {
+        if (mFlowControlWindowSizeInBytes != flowControlWindowSizeInBytes) {
+            Log.v(TAG, "setFlowControlWindowSize: " + mFlowControlWindowSizeInBytes + " -> " + flowControlWindowSizeInBytes);
+            mFlowControlWindowSizeInBytes = flowControlWindowSizeInBytes;
+
+            if (mServerThread != null) {
+                mServerThread.setFlowControlWindowSize(mFlowControlWindowSizeInBytes);
+            }
+        }
+    }
+
+    /**
+     * Sets the value indicating whether the Bluetooth server socket is kept open between the
+     * accepted connections. See BluetoothServerThread.setPersistentServerSocket().
+     *
+     * @param persistentServerSocket True, if the server socket should be kept open.
+     */
+    public void setPersistentServerSocket(boolean persistentServerSocket) {
+        if (mPersistentServerSocket != persistentServerSocket) {
+            Log.v(TAG, "setPersistentServerSocket: " + mPersistentServerSocket + " -> " + persistentServerSocket);
+            mPersistentServerSocket = persistentServerSocket;
+
+            if (mServerThread != null) {
+                mServerThread.setPersistentServerSocket(mPersistentServerSocket);
+            }
+        }
+    }
+
+    /**
+     * Sets the value indicating whether we send the compact binary handshake message, when
+     * connecting to a peer (see BinaryHandshake). The incoming connections are responded to in
+     * the format the peer used. Takes effect for new connections.
+     *
+     * @param binaryHandshakeEnabled True, if the binary handshake message should be sent.
+     */
+    public void setBinaryHandshakeEnabled(boolean binaryHandshakeEnabled) {
+        if (mBinaryHandshakeEnabled != binaryHandshakeEnabled) {
+            Log.v(TAG, "setBinaryHandshakeEnabled: " + mBinaryHandshakeEnabled + " -> " + binaryHandshakeEnabled);
+            mBinaryHandshakeEnabled = binaryHandshakeEnabled;
+        }
+    }
+
+    /**
+     * Sets the value indicating whether the outgoing connection attempts race the socket creation
+     * strategies (the preferred port, the system decided port and the rotating port) against each
+     * other with staggered starts instead of falling back from one to another (see
+     * ConnectionRace). Takes effect for new connection attempts.
+     *
+     * @param connectionRacingEnabled True, if the strategies should be raced.
+     */
+    public void setConnectionRacingEnabled(boolean connectionRacingEnabled) {
+        if (mConnectionRacingEnabled != connectionRacingEnabled) {
+            Log.v(TAG, "setConnectionRacingEnabled: " + mConnectionRacingEnabled + " -> " + connectionRacingEnabled);
+            mConnectionRacingEnabled = connectionRacingEnabled;
+        }
+    }
+
+    /**
+     * Sets the maximum number of outgoing connection attempts running at the same time. The
+     * attempts exceeding the limit are queued and started, when the running ones end. Raising the
+     * limit starts the queued attempts accordingly.
+     *
+     * @param maxNumberOfConcurrentConnectionAttempts The maximum number of concurrent attempts or
+     *                                                UNLIMITED_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS.
+     */
+    public void setMaxNumberOfConcurrentConnectionAttempts(int maxNumberOfConcurrentConnectionAttempts) {
+        if (mConnectionAttemptScheduler.getMaxNumberOfConcurrentAttempts() != maxNumberOfConcurrentConnectionAttempts) {
+            Log.v(TAG, "setMaxNumberOfConcurrentConnectionAttempts: "
+                    + mConnectionAttemptScheduler.getMaxNumberOfConcurrentAttempts()
+                    + " -> " + maxNumberOfConcurrentConnectionAttempts);
+            mConnectionAttemptScheduler.setMaxNumberOfConcurrentAttempts(maxNumberOfConcurrentConnectionAttempts);
+        }
+    }
+
+    /**
+     * @return The number of outgoing connection attempts waiting for a running one to end.
+     */
+    public int getNumberOfQueuedConnectionAttempts() {
+        return mConnectionAttemptScheduler.getNumberOfQueuedAttempts();
+    }
+
+    /**
+     * @return The histogram of the time the outgoing connection attempts waited in the queue
+     * before starting in milliseconds.
+     */
+    public CompactHistogram getConnectionAttemptQueueWaitTimeHistogram() {
+        return mConnectionAttemptScheduler.getQueueWaitTimeHistogram();
+    }
+
+    /**
+     * Sets the value indicating whether to back off from the peers, which keep failing. If
+     * enabled, connect() fails right away while the circuit of the peer is open i.e. after
+     * several consecutive failures until the backoff time, which grows exponentially with every
+     * further failure, has passed. The failures are tracked regardless of this setting.
+     *
+     * @param peerBackoffEnabled True, if connecting to the failing peers should be backed off from.
+     */
+    public void setPeerBackoffEnabled(boolean peerBackoffEnabled) {
+        if (mPeerBackoffEnabled != peerBackoffEnabled) {
+            Log.v(TAG, "setPeerBackoffEnabled: " + mPeerBackoffEnabled + " -> " + peerBackoffEnabled);
+            mPeerBackoffEnabled = peerBackoffEnabled;
+        }
+    }
+
+    /**
+     * Sets the value indicating whether to arbitrate the simultaneous connections between us and
+     * a peer, when both connect to each other at the same time. The arbitration takes place,
+     * when the handshake of the incoming connection is received, before it is replied to:
+     *
+     * - If our outgoing connection to the peer was just established (and its socket is still
+     *   open), the incoming connection is declined.
+     * - If our Bluetooth MAC address is the lower one and our outgoing connection attempt has
+     *   already connected the socket and is handshaking, the incoming connection is declined.
+     * - Otherwise, the incoming connection is accepted and our outgoing connection attempt to the
+     *   peer is cancelled, which is reported to the listener as a connection failure.
+     *
+     * A declined peer fails to connect, since its handshake is never replied to. The arbitration
+     * requires the handshake and that both Bluetooth MAC addresses are known.
+     *
+     * @param duplicateConnectionArbitrationEnabled True, if the duplicate connections should be avoided.
+     */
+    public void setDuplicateConnectionArbitrationEnabled(boolean duplicateConnectionArbitrationEnabled) {
+        if (mDuplicateConnectionArbitrationEnabled != duplicateConnectionArbitrationEnabled) {
+            Log.v(TAG, "setDuplicateConnectionArbitrationEnabled: "
+                    + mDuplicateConnectionArbitrationEnabled + " -> " + duplicateConnectionArbitrationEnabled);
+            mDuplicateConnectionArbitrationEnabled = duplicateConnectionArbitrationEnabled;
+        }
+    }
+
+    /**
+     * Sets the value indicating whether to remember the socket port (the system decided port or
+     * a specific RFCOMM channel), which last worked with each peer, and to try it first when
+     * connecting to the same peer again. The port of a peer is forgotten, when an attempt to
+     * connect to it fails. The remembered ports are persisted in the shared preferences.
+     *
+     * @param peerPortCacheEnabled True, if the ports of the peers should be remembered.
+     */
+    public synchronized void setPeerPortCacheEnabled(boolean peerPortCacheEnabled) {
+        if (mPeerPortCacheEnabled != peerPortCacheEnabled) {
+            Log.v(TAG, "setPeerPortCacheEnabled: " + mPeerPortCacheEnabled + " -> " + peerPortCacheEnabled);
+            mPeerPortCacheEnabled = peerPortCacheEnabled;
+        }
+    }
+
+    /**
+     * Sets the value indicating whether to derive the connection timeout of each attempt from
+     * the times the successful connections have taken, TCP retransmission timeout style: The
+     * timeout is the smoothed connect time of the peer (or of all the peers, if the peer has not
+     * connected before) plus four times its variation, doubled for every consecutive timeout of
+     * the peer. It is at least ConnectTimeEstimator.DEFAULT_MIN_TIMEOUT_IN_MILLISECONDS and at most
+     * the connection timeout. The connect times are recorded regardless of this setting. The
+     * setting applies to the connection attempts started after this call.
+     *
+     * @param adaptiveConnectionTimeoutEnabled True, if the connection timeout should be adaptive.
+     */
+    public void setAdaptiveConnectionTimeoutEnabled(boolean adaptiveConnectionTimeoutEnabled) {
+        if (mAdaptiveConnectionTimeoutEnabled != adaptiveConnectionTimeoutEnabled) {
+            Log.v(TAG, "setAdaptiveConnectionTimeoutEnabled: "
+                    + mAdaptiveConnectionTimeoutEnabled + " -> " + adaptiveConnectionTimeoutEnabled);
+            mAdaptiveConnectionTimeoutEnabled = adaptiveConnectionTimeoutEnabled;
+        }
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer or null, if not known.
+     * @return The connection timeout of the next attempt to connect to the given peer in milliseconds.
+     */
+    public long getConnectionTimeout(String bluetoothMacAddress) {
+        return mAdaptiveConnectionTimeoutEnabled
+                ? mConnectTimeEstimator.getTimeout(bluetoothMacAddress, mConnectionTimeoutInMilliseconds)
+                : mConnectionTimeoutInMilliseconds;
+    }
+
+    /**
+     * The next strategy of a connection race is started, when the previous one has had about the
+     * time a connection usually takes to succeed. Starting it sooner only adds load to the radio.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer or null, if not known.
+     * @return The smoothed connect time of the peer (or of all the peers, if the peer has not
+     * connected before) in milliseconds or
+     * BluetoothClientThread.DEFAULT_CONNECTION_RACE_STAGGER_IN_MILLISECONDS, if not known yet.
+     */
+    public long getConnectionRaceStagger(String bluetoothMacAddress) {
+        return mConnectTimeEstimator.getSmoothedConnectTime(bluetoothMacAddress,
+                BluetoothClientThread.DEFAULT_CONNECTION_RACE_STAGGER_IN_MILLISECONDS);
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The socket port, which the next attempt to connect to the given peer starts with.
+     */
+    public synchronized int getPreferredPort(String bluetoothMacAddress) {
+        return mPeerPortCacheEnabled
+                ? mPeerPortCache.getPort(bluetoothMacAddress, mInsecureRfcommSocketPort)
+                : mInsecureRfcommSocketPort;
+    }
+
+    /**
+     * @return The number of duplicate connections avoided i.e. the incoming connections closed
+     * and the outgoing connection attempts cancelled by the arbitration.
+     */
+    public synchronized long getNumberOfDuplicateConnectionsAvoided() {
+        return mNumberOfDuplicateConnectionsAvoided;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The time left until connecting to the given peer is allowed again in milliseconds.
+     * Zero, if connecting is allowed now.
+     */
+    public long getRemainingPeerBackoffTime(String bluetoothMacAddress) {
+        return mPeerFailureTracker.getRemainingBackoffTime(bluetoothMacAddress);
+    }
+
+    /**
+     * @return A report of the circuit states and the consecutive failures of the failing peers.
+     * An empty string, if none.
+     */
+    public String getPeerFailureReport() {
+        return mPeerFailureTracker.getReport();
+    }
+
+    /**
+     * @return A report of the success rates and the mean connect times of the socket creation
+     * strategies in the raced connection attempts since the process started.
+     */
+    public String getConnectionStrategyReport() {
+        return ConnectionRace.getStatisticsReport();
+    }
+
+    /**
+     * Sets the I/O engine to run the handshakes on (see SocketIoEngine). Using an engine avoids
+     * a thread per handshaking socket, when many peers connect at the same time. If null (the
+     * default), every handshake gets a thread of its own. Takes effect for new connections.
+     *
+     * @param ioEngine The I/O engine or null.
+     */
+    public void setIoEngine(SocketIoEngine ioEngine) {
+        mIoEngine = ioEngine;
+
+        if (mServerThread != null) {
+            mServerThread.setIoEngine(mIoEngine);
+        }
+    }
+
+    /**
+     * Sets the executor to run the handshakes of the incoming connections on (see
+     * HandshakeExecutor). The executor bounds the number of threads and pending handshakes, when
+     * many peers connect at the same time, and times out the slow handshakes. If null (the
+     * default), the handshakes are run as set with setIoEngine(). Takes effect for new connections.
+     *
+     * The connector takes the ownership of the executor: The replaced executor is shut down once
+     * its handshakes have finished and the executor is shut down along with the connector.
+     *
+     * @param handshakeExecutor The handshake executor or null.
+     */
+    public synchronized void setHandshakeExecutor(HandshakeExecutor handshakeExecutor) {
+        if (mHandshakeExecutor != null && mHandshakeExecutor != handshakeExecutor) {
+            mHandshakeExecutor.shutdownGracefully();
+        }
+
+        mHandshakeExecutor = handshakeExecutor;
+
+        if (mServerThread != null) {
+            mServerThread.setHandshakeExecutor(mHandshakeExecutor);
+        }
+    }
+
+    /**
+     * Sets the value indicating whether to run the handshakes of the incoming connections on a
+     * handshake executor with the default limits (see setHandshakeExecutor()).
+     *
+     * @param handshakeExecutorEnabled True, if the handshake executor should be used.
+     */
+    public synchronized void setHandshakeExecutorEnabled(boolean handshakeExecutorEnabled) {
+        if ((mHandshakeExecutor != null) != handshakeExecutorEnabled) {
+            Log.v(TAG, "setHandshakeExecutorEnabled: " + !handshakeExecutorEnabled + " -> " + handshakeExecutorEnabled);
+            setHandshakeExecutor(handshakeExecutorEnabled ? new HandshakeExecutor() : null);
+        }
+    }
+
+    /**
+     * @return The handshake executor or null, if not used.
+     */
+    public HandshakeExecutor getHandshakeExecutor() {
+        return mHandshakeExecutor;
+    }
+
     /**
      * Starts to listen for incoming connections.
      *
@@ -283,6 +720,12 @@ public class BluetoothConnector
             if (mServerThread != null) {
                 mServerThread.setUncaughtExceptionHandler(mUncaughtExceptionHandler);
                 mServerThread.setHandshakeRequired(mHandshakeRequired);
+                mServerThread.setCompressionSupported(mCompressionEnabled);
+                mServerThread.setTypedFramingSupported(mTypedFramingEnabled);
+                mServerThread.setFlowControlWindowSize(mFlowControlWindowSizeInBytes);
+                mServerThread.setPersistentServerSocket(mPersistentServerSocket);
+                mServerThread.setIoEngine(mIoEngine);
+                mServerThread.setHandshakeExecutor(mHandshakeExecutor);
                 mServerThread.start();
                 mIsServerThreadAlive = true;
                 mListener.onIsServerStartedChanged(true);
@@ -322,13 +765,13 @@ public class BluetoothConnector
 
         mIsShuttingDown = true;
 
-        if (mConnectionTimeoutTimer != null) {
-            mConnectionTimeoutTimer.cancel();
-            mConnectionTimeoutTimer = null;
-        }
-
         stopListeningForIncomingConnections();
         cancelAllConnectionAttempts();
+        mConnectionTimeoutTimer.shutdownNow();
+
+        if (mHandshakeExecutor != null) {
+            mHandshakeExecutor.shutdown();
+        }
     }
 
     /**
@@ -342,6 +785,42 @@ public class BluetoothConnector
      */
     public synchronized boolean connect(
             BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties) {
+        return connect(bluetoothDeviceToConnectTo, peerProperties, null);
+    }
+
+    /**
+     * Tries to connect to the given Bluetooth device and sends the given initial application
+     * payload with the handshake (see BluetoothClientThread.setEarlyData()).
+     *
+     * @param bluetoothDeviceToConnectTo The Bluetooth device to connect to.
+     * @param peerProperties The properties of the peer to connect to.
+     * @param earlyData The payload to send with the handshake or null, if none.
+     * @return True, if started trying to connect successfully. False otherwise.
+     */
+    public synchronized boolean connect(
+            BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties, byte[] earlyData) {
+        return connect(bluetoothDeviceToConnectTo, peerProperties, earlyData, DEFAULT_CONNECTION_ATTEMPT_PRIORITY);
+    }
+
+    /**
+     * Tries to connect to the given Bluetooth device. If the maximum number of concurrent
+     * connection attempts has been reached (see setMaxNumberOfConcurrentConnectionAttempts()),
+     * the attempt is queued and the attempts with a higher priority are started first.
+     * The connection timeout of a queued attempt starts, when the attempt is started.
+     *
+     * If the peer connects to us at the same time, the attempt may be cancelled in favor of the
+     * incoming connection, which is reported as a connection failure (see
+     * setDuplicateConnectionArbitrationEnabled()).
+     *
+     * @param bluetoothDeviceToConnectTo The Bluetooth device to connect to.
+     * @param peerProperties The properties of the peer to connect to.
+     * @param earlyData The payload to send with the handshake or null, if none.
+     * @param priority The priority of the attempt in the queue. The higher, the sooner.
+     * @return True, if started trying to connect or queued successfully. False otherwise.
+     */
+    public synchronized boolean connect(
+            BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties,
+            byte[] earlyData, int priority) {
 
         boolean wasSuccessful = false;
         String errorMessage = "";
@@ -349,6 +828,15 @@ public class BluetoothConnector
         if (bluetoothDeviceToConnectTo != null) {
             final String bluetoothDeviceName = bluetoothDeviceToConnectTo.getName();
             final String bluetoothDeviceAddress = bluetoothDeviceToConnectTo.getAddress();
+            final String peerAddress = getPeerAddress(peerProperties, bluetoothDeviceAddress);
+
+            if (mPeerBackoffEnabled && !mPeerFailureTracker.tryAcquire(peerAddress)) {
+                errorMessage = "connect: Backing off from peer " + peerAddress + " after repeated failures, "
+                        + mPeerFailureTracker.getRemainingBackoffTime(peerAddress) + " ms left";
+                Log.w(TAG, errorMessage);
+                mListener.onConnectionFailed(peerProperties, errorMessage);
+                return false;
+            }
 
             Log.i(TAG, "connect: Trying to start connecting to " + bluetoothDeviceName
                     + " in address " + bluetoothDeviceAddress);
@@ -357,36 +845,41 @@ public class BluetoothConnector
             try {
                 bluetoothClientThread = new BluetoothClientThread(
                         this, bluetoothDeviceToConnectTo, mServiceRecordUuid, mMyIdentityString);
+                bluetoothClientThread.setEarlyData(earlyData);
             } catch (IOException e) {
                 errorMessage = "connect: Failed to create a Bluetooth connect thread instance: " + e.getMessage();
                 Log.e(TAG, errorMessage, e);
+            } catch (IllegalArgumentException e) {
+                errorMessage = "connect: Invalid early data: " + e.getMessage();
+                Log.e(TAG, errorMessage, e);
+                bluetoothClientThread = null;
             }
 
             if (bluetoothClientThread != null) {
                 bluetoothClientThread.setUncaughtExceptionHandler(mUncaughtExceptionHandler);
                 bluetoothClientThread.setHandshakeRequired(mHandshakeRequired);
+                bluetoothClientThread.setCompressionSupported(mCompressionEnabled);
+                bluetoothClientThread.setTypedFramingSupported(mTypedFramingEnabled);
+                bluetoothClientThread.setFlowControlWindowSize(mFlowControlWindowSizeInBytes);
+                bluetoothClientThread.setBinaryHandshakeEnabled(mBinaryHandshakeEnabled);
+                bluetoothClientThread.setConnectionRacingEnabled(mConnectionRacingEnabled,
+                        getConnectionRaceStagger(peerAddress));
+                bluetoothClientThread.setIoEngine(mIoEngine);
                 bluetoothClientThread.setPeerProperties(peerProperties);
-                bluetoothClientThread.setInsecureRfcommSocketPortNumber(mInsecureRfcommSocketPort);
+                bluetoothClientThread.setInsecureRfcommSocketPortNumber(getPreferredPort(peerAddress));
                 bluetoothClientThread.setMaxNumberOfRetries(mMaxNumberOfOutgoingConnectionAttemptRetries);
                 mClientThreads.add(bluetoothClientThread);
 
-                if (mConnectionTimeoutTimer == null) {
-                    try {
-                        createConnectionTimeoutTimer();
-                        mConnectionTimeoutTimer.start();
-                    } catch (RuntimeException e) {
-                        Log.e(TAG, "connect: Failed to create the connection timeout timer: " + e.getMessage(), e);
-                    }
-                }
-
-                bluetoothClientThread.start();
+                // The connection timeout is scheduled when the attempt is started
+                final boolean started = mConnectionAttemptScheduler.submit(bluetoothClientThread, priority);
 
                 mListener.onConnecting(bluetoothDeviceName, bluetoothDeviceAddress);
                 wasSuccessful = true;
 
-                Log.d(TAG, "connect: Started connecting to " + bluetoothDeviceName
-                        + " in address " + bluetoothDeviceAddress);
+                Log.d(TAG, "connect: " + (started ? "Started connecting" : "Queued the connection attempt")
+                        + " to " + bluetoothDeviceName + " in address " + bluetoothDeviceAddress);
             } else {
+                mPeerFailureTracker.onCancelled(peerAddress); // Not the fault of the peer
                 mListener.onConnectionFailed(peerProperties, errorMessage);
             }
         } else {
@@ -421,6 +914,7 @@ public class BluetoothConnector
 
             if (bluetoothClientThread != null) {
                 isCancelling = removeAndShutdownBluetoothClientThread(bluetoothClientThread);
+                mPeerFailureTracker.onCancelled(getPeerAddress(bluetoothClientThread));
             }
         } else {
             if (peerProperties == null) {
@@ -437,9 +931,8 @@ public class BluetoothConnector
      * Shuts down all client threads.
      */
     public synchronized void cancelAllConnectionAttempts() {
-        if (mConnectionTimeoutTimer != null) {
-            mConnectionTimeoutTimer.cancel();
-            mConnectionTimeoutTimer = null;
+        for (BluetoothClientThread bluetoothClientThread : mConnectionTimeouts.keySet()) {
+            cancelConnectionTimeout(bluetoothClientThread);
         }
 
         final int numberOfClientThreadsToShutdown = mClientThreads.size();
@@ -451,6 +944,8 @@ public class BluetoothConnector
                 final BluetoothClientThread finalBluetoothClientThread = bluetoothClientThread;
 
                 if (finalBluetoothClientThread != null) {
+                    mPeerFailureTracker.onCancelled(getPeerAddress(finalBluetoothClientThread));
+
                     new Thread() {
                         @Override
                         public void run() {
@@ -462,6 +957,9 @@ public class BluetoothConnector
 
             mClientThreads.clear();
         }
+
+        mSocketConnectedClientThreads.clear();
+        mConnectionAttemptScheduler.clear();
     }
 
     /**
@@ -488,6 +986,19 @@ public class BluetoothConnector
         });
     }
 
+    /**
+     * Arbitrates the incoming connection, if we are connecting to the same peer at the same time
+     * or have just connected to it (see setDuplicateConnectionArbitrationEnabled()).
+     *
+     * @param peerProperties The peer properties resolved from the handshake.
+     * @return True, if the incoming connection should be accepted. False, if it is a duplicate and
+     * should be declined.
+     */
+    @Override
+    public boolean onIncomingConnectionHandshakeReceived(PeerProperties peerProperties) {
+        return arbitrateIncomingConnection(peerProperties);
+    }
+
     /**
      * Forward the event to the listener.
      *
@@ -540,7 +1051,9 @@ public class BluetoothConnector
     }
 
     /**
-     * Does nothing but logs the event.
+     * Records that the socket of the given thread is connected for the duplicate connection
+     * arbitration (see arbitrateIncomingConnection()). Notifies the listener, if no handshake is
+     * required.
      *
      * @param bluetoothSocket The Bluetooth socket associated with the connection.
      * @param peerProperties The peer properties.
@@ -550,6 +1063,7 @@ public class BluetoothConnector
     public void onSocketConnected(
             BluetoothSocket bluetoothSocket, PeerProperties peerProperties, BluetoothClientThread who) {
         Log.i(TAG, "onSocketConnected: " + peerProperties.toString() + " (thread ID: " + who.getId() + ")");
+        mSocketConnectedClientThreads.add(who);
 
         if (!who.getHandshakeRequired()) {
             handleSuccessfulClientThread(who, bluetoothSocket, peerProperties); // Notifies the listener
@@ -570,6 +1084,32 @@ public class BluetoothConnector
         handleSuccessfulClientThread(who, bluetoothSocket, peerProperties); // Notifies the listener
     }
 
+    /**
+     * Forwards the event to the listener as a failed connection attempt. The peer declined our
+     * connection in favor of its own connection to us (see arbitrateIncomingConnection()), so the
+     * attempt is recorded as cancelled: Neither does it count as a failure of the peer nor is the
+     * learned port of the peer forgotten.
+     *
+     * @param peerProperties The peer properties.
+     * @param who The Bluetooth client thread instance calling this callback.
+     */
+    @Override
+    public void onConnectionDeclined(PeerProperties peerProperties, BluetoothClientThread who) {
+        Log.i(TAG, "onConnectionDeclined: " + peerProperties.toString() + " (thread ID: " + who.getId() + ")");
+        mPeerFailureTracker.onCancelled(getPeerAddress(who));
+        final PeerProperties tempPeerProperties = peerProperties;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onConnectionFailed(tempPeerProperties,
+                        "Declined by the peer in favor of its connection to us");
+            }
+        });
+
+        removeAndShutdownBluetoothClientThread(who);
+    }
+
     /**
      * Forward the event to the listener.
      *
@@ -580,6 +1120,12 @@ public class BluetoothConnector
     @Override
     public void onConnectionFailed(PeerProperties peerProperties, String errorMessage, BluetoothClientThread who) {
         Log.e(TAG, "onConnectionFailed: " + errorMessage + " (thread ID: " + who.getId() + ")");
+        mPeerFailureTracker.onFailure(getPeerAddress(who));
+
+        if (mPeerPortCacheEnabled) {
+            mPeerPortCache.remove(getPeerAddress(who));
+        }
+
         final String tempErrorMessage = errorMessage;
         final PeerProperties tempPeerProperties = peerProperties;
 
@@ -608,10 +1154,25 @@ public class BluetoothConnector
 
         // Only remove, but do not shutdown the client thread, since that would close the socket too
         mClientThreads.remove(bluetoothClientThread);
+        mSocketConnectedClientThreads.remove(bluetoothClientThread);
+        mConnectionAttemptScheduler.remove(bluetoothClientThread);
+        cancelConnectionTimeout(bluetoothClientThread);
+        mPeerFailureTracker.onSuccess(getPeerAddress(bluetoothClientThread));
+
+        if (bluetoothClientThread.getTimeStarted() > 0) {
+            mConnectTimeEstimator.onConnected(getPeerAddress(bluetoothClientThread),
+                    System.currentTimeMillis() - bluetoothClientThread.getTimeStarted());
+        }
+
+        if (mPeerPortCacheEnabled) {
+            // Start with the same port next time
+            mPeerPortCache.put(getPeerAddress(bluetoothClientThread), bluetoothClientThread.getConnectedPort());
+        }
 
-        if (mConnectionTimeoutTimer != null && mClientThreads.size() == 0) {
-            mConnectionTimeoutTimer.cancel();
-            mConnectionTimeoutTimer = null;
+        if (mDuplicateConnectionArbitrationEnabled && getPeerAddress(bluetoothClientThread) != null) {
+            // For arbitrating an incoming connection from the same peer still handshaking
+            mRecentOutgoingConnections.put(getPeerAddress(bluetoothClientThread).toUpperCase(),
+                    new OutgoingConnection(bluetoothSocket, System.currentTimeMillis()));
         }
 
         if (!mIsShuttingDown) {
@@ -629,64 +1190,206 @@ public class BluetoothConnector
     }
 
     /**
-     * Constructs the connection timeout timer. If a timer instance already exists, it is cancelled
-     * and then recreated.
+     * Schedules the connection timeout of the given client thread. The deadline is counted from
+     * the time the thread was started (or from now, if it hasn't started running yet). A previously
+     * scheduled timeout of the thread is cancelled. If the timeout is disabled, nothing is scheduled.
+     *
+     * @param bluetoothClientThread The Bluetooth client thread instance.
      */
-    private void createConnectionTimeoutTimer() {
-        if (mConnectionTimeoutTimer != null) {
-            mConnectionTimeoutTimer.cancel();
-            mConnectionTimeoutTimer = null;
+    private void scheduleConnectionTimeout(final BluetoothClientThread bluetoothClientThread) {
+        cancelConnectionTimeout(bluetoothClientThread);
+
+        final long connectionTimeout = getConnectionTimeout(getPeerAddress(bluetoothClientThread));
+
+        if (connectionTimeout > 0) {
+            final long timeStarted = bluetoothClientThread.getTimeStarted();
+            long delay = connectionTimeout;
+
+            if (timeStarted > 0) {
+                delay = Math.max(0, timeStarted + connectionTimeout - System.currentTimeMillis());
+            }
+
+            try {
+                mConnectionTimeouts.put(bluetoothClientThread, mConnectionTimeoutTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onConnectionTimeout(bluetoothClientThread);
+                    }
+                }, delay, TimeUnit.MILLISECONDS));
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "scheduleConnectionTimeout: Failed to schedule the timeout: " + e.getMessage());
+            }
         }
+    }
 
-        mConnectionTimeoutTimer = new CountDownTimer(
-                CONNECTION_TIMEOUT_TIMER_INTERVAL_IN_MILLISECONDS, CONNECTION_TIMEOUT_TIMER_INTERVAL_IN_MILLISECONDS) {
-            @Override
-            public void onTick(long millisUntilFinished) {
-                // Not used
+    /**
+     * Cancels the connection timeout of the given client thread, if scheduled.
+     *
+     * @param bluetoothClientThread The Bluetooth client thread instance.
+     */
+    private void cancelConnectionTimeout(BluetoothClientThread bluetoothClientThread) {
+        ScheduledFuture<?> connectionTimeout = mConnectionTimeouts.remove(bluetoothClientThread);
+
+        if (connectionTimeout != null) {
+            connectionTimeout.cancel(false);
+        }
+    }
+
+    /**
+     * Called by the connection timeout timer, when the deadline of the given client thread has
+     * passed. Shuts down the thread and notifies the listener, unless the thread has already been
+     * removed (it succeeded or failed right before the deadline).
+     *
+     * @param bluetoothClientThread The Bluetooth client thread instance.
+     */
+    private synchronized void onConnectionTimeout(final BluetoothClientThread bluetoothClientThread) {
+        mConnectionTimeouts.remove(bluetoothClientThread);
+
+        mSocketConnectedClientThreads.remove(bluetoothClientThread);
+
+        if (mClientThreads.remove(bluetoothClientThread)) {
+            mConnectionAttemptScheduler.remove(bluetoothClientThread);
+            final PeerProperties peerProperties = bluetoothClientThread.getPeerProperties();
+
+            if (peerProperties != null) {
+                Log.i(TAG, "Connection timeout for peer "
+                        + peerProperties.toString() + " (thread ID: "
+                        + bluetoothClientThread.getId() + ")");
+            } else {
+                Log.i(TAG, "Connection timeout" + " (thread ID: "
+                        + bluetoothClientThread.getId() + ")");
             }
 
-            @Override
-            public void onFinish() {
-                this.cancel();
-                long currentTime = new Date().getTime();
-                Iterator<BluetoothClientThread> iterator = mClientThreads.iterator();
-
-                while (iterator.hasNext()) {
-                    final BluetoothClientThread bluetoothClientThread = iterator.next();
-                    long timeStarted = bluetoothClientThread.getTimeStarted();
-
-                    if (timeStarted > 0 && currentTime > timeStarted + mConnectionTimeoutInMilliseconds) {
-                        // Got a client thread that needs to be cancelled
-                        mClientThreads.remove(bluetoothClientThread);
-                        final PeerProperties peerProperties = bluetoothClientThread.getPeerProperties();
-
-                        if (peerProperties != null) {
-                            Log.i(TAG, "Connection timeout for peer "
-                                    + peerProperties.toString() + " (thread ID: "
-                                    + bluetoothClientThread.getId() + ")");
-                        } else {
-                            Log.i(TAG, "Connection timeout" + " (thread ID: "
-                                    + bluetoothClientThread.getId() + ")");
-                        }
+            shutdownBluetoothClientThread(bluetoothClientThread); // Try to cancel
+            mPeerFailureTracker.onFailure(getPeerAddress(bluetoothClientThread));
 
-                        shutdownBluetoothClientThread(bluetoothClientThread); // Try to cancel
+            if (mPeerPortCacheEnabled) {
+                mPeerPortCache.remove(getPeerAddress(bluetoothClientThread));
+            }
 
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mListener.onConnectionTimeout(peerProperties);
-                            }
-                        });
-                    }
-                }
+            mConnectTimeEstimator.onTimeout(getPeerAddress(bluetoothClientThread));
 
-                if (mClientThreads.size() > 0) {
-                    this.start(); // Restart
-                } else {
-                    mConnectionTimeoutTimer = null;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onConnectionTimeout(peerProperties);
                 }
+            });
+        }
+    }
+
+    /**
+     * Arbitrates an incoming connection, whose handshake was received, if we are connecting to
+     * the same peer at the same time or have just connected to it. A link, which has completed
+     * the handshake, is never dropped. Of two links still handshaking, the one initiated by the
+     * peer with the lower Bluetooth MAC address survives. An outgoing connection attempt, which
+     * has not connected the socket yet, gives way to the incoming connection, since it may still
+     * fail. The peer applies the same rules, so exactly one of the links survives on both sides.
+     *
+     * Whether our socket is connected is recorded in onSocketConnected(), which the client thread
+     * calls before sending its handshake. Thus, if the peer has received our handshake, we treat
+     * our link as connected and keep it, like the peer does.
+     *
+     * @param peerProperties The properties of the peer connecting to us.
+     * @return True, if the incoming connection should be accepted. False, if it is a duplicate
+     * and should be declined.
+     */
+    private synchronized boolean arbitrateIncomingConnection(PeerProperties peerProperties) {
+        final String peerAddress = getPeerAddress(peerProperties, null);
+
+        if (!mDuplicateConnectionArbitrationEnabled || mMyBluetoothMacAddress == null || peerAddress == null) {
+            return true;
+        }
+
+        if (hasRecentOutgoingConnection(peerAddress)) {
+            Log.i(TAG, "arbitrateIncomingConnection: Declining the incoming connection from "
+                    + peerAddress + ", since our outgoing connection to it was just established");
+            mNumberOfDuplicateConnectionsAvoided++;
+            return false;
+        }
+
+        BluetoothClientThread outgoingBluetoothClientThread = null;
+
+        for (BluetoothClientThread bluetoothClientThread : mClientThreads) {
+            if (peerAddress.equalsIgnoreCase(getPeerAddress(bluetoothClientThread))) {
+                outgoingBluetoothClientThread = bluetoothClientThread;
+                break;
             }
-        };
+        }
+
+        if (outgoingBluetoothClientThread == null) {
+            return true; // Not a duplicate
+        }
+
+        if (mMyBluetoothMacAddress.compareToIgnoreCase(peerAddress) < 0
+                && mSocketConnectedClientThreads.contains(outgoingBluetoothClientThread)) {
+            Log.i(TAG, "arbitrateIncomingConnection: Declining the incoming connection from "
+                    + peerAddress + ", since our outgoing connection takes precedence");
+            mNumberOfDuplicateConnectionsAvoided++;
+            return false;
+        }
+
+        Log.i(TAG, "arbitrateIncomingConnection: Cancelling the outgoing connection attempt to "
+                + peerAddress + ", since the incoming connection takes precedence");
+        final PeerProperties cancelledPeerProperties = outgoingBluetoothClientThread.getPeerProperties();
+        removeAndShutdownBluetoothClientThread(outgoingBluetoothClientThread);
+        mPeerFailureTracker.onCancelled(peerAddress);
+        mNumberOfDuplicateConnectionsAvoided++;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onConnectionFailed(cancelledPeerProperties,
+                        "Cancelled in favor of the incoming connection from the same peer");
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Forgets the outgoing connections established longer than
+     * DUPLICATE_CONNECTION_WINDOW_IN_MILLISECONDS ago.
+     *
+     * @param peerAddress The Bluetooth MAC address of the peer.
+     * @return True, if our outgoing connection to the given peer was established recently and its
+     * socket has not been closed since, i.e. the peer connecting to us is a duplicate. False, if
+     * not, e.g. when the peer reconnects after the link dropped.
+     */
+    private boolean hasRecentOutgoingConnection(String peerAddress) {
+        final long currentTime = System.currentTimeMillis();
+        Iterator<OutgoingConnection> iterator = mRecentOutgoingConnections.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (currentTime - iterator.next().mTimeConnected > DUPLICATE_CONNECTION_WINDOW_IN_MILLISECONDS) {
+                iterator.remove();
+            }
+        }
+
+        OutgoingConnection outgoingConnection = mRecentOutgoingConnections.get(peerAddress.toUpperCase());
+        return (outgoingConnection != null && outgoingConnection.mBluetoothSocket.isConnected());
+    }
+
+    /**
+     * @param peerProperties The peer properties. Can be null.
+     * @param bluetoothDeviceAddress The address of the Bluetooth device used, if the peer
+     *                               properties have no Bluetooth MAC address.
+     * @return The Bluetooth MAC address identifying the peer in the failure tracking or null.
+     */
+    private static String getPeerAddress(PeerProperties peerProperties, String bluetoothDeviceAddress) {
+        if (peerProperties != null && peerProperties.getBluetoothMacAddress() != null) {
+            return peerProperties.getBluetoothMacAddress();
+        }
+
+        return bluetoothDeviceAddress;
+    }
+
+    /**
+     * @param bluetoothClientThread The Bluetooth client thread instance.
+     * @return The Bluetooth MAC address of the peer the given thread is connecting to or null.
+     */
+    private static String getPeerAddress(BluetoothClientThread bluetoothClientThread) {
+        return getPeerAddress(bluetoothClientThread.getPeerProperties(), null);
     }
 
     /**
@@ -711,11 +1414,14 @@ public class BluetoothConnector
                         Log.i(TAG, "removeAndShutdownBluetoothClientThread: Thread ID: " + bluetoothClientThread.getId());
 
                         mClientThreads.remove(currentBluetoothClientThread);
-                        shutdownBluetoothClientThread(currentBluetoothClientThread);
+                        mSocketConnectedClientThreads.remove(currentBluetoothClientThread);
+                        cancelConnectionTimeout(currentBluetoothClientThread);
 
-                        if (mConnectionTimeoutTimer != null && mClientThreads.size() == 0) {
-                            mConnectionTimeoutTimer.cancel();
-                            mConnectionTimeoutTimer = null;
+                        if (mConnectionAttemptScheduler.remove(currentBluetoothClientThread)) {
+                            // Never started, so there is nothing to shut down
+                            Log.d(TAG, "removeAndShutdownBluetoothClientThread: Removed a queued attempt");
+                        } else {
+                            shutdownBluetoothClientThread(currentBluetoothClientThread);
                         }
 
                         wasRemovedAndShutdown = true;
@@ -751,4 +1457,17 @@ public class BluetoothConnector
             }.start();
         }
     }
+
+    /**
+     * An established outgoing connection.
+     */
+    private static class OutgoingConnection {
+        final BluetoothSocket mBluetoothSocket;
+        final long mTimeConnected;
+
+        OutgoingConnection(BluetoothSocket bluetoothSocket, long timeConnected) {
+            mBluetoothSocket = bluetoothSocket;
+            mTimeConnected = timeConnected;
+        }
+    }
 }
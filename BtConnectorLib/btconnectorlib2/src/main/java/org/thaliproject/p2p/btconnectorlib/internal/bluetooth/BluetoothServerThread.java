@@ -8,15 +8,19 @@ import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
+import org.thaliproject.p2p.btconnectorlib.utils.HandshakeExecutor;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import java.io.IOException;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Thread listening to incoming connections via Bluetooth server socket.
  */
-class BluetoothServerThread extends AbstractBluetoothThread implements BluetoothSocketIoThread.Listener {
+class BluetoothServerThread extends AbstractBluetoothThread
+        implements BluetoothSocketIoThread.Listener, HandshakeExecutor.Listener {
     /**
      * Listener interface.
      */
@@ -30,6 +34,16 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
          */
         void onIncomingConnectionConnected(BluetoothSocket bluetoothSocket, PeerProperties peerProperties);
 
+        /**
+         * Called when a valid handshake of an incoming connection is received, before it is
+         * replied to.
+         *
+         * @param peerProperties The peer properties resolved from the handshake.
+         * @return True, if the connection should be accepted. False, if it should be declined:
+         * The peer is told so (see BinaryHandshake.encodeDeclined()) and the socket is closed.
+         */
+        boolean onIncomingConnectionHandshakeReceived(PeerProperties peerProperties);
+
         /**
          * Called when the incoming connection fails.
          *
@@ -58,6 +72,11 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
     private final String mBluetoothName;
     private BluetoothServerSocket mBluetoothServerSocket = null;
     private static int mBluetoothServerSocketConsecutiveCreationFailureCount = 0;
+    private final AtomicLong mNumberOfAcceptedConnections = new AtomicLong();
+    private final AtomicLong mNumberOfServerSocketsCreated = new AtomicLong();
+    private volatile long mListeningStartTimeInNanoseconds = 0;
+    private volatile boolean mPersistentServerSocket = false;
+    private HandshakeExecutor mHandshakeExecutor = null;
     private boolean mStopThread = false;
 
     /**
@@ -87,6 +106,64 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
         mBluetoothName = myBluetoothName;
     }
 
+    public boolean getPersistentServerSocket() {
+        return mPersistentServerSocket;
+    }
+
+    /**
+     * Sets whether to keep the Bluetooth server socket open and accept continuously. By default
+     * the server socket is closed and recreated after every accepted connection, which tears down
+     * and re-registers the SDP record every time. The peers connecting during that gap fail and
+     * have to retry. Takes effect after the next accepted connection.
+     *
+     * @param persistentServerSocket If true, will keep the server socket open between accepts.
+     */
+    public void setPersistentServerSocket(boolean persistentServerSocket) {
+        mPersistentServerSocket = persistentServerSocket;
+    }
+
+    /**
+     * Sets the executor to run the handshakes of the incoming connections on. The executor bounds
+     * the number of threads and pending handshakes and times out the slow handshakes. If not set,
+     * the handshakes are run on the I/O engine or in threads of their own (see
+     * AbstractBluetoothThread.startHandshakeThread()).
+     *
+     * @param handshakeExecutor The handshake executor or null.
+     */
+    public void setHandshakeExecutor(HandshakeExecutor handshakeExecutor) {
+        mHandshakeExecutor = handshakeExecutor;
+    }
+
+    /**
+     * @return The number of incoming connections accepted (before the handshake, if required).
+     */
+    public long getNumberOfAcceptedConnections() {
+        return mNumberOfAcceptedConnections.get();
+    }
+
+    /**
+     * @return The number of times the Bluetooth server socket has been created i.e. the number of
+     * times the service record has been registered.
+     */
+    public long getNumberOfServerSocketsCreated() {
+        return mNumberOfServerSocketsCreated.get();
+    }
+
+    /**
+     * @return The number of connections accepted per second since we started listening or zero,
+     * if not started.
+     */
+    public double getAcceptRate() {
+        final long listeningStartTime = mListeningStartTimeInNanoseconds;
+
+        if (listeningStartTime == 0) {
+            return 0d;
+        }
+
+        final long elapsedTime = Math.max(1, System.nanoTime() - listeningStartTime);
+        return mNumberOfAcceptedConnections.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedTime;
+    }
+
     /**
      * From Thread.
      *
@@ -96,25 +173,31 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
     @Override
     public void run() {
         while (!mStopThread) {
-            try {
-                mBluetoothServerSocket =
-                        mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                                mBluetoothName, mServiceRecordUuid);
-                resetBluetoothServerSocketConsecutiveCreationFailureCount();
-            } catch (IOException e) {
-                Log.e(TAG, "run: Failed to start listening: " + e.getMessage(), e);
-                mBluetoothServerSocketConsecutiveCreationFailureCount++;
-                Log.d(TAG, "run: Bluetooth server socket consecutive creation failure count is now "
-                        + mBluetoothServerSocketConsecutiveCreationFailureCount);
-
-                if (mBluetoothServerSocketConsecutiveCreationFailureCount >=
-                        BLUETOOTH_SERVER_SOCKET_CONSECUTIVE_CREATION_FAILURE_COUNT_LIMIT) {
-                    final int failureCount = mBluetoothServerSocketConsecutiveCreationFailureCount;
+            if (mBluetoothServerSocket == null) {
+                try {
+                    mBluetoothServerSocket =
+                            mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                                    mBluetoothName, mServiceRecordUuid);
                     resetBluetoothServerSocketConsecutiveCreationFailureCount();
-                    mListener.onBluetoothServerSocketConsecutiveCreationFailureCountLimitExceeded(failureCount);
-                    mStopThread = true;
-                }
+                    mNumberOfServerSocketsCreated.incrementAndGet();
 
+                    if (mListeningStartTimeInNanoseconds == 0) {
+                        mListeningStartTimeInNanoseconds = System.nanoTime();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "run: Failed to start listening: " + e.getMessage(), e);
+                    mBluetoothServerSocketConsecutiveCreationFailureCount++;
+                    Log.d(TAG, "run: Bluetooth server socket consecutive creation failure count is now "
+                            + mBluetoothServerSocketConsecutiveCreationFailureCount);
+
+                    if (mBluetoothServerSocketConsecutiveCreationFailureCount >=
+                            BLUETOOTH_SERVER_SOCKET_CONSECUTIVE_CREATION_FAILURE_COUNT_LIMIT) {
+                        final int failureCount = mBluetoothServerSocketConsecutiveCreationFailureCount;
+                        resetBluetoothServerSocketConsecutiveCreationFailureCount();
+                        mListener.onBluetoothServerSocketConsecutiveCreationFailureCountLimitExceeded(failureCount);
+                        mStopThread = true;
+                    }
+                }
             }
 
             if (mBluetoothServerSocket != null && !mStopThread) {
@@ -123,6 +206,7 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
 
                 try {
                     bluetoothSocket = mBluetoothServerSocket.accept(); // Blocking call
+                    mNumberOfAcceptedConnections.incrementAndGet();
                     Log.i(TAG, "Incoming connection accepted");
                 } catch (IOException | NullPointerException e) {
                     if (!mStopThread) {
@@ -147,9 +231,19 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
                         if (handshakeThread != null) {
                             handshakeThread.setUncaughtExceptionHandler(this.getUncaughtExceptionHandler());
                             handshakeThread.setExitThreadAfterRead(true);
+                            handshakeThread.setBufferSize(HANDSHAKE_BUFFER_SIZE_IN_BYTES);
                             mSocketIoThreads.add(handshakeThread);
-                            handshakeThread.start();
-                            Log.d(TAG, "Incoming connection initialized (thread ID: " + handshakeThread.getId() + ")");
+                            final HandshakeExecutor handshakeExecutor = mHandshakeExecutor;
+
+                            if (handshakeExecutor == null) {
+                                startHandshakeThread(handshakeThread);
+                                Log.d(TAG, "Incoming connection initialized (thread ID: " + handshakeThread.getId() + ")");
+                            } else if (handshakeExecutor.execute(handshakeThread, this)) {
+                                Log.d(TAG, "Incoming connection queued for handshake (thread ID: " + handshakeThread.getId() + ")");
+                            } else {
+                                removeThreadFromList(handshakeThread, true);
+                                mListener.onIncomingConnectionFailed("Too many pending handshakes");
+                            }
                         }
                     } else {
                         // No handshake required
@@ -171,10 +265,14 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
                 }
             } // if (mBluetoothServerSocket != null && !mStopThread)
 
-            closeBluetoothServerSocket();
+            if (!mPersistentServerSocket || mStopThread) {
+                closeBluetoothServerSocket();
+            }
         } // while (!mStopThread)
 
-        Log.d(TAG, "Exiting thread");
+        Log.d(TAG, "Exiting thread (accepted " + mNumberOfAcceptedConnections.get() + " connections, "
+                + mNumberOfServerSocketsCreated.get() + " server sockets created, accept rate "
+                + String.format("%.2f", getAcceptRate()) + "/s)");
         mListener.onServerStopped();
     }
 
@@ -210,8 +308,8 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
     }
 
     /**
-     * Validates the read message, which should contain the identity of the peer, and if OK, we will
-     * try to respond with our own identity.
+     * Validates the read message, which should contain the identity of the peer, and if OK and the
+     * listener accepts the connection, we will try to respond with our own identity.
      *
      * @param bytes The array of bytes read.
      * @param size The size of the array.
@@ -223,16 +321,23 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
         Log.d(TAG, "onBytesRead: Read " + size + " bytes successfully (thread ID: " + threadId + ")");
 
         PeerProperties peerProperties =
-                BluetoothUtils.validateReceivedHandshakeMessage(bytes, size, who.getSocket());
+                validateReceivedHandshakeMessage(bytes, size, who.getSocket());
 
-        if (peerProperties != null) {
+        if (peerProperties != null && !mListener.onIncomingConnectionHandshakeReceived(peerProperties)) {
+            Log.i(TAG, "Declined the incoming connection from " + peerProperties.toString()
+                    + " (thread ID: " + threadId + ")");
+
+            // Let the peer tell the decline from a failure; if the write fails, it sees a failure
+            who.write(BinaryHandshake.encodeDeclined());
+            removeThreadFromList(threadId, true);
+        } else if (peerProperties != null) {
             Log.i(TAG, "Got valid identity from " + peerProperties.toString());
 
             // Set the resolved properties to the associated thread
             who.setPeerProperties(peerProperties);
 
-            // Respond to client
-            if (!who.write(getHandshakeMessage())) {
+            // Respond to client in the format it used
+            if (!who.write(getHandshakeMessage(BinaryHandshake.isBinaryHandshakeMessage(bytes, size)))) {
                 Log.e(TAG, "Failed to respond to thread with ID " + threadId);
                 removeThreadFromList(threadId, true);
             }
@@ -286,6 +391,19 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
         }
     }
 
+    /**
+     * Closes the socket of the handshake, unless the handshake was completed in the meanwhile.
+     *
+     * @param handshakeThread The socket IO thread of the timed out handshake.
+     */
+    @Override
+    public void onHandshakeTimeout(BluetoothSocketIoThread handshakeThread) {
+        if (removeThreadFromList(handshakeThread, true)) {
+            Log.e(TAG, "Handshake timed out (thread ID: " + handshakeThread.getId() + ")");
+            mListener.onIncomingConnectionFailed("Handshake timeout");
+        }
+    }
+
     /**
      * Closes the Bluetooth server socket.
      */
@@ -8,11 +8,13 @@ import android.bluetooth.BluetoothSocket;
 import android.os.ParcelUuid;
 import android.util.Log;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.UUID;
 
 /**
@@ -27,12 +29,20 @@ public class BluetoothUtils {
     public static final String SIMPLE_HANDSHAKE_MESSAGE_AS_STRING = "thali_handshake";
     public static final byte[] SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY =
             SIMPLE_HANDSHAKE_MESSAGE_AS_STRING.getBytes(StandardCharsets.UTF_8);
+    public static final String HANDSHAKE_JSON_ID_COMPRESSION = "compression";
+    public static final String HANDSHAKE_COMPRESSION_DEFLATE = "deflate";
+    public static final String HANDSHAKE_JSON_ID_FRAMING = "framing";
+    public static final String HANDSHAKE_FRAMING_TYPED = "typed";
+    public static final String HANDSHAKE_JSON_ID_FLOW_CONTROL_WINDOW = "flowControlWindow";
     private static final String MARSHMALLOW_FAKE_MAC_ADDRESS = "02:00:00:00:00:00";
     private static final String UPPER_CASE_HEX_REGEXP_CONDITION = "-?[0-9A-F]+";
     private static final String METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET = "createRfcommSocket";
     private static final String METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET = "createInsecureRfcommSocket";
     private static final int MAX_ALTERNATIVE_CHANNEL = 30;
     private static int mAlternativeChannel = 0;
+    private static Constructor<?> mBluetoothSocketConstructor = null; // Resolved once
+    private static Method mCreateRfcommSocketMethod = null; // Resolved once
+    private static Method mCreateInsecureRfcommSocketMethod = null; // Resolved once
 
     /**
      * Checks if the given Bluetooth MAC address is unknown (as in not set/missing).
@@ -122,63 +132,219 @@ public class BluetoothUtils {
      */
     public static PeerProperties validateReceivedHandshakeMessage(
             byte[] handshakeMessage, int handshakeMessageLength, BluetoothSocket bluetoothSocketOfSender) {
-        String handshakeMessageAsString = new String(handshakeMessage, StandardCharsets.UTF_8);
+        return validateReceivedHandshakeMessage(
+                handshakeMessage, handshakeMessageLength, bluetoothSocketOfSender, false);
+    }
+
+    /**
+     * Checks the validity of the received handshake message and negotiates the frame compression.
+     * @param handshakeMessage The received handshake message as a byte array.
+     * @param handshakeMessageLength The length of the handshake message.
+     * @param bluetoothSocketOfSender The Bluetooth socket of the sender.
+     * @param compressionSupported True, if we support the compression (and thus the typed framing).
+     * @return The resolved peer properties of the sender, if the handshake was valid. Null otherwise.
+     */
+    public static PeerProperties validateReceivedHandshakeMessage(
+            byte[] handshakeMessage, int handshakeMessageLength, BluetoothSocket bluetoothSocketOfSender,
+            boolean compressionSupported) {
+        return validateReceivedHandshakeMessage(handshakeMessage, handshakeMessageLength,
+                bluetoothSocketOfSender, compressionSupported, compressionSupported, 0);
+    }
+
+    /**
+     * Checks the validity of the received handshake message and negotiates the framing and its
+     * features: The typed framing, the frame compression and the flow control are enabled in the
+     * resolved peer properties, if both we and the sender support them (see negotiateFraming()).
+     * Both the binary handshake message (see BinaryHandshake) and the legacy ones (the JSON
+     * identity string and the simple handshake message) are accepted. The simple handshake
+     * message does not offer any features.
+     * @param handshakeMessage The received handshake message as a byte array.
+     * @param handshakeMessageLength The length of the handshake message.
+     * @param bluetoothSocketOfSender The Bluetooth socket of the sender.
+     * @param typedFramingSupported True, if we support the typed framing.
+     * @param compressionSupported True, if we support the compression.
+     * @param flowControlWindowSize The flow control window size we offer in bytes or zero, if none.
+     * @return The resolved peer properties of the sender, if the handshake was valid. Null otherwise.
+     */
+    public static PeerProperties validateReceivedHandshakeMessage(
+            byte[] handshakeMessage, int handshakeMessageLength, BluetoothSocket bluetoothSocketOfSender,
+            boolean typedFramingSupported, boolean compressionSupported, int flowControlWindowSize) {
+        if (BinaryHandshake.isBinaryHandshakeMessage(handshakeMessage, handshakeMessageLength)) {
+            return BinaryHandshake.decode(handshakeMessage, handshakeMessageLength,
+                    getBluetoothMacAddressFromSocket(bluetoothSocketOfSender),
+                    typedFramingSupported, compressionSupported, flowControlWindowSize);
+        }
+
+        if (handshakeMessage == null) {
+            return null;
+        }
+
+        // Never look past the buffer even if the given length claims more
+        handshakeMessageLength = Math.min(handshakeMessageLength, handshakeMessage.length);
         PeerProperties peerProperties = null;
         boolean receivedHandshakeMessageValidated = false;
+        int handshakeMessageEnd = handshakeMessageLength;
 
-        if (!handshakeMessageAsString.isEmpty()) {
-            if (handshakeMessageLength == SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY.length) {
-                // This must be the simple handshake message
-                try {
-                    handshakeMessageAsString = handshakeMessageAsString.substring(0, SIMPLE_HANDSHAKE_MESSAGE_AS_STRING.length());
-                } catch (IndexOutOfBoundsException e) {
-                    Log.e(TAG, "validateReceivedHandshakeMessage: " + e.getMessage(), e);
-                }
+        if (startsWith(handshakeMessage, handshakeMessageLength, SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY)) {
+            // This must be the simple handshake message
+            handshakeMessageEnd = SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY.length;
+            String bluetoothMacAddress = getBluetoothMacAddressFromSocket(bluetoothSocketOfSender);
 
-                if (handshakeMessageAsString.equals(SIMPLE_HANDSHAKE_MESSAGE_AS_STRING)) {
-                    String bluetoothMacAddress = getBluetoothMacAddressFromSocket(bluetoothSocketOfSender);
+            if (isValidBluetoothMacAddress(bluetoothMacAddress)) {
+                receivedHandshakeMessageValidated = true;
+                peerProperties = new PeerProperties(bluetoothMacAddress);
+            }
+        } else if (handshakeMessageLength > 0) {
+            // Long handshake message with peer name and Bluetooth MAC address
+            final int jsonObjectLength = getJsonObjectLength(handshakeMessage, handshakeMessageLength);
 
-                    if (isValidBluetoothMacAddress(bluetoothMacAddress)) {
-                        receivedHandshakeMessageValidated = true;
-                        peerProperties = new PeerProperties(bluetoothMacAddress);
-                    }
-                }
-            } else {
-                // Long handshake message with peer name and Bluetooth MAC address
-                peerProperties = new PeerProperties();
-
-                try {
-                    receivedHandshakeMessageValidated =
-                            AbstractBluetoothConnectivityAgent.getPropertiesFromIdentityString(
-                                    handshakeMessageAsString, peerProperties);
-                } catch (JSONException e) {
-                    Log.e(TAG, "validateReceivedHandshakeMessage: Failed to resolve peer properties: "
-                            + e.getMessage(), e);
-                }
+            if (jsonObjectLength > 0) {
+                handshakeMessageEnd = jsonObjectLength;
+            }
+
+            String handshakeMessageAsString =
+                    new String(handshakeMessage, 0, handshakeMessageEnd, StandardCharsets.UTF_8);
+            peerProperties = new PeerProperties();
+
+            try {
+                receivedHandshakeMessageValidated =
+                        AbstractBluetoothConnectivityAgent.getPropertiesFromIdentityString(
+                                handshakeMessageAsString, peerProperties);
 
                 if (receivedHandshakeMessageValidated) {
-                    String bluetoothMacAddress =
-                            BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocketOfSender);
+                    JSONObject jsonObject = new JSONObject(handshakeMessageAsString);
+                    negotiateFraming(peerProperties,
+                            typedFramingSupported || compressionSupported || flowControlWindowSize > 0,
+                            compressionSupported, flowControlWindowSize,
+                            HANDSHAKE_FRAMING_TYPED.equals(jsonObject.optString(HANDSHAKE_JSON_ID_FRAMING)),
+                            HANDSHAKE_COMPRESSION_DEFLATE.equals(jsonObject.optString(HANDSHAKE_JSON_ID_COMPRESSION)),
+                            jsonObject.optInt(HANDSHAKE_JSON_ID_FLOW_CONTROL_WINDOW, 0));
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "validateReceivedHandshakeMessage: Failed to resolve peer properties: "
+                        + e.getMessage(), e);
+            }
 
-                    if (bluetoothMacAddress == null
-                            || !bluetoothMacAddress.equals(peerProperties.getBluetoothMacAddress())) {
-                        Log.e(TAG, "validateReceivedHandshakeMessage: Bluetooth MAC address mismatch: Got \""
-                                + peerProperties.getBluetoothMacAddress()
-                                + "\", but was expecting \"" + bluetoothMacAddress + "\"");
+            if (receivedHandshakeMessageValidated) {
+                String bluetoothMacAddress =
+                        BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocketOfSender);
 
-                        receivedHandshakeMessageValidated = false;
-                    }
+                if (bluetoothMacAddress == null
+                        || !bluetoothMacAddress.equals(peerProperties.getBluetoothMacAddress())) {
+                    Log.e(TAG, "validateReceivedHandshakeMessage: Bluetooth MAC address mismatch: Got \""
+                            + peerProperties.getBluetoothMacAddress()
+                            + "\", but was expecting \"" + bluetoothMacAddress + "\"");
+
+                    receivedHandshakeMessageValidated = false;
                 }
             }
         }
 
+        if (receivedHandshakeMessageValidated && handshakeMessageEnd < handshakeMessageLength) {
+            // The sender wrote after the handshake and the bytes were read together with it
+            peerProperties.setBufferedData(
+                    Arrays.copyOfRange(handshakeMessage, handshakeMessageEnd, handshakeMessageLength));
+        }
+
         return receivedHandshakeMessageValidated ? peerProperties : null;
     }
 
+    /**
+     * Sets the framing and its features both we and the peer support to the given peer
+     * properties. The compression and the flow control require the typed framing. Since both
+     * peers resolve the same result from the offers, they end up using the same framing and the
+     * same flow control window without another round trip.
+     *
+     * @param peerProperties The peer properties to set the result to.
+     * @param typedFramingSupported True, if we support the typed framing.
+     * @param compressionSupported True, if we support the compression.
+     * @param flowControlWindowSize The flow control window size we offer in bytes or zero, if none.
+     * @param peerTypedFramingSupported True, if the peer supports the typed framing.
+     * @param peerCompressionSupported True, if the peer supports the compression.
+     * @param peerFlowControlWindowSize The flow control window size the peer offers in bytes or zero, if none.
+     */
+    static void negotiateFraming(
+            PeerProperties peerProperties, boolean typedFramingSupported, boolean compressionSupported,
+            int flowControlWindowSize, boolean peerTypedFramingSupported, boolean peerCompressionSupported,
+            int peerFlowControlWindowSize) {
+        final boolean typedFramingEnabled = (typedFramingSupported && peerTypedFramingSupported);
+        peerProperties.setTypedFramingEnabled(typedFramingEnabled);
+        peerProperties.setCompressionEnabled(typedFramingEnabled && compressionSupported && peerCompressionSupported);
+        peerProperties.setFlowControlWindowSize(
+                (typedFramingEnabled && flowControlWindowSize > 0 && peerFlowControlWindowSize > 0)
+                        ? Math.min(flowControlWindowSize, peerFlowControlWindowSize) : 0);
+    }
+
+    /**
+     * Finds the end of the JSON object at the beginning of the given bytes, so that the bytes
+     * following it can be told apart from the object. The UTF-8 encoded multi-byte characters
+     * never contain the bytes of the braces or the quotes, so the bytes can be scanned as is.
+     *
+     * @param bytes The bytes starting with a JSON object.
+     * @param length The number of valid bytes.
+     * @return The length of the JSON object in bytes or -1, if the bytes do not start with a
+     * complete JSON object.
+     */
+    static int getJsonObjectLength(byte[] bytes, int length) {
+        int depth = 0;
+        boolean isInString = false;
+        boolean isEscaped = false;
+
+        for (int i = 0; i < length && i < bytes.length; i++) {
+            final byte b = bytes[i];
+
+            if (isInString) {
+                if (isEscaped) {
+                    isEscaped = false;
+                } else if (b == '\\') {
+                    isEscaped = true;
+                } else if (b == '"') {
+                    isInString = false;
+                }
+            } else if (b == '"') {
+                isInString = true;
+            } else if (b == '{') {
+                depth++;
+            } else if (b == '}') {
+                if (--depth == 0) {
+                    return i + 1;
+                }
+
+                if (depth < 0) {
+                    return -1;
+                }
+            } else if (depth == 0 && !Character.isWhitespace(b)) {
+                return -1; // Not an object
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param bytes The bytes.
+     * @param length The number of valid bytes.
+     * @param prefix The prefix.
+     * @return True, if the given bytes start with the given prefix.
+     */
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        if (bytes == null || length < prefix.length || bytes.length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * @return The alternative RFCOMM channel/L2CAP psm used previously.
      */
-    public static int getPreviouslyUsedAlternativeChannelOrPort() {
+    public static synchronized int getPreviouslyUsedAlternativeChannelOrPort() {
         return mAlternativeChannel;
     }
 
@@ -186,13 +352,25 @@ public class BluetoothUtils {
      * Sets the next alternative RFCOMM channel or L2CAP psm to use.
      * @param channelOrPort The next alternative RFCOMM channel or L2CAP psm to use.
      */
-    public static void setNextAlternativeChannelOrPort(int channelOrPort) {
+    public static synchronized void setNextAlternativeChannelOrPort(int channelOrPort) {
         if (channelOrPort >= 1 && channelOrPort < MAX_ALTERNATIVE_CHANNEL) {
             // Just before the next time mAlternativeChannel is used it is incremented by one
             mAlternativeChannel = channelOrPort - 1;
         }
     }
 
+    /**
+     * Takes the next alternative RFCOMM channel or L2CAP psm into use.
+     * @return The next alternative RFCOMM channel or L2CAP psm.
+     */
+    public static synchronized int takeNextAlternativeChannelOrPort() {
+        if (mAlternativeChannel >= MAX_ALTERNATIVE_CHANNEL) {
+            mAlternativeChannel = 0;
+        }
+
+        return ++mAlternativeChannel;
+    }
+
     /**
      * Creates a new Bluetooth socket with the given service record UUID and the given channel/port.
      * @param bluetoothDevice The Bluetooth device.
@@ -203,27 +381,11 @@ public class BluetoothUtils {
      */
     public static BluetoothSocket createBluetoothSocketToServiceRecord(
             BluetoothDevice bluetoothDevice, UUID serviceRecordUuid, int channelOrPort, boolean secure) {
-        Constructor[] bluetoothSocketConstructors = BluetoothSocket.class.getDeclaredConstructors();
-        Constructor bluetoothSocketConstructor = null;
-
-        for (Constructor constructor : bluetoothSocketConstructors) {
-            Class<?>[] parameterTypes = constructor.getParameterTypes();
-            boolean takesBluetoothDevice = false;
-            boolean takesParcelUuid = false;
-
-            for (Class<?> parameterType : parameterTypes) {
-                if (parameterType.equals(BluetoothDevice.class)) {
-                    takesBluetoothDevice = true;
-                } else if (parameterType.equals(ParcelUuid.class)) {
-                    takesParcelUuid = true;
-                }
-            }
+        Constructor<?> bluetoothSocketConstructor = getBluetoothSocketConstructor();
 
-            if (takesBluetoothDevice && takesParcelUuid) {
-                // We found the right constructor
-                bluetoothSocketConstructor = constructor;
-                break;
-            }
+        if (bluetoothSocketConstructor == null) {
+            Log.e(TAG, "createBluetoothSocketToServiceRecord: No suitable Bluetooth socket constructor found");
+            return null;
         }
 
         // This is the constructor we should now have:
@@ -241,7 +403,6 @@ public class BluetoothUtils {
                 new ParcelUuid(serviceRecordUuid)
         };
 
-        bluetoothSocketConstructor.setAccessible(true);
         BluetoothSocket bluetoothSocket = null;
 
         try {
@@ -263,11 +424,8 @@ public class BluetoothUtils {
      */
     public static BluetoothSocket createBluetoothSocketToServiceRecordWithNextPort(
             BluetoothDevice bluetoothDevice, UUID serviceRecordUuid, boolean secure) {
-        if (mAlternativeChannel >= MAX_ALTERNATIVE_CHANNEL) {
-            mAlternativeChannel = 0;
-        }
-
-        return createBluetoothSocketToServiceRecord(bluetoothDevice, serviceRecordUuid, ++mAlternativeChannel, secure);
+        return createBluetoothSocketToServiceRecord(
+                bluetoothDevice, serviceRecordUuid, takeNextAlternativeChannelOrPort(), secure);
     }
 
     /**
@@ -280,17 +438,10 @@ public class BluetoothUtils {
     public static BluetoothSocket createBluetoothSocket(
             BluetoothSocket originalBluetoothSocket, int channelOrPort, boolean secure) {
         Log.d(TAG, "createBluetoothSocketWithSpecifiedChannel: Channel/port: " + channelOrPort + ", secure: " + secure);
-        Class<?> bluetoothDeviceClass = originalBluetoothSocket.getRemoteDevice().getClass();
-        Class<?>[] parameterTypes = new Class<?>[] { Integer.TYPE };
-
-        String methodName = secure
-                ? METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET
-                : METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET;
-
         BluetoothSocket newSocket = null;
 
         try {
-            Method createSocketMethod = bluetoothDeviceClass.getMethod(methodName, parameterTypes);
+            Method createSocketMethod = getCreateRfcommSocketMethod(secure);
             Object[] parameters = new Object[] { Integer.valueOf(channelOrPort) };
             newSocket = (BluetoothSocket) createSocketMethod.invoke(originalBluetoothSocket.getRemoteDevice(), parameters);
         } catch (Exception e) {
@@ -308,10 +459,63 @@ public class BluetoothUtils {
      */
     public static BluetoothSocket createBluetoothSocketWithNextChannel(
             BluetoothSocket originalBluetoothSocket, boolean secure) {
-        if (mAlternativeChannel >= MAX_ALTERNATIVE_CHANNEL) {
-            mAlternativeChannel = 0;
+        return createBluetoothSocket(originalBluetoothSocket, takeNextAlternativeChannelOrPort(), secure);
+    }
+
+    /**
+     * Resolves the hidden Bluetooth socket constructor taking the device and the service record
+     * UUID. The lookup is done only once, since iterating the constructors is expensive.
+     * @return The constructor or null, if not found.
+     */
+    private static synchronized Constructor<?> getBluetoothSocketConstructor() {
+        if (mBluetoothSocketConstructor == null) {
+            for (Constructor<?> constructor : BluetoothSocket.class.getDeclaredConstructors()) {
+                Class<?>[] parameterTypes = constructor.getParameterTypes();
+                boolean takesBluetoothDevice = false;
+                boolean takesParcelUuid = false;
+
+                for (Class<?> parameterType : parameterTypes) {
+                    if (parameterType.equals(BluetoothDevice.class)) {
+                        takesBluetoothDevice = true;
+                    } else if (parameterType.equals(ParcelUuid.class)) {
+                        takesParcelUuid = true;
+                    }
+                }
+
+                if (takesBluetoothDevice && takesParcelUuid) {
+                    // We found the right constructor
+                    constructor.setAccessible(true);
+                    mBluetoothSocketConstructor = constructor;
+                    break;
+                }
+            }
+        }
+
+        return mBluetoothSocketConstructor;
+    }
+
+    /**
+     * Resolves the hidden method of BluetoothDevice for creating a RFCOMM socket with a specific
+     * channel. The lookup is done only once per method.
+     * @param secure If true, will resolve the method for secure sockets. If false, the one for insecure sockets.
+     * @return The method.
+     * @throws NoSuchMethodException Thrown, if the method does not exist.
+     */
+    private static synchronized Method getCreateRfcommSocketMethod(boolean secure) throws NoSuchMethodException {
+        if (secure) {
+            if (mCreateRfcommSocketMethod == null) {
+                mCreateRfcommSocketMethod = BluetoothDevice.class.getMethod(
+                        METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET, Integer.TYPE);
+            }
+
+            return mCreateRfcommSocketMethod;
+        }
+
+        if (mCreateInsecureRfcommSocketMethod == null) {
+            mCreateInsecureRfcommSocketMethod = BluetoothDevice.class.getMethod(
+                    METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET, Integer.TYPE);
         }
 
-        return createBluetoothSocket(originalBluetoothSocket, ++mAlternativeChannel, secure);
+        return mCreateInsecureRfcommSocketMethod;
     }
 }
@@ -0,0 +1,185 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Learns how long the successful outgoing connections (socket connect plus handshake) take,
+ * globally and per peer (keyed by the Bluetooth MAC address), and derives the connection timeout
+ * from them the same way TCP derives its retransmission timeout (RFC 6298): The timeout is the
+ * smoothed connect time plus four times its variation.
+ *
+ * The estimate of the peer is used, if the peer has connected before, otherwise the global one.
+ * The timeout is doubled for every consecutive timeout of the peer so that the slow peers still
+ * get through. The result is bounded by a minimum and the configured maximum timeout.
+ */
+class ConnectTimeEstimator {
+    private static final String TAG = ConnectTimeEstimator.class.getName();
+    static final long DEFAULT_MIN_TIMEOUT_IN_MILLISECONDS = 3000;
+    private static final double SMOOTHED_CONNECT_TIME_GAIN = 0.125; // Alpha in RFC 6298
+    private static final double CONNECT_TIME_VARIATION_GAIN = 0.25; // Beta in RFC 6298
+    private static final int CONNECT_TIME_VARIATION_FACTOR = 4; // K in RFC 6298
+    private static final int MAX_NUMBER_OF_TRACKED_PEERS = 256;
+    @SuppressWarnings("serial")
+    private final Map<String, Estimate> mPeerEstimates =
+            new LinkedHashMap<String, Estimate>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Estimate> eldest) {
+                    return size() > MAX_NUMBER_OF_TRACKED_PEERS;
+                }
+            };
+    private final Estimate mGlobalEstimate = new Estimate();
+    private final long mMinTimeoutInMilliseconds;
+
+    /**
+     * Constructor.
+     */
+    ConnectTimeEstimator() {
+        this(DEFAULT_MIN_TIMEOUT_IN_MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param minTimeoutInMilliseconds The minimum timeout.
+     * @throws IllegalArgumentException Thrown, if the minimum timeout is negative.
+     */
+    ConnectTimeEstimator(long minTimeoutInMilliseconds) throws IllegalArgumentException {
+        if (minTimeoutInMilliseconds < 0) {
+            throw new IllegalArgumentException("The minimum timeout is negative: " + minTimeoutInMilliseconds);
+        }
+
+        mMinTimeoutInMilliseconds = minTimeoutInMilliseconds;
+    }
+
+    /**
+     * Records the time a successful connection to the given peer took. Resets the consecutive
+     * timeouts of the peer.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer or null, if not known.
+     * @param connectTimeInMilliseconds The time from starting to connect until the handshake succeeded.
+     */
+    synchronized void onConnected(String bluetoothMacAddress, long connectTimeInMilliseconds) {
+        if (connectTimeInMilliseconds < 0) {
+            return;
+        }
+
+        mGlobalEstimate.update(connectTimeInMilliseconds);
+
+        if (bluetoothMacAddress != null) {
+            Estimate peerEstimate = getOrCreatePeerEstimate(bluetoothMacAddress);
+            peerEstimate.update(connectTimeInMilliseconds);
+            peerEstimate.mNumberOfConsecutiveTimeouts = 0;
+
+            Log.v(TAG, "onConnected: Peer " + bluetoothMacAddress + ": " + connectTimeInMilliseconds
+                    + " ms, smoothed " + Math.round(peerEstimate.mSmoothedConnectTime)
+                    + " ms, global smoothed " + Math.round(mGlobalEstimate.mSmoothedConnectTime) + " ms");
+        }
+    }
+
+    /**
+     * Records a timeout. The next timeout of the given peer is doubled.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    synchronized void onTimeout(String bluetoothMacAddress) {
+        if (bluetoothMacAddress != null) {
+            getOrCreatePeerEstimate(bluetoothMacAddress).mNumberOfConsecutiveTimeouts++;
+        }
+    }
+
+    /**
+     * Calculates the connection timeout for the given peer.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer or null, if not known.
+     * @param maxTimeoutInMilliseconds The maximum timeout. If zero or negative, it is returned as is.
+     * @return The timeout in milliseconds. The maximum, if there are no samples yet.
+     */
+    synchronized long getTimeout(String bluetoothMacAddress, long maxTimeoutInMilliseconds) {
+        if (maxTimeoutInMilliseconds <= 0) {
+            return maxTimeoutInMilliseconds;
+        }
+
+        Estimate peerEstimate = (bluetoothMacAddress != null) ? mPeerEstimates.get(bluetoothMacAddress.toUpperCase()) : null;
+        Estimate estimate = (peerEstimate != null && peerEstimate.mNumberOfSamples > 0) ? peerEstimate : mGlobalEstimate;
+
+        if (estimate.mNumberOfSamples == 0) {
+            return maxTimeoutInMilliseconds;
+        }
+
+        long timeout = Math.max(estimate.getTimeout(), mMinTimeoutInMilliseconds);
+
+        if (peerEstimate != null) {
+            for (int i = 0; i < peerEstimate.mNumberOfConsecutiveTimeouts && timeout < maxTimeoutInMilliseconds; i++) {
+                timeout *= 2;
+            }
+        }
+
+        return Math.min(timeout, maxTimeoutInMilliseconds);
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer or null, if not known.
+     * @param defaultConnectTimeInMilliseconds The value to return, if there are no samples yet.
+     * @return The smoothed connect time of the given peer (or of all the peers, if the peer has
+     * not connected before) in milliseconds or the given default value.
+     */
+    synchronized long getSmoothedConnectTime(String bluetoothMacAddress, long defaultConnectTimeInMilliseconds) {
+        Estimate peerEstimate = (bluetoothMacAddress != null) ? mPeerEstimates.get(bluetoothMacAddress.toUpperCase()) : null;
+        Estimate estimate = (peerEstimate != null && peerEstimate.mNumberOfSamples > 0) ? peerEstimate : mGlobalEstimate;
+
+        return (estimate.mNumberOfSamples > 0)
+                ? Math.round(estimate.mSmoothedConnectTime) : defaultConnectTimeInMilliseconds;
+    }
+
+    /**
+     * @return The number of successful connections recorded.
+     */
+    synchronized int getNumberOfSamples() {
+        return mGlobalEstimate.mNumberOfSamples;
+    }
+
+    private Estimate getOrCreatePeerEstimate(String bluetoothMacAddress) {
+        final String key = bluetoothMacAddress.toUpperCase();
+        Estimate peerEstimate = mPeerEstimates.get(key);
+
+        if (peerEstimate == null) {
+            peerEstimate = new Estimate();
+            mPeerEstimates.put(key, peerEstimate);
+        }
+
+        return peerEstimate;
+    }
+
+    /**
+     * The smoothed connect time and its variation.
+     */
+    private static class Estimate {
+        double mSmoothedConnectTime = 0;
+        double mConnectTimeVariation = 0;
+        int mNumberOfSamples = 0;
+        int mNumberOfConsecutiveTimeouts = 0;
+
+        void update(long connectTimeInMilliseconds) {
+            if (mNumberOfSamples == 0) {
+                mSmoothedConnectTime = connectTimeInMilliseconds;
+                mConnectTimeVariation = connectTimeInMilliseconds / 2d;
+            } else {
+                mConnectTimeVariation = (1 - CONNECT_TIME_VARIATION_GAIN) * mConnectTimeVariation
+                        + CONNECT_TIME_VARIATION_GAIN * Math.abs(mSmoothedConnectTime - connectTimeInMilliseconds);
+                mSmoothedConnectTime = (1 - SMOOTHED_CONNECT_TIME_GAIN) * mSmoothedConnectTime
+                        + SMOOTHED_CONNECT_TIME_GAIN * connectTimeInMilliseconds;
+            }
+
+            mNumberOfSamples++;
+        }
+
+        long getTimeout() {
+            return (long) Math.ceil(mSmoothedConnectTime + CONNECT_TIME_VARIATION_FACTOR * mConnectTimeVariation);
+        }
+    }
+}
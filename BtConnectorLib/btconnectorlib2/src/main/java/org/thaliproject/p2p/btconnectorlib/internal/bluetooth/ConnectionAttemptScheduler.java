@@ -0,0 +1,232 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+import org.thaliproject.p2p.btconnectorlib.utils.CompactHistogram;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Limits the number of outgoing connection attempts running at the same time. The parallel
+ * RFCOMM connection attempts share one radio and slow each other down, so it is often faster to
+ * run them a few at a time.
+ *
+ * The attempts exceeding the limit wait in a queue ordered by priority (the highest first) and,
+ * within a priority, by the order of submission. An attempt is started when a running one ends
+ * i.e. when the owner calls remove(). The time the attempts spend in the queue is recorded in a
+ * histogram, see getQueueWaitTimeHistogram().
+ */
+class ConnectionAttemptScheduler {
+    /**
+     * The listener interface.
+     */
+    interface Listener {
+        /**
+         * Called right before an attempt is started. Note that the scheduler is locked during
+         * this call.
+         *
+         * @param attempt The thread of the attempt.
+         */
+        void onAttemptStarted(Thread attempt);
+    }
+
+    private static final String TAG = ConnectionAttemptScheduler.class.getName();
+    static final int UNLIMITED_NUMBER_OF_CONCURRENT_ATTEMPTS = 0;
+    static final int DEFAULT_PRIORITY = 0;
+    private final PriorityQueue<QueuedAttempt> mQueue = new PriorityQueue<>();
+    private final Set<Thread> mRunningAttempts = new HashSet<>();
+    private final CompactHistogram mQueueWaitTimeHistogram = new CompactHistogram();
+    private int mMaxNumberOfConcurrentAttempts;
+    private long mNextSequenceNumber = 0;
+    private long mNumberOfQueuedAttempts = 0;
+    private Listener mListener = null;
+
+    /**
+     * Constructor.
+     *
+     * @param maxNumberOfConcurrentAttempts The maximum number of attempts running at the same time
+     *                                      or UNLIMITED_NUMBER_OF_CONCURRENT_ATTEMPTS.
+     */
+    ConnectionAttemptScheduler(int maxNumberOfConcurrentAttempts) {
+        mMaxNumberOfConcurrentAttempts = Math.max(maxNumberOfConcurrentAttempts, UNLIMITED_NUMBER_OF_CONCURRENT_ATTEMPTS);
+    }
+
+    /**
+     * @param listener The listener notified when the attempts are started. Can be null.
+     */
+    synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts the given attempt, if the limit allows, or queues it.
+     *
+     * @param attempt The thread of the attempt. Must not be started.
+     * @param priority The priority of the attempt in the queue. The higher, the sooner.
+     * @return True, if the attempt was started. False, if queued.
+     * @throws NullPointerException Thrown, if the attempt is null.
+     */
+    synchronized boolean submit(Thread attempt, int priority) throws NullPointerException {
+        if (attempt == null) {
+            throw new NullPointerException("The attempt is null");
+        }
+
+        if (!isLimitReached()) {
+            mQueueWaitTimeHistogram.record(0);
+            startAttempt(attempt);
+            return true;
+        }
+
+        mQueue.add(new QueuedAttempt(attempt, priority, mNextSequenceNumber++));
+        mNumberOfQueuedAttempts++;
+        Log.d(TAG, "submit: Queued attempt with thread ID " + attempt.getId() + " (priority: " + priority
+                + "), " + mQueue.size() + " in queue, " + mRunningAttempts.size() + " running");
+        return false;
+    }
+
+    /**
+     * Removes the given attempt, because it ended or was cancelled. If it was running, the next
+     * attempt in the queue is started.
+     *
+     * @param attempt The thread of the attempt.
+     * @return True, if the attempt was still in the queue i.e. it was never started. False otherwise.
+     */
+    synchronized boolean remove(Thread attempt) {
+        Iterator<QueuedAttempt> iterator = mQueue.iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().mAttempt == attempt) {
+                iterator.remove();
+                Log.d(TAG, "remove: Removed queued attempt with thread ID " + attempt.getId());
+                return true;
+            }
+        }
+
+        if (mRunningAttempts.remove(attempt)) {
+            startQueuedAttempts();
+        }
+
+        return false;
+    }
+
+    /**
+     * @param attempt The thread of the attempt.
+     * @return True, if the attempt is waiting in the queue.
+     */
+    synchronized boolean isQueued(Thread attempt) {
+        for (QueuedAttempt queuedAttempt : mQueue) {
+            if (queuedAttempt.mAttempt == attempt) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Drops the queued attempts without starting them and forgets the running ones.
+     */
+    synchronized void clear() {
+        mQueue.clear();
+        mRunningAttempts.clear();
+    }
+
+    synchronized int getMaxNumberOfConcurrentAttempts() {
+        return mMaxNumberOfConcurrentAttempts;
+    }
+
+    /**
+     * Sets the maximum number of attempts running at the same time. If the limit is raised, the
+     * queued attempts are started accordingly. Lowering it does not affect the running attempts.
+     *
+     * @param maxNumberOfConcurrentAttempts The maximum number of attempts or UNLIMITED_NUMBER_OF_CONCURRENT_ATTEMPTS.
+     */
+    synchronized void setMaxNumberOfConcurrentAttempts(int maxNumberOfConcurrentAttempts) {
+        mMaxNumberOfConcurrentAttempts = Math.max(maxNumberOfConcurrentAttempts, UNLIMITED_NUMBER_OF_CONCURRENT_ATTEMPTS);
+        startQueuedAttempts();
+    }
+
+    /**
+     * @return The number of attempts waiting in the queue.
+     */
+    synchronized int getNumberOfQueuedAttempts() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return The number of running attempts.
+     */
+    synchronized int getNumberOfRunningAttempts() {
+        return mRunningAttempts.size();
+    }
+
+    /**
+     * @return The total number of attempts, which had to wait in the queue.
+     */
+    synchronized long getTotalNumberOfQueuedAttempts() {
+        return mNumberOfQueuedAttempts;
+    }
+
+    /**
+     * @return The histogram of the time the started attempts waited in the queue in milliseconds.
+     * The attempts started immediately are recorded as zero.
+     */
+    CompactHistogram getQueueWaitTimeHistogram() {
+        return mQueueWaitTimeHistogram;
+    }
+
+    private boolean isLimitReached() {
+        return (mMaxNumberOfConcurrentAttempts != UNLIMITED_NUMBER_OF_CONCURRENT_ATTEMPTS
+                && mRunningAttempts.size() >= mMaxNumberOfConcurrentAttempts);
+    }
+
+    private void startQueuedAttempts() {
+        while (!mQueue.isEmpty() && !isLimitReached()) {
+            QueuedAttempt queuedAttempt = mQueue.poll();
+            final long queueWaitTime = System.currentTimeMillis() - queuedAttempt.mQueueTime;
+            mQueueWaitTimeHistogram.record(queueWaitTime);
+            Log.d(TAG, "startQueuedAttempts: Starting attempt with thread ID " + queuedAttempt.mAttempt.getId()
+                    + " after " + queueWaitTime + " ms in queue");
+            startAttempt(queuedAttempt.mAttempt);
+        }
+    }
+
+    private void startAttempt(Thread attempt) {
+        mRunningAttempts.add(attempt);
+
+        if (mListener != null) {
+            mListener.onAttemptStarted(attempt);
+        }
+
+        attempt.start();
+    }
+
+    /**
+     * An attempt waiting in the queue.
+     */
+    private static class QueuedAttempt implements Comparable<QueuedAttempt> {
+        final Thread mAttempt;
+        final int mPriority;
+        final long mSequenceNumber;
+        final long mQueueTime = System.currentTimeMillis();
+
+        QueuedAttempt(Thread attempt, int priority, long sequenceNumber) {
+            mAttempt = attempt;
+            mPriority = priority;
+            mSequenceNumber = sequenceNumber;
+        }
+
+        @Override
+        public int compareTo(QueuedAttempt other) {
+            if (mPriority != other.mPriority) {
+                return (mPriority > other.mPriority) ? -1 : 1;
+            }
+
+            return (mSequenceNumber < other.mSequenceNumber) ? -1 : ((mSequenceNumber == other.mSequenceNumber) ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Races the RFCOMM socket creation strategies against each other instead of trying them one after
+ * another: The strategies are started with staggered delays and the first socket to connect wins,
+ * while the sockets of the other strategies are closed, which cancels their connection attempts.
+ * A strategy is not started at all, if the race is decided before its turn.
+ *
+ * The outcome of every strategy is recorded in process wide statistics (see getStatisticsReport())
+ * for tuning the order and the stagger: A strategy with a low success rate should be started
+ * later, and a stagger much shorter than the mean connect time of the first strategy only adds
+ * load to the radio.
+ */
+class ConnectionRace {
+    /**
+     * Creates the socket for a strategy.
+     */
+    interface SocketFactory {
+        /**
+         * @param port The port of the strategy (see BluetoothClientThread.createSocket()).
+         * @return A new, unconnected socket.
+         * @throws IOException Thrown, if the socket could not be created.
+         */
+        BluetoothSocket createSocket(int port) throws IOException;
+    }
+
+    private static final String TAG = ConnectionRace.class.getName();
+    private static final int STRATEGY_SYSTEM_DECIDED_PORT = 0;
+    private static final int STRATEGY_ROTATING_PORT = 1;
+    private static final int STRATEGY_FIXED_PORT = 2;
+    private static final String[] STRATEGY_NAMES = { "system decided port", "rotating port", "fixed port" };
+    private static final AtomicLong[] sNumberOfSuccesses = createCounters();
+    private static final AtomicLong[] sNumberOfFailures = createCounters();
+    private static final AtomicLong[] sNumberOfWins = createCounters();
+    private static final AtomicLong[] sTotalConnectTimeInMilliseconds = createCounters();
+    private final int[] mPorts;
+    private final long mStaggerInMilliseconds;
+    private final SocketFactory mSocketFactory;
+    private final List<BluetoothSocket> mSockets = new ArrayList<>();
+    private BluetoothSocket mWinningSocket = null;
+    private int mWinningPort = 0;
+    private IOException mLastException = null;
+    private int mNumberOfFinishedStrategies = 0;
+    private boolean mIsCancelled = false;
+
+    /**
+     * Constructor.
+     *
+     * @param ports The ports of the strategies in the order they are started. See
+     *              BluetoothClientThread.createSocket() for the meaning of the values.
+     * @param staggerInMilliseconds The delay between starting the strategies.
+     * @param socketFactory The socket factory.
+     * @throws IllegalArgumentException Thrown, if no ports are given or the stagger is negative.
+     * @throws NullPointerException Thrown, if the socket factory is null.
+     */
+    ConnectionRace(int[] ports, long staggerInMilliseconds, SocketFactory socketFactory)
+            throws IllegalArgumentException, NullPointerException {
+        if (ports == null || ports.length == 0 || staggerInMilliseconds < 0) {
+            throw new IllegalArgumentException("No ports or invalid stagger (" + staggerInMilliseconds + ")");
+        }
+
+        if (socketFactory == null) {
+            throw new NullPointerException("The socket factory is null");
+        }
+
+        mPorts = ports.clone();
+        mStaggerInMilliseconds = staggerInMilliseconds;
+        mSocketFactory = socketFactory;
+    }
+
+    /**
+     * Runs the race. Blocks until a socket connects, all the strategies fail or the race is
+     * cancelled.
+     *
+     * @return The connected socket.
+     * @throws IOException Thrown, if all the strategies failed (the exception of the last one)
+     * or if the race was cancelled.
+     */
+    BluetoothSocket run() throws IOException {
+        final long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < mPorts.length; i++) {
+            Thread racerThread = new Thread(new Racer(i, startTime + i * mStaggerInMilliseconds));
+            racerThread.setName("ConnectionRacer-" + mPorts[i]);
+            racerThread.setDaemon(true);
+            racerThread.start();
+        }
+
+        synchronized (this) {
+            try {
+                while (mWinningSocket == null && !mIsCancelled && mNumberOfFinishedStrategies < mPorts.length) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mIsCancelled = true;
+                notifyAll();
+            }
+
+            // Cancel the attempts still in progress
+            for (BluetoothSocket socket : mSockets) {
+                if (socket != mWinningSocket || mIsCancelled) {
+                    closeSocket(socket);
+                }
+            }
+
+            mSockets.clear();
+
+            if (mIsCancelled) {
+                throw new IOException("Connection race cancelled");
+            }
+
+            if (mWinningSocket != null) {
+                Log.d(TAG, "run: Won by " + getStrategyName(mWinningPort) + " in "
+                        + (System.currentTimeMillis() - startTime) + " ms");
+                return mWinningSocket;
+            }
+
+            throw (mLastException != null) ? mLastException : new IOException("All strategies failed");
+        }
+    }
+
+    /**
+     * Cancels the race. The connection attempts in progress are cancelled by closing their
+     * sockets. If the race has already been won, the winning socket is closed as well.
+     */
+    synchronized void cancel() {
+        mIsCancelled = true;
+
+        for (BluetoothSocket socket : mSockets) {
+            closeSocket(socket);
+        }
+
+        if (mWinningSocket != null) {
+            closeSocket(mWinningSocket);
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * @return The port of the winning strategy. Valid only after run() has returned a socket.
+     */
+    synchronized int getWinningPort() {
+        return mWinningPort;
+    }
+
+    /**
+     * @param port The port of the strategy.
+     * @return The name of the strategy for logging.
+     */
+    static String getStrategyName(int port) {
+        return (port > 0) ? STRATEGY_NAMES[STRATEGY_FIXED_PORT] + " " + port : STRATEGY_NAMES[getStrategy(port)];
+    }
+
+    /**
+     * @return A report of the outcomes of the strategies since the process started, e.g.
+     * "system decided port: 9/10 succeeded, 7 won, mean connect time 850 ms; ...".
+     */
+    static String getStatisticsReport() {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (int strategy = 0; strategy < STRATEGY_NAMES.length; strategy++) {
+            final long numberOfSuccesses = sNumberOfSuccesses[strategy].get();
+            final long numberOfAttempts = numberOfSuccesses + sNumberOfFailures[strategy].get();
+
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append("; ");
+            }
+
+            stringBuilder.append(STRATEGY_NAMES[strategy]).append(": ")
+                    .append(numberOfSuccesses).append('/').append(numberOfAttempts).append(" succeeded, ")
+                    .append(sNumberOfWins[strategy].get()).append(" won");
+
+            if (numberOfSuccesses > 0) {
+                stringBuilder.append(", mean connect time ")
+                        .append(sTotalConnectTimeInMilliseconds[strategy].get() / numberOfSuccesses).append(" ms");
+            }
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Resets the statistics. For tests.
+     */
+    static void resetStatistics() {
+        for (int strategy = 0; strategy < STRATEGY_NAMES.length; strategy++) {
+            sNumberOfSuccesses[strategy].set(0);
+            sNumberOfFailures[strategy].set(0);
+            sNumberOfWins[strategy].set(0);
+            sTotalConnectTimeInMilliseconds[strategy].set(0);
+        }
+    }
+
+    /**
+     * @return True, if the race has been decided i.e. the racers not yet started should not start.
+     */
+    private boolean isDecided() {
+        return (mWinningSocket != null || mIsCancelled);
+    }
+
+    private static int getStrategy(int port) {
+        if (port == BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT) {
+            return STRATEGY_SYSTEM_DECIDED_PORT;
+        }
+
+        return (port == 0) ? STRATEGY_ROTATING_PORT : STRATEGY_FIXED_PORT;
+    }
+
+    private static AtomicLong[] createCounters() {
+        AtomicLong[] counters = new AtomicLong[STRATEGY_NAMES.length];
+
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicLong();
+        }
+
+        return counters;
+    }
+
+    private static void closeSocket(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException | NullPointerException e) {
+            Log.w(TAG, "closeSocket: Failed to close the socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a single strategy.
+     */
+    private class Racer implements Runnable {
+        private final int mIndex;
+        private final long mStartTime;
+
+        Racer(int index, long startTime) {
+            mIndex = index;
+            mStartTime = startTime;
+        }
+
+        @Override
+        public void run() {
+            final int port = mPorts[mIndex];
+            final int strategy = getStrategy(port);
+            BluetoothSocket socket = null;
+
+            try {
+                synchronized (ConnectionRace.this) {
+                    long timeToStart = mStartTime - System.currentTimeMillis();
+
+                    while (timeToStart > 0 && !isDecided()) {
+                        ConnectionRace.this.wait(timeToStart);
+                        timeToStart = mStartTime - System.currentTimeMillis();
+                    }
+
+                    if (isDecided()) {
+                        return; // Not started, not counted
+                    }
+                }
+
+                final long connectStartTime = System.currentTimeMillis();
+                socket = mSocketFactory.createSocket(port);
+
+                synchronized (ConnectionRace.this) {
+                    if (isDecided()) {
+                        closeSocket(socket);
+                        return;
+                    }
+
+                    mSockets.add(socket);
+                }
+
+                socket.connect(); // Blocking call, cancelled by closing the socket
+
+                sNumberOfSuccesses[strategy].incrementAndGet();
+                sTotalConnectTimeInMilliseconds[strategy].addAndGet(System.currentTimeMillis() - connectStartTime);
+
+                synchronized (ConnectionRace.this) {
+                    if (!isDecided()) {
+                        sNumberOfWins[strategy].incrementAndGet();
+                        mWinningSocket = socket;
+                        mWinningPort = port;
+                    } else {
+                        // Lost the race
+                        mSockets.remove(socket);
+                        closeSocket(socket);
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (ConnectionRace.this) {
+                    if (!isDecided()) {
+                        // Do not count the attempts cancelled by the winner as failures
+                        sNumberOfFailures[strategy].incrementAndGet();
+                        Log.d(TAG, "Racer: " + getStrategyName(port) + " failed: " + e.getMessage());
+                        mLastException = e;
+                    }
+
+                    if (socket != null) {
+                        mSockets.remove(socket);
+                        closeSocket(socket);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Racer: Interrupted");
+            } finally {
+                synchronized (ConnectionRace.this) {
+                    mNumberOfFinishedStrategies++;
+                    ConnectionRace.this.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps track of the outgoing connection failures per peer (keyed by the Bluetooth MAC address)
+ * and backs off from the peers that keep failing.
+ *
+ * Each peer has a circuit, which is closed (connecting is allowed) until the number of consecutive
+ * failures reaches the threshold. Then the circuit opens for a backoff time, which doubles with
+ * every further failure (with jitter so that the peers failing at the same time do not retry in
+ * sync) up to a maximum. When the backoff time has passed, the circuit is half-open: A single
+ * trial attempt is allowed. If it succeeds, the circuit closes. If it fails, the circuit opens
+ * again with a longer backoff time.
+ */
+class PeerFailureTracker {
+    enum CircuitState {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final String TAG = PeerFailureTracker.class.getName();
+    static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    static final long DEFAULT_BASE_BACKOFF_TIME_IN_MILLISECONDS = 2000;
+    static final long DEFAULT_MAX_BACKOFF_TIME_IN_MILLISECONDS = 120000;
+    private static final double JITTER_FACTOR = 0.25; // The backoff time varies +-25 %
+    private static final int MAX_NUMBER_OF_TRACKED_PEERS = 256;
+    @SuppressWarnings("serial")
+    private final Map<String, PeerRecord> mPeerRecords =
+            new LinkedHashMap<String, PeerRecord>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PeerRecord> eldest) {
+                    return size() > MAX_NUMBER_OF_TRACKED_PEERS;
+                }
+            };
+    private final int mFailureThreshold;
+    private final long mBaseBackoffTimeInMilliseconds;
+    private final long mMaxBackoffTimeInMilliseconds;
+    private final Random mRandom;
+
+    /**
+     * Constructor.
+     */
+    PeerFailureTracker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_BASE_BACKOFF_TIME_IN_MILLISECONDS,
+                DEFAULT_MAX_BACKOFF_TIME_IN_MILLISECONDS, new Random());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param failureThreshold The number of consecutive failures opening the circuit of a peer.
+     * @param baseBackoffTimeInMilliseconds The backoff time after the failure opening the circuit.
+     * @param maxBackoffTimeInMilliseconds The maximum backoff time.
+     * @param random The random number generator for the jitter.
+     * @throws IllegalArgumentException Thrown, if the threshold is less than one or the backoff
+     * times are invalid.
+     * @throws NullPointerException Thrown, if the random number generator is null.
+     */
+    PeerFailureTracker(int failureThreshold, long baseBackoffTimeInMilliseconds,
+                       long maxBackoffTimeInMilliseconds, Random random)
+            throws IllegalArgumentException, NullPointerException {
+        if (failureThreshold < 1 || baseBackoffTimeInMilliseconds < 0
+                || maxBackoffTimeInMilliseconds < baseBackoffTimeInMilliseconds) {
+            throw new IllegalArgumentException("Invalid threshold (" + failureThreshold
+                    + ") or backoff times (" + baseBackoffTimeInMilliseconds + ", " + maxBackoffTimeInMilliseconds + ")");
+        }
+
+        if (random == null) {
+            throw new NullPointerException("The random number generator is null");
+        }
+
+        mFailureThreshold = failureThreshold;
+        mBaseBackoffTimeInMilliseconds = baseBackoffTimeInMilliseconds;
+        mMaxBackoffTimeInMilliseconds = maxBackoffTimeInMilliseconds;
+        mRandom = random;
+    }
+
+    /**
+     * Checks, if an attempt to connect to the given peer is allowed. If the backoff time of an
+     * open circuit has passed, the circuit becomes half-open and this attempt is the trial.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return True, if the attempt is allowed. False, if the circuit is open or the trial attempt
+     * of a half-open circuit is still in progress.
+     */
+    synchronized boolean tryAcquire(String bluetoothMacAddress) {
+        PeerRecord peerRecord = getPeerRecord(bluetoothMacAddress);
+
+        if (peerRecord == null || peerRecord.mState == CircuitState.CLOSED) {
+            return true;
+        }
+
+        if (peerRecord.mState == CircuitState.OPEN && System.currentTimeMillis() >= peerRecord.mOpenUntil) {
+            Log.d(TAG, "tryAcquire: Allowing a trial attempt to peer " + bluetoothMacAddress);
+            peerRecord.mState = CircuitState.HALF_OPEN;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Closes the circuit of the given peer and forgets its failures.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    synchronized void onSuccess(String bluetoothMacAddress) {
+        if (bluetoothMacAddress != null && mPeerRecords.remove(bluetoothMacAddress) != null) {
+            Log.d(TAG, "onSuccess: Closed the circuit of peer " + bluetoothMacAddress);
+        }
+    }
+
+    /**
+     * Records a failure. Opens the circuit of the given peer, if the number of consecutive
+     * failures reaches the threshold or if the failed attempt was the trial of a half-open circuit.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    synchronized void onFailure(String bluetoothMacAddress) {
+        if (bluetoothMacAddress == null) {
+            return;
+        }
+
+        PeerRecord peerRecord = mPeerRecords.get(bluetoothMacAddress);
+
+        if (peerRecord == null) {
+            peerRecord = new PeerRecord();
+            mPeerRecords.put(bluetoothMacAddress, peerRecord);
+        }
+
+        peerRecord.mNumberOfConsecutiveFailures++;
+
+        if (peerRecord.mState == CircuitState.HALF_OPEN
+                || peerRecord.mNumberOfConsecutiveFailures >= mFailureThreshold) {
+            final long backoffTime = getBackoffTime(mBaseBackoffTimeInMilliseconds, mMaxBackoffTimeInMilliseconds,
+                    Math.max(peerRecord.mNumberOfConsecutiveFailures - mFailureThreshold, 0), mRandom);
+            peerRecord.mState = CircuitState.OPEN;
+            peerRecord.mOpenUntil = System.currentTimeMillis() + backoffTime;
+
+            Log.d(TAG, "onFailure: Opened the circuit of peer " + bluetoothMacAddress + " for "
+                    + backoffTime + " ms after " + peerRecord.mNumberOfConsecutiveFailures + " consecutive failures");
+        }
+    }
+
+    /**
+     * Records a cancelled attempt. A cancelled trial attempt does not count as a failure, but
+     * the next attempt becomes the trial instead.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    synchronized void onCancelled(String bluetoothMacAddress) {
+        PeerRecord peerRecord = getPeerRecord(bluetoothMacAddress);
+
+        if (peerRecord != null && peerRecord.mState == CircuitState.HALF_OPEN) {
+            peerRecord.mState = CircuitState.OPEN;
+            peerRecord.mOpenUntil = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The state of the circuit of the given peer.
+     */
+    synchronized CircuitState getState(String bluetoothMacAddress) {
+        PeerRecord peerRecord = getPeerRecord(bluetoothMacAddress);
+        return (peerRecord != null) ? peerRecord.mState : CircuitState.CLOSED;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The time left until the next attempt to the given peer is allowed in milliseconds.
+     * Zero, if an attempt is allowed now.
+     */
+    synchronized long getRemainingBackoffTime(String bluetoothMacAddress) {
+        PeerRecord peerRecord = getPeerRecord(bluetoothMacAddress);
+
+        if (peerRecord == null || peerRecord.mState != CircuitState.OPEN) {
+            return 0;
+        }
+
+        return Math.max(peerRecord.mOpenUntil - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * @return A report of the peers with failures, e.g.
+     * "01:02:03:04:05:06: OPEN, 4 consecutive failures, 3800 ms left". An empty string, if none.
+     */
+    synchronized String getReport() {
+        StringBuilder stringBuilder = new StringBuilder();
+        final long currentTime = System.currentTimeMillis();
+
+        for (Map.Entry<String, PeerRecord> entry : mPeerRecords.entrySet()) {
+            PeerRecord peerRecord = entry.getValue();
+
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append("; ");
+            }
+
+            stringBuilder.append(entry.getKey()).append(": ").append(peerRecord.mState).append(", ")
+                    .append(peerRecord.mNumberOfConsecutiveFailures).append(" consecutive failures");
+
+            if (peerRecord.mState == CircuitState.OPEN) {
+                stringBuilder.append(", ").append(Math.max(peerRecord.mOpenUntil - currentTime, 0)).append(" ms left");
+            }
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Forgets all the peers.
+     */
+    synchronized void clear() {
+        mPeerRecords.clear();
+    }
+
+    /**
+     * Calculates an exponential backoff time with jitter.
+     *
+     * @param baseBackoffTimeInMilliseconds The backoff time with the exponent zero.
+     * @param maxBackoffTimeInMilliseconds The maximum backoff time.
+     * @param exponent The exponent i.e. the number of times the base is doubled.
+     * @param random The random number generator for the jitter.
+     * @return The backoff time in milliseconds.
+     */
+    static long getBackoffTime(long baseBackoffTimeInMilliseconds, long maxBackoffTimeInMilliseconds,
+                               int exponent, Random random) {
+        long backoffTime = baseBackoffTimeInMilliseconds;
+
+        for (int i = 0; i < exponent && backoffTime < maxBackoffTimeInMilliseconds; i++) {
+            backoffTime *= 2;
+        }
+
+        backoffTime = Math.min(backoffTime, maxBackoffTimeInMilliseconds);
+        backoffTime += (long) ((random.nextDouble() * 2 - 1) * JITTER_FACTOR * backoffTime);
+        return Math.min(Math.max(backoffTime, 0), maxBackoffTimeInMilliseconds);
+    }
+
+    private PeerRecord getPeerRecord(String bluetoothMacAddress) {
+        return (bluetoothMacAddress != null) ? mPeerRecords.get(bluetoothMacAddress) : null;
+    }
+
+    /**
+     * The failure record of a peer.
+     */
+    private static class PeerRecord {
+        CircuitState mState = CircuitState.CLOSED;
+        int mNumberOfConsecutiveFailures = 0;
+        long mOpenUntil = 0;
+    }
+}
@@ -0,0 +1,159 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the insecure RFCOMM socket port (channel), which was last used to successfully
+ * connect to each peer (keyed by the Bluetooth MAC address), so that the next attempt to connect
+ * to the same peer can start with the strategy known to work.
+ *
+ * The ports are the ones used by BluetoothClientThread: -1 for the system decided port and a
+ * value greater than zero for a specific channel. The cache is persisted in the shared preferences
+ * so that it survives restarts.
+ */
+class PeerPortCache {
+    private static final String TAG = PeerPortCache.class.getName();
+    static final String KEY_PEER_PORTS = "peer_ports";
+    static final int MAX_NUMBER_OF_CACHED_PEERS = 64;
+    private static final String ENTRY_SEPARATOR = ",";
+    private static final String PORT_SEPARATOR = "=";
+    @SuppressWarnings("serial")
+    private final Map<String, Integer> mPeerPorts =
+            new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_NUMBER_OF_CACHED_PEERS;
+                }
+            };
+    private final SharedPreferences mSharedPreferences;
+
+    /**
+     * Constructor.
+     *
+     * @param preferences The shared preferences to persist the cache in. If null, the cache is
+     *                    kept in memory only.
+     */
+    PeerPortCache(SharedPreferences preferences) {
+        mSharedPreferences = preferences;
+        load();
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @param defaultPort The port to return, if none is cached for the given peer.
+     * @return The port that last worked with the given peer or the given default port.
+     */
+    synchronized int getPort(String bluetoothMacAddress, int defaultPort) {
+        Integer port = (bluetoothMacAddress != null) ? mPeerPorts.get(bluetoothMacAddress.toUpperCase()) : null;
+        return (port != null) ? port : defaultPort;
+    }
+
+    /**
+     * Stores the port that worked with the given peer. The shared preferences are only written,
+     * if the port changes.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @param port The port. Ignored, if zero (the rotating port is not a port as such).
+     */
+    synchronized void put(String bluetoothMacAddress, int port) {
+        if (bluetoothMacAddress == null || port == 0 || port < BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT) {
+            return;
+        }
+
+        Integer previousPort = mPeerPorts.put(bluetoothMacAddress.toUpperCase(), port);
+
+        if (previousPort == null || previousPort != port) {
+            Log.d(TAG, "put: Port " + previousPort + " -> " + port + " for peer " + bluetoothMacAddress);
+            save();
+        }
+    }
+
+    /**
+     * Forgets the port of the given peer e.g. when it no longer works.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    synchronized void remove(String bluetoothMacAddress) {
+        if (bluetoothMacAddress != null && mPeerPorts.remove(bluetoothMacAddress.toUpperCase()) != null) {
+            Log.d(TAG, "remove: Forgot the port of peer " + bluetoothMacAddress);
+            save();
+        }
+    }
+
+    /**
+     * @return The number of peers with a cached port.
+     */
+    synchronized int size() {
+        return mPeerPorts.size();
+    }
+
+    /**
+     * Forgets all the peers.
+     */
+    synchronized void clear() {
+        if (!mPeerPorts.isEmpty()) {
+            mPeerPorts.clear();
+            save();
+        }
+    }
+
+    /**
+     * Loads the cache from the shared preferences. The format is "MAC=port,MAC=port" with the
+     * least recently used peer first.
+     */
+    private void load() {
+        String peerPorts = (mSharedPreferences != null) ? mSharedPreferences.getString(KEY_PEER_PORTS, null) : null;
+
+        if (peerPorts == null || peerPorts.isEmpty()) {
+            return;
+        }
+
+        for (String entry : peerPorts.split(ENTRY_SEPARATOR)) {
+            int separatorIndex = entry.lastIndexOf(PORT_SEPARATOR);
+
+            if (separatorIndex > 0) {
+                try {
+                    int port = Integer.parseInt(entry.substring(separatorIndex + 1));
+
+                    if (port != 0 && port >= BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT) {
+                        mPeerPorts.put(entry.substring(0, separatorIndex).toUpperCase(), port);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "load: Ignoring an invalid entry: " + entry);
+                }
+            }
+        }
+
+        Log.d(TAG, "load: Loaded the ports of " + mPeerPorts.size() + " peer(s)");
+    }
+
+    /**
+     * Saves the cache to the shared preferences.
+     */
+    private void save() {
+        SharedPreferences.Editor editor = (mSharedPreferences != null) ? mSharedPreferences.edit() : null;
+
+        if (editor == null) {
+            return;
+        }
+
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (Map.Entry<String, Integer> entry : mPeerPorts.entrySet()) {
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append(ENTRY_SEPARATOR);
+            }
+
+            stringBuilder.append(entry.getKey()).append(PORT_SEPARATOR).append(entry.getValue());
+        }
+
+        editor.putString(KEY_PEER_PORTS, stringBuilder.toString());
+        editor.apply();
+    }
+}
@@ -0,0 +1,227 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+
+/**
+ * Decides the size of the receive buffer based on the sizes of the recent reads.
+ *
+ * The sizes of the last reads are kept in a rolling histogram with power of two buckets. If the
+ * reads keep filling the whole buffer, the buffer is doubled (up to the maximum size). Once the
+ * histogram is full of reads since the last decision, the buffer is shrunk to the smallest power
+ * of two, which would have fit the 90th percentile of the reads (but not below the minimum size).
+ * Thus, bulk transfers quickly get large buffers (fewer reads and callbacks per megabyte) while
+ * connections exchanging only small messages return to small buffers.
+ */
+public class AdaptiveBufferSizer {
+    private static final String TAG = AdaptiveBufferSizer.class.getName();
+    public static final int DEFAULT_MIN_BUFFER_SIZE_IN_BYTES = 256;
+    public static final int DEFAULT_MAX_BUFFER_SIZE_IN_BYTES = 64 * 1024;
+    private static final int WINDOW_SIZE_IN_READS = 16;
+    private static final int NUMBER_OF_FULL_READS_BEFORE_GROWING = 2;
+    private static final int PERCENTILE = 90;
+    private static final int NUMBER_OF_BUCKETS = 32;
+    private final int mMinBufferSizeInBytes;
+    private final int mMaxBufferSizeInBytes;
+    private final int[] mBucketCounts = new int[NUMBER_OF_BUCKETS];
+    private final int[] mRecentBuckets = new int[WINDOW_SIZE_IN_READS]; // Ring buffer of bucket indices
+    private int mNumberOfRecentReads = 0;
+    private int mNextRecentReadIndex = 0;
+    private int mNumberOfReadsSinceLastDecision = 0;
+    private int mNumberOfConsecutiveFullReads = 0;
+    private int mBufferSizeInBytes;
+    private long mNumberOfReads = 0;
+    private long mNumberOfBytesRead = 0;
+    private long mNumberOfTimesGrown = 0;
+    private long mNumberOfTimesShrunk = 0;
+    private int mLargestBufferSizeInBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param minBufferSizeInBytes The minimum buffer size.
+     * @param initialBufferSizeInBytes The initial buffer size. Clamped to the given bounds.
+     * @param maxBufferSizeInBytes The maximum buffer size.
+     * @throws IllegalArgumentException Thrown, if the bounds are not positive or the minimum is
+     * larger than the maximum.
+     */
+    public AdaptiveBufferSizer(int minBufferSizeInBytes, int initialBufferSizeInBytes, int maxBufferSizeInBytes)
+            throws IllegalArgumentException {
+        if (minBufferSizeInBytes <= 0 || maxBufferSizeInBytes < minBufferSizeInBytes) {
+            throw new IllegalArgumentException("Invalid buffer size bounds: "
+                    + minBufferSizeInBytes + " - " + maxBufferSizeInBytes);
+        }
+
+        mMinBufferSizeInBytes = minBufferSizeInBytes;
+        mMaxBufferSizeInBytes = maxBufferSizeInBytes;
+        mBufferSizeInBytes = clamp(initialBufferSizeInBytes);
+        mLargestBufferSizeInBytes = mBufferSizeInBytes;
+    }
+
+    /**
+     * @return The size of the buffer to use for the next read.
+     */
+    public synchronized int getBufferSize() {
+        return mBufferSizeInBytes;
+    }
+
+    public int getMinBufferSize() {
+        return mMinBufferSizeInBytes;
+    }
+
+    public int getMaxBufferSize() {
+        return mMaxBufferSizeInBytes;
+    }
+
+    /**
+     * Records the size of a read and adjusts the buffer size, if needed.
+     *
+     * @param numberOfBytesRead The number of bytes read.
+     * @param bufferSizeInBytes The size of the buffer the bytes were read to.
+     */
+    public synchronized void onRead(int numberOfBytesRead, int bufferSizeInBytes) {
+        if (numberOfBytesRead <= 0) {
+            return;
+        }
+
+        mNumberOfReads++;
+        mNumberOfBytesRead += numberOfBytesRead;
+        addToHistogram(numberOfBytesRead);
+        mNumberOfReadsSinceLastDecision++;
+
+        if (numberOfBytesRead >= bufferSizeInBytes) {
+            mNumberOfConsecutiveFullReads++;
+        } else {
+            mNumberOfConsecutiveFullReads = 0;
+        }
+
+        if (mNumberOfConsecutiveFullReads >= NUMBER_OF_FULL_READS_BEFORE_GROWING
+                && mBufferSizeInBytes < mMaxBufferSizeInBytes) {
+            setBufferSize(clamp((int) Math.min((long) mBufferSizeInBytes * 2, Integer.MAX_VALUE)));
+            mNumberOfTimesGrown++;
+        } else if (mNumberOfReadsSinceLastDecision >= WINDOW_SIZE_IN_READS
+                && mNumberOfConsecutiveFullReads == 0) {
+            int targetBufferSize = clamp(getBucketUpperBound(getPercentileBucket(PERCENTILE)));
+
+            if (targetBufferSize < mBufferSizeInBytes) {
+                setBufferSize(targetBufferSize);
+                mNumberOfTimesShrunk++;
+            } else {
+                mNumberOfReadsSinceLastDecision = 0;
+            }
+        }
+    }
+
+    /**
+     * @return The total number of reads recorded.
+     */
+    public synchronized long getNumberOfReads() {
+        return mNumberOfReads;
+    }
+
+    /**
+     * @return The total number of bytes read.
+     */
+    public synchronized long getNumberOfBytesRead() {
+        return mNumberOfBytesRead;
+    }
+
+    /**
+     * @return The number of times the buffer was grown.
+     */
+    public synchronized long getNumberOfTimesGrown() {
+        return mNumberOfTimesGrown;
+    }
+
+    /**
+     * @return The number of times the buffer was shrunk.
+     */
+    public synchronized long getNumberOfTimesShrunk() {
+        return mNumberOfTimesShrunk;
+    }
+
+    /**
+     * @return The largest buffer size used so far.
+     */
+    public synchronized int getLargestBufferSize() {
+        return mLargestBufferSizeInBytes;
+    }
+
+    /**
+     * @return A copy of the rolling histogram of the recent read sizes. The value at index i is
+     * the number of reads with size in (2^(i-1), 2^i] bytes.
+     */
+    public synchronized int[] getHistogram() {
+        return mBucketCounts.clone();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[buffer size: " + mBufferSizeInBytes + ", reads: " + mNumberOfReads
+                + ", bytes read: " + mNumberOfBytesRead + ", grown: " + mNumberOfTimesGrown
+                + ", shrunk: " + mNumberOfTimesShrunk + ", largest: " + mLargestBufferSizeInBytes + "]";
+    }
+
+    /**
+     * @param bucketIndex The bucket index.
+     * @return The largest read size falling into the given bucket.
+     */
+    private static int getBucketUpperBound(int bucketIndex) {
+        return (bucketIndex >= NUMBER_OF_BUCKETS - 1) ? Integer.MAX_VALUE : (1 << bucketIndex);
+    }
+
+    /**
+     * @param numberOfBytes The read size.
+     * @return The index of the bucket the given read size falls into.
+     */
+    private static int getBucketIndex(int numberOfBytes) {
+        return (numberOfBytes <= 1) ? 0 : (32 - Integer.numberOfLeadingZeros(numberOfBytes - 1));
+    }
+
+    private void addToHistogram(int numberOfBytes) {
+        if (mNumberOfRecentReads == WINDOW_SIZE_IN_READS) {
+            // Drop the oldest read
+            mBucketCounts[mRecentBuckets[mNextRecentReadIndex]]--;
+        } else {
+            mNumberOfRecentReads++;
+        }
+
+        final int bucketIndex = getBucketIndex(numberOfBytes);
+        mBucketCounts[bucketIndex]++;
+        mRecentBuckets[mNextRecentReadIndex] = bucketIndex;
+        mNextRecentReadIndex = (mNextRecentReadIndex + 1) % WINDOW_SIZE_IN_READS;
+    }
+
+    /**
+     * @param percentile The percentile (0-100).
+     * @return The index of the bucket containing the given percentile of the recent reads.
+     */
+    private int getPercentileBucket(int percentile) {
+        final int threshold = (mNumberOfRecentReads * percentile + 99) / 100;
+        int count = 0;
+
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            count += mBucketCounts[i];
+
+            if (count >= threshold) {
+                return i;
+            }
+        }
+
+        return NUMBER_OF_BUCKETS - 1;
+    }
+
+    private void setBufferSize(int bufferSizeInBytes) {
+        Log.v(TAG, "setBufferSize: " + mBufferSizeInBytes + " -> " + bufferSizeInBytes);
+        mBufferSizeInBytes = bufferSizeInBytes;
+        mLargestBufferSizeInBytes = Math.max(mLargestBufferSizeInBytes, bufferSizeInBytes);
+        mNumberOfReadsSinceLastDecision = 0;
+        mNumberOfConsecutiveFullReads = 0;
+    }
+
+    private int clamp(int bufferSizeInBytes) {
+        return Math.max(mMinBufferSizeInBytes, Math.min(mMaxBufferSizeInBytes, bufferSizeInBytes));
+    }
+}
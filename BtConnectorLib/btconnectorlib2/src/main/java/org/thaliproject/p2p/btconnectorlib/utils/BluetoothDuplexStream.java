@@ -0,0 +1,57 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A duplex stream over a Bluetooth socket.
+ */
+public class BluetoothDuplexStream implements DuplexStream {
+    private final BluetoothSocket mBluetoothSocket;
+
+    /**
+     * Constructor.
+     *
+     * @param bluetoothSocket A Bluetooth socket.
+     * @throws NullPointerException Thrown, if the socket is null.
+     */
+    public BluetoothDuplexStream(BluetoothSocket bluetoothSocket) throws NullPointerException {
+        if (bluetoothSocket == null) {
+            throw new NullPointerException("The Bluetooth socket is null");
+        }
+
+        mBluetoothSocket = bluetoothSocket;
+    }
+
+    /**
+     * @return The Bluetooth socket.
+     */
+    public BluetoothSocket getSocket() {
+        return mBluetoothSocket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mBluetoothSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mBluetoothSocket.getOutputStream();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mBluetoothSocket.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBluetoothSocket.close();
+    }
+}
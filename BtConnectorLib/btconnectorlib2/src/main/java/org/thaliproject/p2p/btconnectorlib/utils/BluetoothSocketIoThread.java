@@ -9,18 +9,29 @@ import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Thread for reading bytes from a Bluetooth socket and provides a method to write bytes to a socket.
  * This class is public, since the implementation is generic and can be utilized by client applications.
+ *
+ * The bytes can be written either synchronously with write() or asynchronously with enqueue(), in
+ * which case the bytes are written by a separate writer thread (see SocketWriterThread). The
+ * enqueued writes are written in the order of their priority class, and in the framed mode
+ * enqueueFrame() splits large bulk frames into slices so that other frames need not wait for the
+ * whole bulk frame to be written.
  */
-public class BluetoothSocketIoThread extends Thread {
+public class BluetoothSocketIoThread extends Thread implements SocketWriterThread.Listener {
     /**
      * Thread listener.
      */
     public interface Listener {
         /**
          * Called when bytes were successfully read.
+         * Note that the array is a pooled buffer, which is reused after the call. If the data is
+         * needed afterwards, it must either be copied or the buffer retained with retainReadBuffer().
          *
          * @param bytes The array of bytes read.
          * @param size The size of the array.
@@ -31,8 +42,9 @@ public class BluetoothSocketIoThread extends Thread {
         /**
          * Called when bytes were written successfully.
          *
-         * @param bytes The array of bytes written.
-         * @param size The size of the array.
+         * @param bytes The array of bytes written or null in case of a gather write (see
+         *              write(ByteBuffer...)).
+         * @param size The number of bytes written.
          * @param who The related BluetoothSocketIoThread instance.
          */
         void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who);
@@ -46,14 +58,77 @@ public class BluetoothSocketIoThread extends Thread {
         void onDisconnected(String reason, BluetoothSocketIoThread who);
     }
 
+    /**
+     * Listener for the framed mode.
+     */
+    public interface FrameListener {
+        /**
+         * Called when a complete frame was received.
+         * Note that the buffer is only valid for the duration of the call. If the data is needed
+         * afterwards, it must either be copied or the buffer retained with retainReadBuffer().
+         *
+         * @param frame The payload of the frame. The position of the buffer is zero and the limit
+         *              is the length of the payload.
+         * @param who The related BluetoothSocketIoThread instance.
+         */
+        void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who);
+    }
+
+    /**
+     * Listener for the flow control.
+     */
+    public interface WritabilityListener {
+        /**
+         * Called in the reading thread when the peer granted new credits after we had run out of
+         * them i.e. when isWritable() turns from false to true.
+         *
+         * @param who The related BluetoothSocketIoThread instance.
+         */
+        void onWritable(BluetoothSocketIoThread who);
+    }
+
     private static final String TAG = BluetoothSocketIoThread.class.getName();
     protected static final int DEFAULT_BUFFER_SIZE_IN_BYTES = 256;
-    private final BluetoothSocket mSocket;
+    private static final byte FRAME_TYPE_DATA = 0;
+    private static final byte FRAME_TYPE_CREDIT = 1;
+    private static final byte FRAME_TYPE_COMPRESSED_DATA = 2;
+    private static final byte FRAME_TYPE_PING = 3;
+    private static final byte FRAME_TYPE_PONG = 4;
+    private static final byte FRAME_TYPE_DATA_FRAGMENT = 5;
+    private static final byte FRAME_TYPE_LAST_DATA_FRAGMENT = 6;
+    private static final int CREDIT_FRAME_BODY_SIZE_IN_BYTES = 4;
+    private static final int PING_FRAME_BODY_SIZE_IN_BYTES = 8;
+    private static final int MIN_DECOMPRESSION_BUFFER_SIZE_IN_BYTES = 1024;
+    private static final int GATHER_WRITE_CHUNK_SIZE_IN_BYTES = 8 * 1024;
+    private final DuplexStream mDuplexStream;
     private final Listener mListener;
-    private final InputStream mInputStream;
+    private volatile InputStream mInputStream;
     private final OutputStream mOutputStream;
+    private final Object mOutputStreamLock = new Object();
+    private final AtomicLong mNumberOfBytesWritten = new AtomicLong();
+    private final SocketIoStatistics mStatistics = new SocketIoStatistics();
     private PeerProperties mPeerProperties;
+    private FrameListener mFrameListener = null;
+    private FrameCodec mFrameCodec = null;
+    private boolean mTypedFramingEnabled = false;
+    private FlowControlWindow mFlowControlWindow = null;
+    private WritabilityListener mWritabilityListener = null;
+    private FrameCompressor mFrameCompressor = null;
+    private KeepAlive mKeepAlive = null;
+    private boolean mConsumeOnReceive = true;
+    private String mFrameErrorMessage = null;
+    private ByteBufferPool mBufferPool = null;
+    private ByteBufferPool.Lease mCurrentReadBufferLease = null; // Valid while the listener is being notified
     private int mBufferSizeInBytes = DEFAULT_BUFFER_SIZE_IN_BYTES;
+    private AdaptiveBufferSizer mAdaptiveBufferSizer = null;
+    private int mMaxFrameSizeInBytes = FrameCodec.DEFAULT_MAX_FRAME_SIZE_IN_BYTES;
+    private SocketWriterThread mSocketWriterThread = null;
+    private SocketIoEngine mIoEngine = null;
+    private int mMaxNumberOfPendingWrites = SocketWriterThread.DEFAULT_MAX_NUMBER_OF_PENDING_WRITES;
+    private int mCoalescingBufferSizeInBytes = SocketWriterThread.DEFAULT_COALESCING_BUFFER_SIZE_IN_BYTES;
+    private int mWriteSliceSizeInBytes = SocketWriterThread.DEFAULT_SLICE_SIZE_IN_BYTES;
+    private ByteBufferPool.Lease mReassemblyBufferLease = null; // The fragments of the frame being received
+    private int mNumberOfReassembledBytes = 0;
     private boolean mExitThreadAfterRead = false;
     private boolean mIsShuttingDown = false;
 
@@ -67,29 +142,99 @@ public class BluetoothSocketIoThread extends Thread {
      */
     public BluetoothSocketIoThread(BluetoothSocket socket, Listener listener)
             throws NullPointerException, IOException {
-        if (socket == null || listener == null) {
-            throw new NullPointerException("Either the Bluetooth socket or the listener instance is null");
+        this((socket != null) ? new BluetoothDuplexStream(socket) : null, listener);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param duplexStream A connected duplex stream e.g. a pipe or a TCP socket (see DuplexStream).
+     * @param listener The listener.
+     * @throws NullPointerException Thrown, if either the listener or the duplex stream instance is null.
+     * @throws IOException Thrown in case of failure to get the input and the output streams.
+     */
+    public BluetoothSocketIoThread(DuplexStream duplexStream, Listener listener)
+            throws NullPointerException, IOException {
+        if (duplexStream == null || listener == null) {
+            throw new NullPointerException("Either the duplex stream or the listener instance is null");
         }
 
         mListener = listener;
-        mSocket = socket;
-        mInputStream = mSocket.getInputStream();
-        mOutputStream = mSocket.getOutputStream();
+        mDuplexStream = duplexStream;
+        mInputStream = mDuplexStream.getInputStream();
+        final OutputStream outputStream = mDuplexStream.getOutputStream();
+        mOutputStream = (outputStream != null) ? new InstrumentedOutputStream(outputStream, mStatistics) : null;
         mPeerProperties = new PeerProperties();
     }
 
+    /**
+     * @return The Bluetooth socket or null, if the thread runs on another kind of duplex stream.
+     */
     public BluetoothSocket getSocket() {
-        return mSocket;
+        return (mDuplexStream instanceof BluetoothDuplexStream)
+                ? ((BluetoothDuplexStream) mDuplexStream).getSocket() : null;
+    }
+
+    /**
+     * @return The duplex stream the thread reads and writes.
+     */
+    public DuplexStream getDuplexStream() {
+        return mDuplexStream;
     }
 
     public PeerProperties getPeerProperties() {
         return mPeerProperties;
     }
 
+    /**
+     * Sets the properties of the peer. If the peer wrote bytes right after its handshake message,
+     * which were read together with the handshake (see PeerProperties.getBufferedData()), and the
+     * properties are set before calling start(), those bytes are read before the bytes in the
+     * socket. To use the framing negotiated in the handshake, see applyNegotiatedFraming().
+     *
+     * @param peerProperties The peer properties.
+     */
     public void setPeerProperties(PeerProperties peerProperties) {
         mPeerProperties = peerProperties;
     }
 
+    /**
+     * Applies the framing and its features negotiated in the handshake: The typed framing, the
+     * compression and the flow control window are set as negotiated (see
+     * PeerProperties.isTypedFramingEnabled()), overriding the values set with their setters. A
+     * warning is logged for each feature set on, which the negotiation turns off.
+     * Note that this needs to be called before calling start(). Otherwise, it will have no effect.
+     *
+     * @param peerProperties The peer properties resolved in the handshake.
+     */
+    public void applyNegotiatedFraming(PeerProperties peerProperties) {
+        final int flowControlWindowSize = peerProperties.getFlowControlWindowSize();
+        final FlowControlWindow flowControlWindow = mFlowControlWindow;
+
+        if (mTypedFramingEnabled && !peerProperties.isTypedFramingEnabled()) {
+            Log.w(TAG, "applyNegotiatedFraming: The typed framing was not negotiated, turning it off");
+        }
+
+        if (isCompressionEnabled() && !peerProperties.isCompressionEnabled()) {
+            Log.w(TAG, "applyNegotiatedFraming: The compression was not negotiated, turning it off");
+        }
+
+        if (flowControlWindow != null && flowControlWindowSize <= 0) {
+            Log.w(TAG, "applyNegotiatedFraming: The flow control was not negotiated, turning it off");
+        }
+
+        setTypedFramingEnabled(peerProperties.isTypedFramingEnabled());
+        setCompressionEnabled(peerProperties.isCompressionEnabled());
+
+        if (flowControlWindow == null || flowControlWindow.getWindowSize() != flowControlWindowSize) {
+            setFlowControlWindowSize(flowControlWindowSize);
+        }
+
+        Log.d(TAG, "applyNegotiatedFraming: Typed framing: " + mTypedFramingEnabled
+                + ", compression: " + isCompressionEnabled()
+                + ", flow control window: " + flowControlWindowSize + " bytes (thread ID: " + getId() + ")");
+    }
+
     /**
      * Sets whether the thread should exit after a read() call or not.
      *
@@ -119,6 +264,325 @@ public class BluetoothSocketIoThread extends Thread {
         }
     }
 
+    /**
+     * Turns on the adaptive buffer sizing (see AdaptiveBufferSizer): The size of the read buffer
+     * follows the sizes of the recent reads within the given bounds, starting from the buffer size
+     * set with setBufferSize(). This reduces the number of reads and listener callbacks in bulk
+     * transfers without keeping large buffers for connections exchanging small messages.
+     * Note that the adaptive buffer sizing needs to be set before calling start(). Otherwise, it
+     * will have no effect.
+     *
+     * @param minBufferSizeInBytes The minimum buffer size in bytes.
+     * @param maxBufferSizeInBytes The maximum buffer size in bytes.
+     * @throws IllegalArgumentException Thrown, if the bounds are invalid.
+     */
+    public void setAdaptiveBufferSize(int minBufferSizeInBytes, int maxBufferSizeInBytes)
+            throws IllegalArgumentException {
+        mAdaptiveBufferSizer = new AdaptiveBufferSizer(
+                minBufferSizeInBytes, mBufferSizeInBytes, maxBufferSizeInBytes);
+    }
+
+    /**
+     * @return The adaptive buffer sizer, which also holds the sizing statistics, or null, if the
+     * adaptive buffer sizing is off.
+     */
+    public AdaptiveBufferSizer getAdaptiveBufferSizer() {
+        return mAdaptiveBufferSizer;
+    }
+
+    /**
+     * @return The pool the read buffers are leased from or null, if not set (in which case a pool
+     * private to this thread is created when the thread is started or a buffer is needed).
+     */
+    public ByteBufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Sets the pool to lease the read buffers from. Sharing one pool between several threads
+     * allows the buffers retained by the listener of one thread to be reused by the others.
+     * Note that the buffer pool needs to be set before calling start(). Otherwise, it will have no
+     * effect.
+     *
+     * @param bufferPool The buffer pool.
+     */
+    public void setBufferPool(ByteBufferPool bufferPool) {
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * Retains the buffer passed to the listener. This allows the listener to keep the bytes (or
+     * the frame) beyond the callback without copying them. Must only be called from within
+     * Listener.onBytesRead or FrameListener.onFrameReceived.
+     *
+     * @return A lease holding a reference to the buffer, which the caller must release once done
+     * with the bytes, or null, if not called during a callback.
+     */
+    public ByteBufferPool.Lease retainReadBuffer() {
+        ByteBufferPool.Lease lease = mCurrentReadBufferLease;
+
+        if (lease != null) {
+            // Raw mode or a decompressed frame
+            return lease.retain();
+        }
+
+        if (mFrameCodec != null) {
+            return mFrameCodec.retainCurrentFrameBuffer();
+        }
+
+        return null;
+    }
+
+    /**
+     * Sets the maximum number of writes waiting in the queue of the writer thread. Writes enqueued
+     * while the queue is full fail.
+     * Note that the value needs to be set before the first enqueue() call. Otherwise, it will have
+     * no effect.
+     *
+     * @param maxNumberOfPendingWrites The maximum number of pending writes.
+     */
+    public void setMaxNumberOfPendingWrites(int maxNumberOfPendingWrites) {
+        if (maxNumberOfPendingWrites > 0) {
+            mMaxNumberOfPendingWrites = maxNumberOfPendingWrites;
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes the writer thread coalesces into one write to the socket.
+     * Note that the value needs to be set before the first enqueue() call. Otherwise, it will have
+     * no effect.
+     *
+     * @param coalescingBufferSizeInBytes The coalescing buffer size in bytes.
+     */
+    public void setCoalescingBufferSize(int coalescingBufferSizeInBytes) {
+        if (coalescingBufferSizeInBytes > 0) {
+            mCoalescingBufferSizeInBytes = coalescingBufferSizeInBytes;
+        }
+    }
+
+    /**
+     * Sets the maximum number of payload bytes in one slice of a bulk frame written by the writer
+     * thread (see enqueueFrame()). The smaller the slice, the less the other frames wait behind a
+     * bulk frame, but the more writes to the socket a bulk frame takes.
+     * Note that the value needs to be set before the first enqueue() call. Otherwise, it will have
+     * no effect.
+     *
+     * @param writeSliceSizeInBytes The slice size in bytes.
+     */
+    public void setWriteSliceSize(int writeSliceSizeInBytes) {
+        if (writeSliceSizeInBytes > 0) {
+            mWriteSliceSizeInBytes = writeSliceSizeInBytes;
+        }
+    }
+
+    /**
+     * @return The writer thread or null, if nothing has been enqueued yet.
+     */
+    public SocketWriterThread getSocketWriterThread() {
+        return mSocketWriterThread;
+    }
+
+    /**
+     * Sets the frame listener. Setting a frame listener turns on the framed mode: The incoming
+     * bytes are expected to consist of length-prefixed frames (see FrameCodec) and instead of
+     * Listener.onBytesRead, FrameListener.onFrameReceived is called for each complete frame.
+     * Use writeFrame() to send frames to the peer.
+     *
+     * Note that the frame listener needs to be set before calling start(). Otherwise, it will have
+     * no effect.
+     *
+     * @param frameListener The frame listener or null to use the raw mode.
+     */
+    public void setFrameListener(FrameListener frameListener) {
+        mFrameListener = frameListener;
+    }
+
+    /**
+     * @return True, if the framed mode is on (a frame listener is set).
+     */
+    public boolean isFramed() {
+        return (mFrameListener != null);
+    }
+
+    /**
+     * @return The maximum payload size of an incoming frame in bytes.
+     */
+    public int getMaxFrameSize() {
+        return mMaxFrameSizeInBytes;
+    }
+
+    /**
+     * Sets the maximum payload size of an incoming frame. If the peer sends a larger frame, the
+     * frame is not reassembled, but the listener is notified that we got disconnected instead.
+     * Note that the maximum frame size needs to be set before calling start(). Otherwise, it will
+     * have no effect.
+     *
+     * @param maxFrameSizeInBytes The maximum frame size in bytes.
+     */
+    public void setMaxFrameSize(int maxFrameSizeInBytes) {
+        if (maxFrameSizeInBytes > 0) {
+            mMaxFrameSizeInBytes = maxFrameSizeInBytes;
+        }
+    }
+
+    /**
+     * @return True, if the typed framing is on.
+     */
+    public boolean isTypedFramingEnabled() {
+        return mTypedFramingEnabled;
+    }
+
+    /**
+     * Turns on the typed framing: The first byte of each frame is its type so that the control
+     * frames of the flow control, the compression and the keepalive can be told apart from the
+     * data frames. The typed framing requires the framed mode and both peers must use it, which
+     * is why it is typically negotiated in the handshake (see applyNegotiatedFraming()). If the
+     * typed framing is off, when started, those features are turned off with a warning.
+     * Note that the typed framing needs to be set before calling start(). Otherwise, it will have
+     * no effect.
+     *
+     * @param typedFramingEnabled If true, the frames are typed.
+     */
+    public void setTypedFramingEnabled(boolean typedFramingEnabled) {
+        mTypedFramingEnabled = typedFramingEnabled;
+    }
+
+    /**
+     * Turns on the credit-based flow control (see FlowControlWindow) with the given window size.
+     * The flow control requires the typed framing and both peers must use the same window size.
+     * When the flow control is on, writeFrame() fails, if we are out of credits (isWritable()
+     * returns false), and WritabilityListener.onWritable is called when the peer grants more.
+     * Note that the flow control needs to be set before calling start(). Otherwise, it will have
+     * no effect.
+     *
+     * @param windowSizeInBytes The window size in bytes or zero to turn off the flow control.
+     */
+    public void setFlowControlWindowSize(int windowSizeInBytes) {
+        if (windowSizeInBytes > 0) {
+            mFlowControlWindow = new FlowControlWindow(windowSizeInBytes);
+        } else {
+            mFlowControlWindow = null;
+        }
+    }
+
+    /**
+     * @return The flow control window or null, if the flow control is off.
+     */
+    public FlowControlWindow getFlowControlWindow() {
+        return mFlowControlWindow;
+    }
+
+    /**
+     * Turns on the per-frame compression (see FrameCompressor). The compression requires the
+     * typed framing and must be turned on by both peers, which is why it is typically turned on
+     * only, if it was negotiated in the handshake (see PeerProperties.isCompressionEnabled()). Frames
+     * that do not compress well are sent as is.
+     * Note that the compression needs to be set before calling start(). Otherwise, it will have
+     * no effect.
+     *
+     * @param compressionEnabled If true, will compress the frames.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        if (compressionEnabled && mFrameCompressor == null) {
+            mFrameCompressor = new FrameCompressor();
+        } else if (!compressionEnabled && mFrameCompressor != null) {
+            mFrameCompressor.end();
+            mFrameCompressor = null;
+        }
+    }
+
+    /**
+     * @return True, if the compression is on.
+     */
+    public boolean isCompressionEnabled() {
+        return (mFrameCompressor != null);
+    }
+
+    /**
+     * @return The frame compressor, which also holds the compression statistics, or null, if the
+     * compression is off.
+     */
+    public FrameCompressor getFrameCompressor() {
+        return mFrameCompressor;
+    }
+
+    /**
+     * Turns on the keepalive (see KeepAlive): The peer is pinged at the given interval and, if
+     * nothing is received from it in the given number of intervals, the connection is closed and
+     * Listener.onDisconnected is called without waiting for the socket to fail. The keepalive
+     * requires the typed framing, but the peer need not turn it on: The peer answers the pings
+     * regardless.
+     * Note that the keepalive needs to be set before calling start(). Otherwise, it will have no
+     * effect.
+     *
+     * @param intervalInMilliseconds The ping interval in milliseconds or zero to turn off the keepalive.
+     * @param maxNumberOfMissedIntervals The number of intervals without receiving anything after
+     *                                   which the peer is considered dead.
+     * @throws IllegalArgumentException Thrown, if the interval is positive, but the number of missed intervals is not.
+     */
+    public void setKeepAlive(long intervalInMilliseconds, int maxNumberOfMissedIntervals)
+            throws IllegalArgumentException {
+        if (intervalInMilliseconds > 0) {
+            mKeepAlive = new KeepAlive(intervalInMilliseconds, maxNumberOfMissedIntervals);
+        } else {
+            mKeepAlive = null;
+        }
+    }
+
+    /**
+     * @return The keepalive, which also holds the round-trip time of the connection, or null, if
+     * the keepalive is off.
+     */
+    public KeepAlive getKeepAlive() {
+        return mKeepAlive;
+    }
+
+    /**
+     * @param writabilityListener The listener notified when we can write frames again.
+     */
+    public void setWritabilityListener(WritabilityListener writabilityListener) {
+        mWritabilityListener = writabilityListener;
+    }
+
+    /**
+     * Sets whether the frames are considered consumed when FrameListener.onFrameReceived returns.
+     * If not, the application must call onBytesConsumed() once it has processed the frames, which
+     * allows it to hold on to the received frames without letting the peer send more than the
+     * window size.
+     *
+     * @param consumeOnReceive If true, the frames are consumed when received (the default).
+     */
+    public void setConsumeOnReceive(boolean consumeOnReceive) {
+        mConsumeOnReceive = consumeOnReceive;
+    }
+
+    /**
+     * @return True, if we can write frames i.e. the flow control is off or we have credits left.
+     */
+    public boolean isWritable() {
+        FlowControlWindow flowControlWindow = mFlowControlWindow;
+        return (flowControlWindow == null || flowControlWindow.isWritable());
+    }
+
+    /**
+     * Reports that the application has consumed the given number of received payload bytes. The
+     * consumed bytes are granted back to the peer as credits. Only needed, if the frames are not
+     * consumed when received (see setConsumeOnReceive()).
+     *
+     * @param numberOfBytes The number of payload bytes consumed.
+     */
+    public void onBytesConsumed(int numberOfBytes) {
+        FlowControlWindow flowControlWindow = mFlowControlWindow;
+
+        if (flowControlWindow != null && numberOfBytes > 0) {
+            int numberOfCreditsToGrant = flowControlWindow.onBytesConsumed(numberOfBytes);
+
+            if (numberOfCreditsToGrant > 0) {
+                writeCreditFrame(numberOfCreditsToGrant);
+            }
+        }
+    }
+
     /**
      * From Thread.
      *
@@ -128,31 +592,118 @@ public class BluetoothSocketIoThread extends Thread {
     @Override
     public void run() {
         Log.d(TAG, "Entering thread (ID: " + getId() + ")");
-        byte[] buffer = new byte[mBufferSizeInBytes];
-        int numberOfBytesRead = 0;
+        prepareToRead();
 
         while (!mIsShuttingDown) {
-            try {
-                numberOfBytesRead = mInputStream.read(buffer); // Blocking call
-            } catch (IOException e) {
-                if (!mIsShuttingDown) {
-                    Log.d(TAG, "Disconnected: " + e.getMessage());
-                    mListener.onDisconnected(e.getMessage(), this);
+            if (!readOnce(0) || mExitThreadAfterRead) {
+                break;
+            }
+        }
+
+        finishReading();
+        Log.d(TAG, "Exiting thread (ID: " + getId() + ")");
+    }
+
+    /**
+     * Starts reading the socket using the given I/O engine instead of a dedicated thread. Apart
+     * from the thread the callbacks are called in, the behavior is the same as with start(): The
+     * listeners are notified in the same way and the socket is read until closed or disconnected
+     * (unless set to exit after one read). This instance must not be started as a thread as well.
+     *
+     * The stream stays connected after the peer has closed it, so a peer gone silent is detected
+     * by the keepalive, if on (see setKeepAlive()). Otherwise the engine may probe the idle socket
+     * with a blocking read of one byte (see SocketIoEngine).
+     *
+     * @param ioEngine The I/O engine.
+     * @throws IllegalStateException Thrown, if already started or if the engine has been shut down.
+     */
+    public synchronized void start(SocketIoEngine ioEngine) throws IllegalStateException {
+        if (mIoEngine != null || getState() != State.NEW) {
+            throw new IllegalStateException("Already started");
+        }
+
+        mIoEngine = ioEngine;
+        prepareToRead();
+
+        if (mInputStream != null) {
+            // Lets the probe put back the byte it read
+            mInputStream = new PushbackInputStream(mInputStream, 1);
+        }
+
+        Log.d(TAG, "start: Reading using the I/O engine (thread ID: " + getId() + ")");
+
+        ioEngine.register(new SocketIoEngine.Selectable() {
+            @Override
+            public int poll() throws IOException {
+                if (mIsShuttingDown) {
+                    return -1;
                 }
 
-                break;
+                int numberOfBytesAvailable = mInputStream.available();
+
+                if (numberOfBytesAvailable == 0 && !mDuplexStream.isConnected()) {
+                    return -1;
+                }
+
+                return numberOfBytesAvailable;
             }
 
-            if (numberOfBytesRead > 0) {
-                mListener.onBytesRead(buffer, numberOfBytesRead, this);
+            @Override
+            public int probe() throws IOException {
+                final PushbackInputStream inputStream = (PushbackInputStream) mInputStream;
+
+                if (mIsShuttingDown || inputStream == null) {
+                    return -1;
+                }
+
+                int nextByte = inputStream.read(); // Blocking call
+
+                if (nextByte < 0) {
+                    return -1;
+                }
+
+                inputStream.unread(nextByte);
+                return Math.max(inputStream.available(), 1);
             }
 
-            if (mExitThreadAfterRead) {
-                break;
+            @Override
+            public boolean isProbeNeeded() {
+                // The keepalive closes the socket, if the peer is gone
+                return (mKeepAlive == null || mFrameCodec == null);
             }
-        }
 
-        Log.d(TAG, "Exiting thread (ID: " + getId() + ")");
+            @Override
+            public boolean onReadable(int numberOfBytesAvailable) {
+                boolean keepReading;
+
+                if (numberOfBytesAvailable < 0) {
+                    if (!mIsShuttingDown) {
+                        Log.d(TAG, "Disconnected: End of stream");
+                        mListener.onDisconnected("End of stream", BluetoothSocketIoThread.this);
+                    }
+
+                    keepReading = false;
+                } else {
+                    keepReading = readOnce(numberOfBytesAvailable) && !mExitThreadAfterRead && !mIsShuttingDown;
+                }
+
+                if (!keepReading) {
+                    finishReading();
+                }
+
+                return keepReading;
+            }
+
+            @Override
+            public void onPollFailed(IOException e) {
+                if (!mIsShuttingDown) {
+                    Log.d(TAG, "Disconnected: " + e.getMessage());
+                    mListener.onDisconnected(e.getMessage(), BluetoothSocketIoThread.this);
+                }
+
+                finishReading();
+            }
+        });
     }
 
     /**
@@ -166,7 +717,10 @@ public class BluetoothSocketIoThread extends Thread {
 
         if (mOutputStream != null) {
             try {
-                mOutputStream.write(bytes);
+                synchronized (mOutputStreamLock) {
+                    mOutputStream.write(bytes);
+                }
+
                 wasSuccessful = true;
             } catch (IOException e) {
                 if (!mIsShuttingDown) {
@@ -178,33 +732,321 @@ public class BluetoothSocketIoThread extends Thread {
         }
 
         if (wasSuccessful) {
-            mListener.onBytesWritten(bytes, bytes.length, this);
+            notifyBytesWritten(bytes, bytes.length);
         }
 
         return wasSuccessful;
     }
 
     /**
-     * Closes, if requested, the input and output streams and the socket.
-     * Note that after calling this method, this instance is no longer in valid state and must be
-     * disposed of.
+     * Writes the remaining bytes of the given buffers, in order, to the output stream of the
+     * socket as one atomic write with regard to the other writes. The bytes of the heap buffers
+     * are written directly from their backing arrays. The bytes of the direct buffers (including
+     * memory-mapped files) are copied to the stream in chunks through a pooled buffer, since the
+     * stream only accepts arrays. If the total amount is small, the buffers are coalesced into one
+     * stream write. The positions of the buffers are not changed.
      *
-     * @param closeStreams If true, will close the input and output streams.
-     * @param closeSocket If true, will close the socket. Otherwise only the streams are closed.
+     * Listener.onBytesWritten is called once with null bytes and the total number of bytes.
+     *
+     * @param buffers The buffers to write.
+     * @return True, if all the bytes were written successfully. False otherwise.
+     * @throws NullPointerException Thrown, if the array of buffers or any of the buffers is null.
      */
-    public synchronized void close(boolean closeStreams, boolean closeSocket) {
-        mIsShuttingDown = true;
+    public boolean write(ByteBuffer... buffers) throws NullPointerException {
+        long totalNumberOfBytes = 0;
 
-        if (closeStreams) {
-            if (mInputStream != null) {
-                try {
-                    mInputStream.close();
-                } catch (IOException e) {
-                    Log.w(TAG, "Failed to close the input stream: " + e.getMessage() + " (thread ID: " + getId() + ")");
-                }
-            }
+        for (ByteBuffer buffer : buffers) {
+            totalNumberOfBytes += buffer.remaining();
+        }
 
-            if (mOutputStream != null) {
+        boolean wasSuccessful = false;
+
+        if (mOutputStream != null) {
+            try {
+                writeBuffers(buffers, totalNumberOfBytes);
+                wasSuccessful = true;
+            } catch (IOException e) {
+                if (!mIsShuttingDown) {
+                    Log.e(TAG, "write: Failed to write to output stream: " + e.getMessage(), e);
+                }
+            }
+        } else {
+            Log.e(TAG, "write: No output stream!");
+        }
+
+        if (wasSuccessful) {
+            notifyBytesWritten(null, totalNumberOfBytes);
+        }
+
+        return wasSuccessful;
+    }
+
+    /**
+     * @return The I/O statistics of the socket. Can be read at any time.
+     */
+    public SocketIoStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * @return The total number of bytes reported as written to the listener i.e. the number of
+     * payload bytes written with any of the write methods.
+     */
+    public long getNumberOfBytesWritten() {
+        return mNumberOfBytesWritten.get();
+    }
+
+    /**
+     * Writes the given bytes as one frame to the output stream of the socket. The frame is
+     * prefixed with the length of the payload (see FrameCodec). If the compression is on, the
+     * payload is compressed, if it pays off.
+     *
+     * @param bytes The payload of the frame.
+     * @return True, if the frame was written successfully. False otherwise e.g. if the flow
+     * control is on and we are out of credits.
+     */
+    public boolean writeFrame(byte[] bytes) {
+        boolean wasSuccessful = false;
+
+        FlowControlWindow flowControlWindow = mFlowControlWindow;
+
+        if (flowControlWindow != null && !flowControlWindow.tryConsumeSendCredits(bytes.length)) {
+            Log.d(TAG, "writeFrame: Out of credits, cannot write " + bytes.length + " bytes");
+            return false;
+        }
+
+        if (mOutputStream != null) {
+            try {
+                final FrameCompressor frameCompressor = mFrameCompressor;
+                final byte[] compressedBlock = (frameCompressor != null)
+                        ? frameCompressor.compress(bytes, 0, bytes.length) : null;
+                byte[] frame;
+
+                if (compressedBlock != null) {
+                    frame = FrameCodec.encode(FRAME_TYPE_COMPRESSED_DATA, compressedBlock, 0, compressedBlock.length);
+                } else if (isTypedFramed()) {
+                    frame = FrameCodec.encode(FRAME_TYPE_DATA, bytes, 0, bytes.length);
+                } else {
+                    frame = FrameCodec.encode(bytes);
+                }
+
+                synchronized (mOutputStreamLock) {
+                    mOutputStream.write(frame);
+                }
+
+                wasSuccessful = true;
+            } catch (IOException e) {
+                if (!mIsShuttingDown) {
+                    Log.e(TAG, "writeFrame: Failed to write to output stream: " + e.getMessage(), e);
+                }
+            }
+        } else {
+            Log.e(TAG, "writeFrame: No output stream!");
+        }
+
+        if (wasSuccessful) {
+            notifyBytesWritten(bytes, bytes.length);
+        }
+
+        return wasSuccessful;
+    }
+
+    /**
+     * Writes one frame, whose payload consists of the remaining bytes of the given buffers, to the
+     * output stream of the socket. Unlike writeFrame(byte[]), the payload is not copied to a new
+     * array, but written as a gather write (see write(ByteBuffer...)), which makes this suitable
+     * for large payloads such as file chunks. The payload is never compressed. The positions of
+     * the buffers are not changed.
+     *
+     * Listener.onBytesWritten is called once with null bytes and the payload length.
+     *
+     * @param payloadParts The buffers containing the parts of the payload.
+     * @return True, if the frame was written successfully. False otherwise e.g. if the flow
+     * control is on and we are out of credits.
+     * @throws NullPointerException Thrown, if the array of buffers or any of the buffers is null.
+     * @throws IllegalArgumentException Thrown, if the payload is larger than a frame can be.
+     */
+    public boolean writeFrame(ByteBuffer... payloadParts)
+            throws NullPointerException, IllegalArgumentException {
+        long payloadLength = 0;
+
+        for (ByteBuffer payloadPart : payloadParts) {
+            payloadLength += payloadPart.remaining();
+        }
+
+        if (payloadLength >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The payload is too large: " + payloadLength);
+        }
+
+        FlowControlWindow flowControlWindow = mFlowControlWindow;
+
+        if (flowControlWindow != null && !flowControlWindow.tryConsumeSendCredits((int) payloadLength)) {
+            Log.d(TAG, "writeFrame: Out of credits, cannot write " + payloadLength + " bytes");
+            return false;
+        }
+
+        boolean wasSuccessful = false;
+
+        if (mOutputStream != null) {
+            byte[] header = encodeDataFrameHeader((int) payloadLength, isTypedFramed(), true, true);
+            ByteBuffer[] buffers = new ByteBuffer[payloadParts.length + 1];
+            buffers[0] = ByteBuffer.wrap(header);
+            System.arraycopy(payloadParts, 0, buffers, 1, payloadParts.length);
+
+            try {
+                writeBuffers(buffers, header.length + payloadLength);
+                wasSuccessful = true;
+            } catch (IOException e) {
+                if (!mIsShuttingDown) {
+                    Log.e(TAG, "writeFrame: Failed to write to output stream: " + e.getMessage(), e);
+                }
+            }
+        } else {
+            Log.e(TAG, "writeFrame: No output stream!");
+        }
+
+        if (wasSuccessful) {
+            notifyBytesWritten(null, payloadLength);
+        }
+
+        return wasSuccessful;
+    }
+
+    /**
+     * Enqueues the given bytes to be written to the output stream of the socket by the writer
+     * thread. Small pending writes are coalesced into one write. Listener.onBytesWritten is called
+     * in the writer thread for each successful write.
+     * Note that the array must not be modified until the write is completed.
+     *
+     * @param bytes The bytes to write.
+     * @return The write request, which can be used to wait for the write to complete.
+     */
+    public SocketWriterThread.WriteRequest enqueue(byte[] bytes) {
+        return getOrCreateSocketWriterThread().enqueue(bytes);
+    }
+
+    /**
+     * Enqueues the remaining bytes of the given buffer to be written to the output stream of the
+     * socket by the writer thread. See enqueue(byte[]).
+     *
+     * @param byteBuffer The buffer containing the bytes to write.
+     * @return The write request, which can be used to wait for the write to complete.
+     */
+    public SocketWriterThread.WriteRequest enqueue(ByteBuffer byteBuffer) {
+        return getOrCreateSocketWriterThread().enqueue(byteBuffer);
+    }
+
+    /**
+     * Enqueues the given bytes to be written by the writer thread with the given priority. The
+     * pending writes of a higher priority class are written first. See enqueue(byte[]).
+     *
+     * @param bytes The bytes to write.
+     * @param priority The priority class.
+     * @return The write request, which can be used to wait for the write to complete.
+     */
+    public SocketWriterThread.WriteRequest enqueue(byte[] bytes, SocketWriterThread.Priority priority) {
+        return getOrCreateSocketWriterThread().enqueue(bytes, priority);
+    }
+
+    /**
+     * Enqueues the given payload to be written as one frame by the writer thread with the given
+     * priority. The pending frames of a higher priority class are written first. If the frames are
+     * typed (e.g. the flow control is on), a bulk frame larger than the slice size (see
+     * setWriteSliceSize()) is written in slices, which the peer reassembles, and the control and
+     * interactive frames enqueued meanwhile are written between the slices. The payload is never
+     * compressed. Listener.onBytesWritten is called in the writer thread with the payload.
+     * Note that the array must not be modified until the write is completed.
+     *
+     * @param payload The payload of the frame.
+     * @param priority The priority class.
+     * @return The write request, which can be used to wait for the write to complete. If the flow
+     * control is on and we are out of credits, the returned request has already failed.
+     */
+    public SocketWriterThread.WriteRequest enqueueFrame(byte[] payload, SocketWriterThread.Priority priority) {
+        FlowControlWindow flowControlWindow = mFlowControlWindow;
+
+        if (flowControlWindow != null && !flowControlWindow.tryConsumeSendCredits(payload.length)) {
+            Log.d(TAG, "enqueueFrame: Out of credits, cannot write " + payload.length + " bytes");
+            SocketWriterThread.WriteRequest failedWriteRequest =
+                    new SocketWriterThread.WriteRequest(payload, 0, payload.length);
+            failedWriteRequest.complete(false);
+            return failedWriteRequest;
+        }
+
+        final boolean isTypedFramed = isTypedFramed();
+
+        return getOrCreateSocketWriterThread().enqueueFrame(payload, priority,
+                new SocketWriterThread.FrameHeaderEncoder() {
+                    @Override
+                    public byte[] encodeHeader(int sliceLength, boolean isFirstSlice, boolean isLastSlice) {
+                        return encodeDataFrameHeader(sliceLength, isTypedFramed, isFirstSlice, isLastSlice);
+                    }
+                }, isTypedFramed);
+    }
+
+    /**
+     * From SocketWriterThread.Listener
+     *
+     * Notifies the listener about a successful write.
+     *
+     * @param writeRequest The completed write.
+     * @param wasSuccessful True, if the bytes were written successfully. False otherwise.
+     */
+    @Override
+    public void onWriteCompleted(SocketWriterThread.WriteRequest writeRequest, boolean wasSuccessful) {
+        if (writeRequest.isProtocolWrite()) {
+            // The control frames are not reported to the listener
+            if (!wasSuccessful && !mIsShuttingDown) {
+                Log.e(TAG, "onWriteCompleted: Failed to write a control frame (thread ID: " + getId() + ")");
+            }
+        } else if (wasSuccessful) {
+            byte[] bytes = writeRequest.getBytes();
+
+            if (writeRequest.getOffset() != 0 || writeRequest.getLength() != bytes.length) {
+                bytes = new byte[writeRequest.getLength()];
+                System.arraycopy(writeRequest.getBytes(), writeRequest.getOffset(), bytes, 0, bytes.length);
+            }
+
+            notifyBytesWritten(bytes, bytes.length);
+        } else if (!mIsShuttingDown) {
+            Log.e(TAG, "onWriteCompleted: Failed to write " + writeRequest.getLength()
+                    + " bytes (thread ID: " + getId() + ")");
+        }
+    }
+
+    /**
+     * Closes, if requested, the input and output streams and the socket.
+     * Note that after calling this method, this instance is no longer in valid state and must be
+     * disposed of.
+     *
+     * @param closeStreams If true, will close the input and output streams.
+     * @param closeSocket If true, will close the socket. Otherwise only the streams are closed.
+     */
+    public synchronized void close(boolean closeStreams, boolean closeSocket) {
+        mIsShuttingDown = true;
+
+        if (mKeepAlive != null) {
+            mKeepAlive.stop();
+        }
+
+        if (mSocketWriterThread != null) {
+            mSocketWriterThread.shutdown();
+        }
+
+        if (mFrameCompressor != null) {
+            mFrameCompressor.end();
+        }
+
+        if (closeStreams) {
+            if (mInputStream != null) {
+                try {
+                    mInputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close the input stream: " + e.getMessage() + " (thread ID: " + getId() + ")");
+                }
+            }
+
+            if (mOutputStream != null) {
                 try {
                     mOutputStream.close();
                 } catch (IOException e) {
@@ -213,12 +1055,644 @@ public class BluetoothSocketIoThread extends Thread {
             }
         }
 
-        if (closeSocket && mSocket != null) {
+        if (closeSocket) {
             try {
-                mSocket.close();
+                mDuplexStream.close();
             } catch (IOException e) {
                 Log.w(TAG, "Failed to close the socket: " + e.getMessage() + " (thread ID: " + getId() + ")");
             }
         }
     }
+
+    /**
+     * Creates and starts the writer thread, if not created already.
+     *
+     * @return The writer thread.
+     */
+    private synchronized SocketWriterThread getOrCreateSocketWriterThread() {
+        if (mSocketWriterThread == null) {
+            mSocketWriterThread = new SocketWriterThread(mOutputStream, mOutputStreamLock, this,
+                    mMaxNumberOfPendingWrites, mCoalescingBufferSizeInBytes, mWriteSliceSizeInBytes);
+
+            if (mIsShuttingDown) {
+                mSocketWriterThread.shutdown();
+            } else {
+                mSocketWriterThread.start();
+            }
+        }
+
+        return mSocketWriterThread;
+    }
+
+    /**
+     * @return The buffer pool. Created, if not set.
+     */
+    private synchronized ByteBufferPool getOrCreateBufferPool() {
+        if (mBufferPool == null) {
+            mBufferPool = new ByteBufferPool();
+        }
+
+        return mBufferPool;
+    }
+
+    /**
+     * Accounts for the written bytes and notifies the listener.
+     *
+     * @param bytes The bytes written or null in case of a gather write.
+     * @param numberOfBytes The number of bytes written.
+     */
+    private void notifyBytesWritten(byte[] bytes, long numberOfBytes) {
+        mNumberOfBytesWritten.addAndGet(numberOfBytes);
+        mListener.onBytesWritten(bytes, (int) Math.min(numberOfBytes, Integer.MAX_VALUE), this);
+    }
+
+    /**
+     * Creates the resources needed for reading.
+     */
+    private void prepareToRead() {
+        getOrCreateBufferPool();
+        final PeerProperties peerProperties = mPeerProperties;
+
+        if (!mTypedFramingEnabled) {
+            // The peer would take the control frames for data
+            if (mFlowControlWindow != null) {
+                Log.w(TAG, "prepareToRead: The flow control requires the typed framing, which is off, turning it off");
+                setFlowControlWindowSize(0);
+            }
+
+            if (mFrameCompressor != null) {
+                Log.w(TAG, "prepareToRead: The compression requires the typed framing, which is off, turning it off");
+                setCompressionEnabled(false);
+            }
+
+            if (mKeepAlive != null) {
+                Log.w(TAG, "prepareToRead: The keepalive requires the typed framing, which is off, turning it off");
+                setKeepAlive(0, 0);
+            }
+        }
+        final byte[] bufferedData = (peerProperties != null) ? peerProperties.getBufferedData() : null;
+
+        if (bufferedData != null && bufferedData.length > 0 && mInputStream != null) {
+            // The bytes read together with the handshake precede the ones in the socket
+            PushbackInputStream inputStream = new PushbackInputStream(mInputStream, bufferedData.length);
+
+            try {
+                inputStream.unread(bufferedData);
+                mInputStream = inputStream;
+                peerProperties.setBufferedData(null);
+            } catch (IOException e) {
+                Log.e(TAG, "prepareToRead: Failed to buffer the data read with the handshake: " + e.getMessage());
+            }
+        }
+
+        if (mFrameListener != null && mFrameCodec == null) {
+            mFrameCodec = new FrameCodec(new FrameCodec.Listener() {
+                @Override
+                public void onFrameDecoded(ByteBuffer frame) {
+                    handleFrame(frame);
+                }
+            }, mMaxFrameSizeInBytes, mBufferPool);
+        }
+
+        final KeepAlive keepAlive = mKeepAlive;
+
+        if (keepAlive != null && mFrameCodec != null) {
+            keepAlive.start(new KeepAlive.Callback() {
+                @Override
+                public void sendPing(long pingTimeInNanoseconds) throws IOException {
+                    writeControlFrame(FRAME_TYPE_PING,
+                            ByteBuffer.allocate(PING_FRAME_BODY_SIZE_IN_BYTES).putLong(pingTimeInNanoseconds).array());
+                }
+
+                @Override
+                public void onTimeout(String reason) {
+                    onKeepAliveTimeout(reason);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the input stream once and passes the bytes read to the listener.
+     *
+     * @param maxNumberOfBytesToRead The maximum number of bytes to read or zero, if the read
+     *                               should fill the buffer (and block until there is data).
+     * @return True, if the reading should continue. False, if disconnected or the decoding failed.
+     */
+    private boolean readOnce(int maxNumberOfBytesToRead) {
+        int numberOfBytesRead;
+
+        // Lease a buffer for each read so that the listener can retain the previous one
+        final int bufferSize = (mAdaptiveBufferSizer != null)
+                ? mAdaptiveBufferSizer.getBufferSize() : mBufferSizeInBytes;
+        ByteBufferPool.Lease lease = mBufferPool.lease(bufferSize);
+
+        try {
+            try {
+                numberOfBytesRead = (maxNumberOfBytesToRead > 0)
+                        ? mInputStream.read(lease.array(), 0, Math.min(maxNumberOfBytesToRead, bufferSize))
+                        : mInputStream.read(lease.array()); // Blocking call
+            } catch (IOException e) {
+                if (!mIsShuttingDown) {
+                    Log.d(TAG, "Disconnected: " + e.getMessage());
+                    mListener.onDisconnected(e.getMessage(), this);
+                }
+
+                return false;
+            }
+
+            if (numberOfBytesRead < 0) {
+                if (!mIsShuttingDown) {
+                    Log.d(TAG, "Disconnected: End of stream");
+                    mListener.onDisconnected("End of stream", this);
+                }
+
+                return false;
+            }
+
+            if (numberOfBytesRead > 0) {
+                mStatistics.onRead(numberOfBytesRead);
+
+                if (mKeepAlive != null) {
+                    // Any bytes count, even if they do not complete a frame yet
+                    mKeepAlive.onActivity();
+                }
+
+                if (mAdaptiveBufferSizer != null) {
+                    mAdaptiveBufferSizer.onRead(numberOfBytesRead, bufferSize);
+                }
+
+                if (mFrameCodec != null) {
+                    try {
+                        mFrameCodec.decode(lease, 0, numberOfBytesRead);
+
+                        if (mFrameErrorMessage != null) {
+                            throw new IOException(mFrameErrorMessage);
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to decode a frame: " + e.getMessage() + " (thread ID: " + getId() + ")");
+
+                        if (!mIsShuttingDown) {
+                            mListener.onDisconnected(e.getMessage(), this);
+                        }
+
+                        return false;
+                    }
+                } else {
+                    mCurrentReadBufferLease = lease;
+
+                    try {
+                        mListener.onBytesRead(lease.array(), numberOfBytesRead, this);
+                    } finally {
+                        mCurrentReadBufferLease = null;
+                    }
+                }
+            }
+        } finally {
+            lease.release();
+        }
+
+        return true;
+    }
+
+    /**
+     * Releases the resources needed for reading.
+     */
+    private void finishReading() {
+        if (mReassemblyBufferLease != null) {
+            mReassemblyBufferLease.release();
+            mReassemblyBufferLease = null;
+        }
+
+        if (mKeepAlive != null) {
+            mKeepAlive.stop();
+            Log.d(TAG, "Keepalive: " + mKeepAlive + " (thread ID: " + getId() + ")");
+        }
+
+        if (mFrameCodec != null) {
+            mFrameCodec.release();
+        }
+
+        if (mAdaptiveBufferSizer != null) {
+            Log.d(TAG, "Adaptive buffer sizing: " + mAdaptiveBufferSizer + " (thread ID: " + getId() + ")");
+        }
+
+        Log.d(TAG, "I/O statistics: " + mStatistics + " (thread ID: " + getId() + ")");
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffers to the output stream as one atomic write.
+     * See write(ByteBuffer...).
+     *
+     * @param buffers The buffers to write.
+     * @param totalNumberOfBytes The total number of remaining bytes in the buffers.
+     * @throws IOException Thrown, if the write failed.
+     */
+    private void writeBuffers(ByteBuffer[] buffers, long totalNumberOfBytes) throws IOException {
+        ByteBufferPool.Lease chunkLease = null;
+
+        try {
+            synchronized (mOutputStreamLock) {
+                if (buffers.length > 1 && totalNumberOfBytes <= GATHER_WRITE_CHUNK_SIZE_IN_BYTES) {
+                    // Cheaper to copy a few small buffers than to write each of them separately
+                    chunkLease = getOrCreateBufferPool().lease(GATHER_WRITE_CHUNK_SIZE_IN_BYTES);
+                    int length = 0;
+
+                    for (ByteBuffer buffer : buffers) {
+                        final int remaining = buffer.remaining();
+                        buffer.duplicate().get(chunkLease.array(), length, remaining);
+                        length += remaining;
+                    }
+
+                    mOutputStream.write(chunkLease.array(), 0, length);
+                } else {
+                    for (ByteBuffer buffer : buffers) {
+                        if (buffer.hasArray()) {
+                            mOutputStream.write(buffer.array(),
+                                    buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                        } else if (buffer.hasRemaining()) {
+                            if (chunkLease == null) {
+                                chunkLease = getOrCreateBufferPool().lease(GATHER_WRITE_CHUNK_SIZE_IN_BYTES);
+                            }
+
+                            ByteBuffer source = buffer.duplicate();
+
+                            while (source.hasRemaining()) {
+                                final int length = Math.min(source.remaining(), GATHER_WRITE_CHUNK_SIZE_IN_BYTES);
+                                source.get(chunkLease.array(), 0, length);
+                                mOutputStream.write(chunkLease.array(), 0, length);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (chunkLease != null) {
+                chunkLease.release();
+            }
+        }
+    }
+
+    /**
+     * @return True, if the frames are typed (see setTypedFramingEnabled()).
+     */
+    private boolean isTypedFramed() {
+        return mTypedFramingEnabled;
+    }
+
+    /**
+     * Handles a decoded frame. If the frames are typed (see isTypedFramed()), the first byte of the
+     * frame is its type and only the data frames are passed to the frame listener.
+     *
+     * @param frame The decoded frame.
+     */
+    private void handleFrame(ByteBuffer frame) {
+        final FlowControlWindow flowControlWindow = mFlowControlWindow;
+
+        if (mFrameErrorMessage != null) {
+            // Ignore the rest of the frames, the connection is about to be closed
+            return;
+        }
+
+        if (!isTypedFramed()) {
+            mFrameListener.onFrameReceived(frame, this);
+            return;
+        }
+
+        if (!frame.hasRemaining()) {
+            mFrameErrorMessage = "Received a frame without a type";
+            return;
+        }
+
+        final byte frameType = frame.get();
+        final ByteBuffer body = frame.slice();
+
+        switch (frameType) {
+            case FRAME_TYPE_DATA:
+                handleDataFrame(body);
+                break;
+
+            case FRAME_TYPE_COMPRESSED_DATA:
+                handleCompressedDataFrame(body);
+                break;
+
+            case FRAME_TYPE_CREDIT:
+                final int numberOfCredits =
+                        (body.remaining() == CREDIT_FRAME_BODY_SIZE_IN_BYTES) ? body.getInt() : 0;
+
+                if (flowControlWindow == null || numberOfCredits <= 0) {
+                    mFrameErrorMessage = "Received an invalid credit frame";
+                    return;
+                }
+
+                if (flowControlWindow.addSendCredits(numberOfCredits) && mWritabilityListener != null) {
+                    mWritabilityListener.onWritable(this);
+                }
+
+                break;
+
+            case FRAME_TYPE_DATA_FRAGMENT:
+            case FRAME_TYPE_LAST_DATA_FRAGMENT:
+                handleDataFragment(body, (frameType == FRAME_TYPE_LAST_DATA_FRAGMENT));
+                break;
+
+            case FRAME_TYPE_PING:
+                if (body.remaining() != PING_FRAME_BODY_SIZE_IN_BYTES) {
+                    mFrameErrorMessage = "Received an invalid ping frame";
+                    return;
+                }
+
+                // Echo the body back as is, the pinging side needs nothing else
+                byte[] pongBody = new byte[PING_FRAME_BODY_SIZE_IN_BYTES];
+                body.get(pongBody);
+                enqueueControlFrame(FRAME_TYPE_PONG, pongBody);
+                break;
+
+            case FRAME_TYPE_PONG:
+                if (body.remaining() != PING_FRAME_BODY_SIZE_IN_BYTES) {
+                    mFrameErrorMessage = "Received an invalid pong frame";
+                    return;
+                }
+
+                if (mKeepAlive != null) {
+                    mKeepAlive.onPongReceived(body.getLong());
+                }
+
+                break;
+
+            default:
+                mFrameErrorMessage = "Received a frame of unknown type: " + frameType;
+                break;
+        }
+    }
+
+    /**
+     * Passes the payload of a data frame to the frame listener and takes care of the flow control
+     * bookkeeping. The credits are counted in uncompressed bytes.
+     *
+     * @param payload The payload.
+     */
+    private void handleDataFrame(ByteBuffer payload) {
+        final FlowControlWindow flowControlWindow = mFlowControlWindow;
+        final int numberOfBytes = payload.remaining();
+
+        if (flowControlWindow != null && !flowControlWindow.onBytesReceived(numberOfBytes)) {
+            mFrameErrorMessage = "The peer sent data without credits";
+            return;
+        }
+
+        mFrameListener.onFrameReceived(payload, this);
+
+        if (flowControlWindow != null && mConsumeOnReceive) {
+            onBytesConsumed(numberOfBytes);
+        }
+    }
+
+    /**
+     * Appends the given fragment of a sliced data frame to the reassembly buffer and, once the
+     * last fragment is received, handles the reassembled frame as a data frame. The fragments of
+     * one frame arrive in order, but other frames may be received between them.
+     *
+     * @param fragment The fragment.
+     * @param isLastFragment True, if the fragment completes the frame.
+     */
+    private void handleDataFragment(ByteBuffer fragment, boolean isLastFragment) {
+        final int numberOfBytes = fragment.remaining();
+        final int frameLength = mNumberOfReassembledBytes + numberOfBytes;
+
+        if (frameLength > mMaxFrameSizeInBytes) {
+            mFrameErrorMessage = "The reassembled frame is too large: " + frameLength;
+            return;
+        }
+
+        if (mReassemblyBufferLease == null || mReassemblyBufferLease.capacity() < frameLength) {
+            // Round up to a power of two to limit the number of different buffer sizes in the pool
+            long bufferSize = MIN_DECOMPRESSION_BUFFER_SIZE_IN_BYTES;
+
+            while (bufferSize < frameLength) {
+                bufferSize <<= 1;
+            }
+
+            ByteBufferPool.Lease lease = mBufferPool.lease((int) Math.min(bufferSize, mMaxFrameSizeInBytes));
+
+            if (mReassemblyBufferLease != null) {
+                System.arraycopy(mReassemblyBufferLease.array(), 0, lease.array(), 0, mNumberOfReassembledBytes);
+                mReassemblyBufferLease.release();
+            }
+
+            mReassemblyBufferLease = lease;
+        }
+
+        fragment.get(mReassemblyBufferLease.array(), mNumberOfReassembledBytes, numberOfBytes);
+        mNumberOfReassembledBytes = frameLength;
+
+        if (isLastFragment) {
+            ByteBufferPool.Lease lease = mReassemblyBufferLease;
+            mReassemblyBufferLease = null;
+            mNumberOfReassembledBytes = 0;
+            mCurrentReadBufferLease = lease;
+
+            try {
+                handleDataFrame(ByteBuffer.wrap(lease.array(), 0, frameLength).slice());
+            } finally {
+                mCurrentReadBufferLease = null;
+                lease.release();
+            }
+        }
+    }
+
+    /**
+     * Decompresses the given compressed block to a pooled buffer and handles it as a data frame.
+     *
+     * @param compressedBlock The compressed block.
+     */
+    private void handleCompressedDataFrame(ByteBuffer compressedBlock) {
+        final FrameCompressor frameCompressor = mFrameCompressor;
+
+        if (frameCompressor == null) {
+            mFrameErrorMessage = "Received a compressed frame, but the compression is off";
+            return;
+        }
+
+        ByteBufferPool.Lease lease = null;
+
+        try {
+            final int uncompressedLength = FrameCompressor.getUncompressedLength(compressedBlock);
+
+            if (uncompressedLength < 0 || uncompressedLength > mMaxFrameSizeInBytes) {
+                throw new IOException("Invalid uncompressed frame length: " + uncompressedLength);
+            }
+
+            // Round up to a power of two to limit the number of different buffer sizes in the pool
+            long bufferSize = MIN_DECOMPRESSION_BUFFER_SIZE_IN_BYTES;
+
+            while (bufferSize < uncompressedLength) {
+                bufferSize <<= 1;
+            }
+
+            lease = mBufferPool.lease((int) Math.min(bufferSize, mMaxFrameSizeInBytes));
+            frameCompressor.decompress(compressedBlock, lease.array());
+            mCurrentReadBufferLease = lease;
+            handleDataFrame(ByteBuffer.wrap(lease.array(), 0, uncompressedLength).slice());
+        } catch (IOException e) {
+            mFrameErrorMessage = "Failed to decompress a frame: " + e.getMessage();
+        } finally {
+            mCurrentReadBufferLease = null;
+
+            if (lease != null) {
+                lease.release();
+            }
+        }
+    }
+
+    /**
+     * Encodes the header of a data frame or of a fragment of a sliced data frame.
+     *
+     * @param payloadLength The length of the payload following the header.
+     * @param isTypedFramed True, if the frames are typed.
+     * @param isFirstSlice True, if the payload is the first slice of the frame.
+     * @param isLastSlice True, if the payload is the last slice of the frame.
+     * @return The header.
+     */
+    private static byte[] encodeDataFrameHeader(
+            int payloadLength, boolean isTypedFramed, boolean isFirstSlice, boolean isLastSlice) {
+        final int frameLength = payloadLength + (isTypedFramed ? 1 : 0);
+        byte[] header = new byte[FrameCodec.getHeaderSize(frameLength) + (isTypedFramed ? 1 : 0)];
+        final int headerSize = FrameCodec.writeHeader(frameLength, header, 0);
+
+        if (isTypedFramed) {
+            if (!isLastSlice) {
+                header[headerSize] = FRAME_TYPE_DATA_FRAGMENT;
+            } else if (!isFirstSlice) {
+                header[headerSize] = FRAME_TYPE_LAST_DATA_FRAGMENT;
+            } else {
+                header[headerSize] = FRAME_TYPE_DATA;
+            }
+        }
+
+        return header;
+    }
+
+    /**
+     * Grants the given number of credits to the peer.
+     *
+     * @param numberOfCredits The number of credits to grant.
+     */
+    private void writeCreditFrame(int numberOfCredits) {
+        byte[] body = ByteBuffer.allocate(CREDIT_FRAME_BODY_SIZE_IN_BYTES).putInt(numberOfCredits).array();
+        enqueueControlFrame(FRAME_TYPE_CREDIT, body);
+    }
+
+    /**
+     * Enqueues a control frame to be written by the writer thread ahead of the data. Used by the
+     * reader, which must never block on the output stream: If both peers are writing bulk data,
+     * a reader blocked behind its own writer would stop reading and granting credits to the peer,
+     * and the connection would deadlock. Control frames are not subject to the flow control and
+     * are not reported to the listener.
+     *
+     * @param frameType The frame type.
+     * @param body The frame body.
+     */
+    private void enqueueControlFrame(byte frameType, byte[] body) {
+        byte[] frame = FrameCodec.encode(frameType, body, 0, body.length);
+        getOrCreateSocketWriterThread().enqueueProtocolWrite(frame, SocketWriterThread.Priority.CONTROL);
+    }
+
+    /**
+     * Writes a control frame. Control frames are not subject to the flow control and are not
+     * reported to the listener. Blocks until written, so not to be called by the reader.
+     *
+     * @param frameType The frame type.
+     * @param body The frame body.
+     * @throws IOException Thrown, if the write failed.
+     */
+    private void writeControlFrame(byte frameType, byte[] body) throws IOException {
+        byte[] frame = FrameCodec.encode(frameType, body, 0, body.length);
+
+        synchronized (mOutputStreamLock) {
+            mOutputStream.write(frame);
+        }
+    }
+
+    /**
+     * Closes the connection and notifies the listener, when the keepalive has timed out. Closing
+     * first makes the blocked read fail silently, so the listener is notified only once.
+     *
+     * @param reason The description of the timeout.
+     */
+    private void onKeepAliveTimeout(String reason) {
+        synchronized (this) {
+            if (mIsShuttingDown) {
+                return;
+            }
+
+            Log.w(TAG, "onKeepAliveTimeout: " + reason + " (thread ID: " + getId() + ")");
+            close(true, true);
+        }
+
+        mListener.onDisconnected(reason, this);
+    }
+
+    /**
+     * Records the writes to the output stream of the socket, including those of the writer thread,
+     * to the statistics.
+     */
+    private static class InstrumentedOutputStream extends OutputStream {
+        private final OutputStream mOutputStream;
+        private final SocketIoStatistics mStatistics;
+
+        InstrumentedOutputStream(OutputStream outputStream, SocketIoStatistics statistics) {
+            mOutputStream = outputStream;
+            mStatistics = statistics;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            final long startTime = System.nanoTime();
+            boolean wasSuccessful = false;
+
+            try {
+                mOutputStream.write(oneByte);
+                wasSuccessful = true;
+            } finally {
+                mStatistics.onWrite(1, System.nanoTime() - startTime, wasSuccessful);
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes) throws IOException {
+            final long startTime = System.nanoTime();
+            boolean wasSuccessful = false;
+
+            try {
+                mOutputStream.write(bytes);
+                wasSuccessful = true;
+            } finally {
+                mStatistics.onWrite(bytes.length, System.nanoTime() - startTime, wasSuccessful);
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            final long startTime = System.nanoTime();
+            boolean wasSuccessful = false;
+
+            try {
+                mOutputStream.write(bytes, offset, length);
+                wasSuccessful = true;
+            } finally {
+                mStatistics.onWrite(length, System.nanoTime() - startTime, wasSuccessful);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOutputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOutputStream.close();
+        }
+    }
 }
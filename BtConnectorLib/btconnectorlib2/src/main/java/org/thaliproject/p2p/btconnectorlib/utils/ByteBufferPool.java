@@ -0,0 +1,218 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of byte buffers with explicit lease/release semantics.
+ *
+ * A buffer is leased with lease(), which returns a Lease holding one reference to the buffer.
+ * Additional references can be acquired with Lease.retain() e.g. when handing the buffer over to
+ * another thread. Once every reference has been released with Lease.release(), the buffer is
+ * returned to the pool and will be handed out again by a later lease() call. This allows the
+ * buffers to be passed around without copying them while still reusing their memory.
+ *
+ * The pool keeps a separate free list for each buffer size. The number of free buffers kept per
+ * size is bounded; buffers released when the list is full are left for the garbage collector.
+ */
+public class ByteBufferPool {
+    /**
+     * A lease of a pooled buffer.
+     */
+    public static class Lease {
+        private final ByteBufferPool mPool;
+        private final byte[] mArray;
+        private final AtomicInteger mReferenceCount = new AtomicInteger(0);
+
+        private Lease(ByteBufferPool pool, int sizeInBytes) {
+            mPool = pool;
+            mArray = new byte[sizeInBytes];
+        }
+
+        /**
+         * @return The backing array of the leased buffer.
+         */
+        public byte[] array() {
+            return mArray;
+        }
+
+        /**
+         * @return The size of the leased buffer in bytes.
+         */
+        public int capacity() {
+            return mArray.length;
+        }
+
+        /**
+         * Creates a byte buffer view of the given range of the leased buffer.
+         * The view is valid only as long as a reference to this lease is held.
+         *
+         * @param offset The offset of the range.
+         * @param length The length of the range.
+         * @return A byte buffer, whose position is zero and limit the given length.
+         */
+        public ByteBuffer getByteBuffer(int offset, int length) {
+            return ByteBuffer.wrap(mArray, offset, length).slice();
+        }
+
+        /**
+         * @return The number of references currently held to this lease.
+         */
+        public int getReferenceCount() {
+            return mReferenceCount.get();
+        }
+
+        /**
+         * Acquires an additional reference to the leased buffer. Each call must be balanced with a
+         * call to release().
+         *
+         * @return This lease.
+         * @throws IllegalStateException Thrown, if the lease has already been released.
+         */
+        public Lease retain() throws IllegalStateException {
+            int referenceCount;
+
+            do {
+                referenceCount = mReferenceCount.get();
+
+                if (referenceCount <= 0) {
+                    throw new IllegalStateException("The lease has already been released");
+                }
+            } while (!mReferenceCount.compareAndSet(referenceCount, referenceCount + 1));
+
+            return this;
+        }
+
+        /**
+         * Releases one reference to the leased buffer. When the last reference is released, the
+         * buffer is returned to the pool and must not be accessed anymore.
+         *
+         * @throws IllegalStateException Thrown, if the lease has already been released.
+         */
+        public void release() throws IllegalStateException {
+            int referenceCount = mReferenceCount.decrementAndGet();
+
+            if (referenceCount == 0) {
+                mPool.recycle(this);
+            } else if (referenceCount < 0) {
+                mReferenceCount.incrementAndGet();
+                throw new IllegalStateException("The lease has already been released");
+            }
+        }
+    }
+
+    public static final int DEFAULT_MAX_NUMBER_OF_FREE_BUFFERS_PER_SIZE = 8;
+    private final ConcurrentHashMap<Integer, Queue<Lease>> mFreeLists = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, AtomicInteger> mFreeListSizes = new ConcurrentHashMap<>();
+    private final int mMaxNumberOfFreeBuffersPerSize;
+    private final AtomicLong mNumberOfAllocations = new AtomicLong(0);
+    private final AtomicLong mNumberOfLeases = new AtomicLong(0);
+
+    /**
+     * Constructor.
+     */
+    public ByteBufferPool() {
+        this(DEFAULT_MAX_NUMBER_OF_FREE_BUFFERS_PER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxNumberOfFreeBuffersPerSize The maximum number of free buffers to keep per size.
+     * @throws IllegalArgumentException Thrown, if the given value is negative.
+     */
+    public ByteBufferPool(int maxNumberOfFreeBuffersPerSize) throws IllegalArgumentException {
+        if (maxNumberOfFreeBuffersPerSize < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid maximum number of free buffers: " + maxNumberOfFreeBuffersPerSize);
+        }
+
+        mMaxNumberOfFreeBuffersPerSize = maxNumberOfFreeBuffersPerSize;
+    }
+
+    /**
+     * Leases a buffer of the given size. The returned lease holds one reference, which the caller
+     * must release once done with the buffer.
+     *
+     * @param sizeInBytes The size of the buffer in bytes.
+     * @return A lease of a buffer whose capacity is exactly the given size.
+     * @throws IllegalArgumentException Thrown, if the given size is negative.
+     */
+    public Lease lease(int sizeInBytes) throws IllegalArgumentException {
+        if (sizeInBytes < 0) {
+            throw new IllegalArgumentException("Invalid buffer size: " + sizeInBytes);
+        }
+
+        Lease lease = null;
+        Queue<Lease> freeList = mFreeLists.get(sizeInBytes);
+
+        if (freeList != null) {
+            lease = freeList.poll();
+
+            if (lease != null) {
+                mFreeListSizes.get(sizeInBytes).decrementAndGet();
+            }
+        }
+
+        if (lease == null) {
+            lease = new Lease(this, sizeInBytes);
+            mNumberOfAllocations.incrementAndGet();
+        }
+
+        lease.mReferenceCount.set(1);
+        mNumberOfLeases.incrementAndGet();
+        return lease;
+    }
+
+    /**
+     * @param sizeInBytes The buffer size.
+     * @return The number of free buffers of the given size currently in the pool.
+     */
+    public int getNumberOfFreeBuffers(int sizeInBytes) {
+        AtomicInteger freeListSize = mFreeListSizes.get(sizeInBytes);
+        return (freeListSize == null) ? 0 : freeListSize.get();
+    }
+
+    /**
+     * @return The total number of buffers allocated by this pool.
+     */
+    public long getNumberOfAllocations() {
+        return mNumberOfAllocations.get();
+    }
+
+    /**
+     * @return The total number of leases handed out by this pool.
+     */
+    public long getNumberOfLeases() {
+        return mNumberOfLeases.get();
+    }
+
+    /**
+     * Returns the buffer of the given lease to the free list, if the list is not full.
+     *
+     * @param lease The lease whose last reference was released.
+     */
+    private void recycle(Lease lease) {
+        final int sizeInBytes = lease.mArray.length;
+        AtomicInteger freeListSize = mFreeListSizes.get(sizeInBytes);
+
+        if (freeListSize == null) {
+            mFreeListSizes.putIfAbsent(sizeInBytes, new AtomicInteger(0));
+            mFreeLists.putIfAbsent(sizeInBytes, new ConcurrentLinkedQueue<Lease>());
+            freeListSize = mFreeListSizes.get(sizeInBytes);
+        }
+
+        if (freeListSize.incrementAndGet() <= mMaxNumberOfFreeBuffersPerSize) {
+            mFreeLists.get(sizeInBytes).offer(lease);
+        } else {
+            freeListSize.decrementAndGet();
+        }
+    }
+}
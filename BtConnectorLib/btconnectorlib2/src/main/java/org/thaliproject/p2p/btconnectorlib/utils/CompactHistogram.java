@@ -0,0 +1,139 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with a bounded relative error, in the spirit of
+ * HdrHistogram.
+ *
+ * Each power of two range of values is divided into eight equally wide buckets, so the recorded
+ * values are known with a precision of 1/8 (12.5 %) regardless of their magnitude, and values
+ * from zero up to MAX_TRACKABLE_VALUE (e.g. nanoseconds up to 18 minutes) fit in a few hundred
+ * counters. Larger values are recorded as MAX_TRACKABLE_VALUE.
+ *
+ * Recording is a couple of atomic increments, so the histogram can be updated from any thread
+ * and read at any time without stopping the writers. The values read while recording is going on
+ * may be slightly inconsistent with each other (e.g. the count and the sum).
+ */
+public class CompactHistogram {
+    public static final long MAX_TRACKABLE_VALUE = (1L << 40) - 1;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int NUMBER_OF_SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUMBER_OF_BUCKETS = getBucketIndex(MAX_TRACKABLE_VALUE) + 1;
+    private final AtomicLongArray mBucketCounts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records the given value.
+     *
+     * @param value The value. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_TRACKABLE_VALUE));
+        mBucketCounts.incrementAndGet(getBucketIndex(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return The largest value recorded or zero, if none.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return The mean of the recorded values or zero, if none.
+     */
+    public double getMean() {
+        final long count = mCount.get();
+        return (count > 0) ? (double) mSum.get() / count : 0d;
+    }
+
+    /**
+     * Resolves the value at the given percentile. The result is the upper bound of the bucket the
+     * percentile falls into, but never more than the largest value recorded.
+     *
+     * @param percentile The percentile (0-100).
+     * @return The value at the given percentile or zero, if no values have been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long totalCount = 0;
+        long[] bucketCounts = new long[NUMBER_OF_BUCKETS];
+
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            bucketCounts[i] = mBucketCounts.get(i);
+            totalCount += bucketCounts[i];
+        }
+
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        final long threshold = Math.max(1, (long) Math.ceil(totalCount * Math.min(percentile, 100d) / 100d));
+        long count = 0;
+
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            count += bucketCounts[i];
+
+            if (count >= threshold) {
+                return Math.min(getBucketUpperBound(i), mMax.get());
+            }
+        }
+
+        return mMax.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[count: " + getCount() + ", mean: " + (long) getMean()
+                + ", p50: " + getValueAtPercentile(50) + ", p90: " + getValueAtPercentile(90)
+                + ", p99: " + getValueAtPercentile(99) + ", max: " + getMax() + "]";
+    }
+
+    /**
+     * @param value A value between zero and MAX_TRACKABLE_VALUE.
+     * @return The index of the bucket the given value falls into.
+     */
+    static int getBucketIndex(long value) {
+        if (value < NUMBER_OF_SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (NUMBER_OF_SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * NUMBER_OF_SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucketIndex The bucket index.
+     * @return The largest value falling into the given bucket.
+     */
+    static long getBucketUpperBound(int bucketIndex) {
+        if (bucketIndex < NUMBER_OF_SUB_BUCKETS) {
+            return bucketIndex;
+        }
+
+        final int shift = bucketIndex / NUMBER_OF_SUB_BUCKETS - 1;
+        final long lowerBound = (long) (NUMBER_OF_SUB_BUCKETS + bucketIndex % NUMBER_OF_SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
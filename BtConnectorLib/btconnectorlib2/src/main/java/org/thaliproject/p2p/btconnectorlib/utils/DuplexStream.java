@@ -0,0 +1,47 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connected, bidirectional byte stream i.e. the part of a socket the I/O pipeline needs.
+ *
+ * BluetoothSocketIoThread and the protocols built on it (StreamMultiplexer, FileTransferSession)
+ * run on any duplex stream. Besides the Bluetooth sockets (BluetoothDuplexStream), in-JVM pipes
+ * (PipeDuplexStream) and TCP sockets (TcpDuplexStream) are provided so that the framing, the flow
+ * control and the throughput can be tested and benchmarked on a plain JVM.
+ */
+public interface DuplexStream extends Closeable {
+    /**
+     * @return The stream of the bytes received from the peer.
+     * @throws IOException Thrown, if the stream is not available.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return The stream of the bytes sent to the peer.
+     * @throws IOException Thrown, if the stream is not available.
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Note that this reflects the local state only: The stream may stay connected after the peer
+     * has closed it. The end of stream is detected by reading.
+     *
+     * @return True, if connected to the peer. False, if not connected yet or no longer.
+     */
+    boolean isConnected();
+
+    /**
+     * Closes the connection. A read blocked on the input stream fails or returns the end of stream.
+     *
+     * @throws IOException Thrown, if the closing failed.
+     */
+    @Override
+    void close() throws IOException;
+}
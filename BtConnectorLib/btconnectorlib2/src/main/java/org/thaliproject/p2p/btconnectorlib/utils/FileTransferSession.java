@@ -0,0 +1,867 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Transfers files over one connected Bluetooth socket in checksummed chunks and resumes
+ * interrupted transfers from where they were left off.
+ *
+ * The sender offers a file with a transfer ID, which must stay the same over reconnections (e.g.
+ * a hash of the name, the size and the modification time of the file). The receiver decides the
+ * destination file (see Listener.onTransferOffered()) and answers with the offset to start from:
+ * If the destination file already contains the beginning of the file from an interrupted attempt,
+ * only the rest is sent. Thus, to resume a transfer after a reconnect (e.g. through
+ * ConnectionManager), create a new session with the new socket and send the file again.
+ *
+ * The sender reads the file through memory-mapped regions and writes each chunk, with the CRC32
+ * checksum of its offset and data, as one frame without copying it to a new array (see
+ * BluetoothSocketIoThread.writeFrame(ByteBuffer...)). The receiver writes the valid chunks to the
+ * destination file and acknowledges them. A chunk with an invalid checksum is answered with a
+ * request to resend the file from the expected offset. The number of unacknowledged chunks in
+ * flight is limited so that a slow receiver does not fill the socket buffers.
+ *
+ * Both peers can send files at the same time.
+ */
+public class FileTransferSession implements BluetoothSocketIoThread.Listener, BluetoothSocketIoThread.FrameListener {
+    /**
+     * Session listener. Except for the sender side failures, the methods are called in the reading
+     * thread of the socket.
+     */
+    public interface Listener {
+        /**
+         * Called when the peer offers a file.
+         *
+         * @param transferId The transfer ID.
+         * @param fileSize The size of the file in bytes.
+         * @return The destination file or null to reject the transfer. If the file exists, it is
+         * expected to contain the beginning of the offered file from an earlier attempt.
+         */
+        File onTransferOffered(String transferId, long fileSize);
+
+        /**
+         * Called when a chunk was received (incoming transfer) or acknowledged by the peer
+         * (outgoing transfer).
+         *
+         * @param transfer The transfer.
+         */
+        void onTransferProgress(Transfer transfer);
+
+        /**
+         * Called when the whole file was received or acknowledged by the peer.
+         *
+         * @param transfer The transfer.
+         */
+        void onTransferCompleted(Transfer transfer);
+
+        /**
+         * Called when a transfer failed. Not called when the transfer is cancelled locally.
+         *
+         * @param transfer The transfer.
+         * @param reason The reason of the failure.
+         */
+        void onTransferFailed(Transfer transfer, String reason);
+
+        /**
+         * Called when the socket was disconnected. The transfers in progress have failed.
+         *
+         * @param reason The reason why we got disconnected.
+         * @param who The related FileTransferSession instance.
+         */
+        void onDisconnected(String reason, FileTransferSession who);
+    }
+
+    /**
+     * A file transfer in either direction.
+     */
+    public static class Transfer {
+        public enum State {
+            OFFERED,
+            IN_PROGRESS,
+            COMPLETED,
+            FAILED
+        }
+
+        private final int mTransferNumber;
+        private final String mTransferId;
+        private final File mFile;
+        private final long mFileSize;
+        private final int mChunkSize;
+        private final boolean mIsIncoming;
+        private State mState = State.OFFERED;
+        private long mResumeOffset = 0;
+        private long mNextOffset = 0; // The next chunk to send or the next chunk expected
+        private long mAcknowledgedOffset = 0;
+        private long mResendRequestedOffset = -1;
+        private long mNumberOfChecksumFailures = 0;
+        private FileChannel mFileChannel;
+
+        /**
+         * Constructor.
+         *
+         * @param transferNumber The number of the transfer in the session, assigned by the sender.
+         * @param transferId The transfer ID.
+         * @param file The file to send or the destination file.
+         * @param fileSize The size of the file in bytes.
+         * @param chunkSize The chunk size in bytes.
+         * @param isIncoming True, if we are the receiver.
+         */
+        private Transfer(int transferNumber, String transferId, File file, long fileSize,
+                         int chunkSize, boolean isIncoming) {
+            mTransferNumber = transferNumber;
+            mTransferId = transferId;
+            mFile = file;
+            mFileSize = fileSize;
+            mChunkSize = chunkSize;
+            mIsIncoming = isIncoming;
+        }
+
+        public String getTransferId() {
+            return mTransferId;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public long getFileSize() {
+            return mFileSize;
+        }
+
+        public boolean isIncoming() {
+            return mIsIncoming;
+        }
+
+        public synchronized State getState() {
+            return mState;
+        }
+
+        /**
+         * @return The offset the transfer was started from in this session i.e. the number of
+         * bytes the receiver already had.
+         */
+        public synchronized long getResumeOffset() {
+            return mResumeOffset;
+        }
+
+        /**
+         * @return The number of bytes of the file the receiver has. For outgoing transfers, this
+         * is the last offset acknowledged by the peer.
+         */
+        public synchronized long getNumberOfBytesTransferred() {
+            return mIsIncoming ? mNextOffset : mAcknowledgedOffset;
+        }
+
+        /**
+         * @return The number of chunks, which failed the checksum verification of the receiver.
+         */
+        public synchronized long getNumberOfChecksumFailures() {
+            return mNumberOfChecksumFailures;
+        }
+
+        /**
+         * @return True, if the transfer has completed or failed.
+         */
+        public synchronized boolean isFinished() {
+            return (mState == State.COMPLETED || mState == State.FAILED);
+        }
+
+        @Override
+        public String toString() {
+            return "[" + mTransferId + (mIsIncoming ? " <- " : " -> ") + getNumberOfBytesTransferred()
+                    + "/" + mFileSize + " " + getState() + "]";
+        }
+    }
+
+    private static final String TAG = FileTransferSession.class.getName();
+    public static final int DEFAULT_CHUNK_SIZE_IN_BYTES = 32 * 1024;
+    public static final int MAX_CHUNK_SIZE_IN_BYTES = 256 * 1024;
+    public static final int DEFAULT_MAX_NUMBER_OF_CHUNKS_IN_FLIGHT = 8;
+    private static final long MAPPED_REGION_SIZE_IN_BYTES = 4 * 1024 * 1024;
+    private static final byte FRAME_TYPE_OFFER = 0;
+    private static final byte FRAME_TYPE_ACCEPT = 1;
+    private static final byte FRAME_TYPE_REJECT = 2;
+    private static final byte FRAME_TYPE_CHUNK = 3;
+    private static final byte FRAME_TYPE_ACK = 4;
+    private static final byte FRAME_TYPE_RESEND = 5;
+    private static final byte FRAME_TYPE_CANCEL = 6;
+    private static final int FRAME_PREFIX_SIZE_IN_BYTES = 1 + 4; // Frame type and transfer number
+    private static final int CONTROL_FRAME_SIZE_IN_BYTES = FRAME_PREFIX_SIZE_IN_BYTES + 8;
+    private static final int CHUNK_HEADER_SIZE_IN_BYTES = FRAME_PREFIX_SIZE_IN_BYTES + 8 + 4;
+    private final Listener mListener;
+    private final BluetoothSocketIoThread mBluetoothSocketIoThread;
+    private final ConcurrentHashMap<Integer, Transfer> mOutgoingTransfers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Transfer> mIncomingTransfers = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextTransferNumber = new AtomicInteger(1);
+    private int mChunkSizeInBytes = DEFAULT_CHUNK_SIZE_IN_BYTES;
+    private int mMaxNumberOfChunksInFlight = DEFAULT_MAX_NUMBER_OF_CHUNKS_IN_FLIGHT;
+    private volatile boolean mIsClosed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param socket A connected Bluetooth socket.
+     * @param listener The listener.
+     * @throws NullPointerException Thrown, if either the socket or the listener is null.
+     * @throws IOException Thrown in case of failure to get the input and the output streams for the given socket.
+     */
+    public FileTransferSession(BluetoothSocket socket, Listener listener)
+            throws NullPointerException, IOException {
+        this((socket != null) ? new BluetoothDuplexStream(socket) : null, listener);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param duplexStream A connected duplex stream (see DuplexStream).
+     * @param listener The listener.
+     * @throws NullPointerException Thrown, if either the duplex stream or the listener is null.
+     * @throws IOException Thrown in case of failure to get the input and the output streams.
+     */
+    public FileTransferSession(DuplexStream duplexStream, Listener listener)
+            throws NullPointerException, IOException {
+        if (listener == null) {
+            throw new NullPointerException("The listener is null");
+        }
+
+        mListener = listener;
+        mBluetoothSocketIoThread = new BluetoothSocketIoThread(duplexStream, this);
+        mBluetoothSocketIoThread.setAdaptiveBufferSize(
+                AdaptiveBufferSizer.DEFAULT_MIN_BUFFER_SIZE_IN_BYTES,
+                AdaptiveBufferSizer.DEFAULT_MAX_BUFFER_SIZE_IN_BYTES);
+        mBluetoothSocketIoThread.setMaxFrameSize(CHUNK_HEADER_SIZE_IN_BYTES + MAX_CHUNK_SIZE_IN_BYTES);
+        mBluetoothSocketIoThread.setFrameListener(this);
+    }
+
+    /**
+     * @return The underlying socket IO thread.
+     */
+    public BluetoothSocketIoThread getBluetoothSocketIoThread() {
+        return mBluetoothSocketIoThread;
+    }
+
+    /**
+     * Sets the size of the chunks of the files we send. Affects only the transfers started after
+     * this call.
+     *
+     * @param chunkSizeInBytes The chunk size in bytes.
+     * @throws IllegalArgumentException Thrown, if the chunk size is not positive or is larger than
+     * MAX_CHUNK_SIZE_IN_BYTES.
+     */
+    public void setChunkSize(int chunkSizeInBytes) throws IllegalArgumentException {
+        if (chunkSizeInBytes <= 0 || chunkSizeInBytes > MAX_CHUNK_SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSizeInBytes);
+        }
+
+        mChunkSizeInBytes = chunkSizeInBytes;
+    }
+
+    /**
+     * Sets the maximum number of chunks sent, but not yet acknowledged by the peer.
+     *
+     * @param maxNumberOfChunksInFlight The maximum number of chunks in flight.
+     */
+    public void setMaxNumberOfChunksInFlight(int maxNumberOfChunksInFlight) {
+        if (maxNumberOfChunksInFlight > 0) {
+            mMaxNumberOfChunksInFlight = maxNumberOfChunksInFlight;
+        }
+    }
+
+    /**
+     * Starts reading the socket.
+     */
+    public void start() {
+        mBluetoothSocketIoThread.start();
+    }
+
+    /**
+     * Offers the given file to the peer. The file is sent once the peer accepts it, starting from
+     * the offset the peer already has.
+     *
+     * @param transferId The transfer ID. Must be the same, when resuming an interrupted transfer.
+     * @param file The file to send.
+     * @return The transfer or null, if the session is closed or failed to send the offer.
+     * @throws NullPointerException Thrown, if either the transfer ID or the file is null.
+     * @throws FileNotFoundException Thrown, if the file does not exist or is not a file.
+     */
+    public Transfer send(String transferId, File file) throws NullPointerException, FileNotFoundException {
+        if (transferId == null || file == null) {
+            throw new NullPointerException("The transfer ID or the file is null");
+        }
+
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Not a file: " + file);
+        }
+
+        if (mIsClosed) {
+            Log.e(TAG, "send: The session is closed");
+            return null;
+        }
+
+        final int transferNumber = mNextTransferNumber.getAndIncrement();
+        final byte[] transferIdBytes = transferId.getBytes(StandardCharsets.UTF_8);
+        Transfer transfer = new Transfer(transferNumber, transferId, file, file.length(), mChunkSizeInBytes, false);
+        mOutgoingTransfers.put(transferNumber, transfer);
+
+        ByteBuffer offer = ByteBuffer.allocate(FRAME_PREFIX_SIZE_IN_BYTES + 8 + 4 + transferIdBytes.length);
+        offer.put(FRAME_TYPE_OFFER).putInt(transferNumber).putLong(transfer.mFileSize)
+                .putInt(transfer.mChunkSize).put(transferIdBytes);
+
+        if (!mBluetoothSocketIoThread.writeFrame(offer.array())) {
+            mOutgoingTransfers.remove(transferNumber);
+            return null;
+        }
+
+        Log.d(TAG, "send: Offered " + transfer);
+        return transfer;
+    }
+
+    /**
+     * Cancels the given transfer and notifies the peer. The listener is not notified.
+     *
+     * @param transfer The transfer to cancel.
+     */
+    public void cancel(Transfer transfer) {
+        if (finishTransfer(transfer, false, null, false)) {
+            writeControlFrame(transfer.mIsIncoming ? FRAME_TYPE_REJECT : FRAME_TYPE_CANCEL,
+                    transfer.mTransferNumber, 0);
+        }
+    }
+
+    /**
+     * Fails all the transfers, without notifying the listener, and closes the socket.
+     */
+    public void close() {
+        mIsClosed = true;
+        mBluetoothSocketIoThread.close(true, true);
+        finishAllTransfers(null, false);
+    }
+
+    /**
+     * From BluetoothSocketIoThread.FrameListener
+     *
+     * Dispatches the received frame to the transfer.
+     *
+     * @param frame The payload of the frame.
+     * @param who The related BluetoothSocketIoThread instance.
+     */
+    @Override
+    public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+        if (frame.remaining() < FRAME_PREFIX_SIZE_IN_BYTES) {
+            Log.e(TAG, "onFrameReceived: Malformed frame of " + frame.remaining() + " bytes");
+            return;
+        }
+
+        final byte frameType = frame.get();
+        final int transferNumber = frame.getInt();
+
+        if (frameType == FRAME_TYPE_OFFER) {
+            onTransferOffered(transferNumber, frame);
+            return;
+        }
+
+        final boolean isFromSender = (frameType == FRAME_TYPE_CHUNK || frameType == FRAME_TYPE_CANCEL);
+        Transfer transfer = (isFromSender ? mIncomingTransfers : mOutgoingTransfers).get(transferNumber);
+
+        if (transfer == null) {
+            // Cancelled or failed by us, but the peer did not know yet
+            Log.v(TAG, "onFrameReceived: No transfer " + transferNumber + " for frame type " + frameType);
+            return;
+        }
+
+        if (frameType == FRAME_TYPE_CHUNK) {
+            onChunkReceived(transfer, frame);
+            return;
+        }
+
+        if (frame.remaining() != CONTROL_FRAME_SIZE_IN_BYTES - FRAME_PREFIX_SIZE_IN_BYTES) {
+            Log.e(TAG, "onFrameReceived: Malformed control frame, type " + frameType);
+            return;
+        }
+
+        final long offset = frame.getLong();
+
+        switch (frameType) {
+            case FRAME_TYPE_ACCEPT:
+                onTransferAccepted(transfer, offset);
+                break;
+
+            case FRAME_TYPE_REJECT:
+                finishTransfer(transfer, false, "Rejected by the peer", true);
+                break;
+
+            case FRAME_TYPE_ACK:
+                onChunksAcknowledged(transfer, offset);
+                break;
+
+            case FRAME_TYPE_RESEND:
+                synchronized (transfer) {
+                    if (offset >= transfer.mAcknowledgedOffset && offset <= transfer.mNextOffset) {
+                        Log.d(TAG, "onFrameReceived: Resending " + transfer + " from offset " + offset);
+                        transfer.mNextOffset = offset;
+                        transfer.mNumberOfChecksumFailures++;
+                        transfer.notifyAll();
+                    }
+                }
+
+                break;
+
+            case FRAME_TYPE_CANCEL:
+                finishTransfer(transfer, false, "Cancelled by the peer", true);
+                break;
+
+            default:
+                Log.e(TAG, "onFrameReceived: Unknown frame type: " + frameType);
+                break;
+        }
+    }
+
+    /**
+     * From BluetoothSocketIoThread.Listener
+     *
+     * Not used, since the framed mode is on.
+     */
+    @Override
+    public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+    }
+
+    /**
+     * From BluetoothSocketIoThread.Listener
+     *
+     * Not used.
+     */
+    @Override
+    public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+    }
+
+    /**
+     * From BluetoothSocketIoThread.Listener
+     *
+     * Fails all the transfers and notifies the listener.
+     *
+     * @param reason The reason why we got disconnected.
+     * @param who The related BluetoothSocketIoThread instance.
+     */
+    @Override
+    public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+        Log.d(TAG, "onDisconnected: " + reason);
+        mIsClosed = true;
+        finishAllTransfers("Disconnected: " + reason, true);
+        mListener.onDisconnected(reason, this);
+    }
+
+    /**
+     * Calculates the checksum of a chunk.
+     *
+     * @param offset The offset of the chunk in the file.
+     * @param data The array containing the data of the chunk.
+     * @param dataOffset The offset of the data in the array.
+     * @param length The length of the data.
+     * @return The checksum.
+     */
+    static int calculateChecksum(long offset, byte[] data, int dataOffset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(ByteBuffer.allocate(8).putLong(offset).array());
+        crc32.update(data, dataOffset, length);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * Opens the destination file, resolves the offset to resume from and answers the peer.
+     *
+     * @param transferNumber The transfer number.
+     * @param frame The rest of the offer frame.
+     */
+    private void onTransferOffered(int transferNumber, ByteBuffer frame) {
+        if (frame.remaining() < 8 + 4 || mIncomingTransfers.containsKey(transferNumber)) {
+            Log.e(TAG, "onTransferOffered: Malformed offer or duplicate transfer number: " + transferNumber);
+            return;
+        }
+
+        final long fileSize = frame.getLong();
+        final int chunkSize = frame.getInt();
+        byte[] transferIdBytes = new byte[frame.remaining()];
+        frame.get(transferIdBytes);
+        final String transferId = new String(transferIdBytes, StandardCharsets.UTF_8);
+
+        if (fileSize < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE_IN_BYTES) {
+            Log.e(TAG, "onTransferOffered: Invalid file size (" + fileSize + ") or chunk size (" + chunkSize + ")");
+            writeControlFrame(FRAME_TYPE_REJECT, transferNumber, 0);
+            return;
+        }
+
+        File file = mListener.onTransferOffered(transferId, fileSize);
+
+        if (file == null) {
+            Log.d(TAG, "onTransferOffered: Transfer " + transferId + " rejected");
+            writeControlFrame(FRAME_TYPE_REJECT, transferNumber, 0);
+            return;
+        }
+
+        Transfer transfer = new Transfer(transferNumber, transferId, file, fileSize, chunkSize, true);
+
+        try {
+            transfer.mFileChannel = new RandomAccessFile(file, "rw").getChannel();
+            final long existingSize = transfer.mFileChannel.size();
+            long resumeOffset;
+
+            if (existingSize == fileSize) {
+                resumeOffset = fileSize;
+            } else if (existingSize > fileSize) {
+                // Not a part of this file
+                resumeOffset = 0;
+            } else {
+                // The last chunk may have been written only partially
+                resumeOffset = existingSize - existingSize % chunkSize;
+            }
+
+            transfer.mFileChannel.truncate(resumeOffset);
+            transfer.mResumeOffset = resumeOffset;
+            transfer.mNextOffset = resumeOffset;
+            transfer.mState = Transfer.State.IN_PROGRESS;
+        } catch (IOException e) {
+            Log.e(TAG, "onTransferOffered: Failed to open file " + file + ": " + e.getMessage(), e);
+            closeFileChannel(transfer);
+            writeControlFrame(FRAME_TYPE_REJECT, transferNumber, 0);
+            return;
+        }
+
+        Log.d(TAG, "onTransferOffered: Accepted " + transfer);
+        mIncomingTransfers.put(transferNumber, transfer);
+
+        if (!writeControlFrame(FRAME_TYPE_ACCEPT, transferNumber, transfer.mResumeOffset)) {
+            finishTransfer(transfer, false, "Failed to accept the transfer", true);
+        } else if (transfer.mResumeOffset == fileSize) {
+            finishTransfer(transfer, true, null, true);
+        }
+    }
+
+    /**
+     * Starts sending the file from the given offset.
+     *
+     * @param transfer The outgoing transfer.
+     * @param offset The offset to start from.
+     */
+    private void onTransferAccepted(Transfer transfer, long offset) {
+        synchronized (transfer) {
+            if (transfer.mState != Transfer.State.OFFERED || offset < 0 || offset > transfer.mFileSize) {
+                Log.e(TAG, "onTransferAccepted: Invalid acceptance of " + transfer + " at offset " + offset);
+                return;
+            }
+
+            transfer.mState = Transfer.State.IN_PROGRESS;
+            transfer.mResumeOffset = offset;
+            transfer.mNextOffset = offset;
+            transfer.mAcknowledgedOffset = offset;
+        }
+
+        Log.d(TAG, "onTransferAccepted: Sending " + transfer + " from offset " + offset);
+
+        if (offset == transfer.mFileSize) {
+            finishTransfer(transfer, true, null, true);
+        } else {
+            new SenderThread(transfer).start();
+        }
+    }
+
+    /**
+     * Verifies the received chunk and writes it to the destination file.
+     *
+     * @param transfer The incoming transfer.
+     * @param frame The rest of the chunk frame.
+     */
+    private void onChunkReceived(Transfer transfer, ByteBuffer frame) {
+        if (frame.remaining() < CHUNK_HEADER_SIZE_IN_BYTES - FRAME_PREFIX_SIZE_IN_BYTES) {
+            Log.e(TAG, "onChunkReceived: Malformed chunk frame");
+            return;
+        }
+
+        final long offset = frame.getLong();
+        final int checksum = frame.getInt();
+        final int length = frame.remaining();
+
+        if (offset != transfer.mNextOffset) {
+            if (offset > transfer.mNextOffset && transfer.mResendRequestedOffset != transfer.mNextOffset) {
+                // We have missed a chunk
+                requestResend(transfer);
+            }
+
+            // Either a duplicate or a chunk sent before the peer got our resend request
+            return;
+        }
+
+        if (length == 0 || length > transfer.mChunkSize || offset + length > transfer.mFileSize) {
+            if (finishTransfer(transfer, false, "Invalid chunk of " + length + " bytes at offset " + offset, true)) {
+                writeControlFrame(FRAME_TYPE_REJECT, transfer.mTransferNumber, 0);
+            }
+
+            return;
+        }
+
+        byte[] data;
+        int dataOffset;
+
+        if (frame.hasArray()) {
+            data = frame.array();
+            dataOffset = frame.arrayOffset() + frame.position();
+        } else {
+            data = new byte[length];
+            frame.duplicate().get(data);
+            dataOffset = 0;
+        }
+
+        if (calculateChecksum(offset, data, dataOffset, length) != checksum) {
+            Log.w(TAG, "onChunkReceived: Checksum mismatch in " + transfer + " at offset " + offset);
+
+            synchronized (transfer) {
+                transfer.mNumberOfChecksumFailures++;
+            }
+
+            requestResend(transfer);
+            return;
+        }
+
+        try {
+            ByteBuffer source = ByteBuffer.wrap(data, dataOffset, length);
+            long position = offset;
+
+            while (source.hasRemaining()) {
+                position += transfer.mFileChannel.write(source, position);
+            }
+
+            if (offset + length == transfer.mFileSize) {
+                transfer.mFileChannel.force(false);
+            }
+        } catch (IOException e) {
+            if (finishTransfer(transfer, false, "Failed to write to file: " + e.getMessage(), true)) {
+                writeControlFrame(FRAME_TYPE_REJECT, transfer.mTransferNumber, 0);
+            }
+
+            return;
+        }
+
+        synchronized (transfer) {
+            transfer.mNextOffset = offset + length;
+            transfer.mResendRequestedOffset = -1;
+        }
+
+        writeControlFrame(FRAME_TYPE_ACK, transfer.mTransferNumber, transfer.mNextOffset);
+        mListener.onTransferProgress(transfer);
+
+        if (transfer.mNextOffset == transfer.mFileSize) {
+            finishTransfer(transfer, true, null, true);
+        }
+    }
+
+    /**
+     * Records the acknowledged offset and lets the sender thread continue.
+     *
+     * @param transfer The outgoing transfer.
+     * @param offset The offset up to which the peer has the file.
+     */
+    private void onChunksAcknowledged(Transfer transfer, long offset) {
+        synchronized (transfer) {
+            if (offset <= transfer.mAcknowledgedOffset || offset > transfer.mFileSize) {
+                return;
+            }
+
+            transfer.mAcknowledgedOffset = offset;
+            transfer.notifyAll();
+        }
+
+        mListener.onTransferProgress(transfer);
+
+        if (offset == transfer.mFileSize) {
+            finishTransfer(transfer, true, null, true);
+        }
+    }
+
+    /**
+     * Asks the sender to resend the file from the offset we expect next.
+     *
+     * @param transfer The incoming transfer.
+     */
+    private void requestResend(Transfer transfer) {
+        transfer.mResendRequestedOffset = transfer.mNextOffset;
+        writeControlFrame(FRAME_TYPE_RESEND, transfer.mTransferNumber, transfer.mNextOffset);
+    }
+
+    /**
+     * Completes or fails the given transfer, if not finished already.
+     *
+     * @param transfer The transfer.
+     * @param wasSuccessful True, if the transfer completed. False, if it failed.
+     * @param reason The reason of the failure.
+     * @param notify If true, will notify the listener.
+     * @return True, if the transfer was finished by this call.
+     */
+    private boolean finishTransfer(Transfer transfer, boolean wasSuccessful, String reason, boolean notify) {
+        synchronized (transfer) {
+            if (transfer.isFinished()) {
+                return false;
+            }
+
+            transfer.mState = wasSuccessful ? Transfer.State.COMPLETED : Transfer.State.FAILED;
+            transfer.notifyAll();
+        }
+
+        (transfer.mIsIncoming ? mIncomingTransfers : mOutgoingTransfers).remove(transfer.mTransferNumber);
+        closeFileChannel(transfer);
+        Log.d(TAG, "finishTransfer: " + transfer + ((reason != null) ? ": " + reason : ""));
+
+        if (notify) {
+            if (wasSuccessful) {
+                mListener.onTransferCompleted(transfer);
+            } else {
+                mListener.onTransferFailed(transfer, reason);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Fails all the transfers.
+     *
+     * @param reason The reason of the failure.
+     * @param notify If true, will notify the listener.
+     */
+    private void finishAllTransfers(String reason, boolean notify) {
+        List<Transfer> transfers = new ArrayList<>(mOutgoingTransfers.values());
+        transfers.addAll(mIncomingTransfers.values());
+
+        for (Transfer transfer : transfers) {
+            finishTransfer(transfer, false, reason, notify);
+        }
+    }
+
+    /**
+     * @param transfer The transfer whose destination file to close, if open.
+     */
+    private void closeFileChannel(Transfer transfer) {
+        if (transfer.mFileChannel != null) {
+            try {
+                transfer.mFileChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closeFileChannel: Failed to close file " + transfer.mFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes a control frame to the socket.
+     *
+     * @param frameType The frame type.
+     * @param transferNumber The transfer number.
+     * @param offset The offset or zero, if not used by the frame type.
+     * @return True, if the frame was written successfully. False otherwise.
+     */
+    private boolean writeControlFrame(byte frameType, int transferNumber, long offset) {
+        return mBluetoothSocketIoThread.writeFrame(ByteBuffer.allocate(CONTROL_FRAME_SIZE_IN_BYTES)
+                .put(frameType).putInt(transferNumber).putLong(offset).array());
+    }
+
+    /**
+     * Sends the chunks of an outgoing transfer as long as the peer acknowledges them.
+     */
+    private class SenderThread extends Thread {
+        private final Transfer mTransfer;
+
+        SenderThread(Transfer transfer) {
+            super("FileTransferSession-" + transfer.mTransferNumber);
+            mTransfer = transfer;
+        }
+
+        @Override
+        public void run() {
+            Log.d(TAG, "Entering thread (ID: " + getId() + ")");
+            final long maxNumberOfBytesInFlight = (long) mTransfer.mChunkSize * mMaxNumberOfChunksInFlight;
+            final ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE_IN_BYTES);
+            final byte[] chunk = new byte[mTransfer.mChunkSize];
+            FileInputStream fileInputStream = null;
+            MappedByteBuffer mappedRegion = null;
+            long mappedRegionOffset = 0;
+            String failureReason = null;
+
+            try {
+                fileInputStream = new FileInputStream(mTransfer.mFile);
+                FileChannel fileChannel = fileInputStream.getChannel();
+
+                while (true) {
+                    long offset;
+                    int length;
+
+                    synchronized (mTransfer) {
+                        while (mTransfer.mState == Transfer.State.IN_PROGRESS
+                                && (mTransfer.mNextOffset >= mTransfer.mFileSize
+                                    || mTransfer.mNextOffset - mTransfer.mAcknowledgedOffset >= maxNumberOfBytesInFlight)) {
+                            mTransfer.wait();
+                        }
+
+                        if (mTransfer.mState != Transfer.State.IN_PROGRESS) {
+                            break;
+                        }
+
+                        offset = mTransfer.mNextOffset;
+                        length = (int) Math.min(mTransfer.mChunkSize, mTransfer.mFileSize - offset);
+                        mTransfer.mNextOffset += length;
+                    }
+
+                    if (mappedRegion == null || offset < mappedRegionOffset
+                            || offset + length > mappedRegionOffset + mappedRegion.capacity()) {
+                        mappedRegionOffset = offset;
+                        mappedRegion = fileChannel.map(FileChannel.MapMode.READ_ONLY, mappedRegionOffset,
+                                Math.min(MAPPED_REGION_SIZE_IN_BYTES, mTransfer.mFileSize - mappedRegionOffset));
+                    }
+
+                    mappedRegion.position((int) (offset - mappedRegionOffset));
+                    mappedRegion.get(chunk, 0, length);
+                    chunkHeader.clear();
+                    chunkHeader.put(FRAME_TYPE_CHUNK).putInt(mTransfer.mTransferNumber).putLong(offset)
+                            .putInt(calculateChecksum(offset, chunk, 0, length));
+                    chunkHeader.flip();
+
+                    if (!mBluetoothSocketIoThread.writeFrame(chunkHeader, ByteBuffer.wrap(chunk, 0, length))) {
+                        failureReason = "Failed to write the chunk at offset " + offset;
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                failureReason = "Failed to read the file: " + e.getMessage();
+            } catch (InterruptedException e) {
+                failureReason = "Interrupted";
+            } finally {
+                if (fileInputStream != null) {
+                    try {
+                        fileInputStream.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to close file " + mTransfer.mFile + ": " + e.getMessage());
+                    }
+                }
+            }
+
+            if (failureReason != null && finishTransfer(mTransfer, false, failureReason, true)) {
+                writeControlFrame(FRAME_TYPE_CANCEL, mTransfer.mTransferNumber, 0);
+            }
+
+            Log.d(TAG, "Exiting thread (ID: " + getId() + ")");
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+/**
+ * Bookkeeping for credit-based flow control of one direction pair of a stream.
+ *
+ * Both peers start with the same window size. The sender may send data as long as it has credits
+ * left and every byte sent consumes one credit. The receiver grants the credits back once the
+ * application has consumed the received bytes. To keep the number of credit messages low, the
+ * credits are granted in batches of at least half of the window.
+ *
+ * A frame may be sent if there is at least one credit left, even if the frame is larger than the
+ * remaining credits. This way frames larger than the window can still be sent and the number of
+ * bytes in flight is bounded by the window size plus the size of one frame.
+ */
+public class FlowControlWindow {
+    private final int mWindowSize;
+    private final int mGrantThreshold;
+    private long mSendCredits;
+    private long mReceiveCredits;
+    private int mNumberOfConsumedBytesNotGranted = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param windowSizeInBytes The window size in bytes.
+     * @throws IllegalArgumentException Thrown, if the window size is not positive.
+     */
+    public FlowControlWindow(int windowSizeInBytes) throws IllegalArgumentException {
+        if (windowSizeInBytes <= 0) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSizeInBytes);
+        }
+
+        mWindowSize = windowSizeInBytes;
+        mGrantThreshold = Math.max(1, windowSizeInBytes / 2);
+        mSendCredits = windowSizeInBytes;
+        mReceiveCredits = windowSizeInBytes;
+    }
+
+    /**
+     * @return The window size in bytes.
+     */
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * @return The number of bytes we can still send. Negative, if the last frame was larger than
+     * the remaining credits.
+     */
+    public synchronized long getSendCredits() {
+        return mSendCredits;
+    }
+
+    /**
+     * @return True, if we have credits left to send data.
+     */
+    public synchronized boolean isWritable() {
+        return (mSendCredits > 0);
+    }
+
+    /**
+     * Consumes the credits for sending the given number of bytes.
+     *
+     * @param numberOfBytes The number of bytes to send.
+     * @return True, if there were credits left and the bytes can be sent. False otherwise.
+     */
+    public synchronized boolean tryConsumeSendCredits(int numberOfBytes) {
+        if (mSendCredits <= 0) {
+            return false;
+        }
+
+        mSendCredits -= numberOfBytes;
+        return true;
+    }
+
+    /**
+     * Adds the credits granted by the peer.
+     *
+     * @param numberOfCredits The number of credits granted.
+     * @return True, if we were out of credits, but can send again now.
+     */
+    public synchronized boolean addSendCredits(int numberOfCredits) {
+        final boolean wasWritable = (mSendCredits > 0);
+        mSendCredits += numberOfCredits;
+        return (!wasWritable && mSendCredits > 0);
+    }
+
+    /**
+     * Accounts for the bytes received from the peer.
+     *
+     * @param numberOfBytes The number of bytes received.
+     * @return True, if the peer had credits to send the bytes. False, if the peer violated the
+     * flow control.
+     */
+    public synchronized boolean onBytesReceived(int numberOfBytes) {
+        if (mReceiveCredits <= 0) {
+            return false;
+        }
+
+        mReceiveCredits -= numberOfBytes;
+        return true;
+    }
+
+    /**
+     * Accounts for the bytes consumed by the application.
+     *
+     * @param numberOfBytes The number of bytes consumed.
+     * @return The number of credits to grant to the peer now or zero, if the credits should not be
+     * granted yet.
+     */
+    public synchronized int onBytesConsumed(int numberOfBytes) {
+        mNumberOfConsumedBytesNotGranted += numberOfBytes;
+
+        if (mNumberOfConsumedBytesNotGranted >= mGrantThreshold) {
+            final int numberOfCreditsToGrant = mNumberOfConsumedBytesNotGranted;
+            mNumberOfConsumedBytesNotGranted = 0;
+            mReceiveCredits += numberOfCreditsToGrant;
+            return numberOfCreditsToGrant;
+        }
+
+        return 0;
+    }
+}
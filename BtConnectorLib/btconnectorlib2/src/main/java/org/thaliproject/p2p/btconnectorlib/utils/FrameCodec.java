@@ -0,0 +1,404 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes length-prefixed frames.
+ *
+ * A frame consists of the length of the payload encoded as an unsigned varint (seven bits per
+ * byte, the least significant group first, the most significant bit of each byte set if more
+ * bytes follow) and the payload itself.
+ *
+ * The decoder reassembles frames split over several reads. A frame that is contained in a single
+ * read is passed to the listener as a view of the read buffer without copying it. Only fragmented
+ * frames are copied to a reassembly buffer leased from a buffer pool. The reassembly buffer is
+ * reused for the following frames unless the listener retains it (see retainCurrentFrameBuffer()).
+ */
+public class FrameCodec {
+    /**
+     * Decoder listener.
+     */
+    public interface Listener {
+        /**
+         * Called when a complete frame was decoded.
+         * Note that the buffer is only valid for the duration of the call. If the data is needed
+         * afterwards, it must either be copied or the buffer retained with
+         * retainCurrentFrameBuffer().
+         *
+         * @param frame The payload of the frame. The position of the buffer is zero and the limit
+         *              is the length of the payload.
+         */
+        void onFrameDecoded(ByteBuffer frame);
+    }
+
+    public static final int DEFAULT_MAX_FRAME_SIZE_IN_BYTES = 1024 * 1024;
+    public static final int MAX_HEADER_SIZE_IN_BYTES = 5;
+    private static final int MIN_REASSEMBLY_BUFFER_SIZE_IN_BYTES = 1024;
+    private static final int VARINT_VALUE_MASK = 0x7F;
+    private static final int VARINT_CONTINUATION_BIT = 0x80;
+    private static final int VARINT_MAX_SHIFT = 28;
+    private final Listener mListener;
+    private final int mMaxFrameSize;
+    private final ByteBufferPool mBufferPool;
+    private ByteBufferPool.Lease mReassemblyBufferLease = null;
+    private ByteBufferPool.Lease mSourceBufferLease = null; // The lease of the buffer being decoded, if any
+    private ByteBufferPool.Lease mCurrentFrameBufferLease = null; // Valid while the listener is being notified
+    private boolean mReassemblyBufferRetained = false;
+    private int mReassembledLength = 0;
+    private int mFrameLength = -1; // -1 while reading the header
+    private int mHeaderValue = 0;
+    private int mHeaderShift = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener notified when frames are decoded.
+     * @param maxFrameSize The maximum payload size of a frame in bytes. Larger frames are rejected.
+     * @throws NullPointerException Thrown, if the listener is null.
+     * @throws IllegalArgumentException Thrown, if the maximum frame size is not positive.
+     */
+    public FrameCodec(Listener listener, int maxFrameSize)
+            throws NullPointerException, IllegalArgumentException {
+        this(listener, maxFrameSize, new ByteBufferPool());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener notified when frames are decoded.
+     * @param maxFrameSize The maximum payload size of a frame in bytes. Larger frames are rejected.
+     * @param bufferPool The pool to lease the reassembly buffers from.
+     * @throws NullPointerException Thrown, if the listener or the buffer pool is null.
+     * @throws IllegalArgumentException Thrown, if the maximum frame size is not positive.
+     */
+    public FrameCodec(Listener listener, int maxFrameSize, ByteBufferPool bufferPool)
+            throws NullPointerException, IllegalArgumentException {
+        if (listener == null || bufferPool == null) {
+            throw new NullPointerException("Either the listener or the buffer pool is null");
+        }
+
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("Invalid maximum frame size: " + maxFrameSize);
+        }
+
+        mListener = listener;
+        mMaxFrameSize = maxFrameSize;
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * @return The maximum payload size of a frame in bytes.
+     */
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /**
+     * @return True, if the decoder has received a part of a frame, but not the whole frame yet.
+     */
+    public boolean hasPartialFrame() {
+        return (mFrameLength >= 0 || mHeaderShift > 0);
+    }
+
+    /**
+     * Retains the buffer of the frame currently being passed to the listener. This allows the
+     * listener to keep the frame beyond the callback without copying it. Must only be called from
+     * within Listener.onFrameDecoded.
+     *
+     * @return A lease holding a reference to the buffer of the current frame, which the caller
+     * must release once done with the frame, or null, if the buffer is not pooled (the bytes were
+     * decoded from an array not associated with a lease) or if not called during a callback.
+     */
+    public ByteBufferPool.Lease retainCurrentFrameBuffer() {
+        ByteBufferPool.Lease lease = mCurrentFrameBufferLease;
+
+        if (lease != null) {
+            lease.retain();
+
+            if (lease == mReassemblyBufferLease) {
+                // Do not write over the retained frame, use a new buffer for the next one
+                mReassemblyBufferRetained = true;
+            }
+        }
+
+        return lease;
+    }
+
+    /**
+     * Releases the reassembly buffer. Any partial frame is discarded.
+     */
+    public void release() {
+        if (mReassemblyBufferLease != null) {
+            mReassemblyBufferLease.release();
+            mReassemblyBufferLease = null;
+        }
+
+        mReassembledLength = 0;
+        mFrameLength = -1;
+        mHeaderValue = 0;
+        mHeaderShift = 0;
+    }
+
+    /**
+     * Decodes the bytes in the given leased buffer. The listener is notified for each complete
+     * frame. Frames contained in the given buffer are passed to the listener as views of it and can
+     * be retained with retainCurrentFrameBuffer().
+     *
+     * @param lease The lease of the buffer containing the bytes to decode.
+     * @param offset The offset of the first byte to decode.
+     * @param length The number of bytes to decode.
+     * @throws IOException Thrown, if the frame header is malformed or if the frame is larger than
+     *                     the maximum frame size. The decoder is no longer in valid state after
+     *                     this and must be disposed of.
+     */
+    public void decode(ByteBufferPool.Lease lease, int offset, int length) throws IOException {
+        mSourceBufferLease = lease;
+
+        try {
+            decode(lease.array(), offset, length);
+        } finally {
+            mSourceBufferLease = null;
+        }
+    }
+
+    /**
+     * Decodes the given bytes. The listener is notified for each complete frame.
+     *
+     * @param bytes The bytes to decode.
+     * @param offset The offset of the first byte to decode.
+     * @param length The number of bytes to decode.
+     * @throws IOException Thrown, if the frame header is malformed or if the frame is larger than
+     *                     the maximum frame size. The decoder is no longer in valid state after
+     *                     this and must be disposed of.
+     */
+    public void decode(byte[] bytes, int offset, int length) throws IOException {
+        int position = offset;
+        final int end = offset + length;
+
+        while (position < end) {
+            if (mFrameLength < 0) {
+                position = decodeHeaderByte(bytes[position], position);
+            } else if (mReassembledLength == 0 && end - position >= mFrameLength) {
+                // The whole frame is in the given buffer, no need to copy
+                final int frameLength = mFrameLength;
+                mFrameLength = -1;
+                notifyListener(ByteBuffer.wrap(bytes, position, frameLength).slice(), mSourceBufferLease);
+                position += frameLength;
+            } else {
+                ensureReassemblyBufferCapacity(mFrameLength);
+                int numberOfBytesToCopy = Math.min(mFrameLength - mReassembledLength, end - position);
+                System.arraycopy(bytes, position, mReassemblyBufferLease.array(), mReassembledLength, numberOfBytesToCopy);
+                mReassembledLength += numberOfBytesToCopy;
+                position += numberOfBytesToCopy;
+
+                if (mReassembledLength == mFrameLength) {
+                    final int frameLength = mFrameLength;
+                    mFrameLength = -1;
+                    mReassembledLength = 0;
+                    notifyListener(mReassemblyBufferLease.getByteBuffer(0, frameLength), mReassemblyBufferLease);
+
+                    if (mReassemblyBufferRetained) {
+                        // The listener kept the buffer, drop our reference to it
+                        mReassemblyBufferRetained = false;
+                        mReassemblyBufferLease.release();
+                        mReassemblyBufferLease = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param payloadLength The length of the payload.
+     * @return The size of the frame header in bytes for the given payload length.
+     */
+    public static int getHeaderSize(int payloadLength) {
+        int headerSize = 1;
+
+        while ((payloadLength & ~VARINT_VALUE_MASK) != 0) {
+            payloadLength >>>= 7;
+            headerSize++;
+        }
+
+        return headerSize;
+    }
+
+    /**
+     * Reads an unsigned varint (the format of the frame header) from the given buffer.
+     *
+     * @param byteBuffer The buffer to read from. The position is advanced past the varint.
+     * @return The value.
+     * @throws IOException Thrown, if the varint is malformed or truncated.
+     */
+    public static int readVarint(ByteBuffer byteBuffer) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte currentByte;
+
+        do {
+            if (shift > VARINT_MAX_SHIFT || !byteBuffer.hasRemaining()) {
+                throw new IOException("Malformed varint");
+            }
+
+            currentByte = byteBuffer.get();
+            value |= (currentByte & VARINT_VALUE_MASK) << shift;
+            shift += 7;
+        } while ((currentByte & VARINT_CONTINUATION_BIT) != 0);
+
+        return value;
+    }
+
+    /**
+     * Writes the frame header for the given payload length to the given array.
+     *
+     * @param payloadLength The length of the payload.
+     * @param destination The array to write to.
+     * @param offset The offset in the array where to write the header.
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException Thrown, if the payload length is negative.
+     */
+    public static int writeHeader(int payloadLength, byte[] destination, int offset)
+            throws IllegalArgumentException {
+        if (payloadLength < 0) {
+            throw new IllegalArgumentException("Invalid payload length: " + payloadLength);
+        }
+
+        int position = offset;
+
+        while ((payloadLength & ~VARINT_VALUE_MASK) != 0) {
+            destination[position++] = (byte) ((payloadLength & VARINT_VALUE_MASK) | VARINT_CONTINUATION_BIT);
+            payloadLength >>>= 7;
+        }
+
+        destination[position++] = (byte) payloadLength;
+        return position - offset;
+    }
+
+    /**
+     * Creates a frame containing the given payload.
+     *
+     * @param payload The array containing the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     * @return A new array containing the frame header followed by the payload.
+     */
+    public static byte[] encode(byte[] payload, int offset, int length) {
+        byte[] frame = new byte[getHeaderSize(length) + length];
+        int headerSize = writeHeader(length, frame, 0);
+        System.arraycopy(payload, offset, frame, headerSize, length);
+        return frame;
+    }
+
+    /**
+     * Creates a frame whose payload consists of the given type byte followed by the given bytes.
+     *
+     * @param type The type byte.
+     * @param payload The array containing the rest of the payload.
+     * @param offset The offset of the rest of the payload in the array.
+     * @param length The length of the rest of the payload.
+     * @return A new array containing the frame header, the type byte and the rest of the payload.
+     */
+    public static byte[] encode(byte type, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[getHeaderSize(length + 1) + length + 1];
+        int headerSize = writeHeader(length + 1, frame, 0);
+        frame[headerSize] = type;
+        System.arraycopy(payload, offset, frame, headerSize + 1, length);
+        return frame;
+    }
+
+    /**
+     * Creates a frame containing the given payload.
+     *
+     * @param payload The payload.
+     * @return A new array containing the frame header followed by the payload.
+     */
+    public static byte[] encode(byte[] payload) {
+        return encode(payload, 0, payload.length);
+    }
+
+    /**
+     * Decodes one byte of the frame header.
+     *
+     * @param headerByte The byte to decode.
+     * @param position The position of the byte in the buffer being decoded.
+     * @return The position of the next byte to decode.
+     * @throws IOException Thrown, if the header is malformed or the frame is too large.
+     */
+    private int decodeHeaderByte(byte headerByte, int position) throws IOException {
+        mHeaderValue |= (headerByte & VARINT_VALUE_MASK) << mHeaderShift;
+
+        if ((headerByte & VARINT_CONTINUATION_BIT) != 0) {
+            mHeaderShift += 7;
+
+            if (mHeaderShift > VARINT_MAX_SHIFT) {
+                throw new IOException("Malformed frame header");
+            }
+        } else {
+            final int frameLength = mHeaderValue;
+            mHeaderValue = 0;
+            mHeaderShift = 0;
+
+            if (frameLength < 0 || frameLength > mMaxFrameSize) {
+                throw new IOException("Frame too large: " + (frameLength & 0xFFFFFFFFL)
+                        + " bytes, the maximum frame size is " + mMaxFrameSize + " bytes");
+            }
+
+            if (frameLength == 0) {
+                notifyListener(ByteBuffer.allocate(0), null);
+            } else {
+                mFrameLength = frameLength;
+            }
+        }
+
+        return position + 1;
+    }
+
+    /**
+     * Notifies the listener about a decoded frame.
+     *
+     * @param frame The payload of the frame.
+     * @param frameBufferLease The lease of the buffer containing the frame or null, if none.
+     */
+    private void notifyListener(ByteBuffer frame, ByteBufferPool.Lease frameBufferLease) {
+        mCurrentFrameBufferLease = frameBufferLease;
+
+        try {
+            mListener.onFrameDecoded(frame);
+        } finally {
+            mCurrentFrameBufferLease = null;
+        }
+    }
+
+    /**
+     * Makes sure the reassembly buffer can hold a frame of the given size. The buffer size is a
+     * power of two, but never larger than the maximum frame size.
+     *
+     * @param frameLength The length of the frame to reassemble.
+     */
+    private void ensureReassemblyBufferCapacity(int frameLength) {
+        if (mReassemblyBufferLease == null || mReassemblyBufferLease.capacity() < frameLength) {
+            long newSize = MIN_REASSEMBLY_BUFFER_SIZE_IN_BYTES;
+
+            while (newSize < frameLength) {
+                newSize <<= 1;
+            }
+
+            // The frame length has already been checked against the maximum frame size
+            ByteBufferPool.Lease newLease = mBufferPool.lease((int) Math.min(newSize, mMaxFrameSize));
+
+            if (mReassemblyBufferLease != null) {
+                if (mReassembledLength > 0) {
+                    System.arraycopy(mReassemblyBufferLease.array(), 0, newLease.array(), 0, mReassembledLength);
+                }
+
+                mReassemblyBufferLease.release();
+            }
+
+            mReassemblyBufferLease = newLease;
+        }
+    }
+}
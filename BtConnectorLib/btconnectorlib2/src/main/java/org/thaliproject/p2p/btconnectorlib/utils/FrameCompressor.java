@@ -0,0 +1,242 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses frame payloads with Deflater.
+ *
+ * Every payload is compressed independently using a preset dictionary of strings common in our
+ * JSON payloads, so that even small frames compress well and the frames can be decompressed in
+ * any order. A compressed block consists of the uncompressed length encoded as a varint (see
+ * FrameCodec) followed by the deflated data.
+ *
+ * Payloads that are too small or do not compress well enough are not compressed (compress()
+ * returns null). If several consecutive payloads turn out incompressible (e.g. when transferring
+ * media files), the compressor stops trying for a number of frames, which grows exponentially
+ * while the data stays incompressible.
+ */
+public class FrameCompressor {
+    public static final int DEFAULT_MIN_PAYLOAD_SIZE_TO_COMPRESS_IN_BYTES = 64;
+    public static final byte[] DEFAULT_DICTIONARY = (
+            "{\"name\":\"address\":\"_id\":\"_rev\":\"_deleted\":true,\"_attachments\":{\"content_type\":"
+            + "\"application/json\",\"digest\":\"md5-\",\"length\":\"stub\":true,\"revpos\":"
+            + "\"docs\":[{\"seq\":\"changes\":[{\"rev\":\"results\":[\"last_seq\":\"type\":\"value\":"
+            + "\"key\":\"data\":\"timestamp\":\"id\":false,null,\"\"},{\"}]}").getBytes(StandardCharsets.UTF_8);
+    private static final double MAX_COMPRESSION_RATIO = 0.9; // Must save at least 10 %
+    private static final int NUMBER_OF_INCOMPRESSIBLE_FRAMES_BEFORE_BYPASS = 3;
+    private static final int MIN_NUMBER_OF_FRAMES_TO_BYPASS = 8;
+    private static final int MAX_NUMBER_OF_FRAMES_TO_BYPASS = 1024;
+    private final Deflater mDeflater;
+    private final Inflater mInflater = new Inflater();
+    private final byte[] mDictionary;
+    private final int mMinPayloadSizeToCompress;
+    private byte[] mDeflateBuffer = new byte[1024];
+    private int mNumberOfConsecutiveIncompressibleFrames = 0;
+    private int mNumberOfFramesToBypass = MIN_NUMBER_OF_FRAMES_TO_BYPASS;
+    private int mNumberOfFramesLeftToBypass = 0;
+    private long mNumberOfFramesCompressed = 0;
+    private long mNumberOfFramesNotCompressed = 0;
+    private long mNumberOfBytesBeforeCompression = 0;
+    private long mNumberOfBytesAfterCompression = 0;
+    private long mCompressionTimeInNanoseconds = 0;
+    private boolean mIsEnded = false;
+
+    /**
+     * Constructor. Uses the default compression level and dictionary.
+     */
+    public FrameCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION, DEFAULT_DICTIONARY, DEFAULT_MIN_PAYLOAD_SIZE_TO_COMPRESS_IN_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param compressionLevel The compression level (see Deflater).
+     * @param dictionary The preset dictionary or null, if none. Both peers must use the same one.
+     * @param minPayloadSizeToCompress The minimum size of a payload to try to compress.
+     */
+    public FrameCompressor(int compressionLevel, byte[] dictionary, int minPayloadSizeToCompress) {
+        mDeflater = new Deflater(compressionLevel);
+        mDictionary = dictionary;
+        mMinPayloadSizeToCompress = minPayloadSizeToCompress;
+    }
+
+    /**
+     * Compresses the given payload.
+     *
+     * @param payload The array containing the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     * @return A new array containing the compressed block or null, if the payload was not
+     * compressed (too small, incompressible or currently bypassed).
+     */
+    public synchronized byte[] compress(byte[] payload, int offset, int length) {
+        if (mIsEnded || length < mMinPayloadSizeToCompress || mNumberOfFramesLeftToBypass > 0) {
+            if (mNumberOfFramesLeftToBypass > 0) {
+                mNumberOfFramesLeftToBypass--;
+            }
+
+            mNumberOfFramesNotCompressed++;
+            return null;
+        }
+
+        final long startTime = System.nanoTime();
+        final int maxCompressedLength = (int) (length * MAX_COMPRESSION_RATIO);
+        final int headerSize = FrameCodec.getHeaderSize(length);
+
+        if (mDeflateBuffer.length < maxCompressedLength + 1) {
+            mDeflateBuffer = new byte[maxCompressedLength + 1];
+        }
+
+        mDeflater.reset();
+
+        if (mDictionary != null) {
+            mDeflater.setDictionary(mDictionary);
+        }
+
+        mDeflater.setInput(payload, offset, length);
+        mDeflater.finish();
+        int compressedLength = 0;
+
+        // Stop as soon as the output exceeds the limit
+        while (!mDeflater.finished() && compressedLength <= maxCompressedLength) {
+            compressedLength += mDeflater.deflate(mDeflateBuffer, compressedLength,
+                    maxCompressedLength + 1 - compressedLength);
+        }
+
+        byte[] compressedBlock = null;
+
+        if (mDeflater.finished() && compressedLength + headerSize <= maxCompressedLength) {
+            compressedBlock = new byte[headerSize + compressedLength];
+            FrameCodec.writeHeader(length, compressedBlock, 0);
+            System.arraycopy(mDeflateBuffer, 0, compressedBlock, headerSize, compressedLength);
+            mNumberOfConsecutiveIncompressibleFrames = 0;
+            mNumberOfFramesToBypass = MIN_NUMBER_OF_FRAMES_TO_BYPASS;
+            mNumberOfFramesCompressed++;
+            mNumberOfBytesBeforeCompression += length;
+            mNumberOfBytesAfterCompression += compressedBlock.length;
+        } else {
+            mNumberOfFramesNotCompressed++;
+
+            if (++mNumberOfConsecutiveIncompressibleFrames >= NUMBER_OF_INCOMPRESSIBLE_FRAMES_BEFORE_BYPASS) {
+                mNumberOfFramesLeftToBypass = mNumberOfFramesToBypass;
+                mNumberOfFramesToBypass = Math.min(mNumberOfFramesToBypass * 2, MAX_NUMBER_OF_FRAMES_TO_BYPASS);
+                mNumberOfConsecutiveIncompressibleFrames = 0;
+            }
+        }
+
+        mCompressionTimeInNanoseconds += System.nanoTime() - startTime;
+        return compressedBlock;
+    }
+
+    /**
+     * Reads the uncompressed length of the given compressed block without consuming it.
+     *
+     * @param compressedBlock The compressed block.
+     * @return The uncompressed length.
+     * @throws IOException Thrown, if the block is malformed.
+     */
+    public static int getUncompressedLength(ByteBuffer compressedBlock) throws IOException {
+        return FrameCodec.readVarint(compressedBlock.duplicate());
+    }
+
+    /**
+     * Decompresses the given compressed block.
+     *
+     * @param compressedBlock The compressed block. Must be backed by an array.
+     * @param destination The array to decompress to. Must have room for the uncompressed length
+     *                    (see getUncompressedLength()).
+     * @return The uncompressed length.
+     * @throws IOException Thrown, if the block is malformed, if the destination is too small or if
+     * the compressor has been ended.
+     */
+    public synchronized int decompress(ByteBuffer compressedBlock, byte[] destination) throws IOException {
+        if (mIsEnded) {
+            throw new IOException("The compressor has been ended");
+        }
+
+        ByteBuffer block = compressedBlock.duplicate();
+        final int uncompressedLength = FrameCodec.readVarint(block);
+
+        if (uncompressedLength < 0 || uncompressedLength > destination.length) {
+            throw new IOException("Invalid uncompressed length: " + uncompressedLength);
+        }
+
+        mInflater.reset();
+        mInflater.setInput(block.array(), block.arrayOffset() + block.position(), block.remaining());
+        int numberOfBytesInflated = 0;
+
+        try {
+            while (numberOfBytesInflated < uncompressedLength && !mInflater.finished()) {
+                int numberOfBytes = mInflater.inflate(destination, numberOfBytesInflated,
+                        uncompressedLength - numberOfBytesInflated);
+
+                if (numberOfBytes == 0) {
+                    if (mInflater.needsDictionary() && mDictionary != null) {
+                        mInflater.setDictionary(mDictionary);
+                    } else if (mInflater.needsInput() || mInflater.needsDictionary()) {
+                        throw new IOException("Truncated compressed block");
+                    }
+                }
+
+                numberOfBytesInflated += numberOfBytes;
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException("Malformed compressed block: " + e.getMessage());
+        }
+
+        if (numberOfBytesInflated != uncompressedLength || !mInflater.finished()) {
+            throw new IOException("Compressed block does not match its length: " + uncompressedLength);
+        }
+
+        return uncompressedLength;
+    }
+
+    /**
+     * @return The number of payloads compressed.
+     */
+    public synchronized long getNumberOfFramesCompressed() {
+        return mNumberOfFramesCompressed;
+    }
+
+    /**
+     * @return The number of payloads sent uncompressed (too small, incompressible or bypassed).
+     */
+    public synchronized long getNumberOfFramesNotCompressed() {
+        return mNumberOfFramesNotCompressed;
+    }
+
+    /**
+     * @return The ratio of compressed to uncompressed bytes of the compressed payloads or 1, if
+     * nothing has been compressed.
+     */
+    public synchronized double getCompressionRatio() {
+        return (mNumberOfBytesBeforeCompression > 0)
+                ? (double) mNumberOfBytesAfterCompression / mNumberOfBytesBeforeCompression : 1d;
+    }
+
+    /**
+     * @return The total time spent compressing (including attempts on incompressible payloads).
+     */
+    public synchronized long getCompressionTimeInNanoseconds() {
+        return mCompressionTimeInNanoseconds;
+    }
+
+    /**
+     * Releases the native resources of the compressor. After this, compress() no longer compresses
+     * anything and decompress() fails.
+     */
+    public synchronized void end() {
+        mIsEnded = true;
+        mDeflater.end();
+        mInflater.end();
+    }
+}
@@ -0,0 +1,266 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the handshakes of the incoming connections on a fixed number of worker threads instead of
+ * a thread per connection.
+ *
+ * The handshakes waiting for a worker are queued up to the given maximum, after which new ones
+ * are rejected, so a burst of connections cannot exhaust the threads or the memory. Each
+ * handshake has a deadline counted from the moment it was queued: A peer, which does not complete
+ * the handshake in time (e.g. a slow or a malicious one holding the connection open), is reported
+ * to the listener so that the owner can close the socket, which also frees the worker blocked on
+ * reading it.
+ *
+ * The time the handshakes spend in the queue is recorded in a histogram, see
+ * getQueueWaitTimeHistogram(). A growing wait time means the pool is too small for the load.
+ */
+public class HandshakeExecutor {
+    /**
+     * Listener interface.
+     */
+    public interface Listener {
+        /**
+         * Called when a handshake did not complete before its deadline. Called in the timer
+         * thread of the executor. The listener is responsible for closing the handshake socket,
+         * unless the handshake completed in the meanwhile.
+         *
+         * @param handshakeThread The socket IO thread of the timed out handshake.
+         */
+        void onHandshakeTimeout(BluetoothSocketIoThread handshakeThread);
+    }
+
+    private static final String TAG = HandshakeExecutor.class.getName();
+    public static final int DEFAULT_NUMBER_OF_WORKER_THREADS = 4;
+    public static final int DEFAULT_MAX_NUMBER_OF_PENDING_HANDSHAKES = 16;
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS = 10000;
+    private final ThreadPoolExecutor mWorkerPool;
+    private final ScheduledExecutorService mTimer;
+    private final long mHandshakeTimeoutInMilliseconds;
+    private final CompactHistogram mQueueWaitTimeHistogram = new CompactHistogram();
+    private final AtomicLong mNumberOfCompletedHandshakes = new AtomicLong();
+    private final AtomicLong mNumberOfRejectedHandshakes = new AtomicLong();
+    private final AtomicLong mNumberOfTimedOutHandshakes = new AtomicLong();
+
+    /**
+     * Constructor.
+     */
+    public HandshakeExecutor() {
+        this(DEFAULT_NUMBER_OF_WORKER_THREADS, DEFAULT_MAX_NUMBER_OF_PENDING_HANDSHAKES,
+                DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param numberOfWorkerThreads The number of handshakes run at the same time.
+     * @param maxNumberOfPendingHandshakes The maximum number of handshakes waiting for a worker.
+     * @param handshakeTimeoutInMilliseconds The time a handshake may take including the time
+     *                                       waiting for a worker.
+     * @throws IllegalArgumentException Thrown, if any of the values is not positive.
+     */
+    public HandshakeExecutor(
+            int numberOfWorkerThreads, int maxNumberOfPendingHandshakes, long handshakeTimeoutInMilliseconds)
+            throws IllegalArgumentException {
+        if (numberOfWorkerThreads <= 0 || maxNumberOfPendingHandshakes <= 0 || handshakeTimeoutInMilliseconds <= 0) {
+            throw new IllegalArgumentException("Invalid number of worker threads (" + numberOfWorkerThreads
+                    + "), maximum number of pending handshakes (" + maxNumberOfPendingHandshakes
+                    + ") or handshake timeout (" + handshakeTimeoutInMilliseconds + ")");
+        }
+
+        mHandshakeTimeoutInMilliseconds = handshakeTimeoutInMilliseconds;
+        mWorkerPool = new ThreadPoolExecutor(numberOfWorkerThreads, numberOfWorkerThreads,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxNumberOfPendingHandshakes),
+                new DaemonThreadFactory("HandshakeWorker"));
+        mTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("HandshakeTimer"));
+    }
+
+    /**
+     * Queues the given handshake. The socket IO thread is run in a worker thread i.e. its run()
+     * method is called instead of starting it, so the thread should be set to exit after the
+     * handshake message has been read (see BluetoothSocketIoThread.setExitThreadAfterRead()).
+     *
+     * @param handshakeThread The socket IO thread of the handshake. Must not be started.
+     * @param listener The listener notified, if the handshake times out.
+     * @return True, if queued. False, if the queue is full or the executor has been shut down, in
+     * which case the caller is responsible for closing the socket.
+     * @throws NullPointerException Thrown, if either of the arguments is null.
+     */
+    public boolean execute(final BluetoothSocketIoThread handshakeThread, final Listener listener)
+            throws NullPointerException {
+        if (handshakeThread == null || listener == null) {
+            throw new NullPointerException("Either the handshake thread or the listener is null");
+        }
+
+        final HandshakeTask task = new HandshakeTask(handshakeThread, listener);
+
+        try {
+            synchronized (task) {
+                mWorkerPool.execute(task);
+                task.mTimeoutFuture = mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.onTimeout();
+                    }
+                }, mHandshakeTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            mNumberOfRejectedHandshakes.incrementAndGet();
+            Log.w(TAG, "execute: Handshake rejected (thread ID: " + handshakeThread.getId()
+                    + "), " + getNumberOfPendingHandshakes() + " pending");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops the workers and the timer. The handshakes still in the queue are dropped without
+     * notifying the listener, while the running ones are left to finish. The executor cannot be
+     * restarted.
+     */
+    public void shutdown() {
+        Log.d(TAG, "shutdown: " + toString());
+        mWorkerPool.shutdownNow();
+        mTimer.shutdownNow();
+    }
+
+    /**
+     * Stops accepting new handshakes, but lets the queued and the running ones finish or time
+     * out as usual, after which the workers and the timer exit. Use when replacing the executor,
+     * while the owner of the handshake sockets keeps running. The executor cannot be restarted.
+     */
+    public void shutdownGracefully() {
+        Log.d(TAG, "shutdownGracefully: " + toString());
+        mWorkerPool.shutdown();
+        mTimer.shutdown(); // The pending timeouts are still run
+    }
+
+    public long getHandshakeTimeout() {
+        return mHandshakeTimeoutInMilliseconds;
+    }
+
+    /**
+     * @return The number of handshakes waiting for a worker.
+     */
+    public int getNumberOfPendingHandshakes() {
+        return mWorkerPool.getQueue().size();
+    }
+
+    /**
+     * @return The number of handshakes run to the end before their deadline.
+     */
+    public long getNumberOfCompletedHandshakes() {
+        return mNumberOfCompletedHandshakes.get();
+    }
+
+    /**
+     * @return The number of handshakes rejected, because the queue was full.
+     */
+    public long getNumberOfRejectedHandshakes() {
+        return mNumberOfRejectedHandshakes.get();
+    }
+
+    /**
+     * @return The number of handshakes, which did not complete before their deadline.
+     */
+    public long getNumberOfTimedOutHandshakes() {
+        return mNumberOfTimedOutHandshakes.get();
+    }
+
+    /**
+     * @return The histogram of the time the handshakes waited for a worker in nanoseconds.
+     */
+    public CompactHistogram getQueueWaitTimeHistogram() {
+        return mQueueWaitTimeHistogram;
+    }
+
+    @Override
+    public String toString() {
+        return "[completed: " + getNumberOfCompletedHandshakes() + ", rejected: " + getNumberOfRejectedHandshakes()
+                + ", timed out: " + getNumberOfTimedOutHandshakes() + ", pending: " + getNumberOfPendingHandshakes()
+                + ", queue wait time (ns): " + mQueueWaitTimeHistogram + "]";
+    }
+
+    /**
+     * A queued handshake. The handshake ends either by running to the end or by timing out,
+     * whichever happens first.
+     */
+    private class HandshakeTask implements Runnable {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_COMPLETED = 1;
+        private static final int STATE_TIMED_OUT = 2;
+        private final BluetoothSocketIoThread mHandshakeThread;
+        private final Listener mListener;
+        private final long mQueueTimeInNanoseconds = System.nanoTime();
+        private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+        private ScheduledFuture<?> mTimeoutFuture = null;
+
+        HandshakeTask(BluetoothSocketIoThread handshakeThread, Listener listener) {
+            mHandshakeThread = handshakeThread;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            mQueueWaitTimeHistogram.record(System.nanoTime() - mQueueTimeInNanoseconds);
+
+            if (mState.get() == STATE_PENDING) {
+                // Blocks until the handshake message has been read or the socket closed
+                mHandshakeThread.run();
+            }
+
+            if (mState.compareAndSet(STATE_PENDING, STATE_COMPLETED)) {
+                mNumberOfCompletedHandshakes.incrementAndGet();
+
+                synchronized (this) {
+                    if (mTimeoutFuture != null) {
+                        mTimeoutFuture.cancel(false);
+                    }
+                }
+            }
+        }
+
+        void onTimeout() {
+            if (mState.compareAndSet(STATE_PENDING, STATE_TIMED_OUT)) {
+                mNumberOfTimedOutHandshakes.incrementAndGet();
+                Log.w(TAG, "Handshake timeout after " + mHandshakeTimeoutInMilliseconds
+                        + " ms (thread ID: " + mHandshakeThread.getId() + ")");
+                mListener.onHandshakeTimeout(mHandshakeThread);
+            }
+        }
+    }
+
+    /**
+     * Creates named daemon threads so that the executor never keeps the process alive.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mNumberOfThreads = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mNumberOfThreads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-band keepalive of a connection: Pings the peer at a fixed interval, measures the round-trip
+ * time from the pongs and detects a dead peer, when nothing has been received for the given number
+ * of intervals. This detects a peer, which walked out of range, in seconds, while the blocking
+ * read of the socket may take minutes to fail.
+ *
+ * Anything received from the peer counts as a sign of life, so a busy connection is never timed
+ * out because of a pong stuck behind bulk data. The round-trip time is smoothed the same way as
+ * in TCP (RFC 6298).
+ *
+ * The intervals of all the connections are timed by one shared scheduler thread. The pings are
+ * written in a separate pool so that a write blocked on a dead link cannot delay the keepalive of
+ * the other connections. See BluetoothSocketIoThread.setKeepAlive().
+ */
+public class KeepAlive {
+    /**
+     * The connection side of the keepalive.
+     */
+    interface Callback {
+        /**
+         * Writes a ping to the peer. Called in a pool thread.
+         *
+         * @param pingTimeInNanoseconds The payload of the ping, which the peer echoes in the pong.
+         * @throws IOException Thrown, if the write failed.
+         */
+        void sendPing(long pingTimeInNanoseconds) throws IOException;
+
+        /**
+         * Called when nothing has been received from the peer for the maximum number of intervals.
+         * The keepalive is stopped before this is called.
+         *
+         * @param reason The description of the timeout.
+         */
+        void onTimeout(String reason);
+    }
+
+    private static final String TAG = KeepAlive.class.getName();
+    private static final long MAX_VALID_ROUND_TRIP_TIME_IN_NANOSECONDS = TimeUnit.MINUTES.toNanos(1);
+    private static ScheduledExecutorService mScheduler = null;
+    private static ExecutorService mPingWriterPool = null;
+    private final long mIntervalInMilliseconds;
+    private final int mMaxNumberOfMissedIntervals;
+    private final AtomicInteger mNumberOfMissedIntervals = new AtomicInteger();
+    private final AtomicBoolean mIsPingWritePending = new AtomicBoolean();
+    private final AtomicLong mNumberOfPingsSent = new AtomicLong();
+    private final AtomicLong mNumberOfPongsReceived = new AtomicLong();
+    private ScheduledFuture<?> mScheduledFuture = null;
+    private long mLastRoundTripTimeInNanoseconds = -1;
+    private long mSmoothedRoundTripTimeInNanoseconds = -1;
+    private long mRoundTripTimeVariationInNanoseconds = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param intervalInMilliseconds The ping interval.
+     * @param maxNumberOfMissedIntervals The number of consecutive intervals without receiving
+     *                                   anything after which the peer is considered dead.
+     * @throws IllegalArgumentException Thrown, if either of the values is not positive.
+     */
+    public KeepAlive(long intervalInMilliseconds, int maxNumberOfMissedIntervals) throws IllegalArgumentException {
+        if (intervalInMilliseconds <= 0 || maxNumberOfMissedIntervals <= 0) {
+            throw new IllegalArgumentException("Invalid interval (" + intervalInMilliseconds
+                    + ") or maximum number of missed intervals (" + maxNumberOfMissedIntervals + ")");
+        }
+
+        mIntervalInMilliseconds = intervalInMilliseconds;
+        mMaxNumberOfMissedIntervals = maxNumberOfMissedIntervals;
+    }
+
+    public long getInterval() {
+        return mIntervalInMilliseconds;
+    }
+
+    public int getMaxNumberOfMissedIntervals() {
+        return mMaxNumberOfMissedIntervals;
+    }
+
+    /**
+     * @return The smoothed round-trip time in milliseconds or -1, if not measured yet.
+     */
+    public synchronized double getSmoothedRoundTripTimeInMilliseconds() {
+        return toMilliseconds(mSmoothedRoundTripTimeInNanoseconds);
+    }
+
+    /**
+     * @return The variation of the round-trip time in milliseconds or -1, if not measured yet.
+     */
+    public synchronized double getRoundTripTimeVariationInMilliseconds() {
+        return toMilliseconds(mRoundTripTimeVariationInNanoseconds);
+    }
+
+    /**
+     * @return The latest round-trip time in milliseconds or -1, if not measured yet.
+     */
+    public synchronized double getLastRoundTripTimeInMilliseconds() {
+        return toMilliseconds(mLastRoundTripTimeInNanoseconds);
+    }
+
+    public long getNumberOfPingsSent() {
+        return mNumberOfPingsSent.get();
+    }
+
+    public long getNumberOfPongsReceived() {
+        return mNumberOfPongsReceived.get();
+    }
+
+    /**
+     * Records that something was received from the peer.
+     */
+    public void onActivity() {
+        mNumberOfMissedIntervals.set(0);
+    }
+
+    /**
+     * Records a pong and updates the round-trip time.
+     *
+     * @param pingTimeInNanoseconds The payload of the pong i.e. the time the ping was sent.
+     */
+    public void onPongReceived(long pingTimeInNanoseconds) {
+        final long roundTripTime = System.nanoTime() - pingTimeInNanoseconds;
+        onActivity();
+
+        if (roundTripTime < 0 || roundTripTime > MAX_VALID_ROUND_TRIP_TIME_IN_NANOSECONDS) {
+            Log.w(TAG, "onPongReceived: Ignoring a pong with invalid round-trip time: " + roundTripTime + " ns");
+            return;
+        }
+
+        mNumberOfPongsReceived.incrementAndGet();
+
+        synchronized (this) {
+            mLastRoundTripTimeInNanoseconds = roundTripTime;
+
+            if (mSmoothedRoundTripTimeInNanoseconds < 0) {
+                mSmoothedRoundTripTimeInNanoseconds = roundTripTime;
+                mRoundTripTimeVariationInNanoseconds = roundTripTime / 2;
+            } else {
+                mRoundTripTimeVariationInNanoseconds = (3 * mRoundTripTimeVariationInNanoseconds
+                        + Math.abs(mSmoothedRoundTripTimeInNanoseconds - roundTripTime)) / 4;
+                mSmoothedRoundTripTimeInNanoseconds = (7 * mSmoothedRoundTripTimeInNanoseconds + roundTripTime) / 8;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[interval: " + mIntervalInMilliseconds + " ms, pings: " + getNumberOfPingsSent()
+                + ", pongs: " + getNumberOfPongsReceived() + ", srtt: "
+                + String.format("%.1f", getSmoothedRoundTripTimeInMilliseconds()) + " ms]";
+    }
+
+    /**
+     * Starts pinging the peer. Does nothing, if already started.
+     *
+     * @param callback The connection side of the keepalive.
+     */
+    synchronized void start(final Callback callback) {
+        if (mScheduledFuture != null) {
+            return;
+        }
+
+        mNumberOfMissedIntervals.set(0);
+
+        mScheduledFuture = getScheduler().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                onInterval(callback);
+            }
+        }, mIntervalInMilliseconds, mIntervalInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops pinging the peer.
+     */
+    synchronized void stop() {
+        if (mScheduledFuture != null) {
+            mScheduledFuture.cancel(false);
+            mScheduledFuture = null;
+        }
+    }
+
+    /**
+     * Checks for the timeout and sends a ping, unless the previous one is still being written.
+     *
+     * @param callback The connection side of the keepalive.
+     */
+    private void onInterval(final Callback callback) {
+        if (mNumberOfMissedIntervals.incrementAndGet() > mMaxNumberOfMissedIntervals) {
+            stop();
+            callback.onTimeout("Keepalive timeout: Nothing received in "
+                    + (mIntervalInMilliseconds * mMaxNumberOfMissedIntervals) + " ms");
+            return;
+        }
+
+        if (mIsPingWritePending.compareAndSet(false, true)) {
+            getPingWriterPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        callback.sendPing(System.nanoTime());
+                        mNumberOfPingsSent.incrementAndGet();
+                    } catch (IOException e) {
+                        Log.d(TAG, "Failed to send a ping: " + e.getMessage());
+                    } finally {
+                        mIsPingWritePending.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    private static double toMilliseconds(long nanoseconds) {
+        return (nanoseconds < 0) ? -1d : nanoseconds / 1e6;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("KeepAlive"));
+        }
+
+        return mScheduler;
+    }
+
+    private static synchronized ExecutorService getPingWriterPool() {
+        if (mPingWriterPool == null) {
+            mPingWriterPool = Executors.newCachedThreadPool(new DaemonThreadFactory("KeepAlivePing"));
+        }
+
+        return mPingWriterPool;
+    }
+
+    /**
+     * Creates named daemon threads so that the keepalive never keeps the process alive.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mNumberOfThreads = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mNumberOfThreads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A duplex stream over in-memory pipes, for running the I/O pipeline within one JVM e.g. in unit
+ * tests and benchmarks. Create the connected ends with createPair().
+ *
+ * Unlike java.io.PipedInputStream, the pipes wake up the reader as soon as bytes are written and
+ * do not depend on the liveness of the writing threads. Writes block while the pipe is full, so a
+ * slow reader slows down the writer the same way a socket does. Closing an end makes the blocked
+ * reads of that end fail and the peer read the end of stream.
+ */
+public class PipeDuplexStream implements DuplexStream {
+    public static final int DEFAULT_PIPE_SIZE_IN_BYTES = 64 * 1024;
+    private final Pipe mIncomingPipe;
+    private final Pipe mOutgoingPipe;
+    private final PipeInputStream mInputStream;
+    private final PipeOutputStream mOutputStream;
+
+    /**
+     * Constructor.
+     *
+     * @param incomingPipe The pipe of the bytes received from the peer.
+     * @param outgoingPipe The pipe of the bytes sent to the peer.
+     */
+    private PipeDuplexStream(Pipe incomingPipe, Pipe outgoingPipe) {
+        mIncomingPipe = incomingPipe;
+        mOutgoingPipe = outgoingPipe;
+        mInputStream = new PipeInputStream(incomingPipe);
+        mOutputStream = new PipeOutputStream(outgoingPipe);
+    }
+
+    /**
+     * Creates two duplex streams connected to each other with pipes of the default size.
+     *
+     * @return The connected streams.
+     */
+    public static PipeDuplexStream[] createPair() {
+        return createPair(DEFAULT_PIPE_SIZE_IN_BYTES);
+    }
+
+    /**
+     * Creates two duplex streams connected to each other.
+     *
+     * @param pipeSizeInBytes The number of bytes each pipe buffers before the writes block.
+     * @return The connected streams.
+     * @throws IllegalArgumentException Thrown, if the pipe size is not positive.
+     */
+    public static PipeDuplexStream[] createPair(int pipeSizeInBytes) throws IllegalArgumentException {
+        if (pipeSizeInBytes <= 0) {
+            throw new IllegalArgumentException("Invalid pipe size: " + pipeSizeInBytes);
+        }
+
+        Pipe firstToSecond = new Pipe(pipeSizeInBytes);
+        Pipe secondToFirst = new Pipe(pipeSizeInBytes);
+        return new PipeDuplexStream[] {
+                new PipeDuplexStream(secondToFirst, firstToSecond),
+                new PipeDuplexStream(firstToSecond, secondToFirst)
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return (!mIncomingPipe.isClosed() && !mOutgoingPipe.isClosed());
+    }
+
+    @Override
+    public void close() {
+        mInputStream.close();
+        mOutputStream.close();
+    }
+
+    /**
+     * A bounded ring buffer with a blocking reader and writer.
+     */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mReadPosition = 0;
+        private int mNumberOfBytes = 0;
+        private boolean mIsClosed = false;
+
+        Pipe(int sizeInBytes) {
+            mBuffer = new byte[sizeInBytes];
+        }
+
+        synchronized boolean isClosed() {
+            return mIsClosed;
+        }
+
+        synchronized int available() {
+            return mNumberOfBytes;
+        }
+
+        /**
+         * Reads at least one byte, blocking until available.
+         *
+         * @return The number of bytes read or -1, if the pipe was closed and all the bytes read.
+         */
+        synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            while (mNumberOfBytes == 0) {
+                if (mIsClosed) {
+                    return -1;
+                }
+
+                waitForChange();
+            }
+
+            final int numberOfBytesToRead = Math.min(length, mNumberOfBytes);
+            final int firstPartLength = Math.min(numberOfBytesToRead, mBuffer.length - mReadPosition);
+            System.arraycopy(mBuffer, mReadPosition, bytes, offset, firstPartLength);
+            System.arraycopy(mBuffer, 0, bytes, offset + firstPartLength, numberOfBytesToRead - firstPartLength);
+            mReadPosition = (mReadPosition + numberOfBytesToRead) % mBuffer.length;
+            mNumberOfBytes -= numberOfBytesToRead;
+            notifyAll();
+            return numberOfBytesToRead;
+        }
+
+        /**
+         * Writes all the given bytes, blocking while the pipe is full.
+         */
+        synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (mNumberOfBytes == mBuffer.length && !mIsClosed) {
+                    waitForChange();
+                }
+
+                if (mIsClosed) {
+                    throw new IOException("Broken pipe");
+                }
+
+                final int writePosition = (mReadPosition + mNumberOfBytes) % mBuffer.length;
+                final int numberOfBytesToWrite = Math.min(length, mBuffer.length - mNumberOfBytes);
+                final int firstPartLength = Math.min(numberOfBytesToWrite, mBuffer.length - writePosition);
+                System.arraycopy(bytes, offset, mBuffer, writePosition, firstPartLength);
+                System.arraycopy(bytes, offset + firstPartLength, mBuffer, 0, numberOfBytesToWrite - firstPartLength);
+                mNumberOfBytes += numberOfBytesToWrite;
+                offset += numberOfBytesToWrite;
+                length -= numberOfBytesToWrite;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mIsClosed = true;
+            notifyAll();
+        }
+
+        private void waitForChange() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    /**
+     * The reading end of a pipe. Once closed, the reads fail even if there are bytes left.
+     */
+    private static class PipeInputStream extends InputStream {
+        private final Pipe mPipe;
+        private volatile boolean mIsClosed = false;
+
+        PipeInputStream(Pipe pipe) {
+            mPipe = pipe;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            return (read(bytes, 0, 1) < 0) ? -1 : (bytes[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (mIsClosed) {
+                throw new IOException("Socket closed");
+            }
+
+            final int numberOfBytesRead = mPipe.read(bytes, offset, length);
+
+            if (mIsClosed) {
+                throw new IOException("Socket closed");
+            }
+
+            return numberOfBytesRead;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mPipe.available();
+        }
+
+        @Override
+        public void close() {
+            mIsClosed = true;
+            mPipe.close();
+        }
+    }
+
+    /**
+     * The writing end of a pipe.
+     */
+    private static class PipeOutputStream extends OutputStream {
+        private final Pipe mPipe;
+
+        PipeOutputStream(Pipe pipe) {
+            mPipe = pipe;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[] { (byte) oneByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            mPipe.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() {
+            mPipe.close();
+        }
+    }
+}
@@ -0,0 +1,526 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An I/O engine servicing the reads of many sockets with a small, fixed number of loop threads
+ * instead of one thread per socket.
+ *
+ * Bluetooth sockets only provide blocking streams, so the readiness is resolved by polling: Each
+ * loop thread asks its registered channels for the number of bytes that can be read without
+ * blocking (see Selectable.poll()) and lets the channels, which have data, read it. When none of
+ * the channels of a loop has data, the loop backs off by sleeping, up to the maximum idle sleep
+ * time. Thus, a busy loop reacts immediately while an idle one costs next to no CPU. The price is
+ * the added latency of at most the maximum idle sleep time for the first bytes after a pause.
+ * Note that a loop with registered channels wakes up every maximum idle sleep time even when
+ * all of them are idle, i.e. up to 100 times per second per loop with the default of 10 ms, which
+ * costs battery on a mobile device. A larger maximum trades latency for fewer wake-ups.
+ *
+ * Neither are the streams able to tell an idle channel from one whose peer has closed it: The
+ * end of stream is only returned by a blocking read (e.g. a Bluetooth socket stays connected
+ * after the peer has closed it). The channels with a liveness check of their own (e.g. the
+ * keepalive of BluetoothSocketIoThread, which closes the channel when the peer stops answering)
+ * need nothing more. The others can be probed: When such a channel has had no data for the end
+ * of stream probe delay, it is moved from its loop to a probe thread, which blocks in
+ * Selectable.probe() until the channel has data again, reaches the end of stream or fails. The
+ * number of probe threads is bounded, so the engine never costs a thread per connection: When
+ * all of them are taken, the idle channel stays in its loop and is tried again after another
+ * delay. Thus, with many idle channels without a keepalive only some of them are probed at a
+ * time and the end of stream of the rest is noticed, when they are written to or closed.
+ *
+ * See BluetoothSocketIoThread.start(SocketIoEngine) for running a socket on an engine.
+ */
+public class SocketIoEngine {
+    /**
+     * A channel serviced by the engine. The methods are called in the loop thread.
+     */
+    public interface Selectable {
+        /**
+         * Checks the readiness of the channel. Must not block.
+         *
+         * @return The number of bytes that can be read without blocking, zero if none or -1, if
+         * the channel has reached the end of stream (or was closed).
+         * @throws IOException Thrown, if the channel failed.
+         */
+        int poll() throws IOException;
+
+        /**
+         * Blocks until the channel has data, reaches the end of stream or fails. Called in a
+         * probe thread, when the channel has been idle for the end of stream probe delay.
+         * Closing the channel must make a blocked probe return or fail.
+         *
+         * @return The number of bytes that can be read without blocking (at least one) or -1, if
+         * the channel has reached the end of stream (or was closed).
+         * @throws IOException Thrown, if the channel failed.
+         */
+        int probe() throws IOException;
+
+        /**
+         * @return True, if the channel should be probed, when idle. False, if it detects the end
+         * of stream or a dead peer by other means (e.g. a keepalive).
+         */
+        boolean isProbeNeeded();
+
+        /**
+         * Called when poll() or probe() returned a non-zero value.
+         *
+         * @param numberOfBytesAvailable The value returned by poll() or probe().
+         * @return True, if the channel should stay registered. False to unregister it.
+         */
+        boolean onReadable(int numberOfBytesAvailable);
+
+        /**
+         * Called when poll() or probe() failed. The channel is unregistered after this.
+         *
+         * @param e The exception thrown by poll() or probe().
+         */
+        void onPollFailed(IOException e);
+    }
+
+    private static final String TAG = SocketIoEngine.class.getName();
+    public static final int DEFAULT_NUMBER_OF_LOOP_THREADS = 2;
+    public static final long DEFAULT_MAX_IDLE_SLEEP_TIME_IN_MILLISECONDS = 10;
+    public static final long DEFAULT_END_OF_STREAM_PROBE_DELAY_IN_MILLISECONDS = 1000;
+    public static final int DEFAULT_MAX_NUMBER_OF_PROBE_THREADS = 2;
+    private final LoopThread[] mLoopThreads;
+    private final long mMaxIdleSleepTimeInMilliseconds;
+    private final long mEndOfStreamProbeDelayInMilliseconds;
+    private final CopyOnWriteArrayList<Registration> mProbedRegistrations = new CopyOnWriteArrayList<>();
+    private final ExecutorService mProbeExecutor;
+    private final Semaphore mProbeThreadPermits;
+    private final AtomicLong mNumberOfPolls = new AtomicLong();
+    private final AtomicLong mNumberOfProbes = new AtomicLong();
+    private final AtomicLong mNumberOfReadableEvents = new AtomicLong();
+    private boolean mIsStarted = false;
+    private volatile boolean mIsShuttingDown = false;
+
+    /**
+     * Constructor.
+     */
+    public SocketIoEngine() {
+        this(DEFAULT_NUMBER_OF_LOOP_THREADS, DEFAULT_MAX_IDLE_SLEEP_TIME_IN_MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param numberOfLoopThreads The number of loop threads.
+     * @param maxIdleSleepTimeInMilliseconds The maximum time a loop sleeps, when none of its
+     *                                       channels has data.
+     * @throws IllegalArgumentException Thrown, if either of the values is not positive.
+     */
+    public SocketIoEngine(int numberOfLoopThreads, long maxIdleSleepTimeInMilliseconds)
+            throws IllegalArgumentException {
+        this(numberOfLoopThreads, maxIdleSleepTimeInMilliseconds,
+                DEFAULT_END_OF_STREAM_PROBE_DELAY_IN_MILLISECONDS, DEFAULT_MAX_NUMBER_OF_PROBE_THREADS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param numberOfLoopThreads The number of loop threads.
+     * @param maxIdleSleepTimeInMilliseconds The maximum time a loop sleeps, when none of its
+     *                                       channels has data.
+     * @param endOfStreamProbeDelayInMilliseconds The time a channel can be without data before it
+     *                                            is probed for the end of stream.
+     * @param maxNumberOfProbeThreads The maximum number of channels probed at a time. If zero,
+     *                                the channels are not probed.
+     * @throws IllegalArgumentException Thrown, if any of the values is invalid.
+     */
+    public SocketIoEngine(int numberOfLoopThreads, long maxIdleSleepTimeInMilliseconds,
+                          long endOfStreamProbeDelayInMilliseconds, int maxNumberOfProbeThreads)
+            throws IllegalArgumentException {
+        if (numberOfLoopThreads <= 0 || maxIdleSleepTimeInMilliseconds <= 0
+                || endOfStreamProbeDelayInMilliseconds <= 0 || maxNumberOfProbeThreads < 0) {
+            throw new IllegalArgumentException("Invalid number of loop threads (" + numberOfLoopThreads
+                    + "), idle sleep time (" + maxIdleSleepTimeInMilliseconds
+                    + "), end of stream probe delay (" + endOfStreamProbeDelayInMilliseconds
+                    + ") or maximum number of probe threads (" + maxNumberOfProbeThreads + ")");
+        }
+
+        mMaxIdleSleepTimeInMilliseconds = maxIdleSleepTimeInMilliseconds;
+        mEndOfStreamProbeDelayInMilliseconds = endOfStreamProbeDelayInMilliseconds;
+        mProbeThreadPermits = new Semaphore(maxNumberOfProbeThreads);
+        mProbeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SocketIoEngine-probe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mLoopThreads = new LoopThread[numberOfLoopThreads];
+
+        for (int i = 0; i < numberOfLoopThreads; i++) {
+            mLoopThreads[i] = new LoopThread(i);
+        }
+    }
+
+    /**
+     * Starts the loop threads. Does nothing, if already started.
+     */
+    public synchronized void start() {
+        if (!mIsStarted && !mIsShuttingDown) {
+            mIsStarted = true;
+
+            for (LoopThread loopThread : mLoopThreads) {
+                loopThread.start();
+            }
+        }
+    }
+
+    /**
+     * Stops the loop threads. The registered channels are dropped without notifying them.
+     * The probes blocked on a channel return, when the channel is closed.
+     * The engine cannot be restarted.
+     */
+    public synchronized void shutdown() {
+        mIsShuttingDown = true;
+
+        for (LoopThread loopThread : mLoopThreads) {
+            loopThread.wakeUp();
+            loopThread.interrupt();
+        }
+
+        mProbedRegistrations.clear();
+        mProbeExecutor.shutdownNow();
+    }
+
+    /**
+     * @return True, if the engine has been shut down.
+     */
+    public boolean isShutDown() {
+        return mIsShuttingDown;
+    }
+
+    /**
+     * Registers the given channel to the loop thread with the fewest channels. Starts the engine,
+     * if not started yet.
+     *
+     * @param selectable The channel to register.
+     * @throws NullPointerException Thrown, if the channel is null.
+     * @throws IllegalStateException Thrown, if the engine has been shut down.
+     */
+    public void register(Selectable selectable) throws NullPointerException, IllegalStateException {
+        if (selectable == null) {
+            throw new NullPointerException("The channel is null");
+        }
+
+        synchronized (this) {
+            if (mIsShuttingDown) {
+                throw new IllegalStateException("The engine has been shut down");
+            }
+
+            addToLeastLoadedLoopThread(new Registration(selectable));
+            start();
+        }
+    }
+
+    /**
+     * Unregisters the given channel. Note that the channel may still be notified, if its loop
+     * thread is currently servicing it.
+     *
+     * @param selectable The channel to unregister.
+     * @return True, if the channel was registered. False otherwise.
+     */
+    public boolean unregister(Selectable selectable) {
+        for (LoopThread loopThread : mLoopThreads) {
+            if (loopThread.remove(selectable)) {
+                return true;
+            }
+        }
+
+        for (Registration registration : mProbedRegistrations) {
+            if (registration.mSelectable == selectable && mProbedRegistrations.remove(registration)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The number of loop threads.
+     */
+    public int getNumberOfLoopThreads() {
+        return mLoopThreads.length;
+    }
+
+    /**
+     * @return The number of registered channels.
+     */
+    public int getNumberOfRegistrations() {
+        int numberOfRegistrations = mProbedRegistrations.size();
+
+        for (LoopThread loopThread : mLoopThreads) {
+            numberOfRegistrations += loopThread.getNumberOfSelectables();
+        }
+
+        return numberOfRegistrations;
+    }
+
+    /**
+     * @return The total number of readiness checks made.
+     */
+    public long getNumberOfPolls() {
+        return mNumberOfPolls.get();
+    }
+
+    /**
+     * @return The total number of times a channel was notified about being readable.
+     */
+    public long getNumberOfReadableEvents() {
+        return mNumberOfReadableEvents.get();
+    }
+
+    /**
+     * @return The total number of times an idle channel was probed for the end of stream.
+     */
+    public long getNumberOfProbes() {
+        return mNumberOfProbes.get();
+    }
+
+    /**
+     * @return The number of channels currently being probed for the end of stream.
+     */
+    public int getNumberOfProbedChannels() {
+        return mProbedRegistrations.size();
+    }
+
+    /**
+     * Adds the given registration to the loop thread with the fewest channels.
+     *
+     * @param registration The registration.
+     */
+    private synchronized void addToLeastLoadedLoopThread(Registration registration) {
+        LoopThread leastLoadedLoopThread = mLoopThreads[0];
+
+        for (LoopThread loopThread : mLoopThreads) {
+            if (loopThread.getNumberOfSelectables() < leastLoadedLoopThread.getNumberOfSelectables()) {
+                leastLoadedLoopThread = loopThread;
+            }
+        }
+
+        registration.mLastReadableTime = System.currentTimeMillis();
+        leastLoadedLoopThread.add(registration);
+    }
+
+    /**
+     * Moves the given idle registration from its loop to a probe thread. The caller must have
+     * acquired a probe thread permit, which is released when the probe is done.
+     *
+     * @param registration The registration removed from its loop.
+     */
+    private void probe(final Registration registration) {
+        mProbedRegistrations.add(registration);
+        mNumberOfProbes.incrementAndGet();
+
+        try {
+            mProbeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Selectable selectable = registration.mSelectable;
+                    int numberOfBytesAvailable;
+
+                    try {
+                        numberOfBytesAvailable = selectable.probe();
+                    } catch (IOException e) {
+                        mProbeThreadPermits.release();
+
+                        if (mProbedRegistrations.remove(registration)) {
+                            selectable.onPollFailed(e);
+                        }
+
+                        return;
+                    }
+
+                    mProbeThreadPermits.release();
+
+                    if (!mProbedRegistrations.remove(registration)) {
+                        // Unregistered or shut down while probing
+                        return;
+                    }
+
+                    if (numberOfBytesAvailable < 0) {
+                        mNumberOfReadableEvents.incrementAndGet();
+
+                        try {
+                            selectable.onReadable(numberOfBytesAvailable);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "probe: Unexpected exception: " + e.getMessage(), e);
+                        }
+                    } else if (!mIsShuttingDown) {
+                        // Has data again, let a loop read it
+                        addToLeastLoadedLoopThread(registration);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            mProbedRegistrations.remove(registration);
+            mProbeThreadPermits.release();
+        }
+    }
+
+    /**
+     * A registered channel and the time it last had data.
+     */
+    private static class Registration {
+        final Selectable mSelectable;
+        volatile long mLastReadableTime;
+
+        Registration(Selectable selectable) {
+            mSelectable = selectable;
+        }
+    }
+
+    /**
+     * A thread servicing a subset of the registered channels.
+     */
+    private class LoopThread extends Thread {
+        private final CopyOnWriteArrayList<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+        private final Object mLock = new Object();
+
+        LoopThread(int index) {
+            super("SocketIoEngine-" + index);
+            setDaemon(true);
+        }
+
+        int getNumberOfSelectables() {
+            return mRegistrations.size();
+        }
+
+        void add(Registration registration) {
+            mRegistrations.add(registration);
+            wakeUp();
+        }
+
+        boolean remove(Selectable selectable) {
+            for (Registration registration : mRegistrations) {
+                if (registration.mSelectable == selectable && mRegistrations.remove(registration)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        void wakeUp() {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            Log.d(TAG, "Entering thread (ID: " + getId() + ")");
+            long idleSleepTime = 1;
+
+            while (!mIsShuttingDown) {
+                boolean wasAnyReadable = false;
+
+                for (Registration registration : mRegistrations) {
+                    if (mIsShuttingDown) {
+                        break;
+                    }
+
+                    if (service(registration)) {
+                        wasAnyReadable = true;
+                    }
+                }
+
+                if (wasAnyReadable) {
+                    idleSleepTime = 1;
+                    continue;
+                }
+
+                synchronized (mLock) {
+                    try {
+                        if (mRegistrations.isEmpty()) {
+                            // Nothing to do until a channel is registered
+                            mLock.wait();
+                        } else {
+                            mLock.wait(idleSleepTime);
+                            idleSleepTime = Math.min(idleSleepTime * 2, mMaxIdleSleepTimeInMilliseconds);
+                        }
+                    } catch (InterruptedException e) {
+                        // Shutting down or a new channel was registered
+                    }
+                }
+            }
+
+            Log.d(TAG, "Exiting thread (ID: " + getId() + ")");
+        }
+
+        /**
+         * Polls the given channel and notifies it, if readable. Hands the channel to a probe
+         * thread, if it needs probing, has been idle for the end of stream probe delay and a
+         * probe thread is free.
+         *
+         * @param registration The registration of the channel.
+         * @return True, if the channel was readable.
+         */
+        private boolean service(Registration registration) {
+            final Selectable selectable = registration.mSelectable;
+            int numberOfBytesAvailable;
+            mNumberOfPolls.incrementAndGet();
+
+            try {
+                numberOfBytesAvailable = selectable.poll();
+            } catch (IOException e) {
+                mRegistrations.remove(registration);
+                selectable.onPollFailed(e);
+                return false;
+            }
+
+            if (numberOfBytesAvailable == 0) {
+                final long now = System.currentTimeMillis();
+
+                if (now - registration.mLastReadableTime >= mEndOfStreamProbeDelayInMilliseconds) {
+                    // Tried again after another delay, if not probed now
+                    registration.mLastReadableTime = now;
+
+                    if (selectable.isProbeNeeded() && mProbeThreadPermits.tryAcquire()) {
+                        if (mRegistrations.remove(registration)) {
+                            probe(registration);
+                        } else {
+                            mProbeThreadPermits.release();
+                        }
+                    }
+                }
+
+                return false;
+            }
+
+            registration.mLastReadableTime = System.currentTimeMillis();
+
+            mNumberOfReadableEvents.incrementAndGet();
+            boolean keepRegistered = false;
+
+            try {
+                keepRegistered = selectable.onReadable(numberOfBytesAvailable);
+            } catch (RuntimeException e) {
+                // Do not let one failing channel take down the others
+                Log.e(TAG, "service: Unexpected exception: " + e.getMessage(), e);
+            }
+
+            if (!keepRegistered) {
+                mRegistrations.remove(registration);
+            }
+
+            return true;
+        }
+    }
+}
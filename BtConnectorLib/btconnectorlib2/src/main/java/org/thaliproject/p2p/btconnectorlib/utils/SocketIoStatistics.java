@@ -0,0 +1,138 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * I/O statistics of one socket: the bytes and the calls in both directions, the sizes of the
+ * reads, the durations of the write calls and the time of the last activity.
+ *
+ * The statistics are updated by the reading and the writing threads of the socket with atomic
+ * operations only, so they can be read at any time without stopping the threads and are cheap
+ * enough to keep collecting in production. The counted bytes are the bytes on the wire i.e.
+ * including the frame headers.
+ */
+public class SocketIoStatistics {
+    private static final int NUMBER_OF_READ_SIZE_BUCKETS = 32;
+    private final AtomicLong mNumberOfBytesRead = new AtomicLong();
+    private final AtomicLong mNumberOfReads = new AtomicLong();
+    private final AtomicLong mNumberOfBytesWritten = new AtomicLong();
+    private final AtomicLong mNumberOfWrites = new AtomicLong();
+    private final AtomicLong mNumberOfFailedWrites = new AtomicLong();
+    private final AtomicLongArray mReadSizeHistogram = new AtomicLongArray(NUMBER_OF_READ_SIZE_BUCKETS);
+    private final CompactHistogram mWriteDurationHistogram = new CompactHistogram();
+    private final long mCreationTimeInNanoseconds = System.nanoTime();
+    private volatile long mLastReadTimeInNanoseconds = mCreationTimeInNanoseconds;
+    private volatile long mLastWriteTimeInNanoseconds = mCreationTimeInNanoseconds;
+
+    /**
+     * Records a read.
+     *
+     * @param numberOfBytesRead The number of bytes read.
+     */
+    public void onRead(int numberOfBytesRead) {
+        if (numberOfBytesRead > 0) {
+            mNumberOfReads.incrementAndGet();
+            mNumberOfBytesRead.addAndGet(numberOfBytesRead);
+            mReadSizeHistogram.incrementAndGet(getReadSizeBucketIndex(numberOfBytesRead));
+            mLastReadTimeInNanoseconds = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records a write call.
+     *
+     * @param numberOfBytesWritten The number of bytes written.
+     * @param durationInNanoseconds The time the write call took.
+     * @param wasSuccessful True, if the write succeeded.
+     */
+    public void onWrite(int numberOfBytesWritten, long durationInNanoseconds, boolean wasSuccessful) {
+        if (wasSuccessful) {
+            mNumberOfWrites.incrementAndGet();
+            mNumberOfBytesWritten.addAndGet(numberOfBytesWritten);
+            mWriteDurationHistogram.record(durationInNanoseconds);
+            mLastWriteTimeInNanoseconds = System.nanoTime();
+        } else {
+            mNumberOfFailedWrites.incrementAndGet();
+        }
+    }
+
+    public long getNumberOfBytesRead() {
+        return mNumberOfBytesRead.get();
+    }
+
+    public long getNumberOfReads() {
+        return mNumberOfReads.get();
+    }
+
+    public long getNumberOfBytesWritten() {
+        return mNumberOfBytesWritten.get();
+    }
+
+    public long getNumberOfWrites() {
+        return mNumberOfWrites.get();
+    }
+
+    public long getNumberOfFailedWrites() {
+        return mNumberOfFailedWrites.get();
+    }
+
+    /**
+     * @return The mean number of bytes per read or zero, if nothing has been read.
+     */
+    public double getMeanReadSize() {
+        final long numberOfReads = mNumberOfReads.get();
+        return (numberOfReads > 0) ? (double) mNumberOfBytesRead.get() / numberOfReads : 0d;
+    }
+
+    /**
+     * @return A copy of the histogram of the read sizes. The value at index i is the number of
+     * reads with size in (2^(i-1), 2^i] bytes.
+     */
+    public long[] getReadSizeHistogram() {
+        long[] histogram = new long[NUMBER_OF_READ_SIZE_BUCKETS];
+
+        for (int i = 0; i < NUMBER_OF_READ_SIZE_BUCKETS; i++) {
+            histogram[i] = mReadSizeHistogram.get(i);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * @return The histogram of the durations of the write calls in nanoseconds. A write call
+     * blocks, when the peer does not read fast enough, so a high percentile indicates a slow peer.
+     */
+    public CompactHistogram getWriteDurationHistogram() {
+        return mWriteDurationHistogram;
+    }
+
+    /**
+     * @return The time since the last successful read or write in milliseconds or, if none, since
+     * the statistics were created.
+     */
+    public long getTimeSinceLastActivityInMilliseconds() {
+        final long lastActivityTime = Math.max(mLastReadTimeInNanoseconds, mLastWriteTimeInNanoseconds);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivityTime);
+    }
+
+    @Override
+    public String toString() {
+        return "[read: " + getNumberOfBytesRead() + " bytes in " + getNumberOfReads() + " reads"
+                + ", written: " + getNumberOfBytesWritten() + " bytes in " + getNumberOfWrites() + " writes"
+                + " (" + getNumberOfFailedWrites() + " failed), write duration (ns): " + mWriteDurationHistogram
+                + ", idle: " + getTimeSinceLastActivityInMilliseconds() + " ms]";
+    }
+
+    /**
+     * @param numberOfBytes The read size.
+     * @return The index of the bucket the given read size falls into.
+     */
+    private static int getReadSizeBucketIndex(int numberOfBytes) {
+        return (numberOfBytes <= 1) ? 0 : (32 - Integer.numberOfLeadingZeros(numberOfBytes - 1));
+    }
+}
@@ -0,0 +1,791 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread writing queued byte arrays to an output stream.
+ *
+ * Writes are enqueued without blocking the caller and written by this thread. Small pending
+ * writes are coalesced into one write to the output stream, since every write to an RFCOMM socket
+ * has a considerable fixed cost. The queues are bounded: Writes enqueued while the queue is full
+ * fail immediately.
+ *
+ * Each write has a priority class (see Priority) and the writes of a higher class are written
+ * before the pending writes of the lower ones. Within a class the writes are written in order.
+ * Framed bulk writes (see FrameHeaderEncoder) larger than the slice size are written one slice at
+ * a time, so a control or an interactive write waits for at most one slice instead of the whole
+ * bulk write.
+ */
+public class SocketWriterThread extends Thread {
+    /**
+     * Thread listener.
+     */
+    public interface Listener {
+        /**
+         * Called in the writer thread when a queued write is completed. Writes failed because the
+         * thread was shut down before they were started are not reported.
+         *
+         * @param writeRequest The completed write.
+         * @param wasSuccessful True, if the bytes were written successfully. False otherwise.
+         */
+        void onWriteCompleted(WriteRequest writeRequest, boolean wasSuccessful);
+    }
+
+    /**
+     * The priority classes of the writes.
+     */
+    public enum Priority {
+        CONTROL, // Protocol messages, which the peer is waiting for e.g. acknowledgements
+        INTERACTIVE, // Small latency-sensitive messages; the default
+        BULK // Large transfers, which are written in slices, if framed
+    }
+
+    /**
+     * Encodes the headers of framed writes. The bytes of a framed write are the payload of a
+     * frame, which the writer prefixes with the header. A bulk write may be split into slices, in
+     * which case each slice gets its own header telling the peer how to reassemble the frame.
+     */
+    public interface FrameHeaderEncoder {
+        /**
+         * @param sliceLength The number of payload bytes following the header.
+         * @param isFirstSlice True, if the slice is the first one of the frame.
+         * @param isLastSlice True, if the slice is the last one of the frame. If both this and
+         *                    isFirstSlice are true, the frame was not split.
+         * @return The header.
+         */
+        byte[] encodeHeader(int sliceLength, boolean isFirstSlice, boolean isLastSlice);
+    }
+
+    /**
+     * A queued write. Can be used as a completion handle: get() returns true, if the bytes were
+     * written successfully and false, if the write failed.
+     */
+    public static class WriteRequest implements Future<Boolean> {
+        private final byte[] mBytes;
+        private final int mOffset;
+        private final int mLength;
+        private final Priority mPriority;
+        private final FrameHeaderEncoder mFrameHeaderEncoder;
+        private final boolean mIsSliceable;
+        private final CountDownLatch mCompletedLatch = new CountDownLatch(1);
+        private volatile boolean mWasSuccessful = false;
+        private volatile boolean mWasCancelled = false;
+        private boolean mWasStarted = false;
+        private boolean mIsProtocolWrite = false;
+        private byte[] mHeader = null; // Accessed by the writer thread only
+        private int mNumberOfBytesSliced = 0; // Accessed by the writer thread only
+
+        /**
+         * Constructor.
+         *
+         * @param bytes The array containing the bytes to write.
+         * @param offset The offset of the bytes in the array.
+         * @param length The number of bytes to write.
+         */
+        WriteRequest(byte[] bytes, int offset, int length) {
+            this(bytes, offset, length, Priority.INTERACTIVE, null, false);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param bytes The array containing the bytes to write.
+         * @param offset The offset of the bytes in the array.
+         * @param length The number of bytes to write.
+         * @param priority The priority class.
+         * @param frameHeaderEncoder The encoder of the frame headers or null, if not framed.
+         * @param isSliceable If true, a framed bulk write may be split into slices.
+         */
+        WriteRequest(byte[] bytes, int offset, int length, Priority priority,
+                     FrameHeaderEncoder frameHeaderEncoder, boolean isSliceable) {
+            mBytes = bytes;
+            mOffset = offset;
+            mLength = length;
+            mPriority = priority;
+            mFrameHeaderEncoder = frameHeaderEncoder;
+            mIsSliceable = (isSliceable && frameHeaderEncoder != null && priority == Priority.BULK);
+        }
+
+        /**
+         * @return The array containing the bytes to write.
+         */
+        public byte[] getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return The offset of the bytes in the array.
+         */
+        public int getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * @return The number of bytes to write.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return The priority class of the write.
+         */
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return True, if the bytes belong to the protocol itself (e.g. a control frame) instead
+         * of the application data. See enqueueProtocolWrite().
+         */
+        public boolean isProtocolWrite() {
+            return mIsProtocolWrite;
+        }
+
+        /**
+         * @return True, if the write is completed and was successful. False otherwise.
+         */
+        public boolean wasSuccessful() {
+            return mWasSuccessful;
+        }
+
+        /**
+         * Cancels the write, if it has not been started yet.
+         *
+         * @param mayInterruptIfRunning Ignored; a write already in progress cannot be interrupted.
+         * @return True, if the write was cancelled.
+         */
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (!isDone() && !mWasStarted) {
+                mWasCancelled = true;
+                mCompletedLatch.countDown();
+                return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mWasCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return (mCompletedLatch.getCount() == 0);
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+            mCompletedLatch.await();
+            return mWasSuccessful;
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mCompletedLatch.await(timeout, unit)) {
+                throw new TimeoutException("The write was not completed in time");
+            }
+
+            return mWasSuccessful;
+        }
+
+        /**
+         * Marks the write as started. A cancelled write cannot be started.
+         *
+         * @return True, if the write can be started. False, if it was cancelled.
+         */
+        synchronized boolean start() {
+            mWasStarted = !mWasCancelled;
+            return mWasStarted;
+        }
+
+        /**
+         * @return The frame header, if the write is framed and not sliced, or null, if not framed.
+         */
+        byte[] getHeader() {
+            if (mHeader == null && mFrameHeaderEncoder != null) {
+                mHeader = mFrameHeaderEncoder.encodeHeader(mLength, true, true);
+            }
+
+            return mHeader;
+        }
+
+        /**
+         * @return The number of bytes to write including the frame header, if not sliced.
+         */
+        int getNumberOfBytesOnWire() {
+            final byte[] header = getHeader();
+            return mLength + ((header != null) ? header.length : 0);
+        }
+
+        /**
+         * Completes the write.
+         *
+         * @param wasSuccessful True, if the bytes were written successfully.
+         */
+        synchronized void complete(boolean wasSuccessful) {
+            if (!isDone()) {
+                mWasSuccessful = wasSuccessful;
+                mCompletedLatch.countDown();
+            }
+        }
+    }
+
+    private static final String TAG = SocketWriterThread.class.getName();
+    public static final int DEFAULT_MAX_NUMBER_OF_PENDING_WRITES = 128;
+    public static final int DEFAULT_COALESCING_BUFFER_SIZE_IN_BYTES = 4096;
+    public static final int DEFAULT_SLICE_SIZE_IN_BYTES = 4096;
+    private static final int MAX_SLICE_HEADER_SIZE_IN_BYTES = 16;
+    private final OutputStream mOutputStream;
+    private final Listener mListener;
+    private final Object mOutputStreamLock;
+    private final Object mQueueLock = new Object();
+    private final List<Queue<WriteRequest>> mWriteQueues = new ArrayList<>();
+    private final int mMaxNumberOfPendingWrites;
+    private final byte[] mCoalescingBuffer;
+    private final byte[] mSliceBuffer;
+    private final List<WriteRequest> mBatch = new ArrayList<>();
+    private final AtomicLong mNumberOfWriteRequests = new AtomicLong(0);
+    private final AtomicLong mNumberOfStreamWrites = new AtomicLong(0);
+    private final AtomicLong mNumberOfSlicesWritten = new AtomicLong(0);
+    private WriteRequest mSlicedWriteRequest = null; // Accessed by the writer thread only
+    private volatile boolean mIsShuttingDown = false;
+
+    /**
+     * Constructor.
+     *
+     * @param outputStream The output stream to write to.
+     * @param outputStreamLock The object to synchronize the writes to the output stream on. Other
+     *                         writers of the same stream must synchronize on the same object.
+     * @param listener The listener.
+     * @param maxNumberOfPendingWrites The maximum number of writes in the queue of each priority class.
+     * @param coalescingBufferSizeInBytes The maximum number of bytes coalesced into one write.
+     * @throws NullPointerException Thrown, if the output stream, the lock or the listener is null.
+     * @throws IllegalArgumentException Thrown, if the queue or the buffer size is not positive.
+     */
+    public SocketWriterThread(
+            OutputStream outputStream, Object outputStreamLock, Listener listener,
+            int maxNumberOfPendingWrites, int coalescingBufferSizeInBytes)
+            throws NullPointerException, IllegalArgumentException {
+        this(outputStream, outputStreamLock, listener, maxNumberOfPendingWrites,
+                coalescingBufferSizeInBytes, DEFAULT_SLICE_SIZE_IN_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param outputStream The output stream to write to.
+     * @param outputStreamLock The object to synchronize the writes to the output stream on. Other
+     *                         writers of the same stream must synchronize on the same object.
+     * @param listener The listener.
+     * @param maxNumberOfPendingWrites The maximum number of writes in the queue of each priority class.
+     * @param coalescingBufferSizeInBytes The maximum number of bytes coalesced into one write.
+     * @param sliceSizeInBytes The maximum number of payload bytes in one slice of a bulk write.
+     * @throws NullPointerException Thrown, if the output stream, the lock or the listener is null.
+     * @throws IllegalArgumentException Thrown, if the queue, the buffer or the slice size is not positive.
+     */
+    public SocketWriterThread(
+            OutputStream outputStream, Object outputStreamLock, Listener listener,
+            int maxNumberOfPendingWrites, int coalescingBufferSizeInBytes, int sliceSizeInBytes)
+            throws NullPointerException, IllegalArgumentException {
+        if (outputStream == null || outputStreamLock == null || listener == null) {
+            throw new NullPointerException("Either the output stream, the lock or the listener is null");
+        }
+
+        if (maxNumberOfPendingWrites <= 0 || coalescingBufferSizeInBytes <= 0 || sliceSizeInBytes <= 0) {
+            throw new IllegalArgumentException("Invalid queue size (" + maxNumberOfPendingWrites
+                    + "), coalescing buffer size (" + coalescingBufferSizeInBytes
+                    + ") or slice size (" + sliceSizeInBytes + ")");
+        }
+
+        mOutputStream = outputStream;
+        mOutputStreamLock = outputStreamLock;
+        mListener = listener;
+        mMaxNumberOfPendingWrites = maxNumberOfPendingWrites;
+        mCoalescingBuffer = new byte[coalescingBufferSizeInBytes];
+        mSliceBuffer = new byte[sliceSizeInBytes + MAX_SLICE_HEADER_SIZE_IN_BYTES];
+
+        for (int i = 0; i < Priority.values().length; i++) {
+            mWriteQueues.add(new ArrayDeque<WriteRequest>());
+        }
+
+        setName(TAG);
+    }
+
+    /**
+     * Enqueues the given bytes to be written. Note that the array must not be modified until the
+     * write is completed.
+     *
+     * @param bytes The bytes to write.
+     * @return The write request, which is completed when the bytes are written. If the queue is
+     * full or the thread has been shut down, the returned request has already failed.
+     */
+    public WriteRequest enqueue(byte[] bytes) {
+        return enqueue(bytes, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Enqueues the given bytes to be written with the given priority. See enqueue(byte[]).
+     * Note that the bytes are written as is, so they are never split into slices.
+     *
+     * @param bytes The bytes to write.
+     * @param priority The priority class.
+     * @return The write request, which is completed when the bytes are written. If the queue is
+     * full or the thread has been shut down, the returned request has already failed.
+     */
+    public WriteRequest enqueue(byte[] bytes, Priority priority) {
+        return enqueue(new WriteRequest(bytes, 0, bytes.length, priority, null, false));
+    }
+
+    /**
+     * Enqueues the given bytes of the protocol itself (e.g. a control frame) to be written with
+     * the given priority. The write is flagged (see WriteRequest.isProtocolWrite()) so that the
+     * listener can tell it from the application data. See enqueue(byte[], Priority).
+     *
+     * @param bytes The bytes to write.
+     * @param priority The priority class.
+     * @return The write request, which is completed when the bytes are written. If the queue is
+     * full or the thread has been shut down, the returned request has already failed.
+     */
+    WriteRequest enqueueProtocolWrite(byte[] bytes, Priority priority) {
+        WriteRequest writeRequest = new WriteRequest(bytes, 0, bytes.length, priority, null, false);
+        writeRequest.mIsProtocolWrite = true;
+        return enqueue(writeRequest);
+    }
+
+    /**
+     * Enqueues the given payload to be written as a frame with the given priority. The header of
+     * the frame is written by the writer thread using the given encoder and, if sliceable, a bulk
+     * frame larger than the slice size is written in slices. Note that the array must not be
+     * modified until the write is completed.
+     *
+     * @param payload The payload of the frame.
+     * @param priority The priority class.
+     * @param frameHeaderEncoder The encoder of the frame headers.
+     * @param isSliceable If true, the frame may be split into slices, if it is a bulk write.
+     * @return The write request, which is completed when the frame is written. If the queue is
+     * full or the thread has been shut down, the returned request has already failed.
+     * @throws NullPointerException Thrown, if the frame header encoder is null.
+     */
+    public WriteRequest enqueueFrame(byte[] payload, Priority priority,
+                                     FrameHeaderEncoder frameHeaderEncoder, boolean isSliceable)
+            throws NullPointerException {
+        if (frameHeaderEncoder == null) {
+            throw new NullPointerException("The frame header encoder is null");
+        }
+
+        return enqueue(new WriteRequest(payload, 0, payload.length, priority, frameHeaderEncoder, isSliceable));
+    }
+
+    /**
+     * Enqueues the remaining bytes of the given buffer to be written. The position of the buffer
+     * is not changed. If the buffer is backed by an array, the array must not be modified until
+     * the write is completed. Otherwise, the bytes are copied.
+     *
+     * @param byteBuffer The buffer containing the bytes to write.
+     * @return The write request, which is completed when the bytes are written. If the queue is
+     * full or the thread has been shut down, the returned request has already failed.
+     */
+    public WriteRequest enqueue(ByteBuffer byteBuffer) {
+        WriteRequest writeRequest;
+
+        if (byteBuffer.hasArray()) {
+            writeRequest = new WriteRequest(byteBuffer.array(),
+                    byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+        } else {
+            byte[] bytes = new byte[byteBuffer.remaining()];
+            byteBuffer.duplicate().get(bytes);
+            writeRequest = new WriteRequest(bytes, 0, bytes.length);
+        }
+
+        return enqueue(writeRequest);
+    }
+
+    /**
+     * @return The number of writes waiting in the queues.
+     */
+    public int getNumberOfPendingWrites() {
+        int numberOfPendingWrites = 0;
+
+        synchronized (mQueueLock) {
+            for (Queue<WriteRequest> writeQueue : mWriteQueues) {
+                numberOfPendingWrites += writeQueue.size();
+            }
+        }
+
+        return numberOfPendingWrites;
+    }
+
+    /**
+     * @param priority The priority class.
+     * @return The number of writes of the given priority class waiting in the queue.
+     */
+    public int getNumberOfPendingWrites(Priority priority) {
+        synchronized (mQueueLock) {
+            return mWriteQueues.get(priority.ordinal()).size();
+        }
+    }
+
+    /**
+     * @return The total number of writes enqueued successfully.
+     */
+    public long getNumberOfWriteRequests() {
+        return mNumberOfWriteRequests.get();
+    }
+
+    /**
+     * @return The total number of writes to the output stream. Less than the number of write
+     * requests, if writes were coalesced.
+     */
+    public long getNumberOfStreamWrites() {
+        return mNumberOfStreamWrites.get();
+    }
+
+    /**
+     * @return The total number of slices of bulk writes written.
+     */
+    public long getNumberOfSlicesWritten() {
+        return mNumberOfSlicesWritten.get();
+    }
+
+    /**
+     * From Thread.
+     *
+     * Writes the queued bytes until shut down or a write fails.
+     */
+    @Override
+    public void run() {
+        Log.d(TAG, "Entering thread (ID: " + getId() + ")");
+
+        while (!mIsShuttingDown) {
+            WriteRequest firstWriteRequest;
+
+            try {
+                firstWriteRequest = takeNextWriteRequest(); // Blocking call
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            boolean wasSuccessful;
+
+            if (firstWriteRequest == null) {
+                // Nothing with a higher priority pending, continue the sliced write
+                wasSuccessful = writeNextSlice();
+            } else if (!firstWriteRequest.start()) {
+                // Cancelled
+                continue;
+            } else if (isSliced(firstWriteRequest)) {
+                mSlicedWriteRequest = firstWriteRequest;
+                wasSuccessful = writeNextSlice();
+            } else {
+                wasSuccessful = writeBatch(firstWriteRequest);
+            }
+
+            if (!wasSuccessful) {
+                break;
+            }
+        }
+
+        mIsShuttingDown = true;
+
+        if (mSlicedWriteRequest != null) {
+            // Shut down in the middle of a sliced write
+            mListener.onWriteCompleted(mSlicedWriteRequest, false);
+            mSlicedWriteRequest.complete(false);
+            mSlicedWriteRequest = null;
+        }
+
+        failPendingWrites();
+        mBatch.clear();
+        Log.d(TAG, "Exiting thread (ID: " + getId() + ")");
+    }
+
+    /**
+     * Shuts down the thread. The pending writes are failed. A write in progress is completed.
+     */
+    public void shutdown() {
+        mIsShuttingDown = true;
+        interrupt();
+        failPendingWrites();
+    }
+
+    /**
+     * Waits for the next write to start. While a sliced write is in progress, only the writes of
+     * a higher priority class are taken.
+     *
+     * @return The next write request or null, if the sliced write in progress should be continued.
+     * @throws InterruptedException Thrown, if interrupted while waiting.
+     */
+    private WriteRequest takeNextWriteRequest() throws InterruptedException {
+        synchronized (mQueueLock) {
+            WriteRequest writeRequest = pollNextWriteRequest(true);
+
+            while (writeRequest == null && mSlicedWriteRequest == null) {
+                mQueueLock.wait();
+                writeRequest = pollNextWriteRequest(true);
+            }
+
+            return writeRequest;
+        }
+    }
+
+    /**
+     * Picks the pending write of the highest priority class. Must be called while holding the
+     * queue lock.
+     *
+     * @param remove If true, the write is removed from its queue.
+     * @return The next write request or null, if none.
+     */
+    private WriteRequest pollNextWriteRequest(boolean remove) {
+        final int lowestPriority = (mSlicedWriteRequest != null)
+                ? Priority.INTERACTIVE.ordinal() : Priority.BULK.ordinal();
+
+        for (int i = 0; i <= lowestPriority; i++) {
+            Queue<WriteRequest> writeQueue = mWriteQueues.get(i);
+
+            if (!writeQueue.isEmpty()) {
+                return remove ? writeQueue.poll() : writeQueue.peek();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param writeRequest The write request.
+     * @return True, if the given write is written in slices.
+     */
+    private boolean isSliced(WriteRequest writeRequest) {
+        return (writeRequest.mIsSliceable && writeRequest.getLength() > mSliceBuffer.length - MAX_SLICE_HEADER_SIZE_IN_BYTES);
+    }
+
+    /**
+     * Writes the given write request coalesced with the small pending writes following it and
+     * notifies the listener.
+     *
+     * @param firstWriteRequest The first write request of the batch, already started.
+     * @return True, if the batch was written successfully. False otherwise.
+     */
+    private boolean writeBatch(WriteRequest firstWriteRequest) {
+        mBatch.clear();
+        mBatch.add(firstWriteRequest);
+        int batchSize = firstWriteRequest.getNumberOfBytesOnWire();
+
+        synchronized (mQueueLock) {
+            WriteRequest nextWriteRequest = pollNextWriteRequest(false);
+
+            while (nextWriteRequest != null && !isSliced(nextWriteRequest)
+                    && batchSize + nextWriteRequest.getNumberOfBytesOnWire() <= mCoalescingBuffer.length) {
+                pollNextWriteRequest(true);
+
+                if (nextWriteRequest.start()) {
+                    mBatch.add(nextWriteRequest);
+                    batchSize += nextWriteRequest.getNumberOfBytesOnWire();
+                }
+
+                nextWriteRequest = pollNextWriteRequest(false);
+            }
+        }
+
+        boolean wasSuccessful = writeBatch(batchSize);
+
+        for (WriteRequest writeRequest : mBatch) {
+            // Notify the listener first so that it has been notified when get() returns
+            mListener.onWriteCompleted(writeRequest, wasSuccessful);
+            writeRequest.complete(wasSuccessful);
+        }
+
+        mBatch.clear();
+        return wasSuccessful;
+    }
+
+    /**
+     * Writes the current batch to the output stream. A single write request is written as is,
+     * several are first copied to the coalescing buffer.
+     *
+     * @param batchSize The number of bytes in the batch.
+     * @return True, if the batch was written successfully. False otherwise.
+     */
+    private boolean writeBatch(int batchSize) {
+        try {
+            synchronized (mOutputStreamLock) {
+                if (mBatch.size() == 1) {
+                    WriteRequest writeRequest = mBatch.get(0);
+                    final byte[] header = writeRequest.getHeader();
+
+                    if (header != null && batchSize <= mCoalescingBuffer.length) {
+                        writeSlice(header, writeRequest.getBytes(), writeRequest.getOffset(),
+                                writeRequest.getLength(), mCoalescingBuffer);
+                    } else {
+                        if (header != null) {
+                            mOutputStream.write(header);
+                        }
+
+                        mOutputStream.write(writeRequest.getBytes(), writeRequest.getOffset(), writeRequest.getLength());
+                    }
+                } else {
+                    int position = 0;
+
+                    for (WriteRequest writeRequest : mBatch) {
+                        final byte[] header = writeRequest.getHeader();
+
+                        if (header != null) {
+                            System.arraycopy(header, 0, mCoalescingBuffer, position, header.length);
+                            position += header.length;
+                        }
+
+                        System.arraycopy(writeRequest.getBytes(), writeRequest.getOffset(),
+                                mCoalescingBuffer, position, writeRequest.getLength());
+                        position += writeRequest.getLength();
+                    }
+
+                    mOutputStream.write(mCoalescingBuffer, 0, batchSize);
+                }
+
+                mOutputStream.flush();
+            }
+
+            mNumberOfStreamWrites.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            if (!mIsShuttingDown) {
+                Log.e(TAG, "writeBatch: Failed to write " + batchSize + " bytes: " + e.getMessage(), e);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes the next slice of the sliced write in progress and, if it was the last one or the
+     * write failed, notifies the listener.
+     *
+     * @return True, if the slice was written successfully. False otherwise.
+     */
+    private boolean writeNextSlice() {
+        final WriteRequest writeRequest = mSlicedWriteRequest;
+        final int position = writeRequest.mNumberOfBytesSliced;
+        final int sliceLength = Math.min(mSliceBuffer.length - MAX_SLICE_HEADER_SIZE_IN_BYTES,
+                writeRequest.getLength() - position);
+        final boolean isLastSlice = (position + sliceLength == writeRequest.getLength());
+        boolean wasSuccessful = false;
+
+        try {
+            final byte[] header = writeRequest.mFrameHeaderEncoder.encodeHeader(sliceLength, (position == 0), isLastSlice);
+
+            if (header.length > MAX_SLICE_HEADER_SIZE_IN_BYTES) {
+                throw new IOException("The slice header is too large: " + header.length);
+            }
+
+            synchronized (mOutputStreamLock) {
+                writeSlice(header, writeRequest.getBytes(), writeRequest.getOffset() + position, sliceLength, mSliceBuffer);
+                mOutputStream.flush();
+            }
+
+            writeRequest.mNumberOfBytesSliced += sliceLength;
+            mNumberOfStreamWrites.incrementAndGet();
+            mNumberOfSlicesWritten.incrementAndGet();
+            wasSuccessful = true;
+        } catch (IOException e) {
+            if (!mIsShuttingDown) {
+                Log.e(TAG, "writeNextSlice: Failed to write " + sliceLength + " bytes: " + e.getMessage(), e);
+            }
+        }
+
+        if (!wasSuccessful || isLastSlice) {
+            mSlicedWriteRequest = null;
+            mListener.onWriteCompleted(writeRequest, wasSuccessful);
+            writeRequest.complete(wasSuccessful);
+        }
+
+        return wasSuccessful;
+    }
+
+    /**
+     * Writes the given header and bytes to the output stream with one write using the given
+     * buffer. Must be called while holding the output stream lock.
+     *
+     * @param header The header.
+     * @param bytes The array containing the bytes to write.
+     * @param offset The offset of the bytes in the array.
+     * @param length The number of bytes to write.
+     * @param buffer A buffer large enough for the header and the bytes.
+     * @throws IOException Thrown, if the write failed.
+     */
+    private void writeSlice(byte[] header, byte[] bytes, int offset, int length, byte[] buffer)
+            throws IOException {
+        System.arraycopy(header, 0, buffer, 0, header.length);
+        System.arraycopy(bytes, offset, buffer, header.length, length);
+        mOutputStream.write(buffer, 0, header.length + length);
+    }
+
+    /**
+     * Adds the given write request to the queue.
+     *
+     * @param writeRequest The write request.
+     * @return The given write request.
+     */
+    private WriteRequest enqueue(WriteRequest writeRequest) {
+        boolean wasEnqueued = false;
+
+        synchronized (mQueueLock) {
+            Queue<WriteRequest> writeQueue = mWriteQueues.get(writeRequest.getPriority().ordinal());
+
+            if (mIsShuttingDown) {
+                Log.e(TAG, "enqueue: The writer has been shut down");
+            } else if (writeQueue.size() >= mMaxNumberOfPendingWrites) {
+                Log.e(TAG, "enqueue: The " + writeRequest.getPriority() + " write queue is full, failed to enqueue "
+                        + writeRequest.getLength() + " bytes");
+            } else {
+                writeQueue.add(writeRequest);
+                mQueueLock.notifyAll();
+                wasEnqueued = true;
+            }
+        }
+
+        if (wasEnqueued) {
+            mNumberOfWriteRequests.incrementAndGet();
+        } else {
+            writeRequest.complete(false);
+        }
+
+        return writeRequest;
+    }
+
+    /**
+     * Fails the writes waiting in the queues.
+     */
+    private void failPendingWrites() {
+        List<WriteRequest> pendingWriteRequests = new ArrayList<>();
+
+        synchronized (mQueueLock) {
+            for (Queue<WriteRequest> writeQueue : mWriteQueues) {
+                pendingWriteRequests.addAll(writeQueue);
+                writeQueue.clear();
+            }
+        }
+
+        for (WriteRequest writeRequest : pendingWriteRequests) {
+            writeRequest.complete(false);
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multiplexes lightweight logical channels over one connected Bluetooth socket.
+ *
+ * Opening a channel only sends a small frame to the peer, so it is practically free compared to
+ * connecting a new socket. Each channel has its own credit-based flow control (see
+ * FlowControlWindow), which means that a channel whose receiver does not keep up cannot block the
+ * other channels. The channels can be closed independently of each other and of the socket.
+ *
+ * The multiplexer uses the framed mode of BluetoothSocketIoThread. The payload of each frame
+ * consists of the frame type, the channel ID encoded as a varint and the body. The peer that
+ * initiated the connection uses odd channel IDs and the other one even IDs so that both can open
+ * channels without coordination. The channel IDs are never reused.
+ */
+public class StreamMultiplexer implements BluetoothSocketIoThread.Listener, BluetoothSocketIoThread.FrameListener {
+    /**
+     * Multiplexer listener.
+     */
+    public interface Listener {
+        /**
+         * Called when the peer opened a new channel. The listener of the channel should be set
+         * here, since the data sent by the peer may follow immediately.
+         *
+         * @param channel The new channel.
+         */
+        void onChannelOpened(Channel channel);
+
+        /**
+         * Called when the socket was disconnected. All the channels are closed.
+         *
+         * @param reason The reason why we got disconnected.
+         * @param who The related StreamMultiplexer instance.
+         */
+        void onDisconnected(String reason, StreamMultiplexer who);
+    }
+
+    /**
+     * A logical channel.
+     */
+    public static class Channel {
+        /**
+         * Channel listener. The methods are called in the reading thread of the socket.
+         */
+        public interface Listener {
+            /**
+             * Called when data was received. Note that the buffer is only valid for the duration
+             * of the call.
+             *
+             * @param data The data.
+             * @param channel The related channel.
+             */
+            void onDataReceived(ByteBuffer data, Channel channel);
+
+            /**
+             * Called when the peer granted new credits after we had run out of them.
+             *
+             * @param channel The related channel.
+             */
+            void onWritable(Channel channel);
+
+            /**
+             * Called when the channel was closed by the peer or because the socket was
+             * disconnected. Not called when the channel is closed locally.
+             *
+             * @param channel The related channel.
+             */
+            void onClosed(Channel channel);
+        }
+
+        private final StreamMultiplexer mStreamMultiplexer;
+        private final int mId;
+        private final FlowControlWindow mFlowControlWindow;
+        private Listener mListener;
+        private volatile boolean mIsClosed = false;
+
+        /**
+         * Constructor.
+         *
+         * @param streamMultiplexer The multiplexer owning the channel.
+         * @param id The channel ID.
+         * @param windowSizeInBytes The flow control window size.
+         * @param listener The listener, can be null.
+         */
+        private Channel(StreamMultiplexer streamMultiplexer, int id, int windowSizeInBytes, Listener listener) {
+            mStreamMultiplexer = streamMultiplexer;
+            mId = id;
+            mFlowControlWindow = new FlowControlWindow(windowSizeInBytes);
+            mListener = listener;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public Listener getListener() {
+            return mListener;
+        }
+
+        public void setListener(Listener listener) {
+            mListener = listener;
+        }
+
+        public boolean isClosed() {
+            return mIsClosed;
+        }
+
+        /**
+         * @return True, if the channel is open and we have credits left to write.
+         */
+        public boolean isWritable() {
+            return (!mIsClosed && mFlowControlWindow.isWritable());
+        }
+
+        /**
+         * Writes the given bytes to the channel. The bytes are split into frames of at most the
+         * maximum chunk size of the multiplexer and written as long as we have credits left.
+         *
+         * @param bytes The array containing the bytes to write.
+         * @param offset The offset of the bytes in the array.
+         * @param length The number of bytes to write.
+         * @return The number of bytes written. Less than the given length, if we ran out of
+         * credits (in which case Listener.onWritable is called later) or if the write failed.
+         */
+        public int write(byte[] bytes, int offset, int length) {
+            int numberOfBytesWritten = 0;
+
+            while (numberOfBytesWritten < length && !mIsClosed) {
+                final int chunkSize = Math.min(length - numberOfBytesWritten, mStreamMultiplexer.mMaxChunkSize);
+
+                if (!mFlowControlWindow.tryConsumeSendCredits(chunkSize)) {
+                    break;
+                }
+
+                if (!mStreamMultiplexer.writeFrame(
+                        FRAME_TYPE_DATA, mId, bytes, offset + numberOfBytesWritten, chunkSize)) {
+                    break;
+                }
+
+                numberOfBytesWritten += chunkSize;
+            }
+
+            return numberOfBytesWritten;
+        }
+
+        /**
+         * Writes the given bytes to the channel. See write(byte[], int, int).
+         *
+         * @param bytes The bytes to write.
+         * @return The number of bytes written.
+         */
+        public int write(byte[] bytes) {
+            return write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Closes the channel. The peer is notified and the data still in flight is discarded.
+         */
+        public void close() {
+            if (!mIsClosed) {
+                mIsClosed = true;
+                mStreamMultiplexer.mChannels.remove(mId);
+                mStreamMultiplexer.writeFrame(FRAME_TYPE_CLOSE, mId, null, 0, 0);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "[" + mId + (mIsClosed ? " closed]" : "]");
+        }
+    }
+
+    private static final String TAG = StreamMultiplexer.class.getName();
+    public static final int DEFAULT_CHANNEL_WINDOW_SIZE_IN_BYTES = 64 * 1024;
+    public static final int DEFAULT_MAX_CHUNK_SIZE_IN_BYTES = 4096;
+    private static final int DEFAULT_READ_BUFFER_SIZE_IN_BYTES = 8192;
+    private static final byte FRAME_TYPE_OPEN = 0;
+    private static final byte FRAME_TYPE_DATA = 1;
+    private static final byte FRAME_TYPE_CREDIT = 2;
+    private static final byte FRAME_TYPE_CLOSE = 3;
+    private static final int CREDIT_FRAME_BODY_SIZE_IN_BYTES = 4;
+    private final Listener mListener;
+    private final BluetoothSocketIoThread mBluetoothSocketIoThread;
+    private final ConcurrentHashMap<Integer, Channel> mChannels = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextChannelId;
+    private int mChannelWindowSizeInBytes = DEFAULT_CHANNEL_WINDOW_SIZE_IN_BYTES;
+    private int mMaxChunkSize = DEFAULT_MAX_CHUNK_SIZE_IN_BYTES;
+    private int mHighestPeerChannelId = 0;
+    private volatile boolean mIsClosed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param socket A connected Bluetooth socket.
+     * @param isInitiator True, if we initiated the connection. The peers must use different values.
+     * @param listener The listener.
+     * @throws NullPointerException Thrown, if either the socket or the listener is null.
+     * @throws IOException Thrown in case of failure to get the input and the output streams for the given socket.
+     */
+    public StreamMultiplexer(BluetoothSocket socket, boolean isInitiator, Listener listener)
+            throws NullPointerException, IOException {
+        this((socket != null) ? new BluetoothDuplexStream(socket) : null, isInitiator, listener);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param duplexStream A connected duplex stream (see DuplexStream).
+     * @param isInitiator True, if we initiated the connection. The peers must use different values.
+     * @param listener The listener.
+     * @throws NullPointerException Thrown, if either the duplex stream or the listener is null.
+     * @throws IOException Thrown in case of failure to get the input and the output streams.
+     */
+    public StreamMultiplexer(DuplexStream duplexStream, boolean isInitiator, Listener listener)
+            throws NullPointerException, IOException {
+        if (listener == null) {
+            throw new NullPointerException("The listener is null");
+        }
+
+        mListener = listener;
+        mNextChannelId = new AtomicInteger(isInitiator ? 1 : 2);
+        mBluetoothSocketIoThread = new BluetoothSocketIoThread(duplexStream, this);
+        mBluetoothSocketIoThread.setBufferSize(DEFAULT_READ_BUFFER_SIZE_IN_BYTES);
+        mBluetoothSocketIoThread.setFrameListener(this);
+    }
+
+    /**
+     * @return The underlying socket IO thread, e.g. for adjusting the buffer sizes before start().
+     */
+    public BluetoothSocketIoThread getBluetoothSocketIoThread() {
+        return mBluetoothSocketIoThread;
+    }
+
+    /**
+     * Sets the flow control window size of the channels. Both peers must use the same value.
+     * Note that the window size needs to be set before calling start(). Otherwise, it will have no
+     * effect on the channels already open.
+     *
+     * @param windowSizeInBytes The window size in bytes.
+     */
+    public void setChannelWindowSize(int windowSizeInBytes) {
+        if (windowSizeInBytes > 0) {
+            mChannelWindowSizeInBytes = windowSizeInBytes;
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes written in one frame. Smaller chunks let the frames of
+     * different channels interleave more evenly.
+     *
+     * @param maxChunkSizeInBytes The maximum chunk size in bytes.
+     */
+    public void setMaxChunkSize(int maxChunkSizeInBytes) {
+        if (maxChunkSizeInBytes > 0) {
+            mMaxChunkSize = maxChunkSizeInBytes;
+        }
+    }
+
+    /**
+     * @return The number of open channels.
+     */
+    public int getNumberOfChannels() {
+        return mChannels.size();
+    }
+
+    /**
+     * @param channelId The channel ID.
+     * @return The open channel with the given ID or null, if not found.
+     */
+    public Channel getChannel(int channelId) {
+        return mChannels.get(channelId);
+    }
+
+    /**
+     * Starts reading the socket.
+     */
+    public void start() {
+        mBluetoothSocketIoThread.start();
+    }
+
+    /**
+     * Opens a new channel. The data can be written to the channel immediately.
+     *
+     * @param listener The listener of the channel.
+     * @return The new channel or null, if the multiplexer is closed or failed to notify the peer.
+     */
+    public Channel openChannel(Channel.Listener listener) {
+        if (mIsClosed) {
+            Log.e(TAG, "openChannel: The multiplexer is closed");
+            return null;
+        }
+
+        final int channelId = mNextChannelId.getAndAdd(2);
+        Channel channel = new Channel(this, channelId, mChannelWindowSizeInBytes, listener);
+        mChannels.put(channelId, channel);
+
+        if (!writeFrame(FRAME_TYPE_OPEN, channelId, null, 0, 0)) {
+            mChannels.remove(channelId);
+            channel.mIsClosed = true;
+            return null;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Closes all the channels and the socket.
+     */
+    public void close() {
+        mIsClosed = true;
+        mBluetoothSocketIoThread.close(true, true);
+        closeAllChannels(false);
+    }
+
+    /**
+     * From BluetoothSocketIoThread.FrameListener
+     *
+     * Dispatches the received frame to the channel.
+     *
+     * @param frame The payload of the frame.
+     * @param who The related BluetoothSocketIoThread instance.
+     */
+    @Override
+    public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+        final int channelId;
+        final byte frameType;
+
+        try {
+            frameType = frame.get();
+            channelId = FrameCodec.readVarint(frame);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "onFrameReceived: Malformed frame: " + e.getMessage());
+            return;
+        }
+
+        Channel channel = mChannels.get(channelId);
+
+        switch (frameType) {
+            case FRAME_TYPE_OPEN:
+                onChannelOpenedByPeer(channelId);
+                break;
+
+            case FRAME_TYPE_DATA:
+                if (channel != null) {
+                    final int numberOfBytes = frame.remaining();
+
+                    if (!channel.mFlowControlWindow.onBytesReceived(numberOfBytes)) {
+                        Log.e(TAG, "onFrameReceived: The peer sent data without credits to channel " + channelId);
+                        channel.close();
+                        notifyChannelClosed(channel);
+                        break;
+                    }
+
+                    Channel.Listener listener = channel.mListener;
+
+                    if (listener != null) {
+                        listener.onDataReceived(frame.slice(), channel);
+                    }
+
+                    int numberOfCreditsToGrant = channel.mFlowControlWindow.onBytesConsumed(numberOfBytes);
+
+                    if (numberOfCreditsToGrant > 0 && !channel.mIsClosed) {
+                        byte[] body = ByteBuffer.allocate(CREDIT_FRAME_BODY_SIZE_IN_BYTES)
+                                .putInt(numberOfCreditsToGrant).array();
+                        writeFrame(FRAME_TYPE_CREDIT, channelId, body, 0, body.length);
+                    }
+                }
+
+                // Data for a channel closed by us is still in flight, ignore it
+                break;
+
+            case FRAME_TYPE_CREDIT:
+                if (channel != null && frame.remaining() == CREDIT_FRAME_BODY_SIZE_IN_BYTES) {
+                    final int numberOfCredits = frame.getInt();
+
+                    if (numberOfCredits > 0 && channel.mFlowControlWindow.addSendCredits(numberOfCredits)) {
+                        Channel.Listener listener = channel.mListener;
+
+                        if (listener != null) {
+                            listener.onWritable(channel);
+                        }
+                    }
+                }
+
+                break;
+
+            case FRAME_TYPE_CLOSE:
+                if (channel != null) {
+                    channel.mIsClosed = true;
+                    mChannels.remove(channelId);
+                    notifyChannelClosed(channel);
+                }
+
+                break;
+
+            default:
+                Log.e(TAG, "onFrameReceived: Unknown frame type: " + frameType);
+                break;
+        }
+    }
+
+    /**
+     * From BluetoothSocketIoThread.Listener
+     *
+     * Not used, since the framed mode is on.
+     */
+    @Override
+    public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+    }
+
+    /**
+     * From BluetoothSocketIoThread.Listener
+     *
+     * Not used.
+     */
+    @Override
+    public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+    }
+
+    /**
+     * From BluetoothSocketIoThread.Listener
+     *
+     * Closes all the channels and notifies the listener.
+     *
+     * @param reason The reason why we got disconnected.
+     * @param who The related BluetoothSocketIoThread instance.
+     */
+    @Override
+    public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+        Log.d(TAG, "onDisconnected: " + reason);
+        mIsClosed = true;
+        closeAllChannels(true);
+        mListener.onDisconnected(reason, this);
+    }
+
+    /**
+     * Creates the channel opened by the peer and notifies the listener.
+     *
+     * @param channelId The channel ID.
+     */
+    private void onChannelOpenedByPeer(int channelId) {
+        if ((channelId & 1) == (mNextChannelId.get() & 1) || channelId <= mHighestPeerChannelId) {
+            Log.e(TAG, "onChannelOpenedByPeer: Invalid channel ID: " + channelId);
+            return;
+        }
+
+        mHighestPeerChannelId = channelId;
+        Channel channel = new Channel(this, channelId, mChannelWindowSizeInBytes, null);
+        mChannels.put(channelId, channel);
+        mListener.onChannelOpened(channel);
+    }
+
+    /**
+     * Closes all the channels.
+     *
+     * @param notify If true, will notify the listeners of the channels.
+     */
+    private void closeAllChannels(boolean notify) {
+        List<Channel> channels = new ArrayList<>(mChannels.values());
+        mChannels.clear();
+
+        for (Channel channel : channels) {
+            channel.mIsClosed = true;
+
+            if (notify) {
+                notifyChannelClosed(channel);
+            }
+        }
+    }
+
+    /**
+     * @param channel The closed channel.
+     */
+    private void notifyChannelClosed(Channel channel) {
+        Channel.Listener listener = channel.mListener;
+
+        if (listener != null) {
+            listener.onClosed(channel);
+        }
+    }
+
+    /**
+     * Writes a frame to the socket.
+     *
+     * @param frameType The frame type.
+     * @param channelId The channel ID.
+     * @param body The array containing the body or null, if none.
+     * @param offset The offset of the body in the array.
+     * @param length The length of the body.
+     * @return True, if the frame was written successfully. False otherwise.
+     */
+    private boolean writeFrame(byte frameType, int channelId, byte[] body, int offset, int length) {
+        byte[] payload = new byte[1 + FrameCodec.getHeaderSize(channelId) + length];
+        payload[0] = frameType;
+        int position = 1 + FrameCodec.writeHeader(channelId, payload, 1);
+
+        if (body != null) {
+            System.arraycopy(body, offset, payload, position, length);
+        }
+
+        return mBluetoothSocketIoThread.writeFrame(payload);
+    }
+}
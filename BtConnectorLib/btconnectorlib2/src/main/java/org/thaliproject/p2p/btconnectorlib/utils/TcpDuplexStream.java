@@ -0,0 +1,110 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A duplex stream over a TCP socket. Meant for running the I/O pipeline between processes or
+ * machines without Bluetooth e.g. in load tests. Nagle's algorithm is turned off, since the
+ * pipeline does its own coalescing of small writes.
+ */
+public class TcpDuplexStream implements DuplexStream {
+    private final Socket mSocket;
+
+    /**
+     * Constructor.
+     *
+     * @param socket A connected TCP socket.
+     * @throws NullPointerException Thrown, if the socket is null.
+     * @throws IOException Thrown, if the socket options could not be set.
+     */
+    public TcpDuplexStream(Socket socket) throws NullPointerException, IOException {
+        if (socket == null) {
+            throw new NullPointerException("The socket is null");
+        }
+
+        mSocket = socket;
+        mSocket.setTcpNoDelay(true);
+    }
+
+    /**
+     * Connects to the given address.
+     *
+     * @param host The host name or address.
+     * @param port The port.
+     * @param timeoutInMilliseconds The connection timeout in milliseconds or zero for no timeout.
+     * @return A new duplex stream connected to the given address.
+     * @throws IOException Thrown, if the connection failed.
+     */
+    public static TcpDuplexStream connect(String host, int port, int timeoutInMilliseconds) throws IOException {
+        Socket socket = new Socket();
+
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutInMilliseconds);
+            return new TcpDuplexStream(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates two duplex streams connected to each other over the loopback interface.
+     *
+     * @return The connected streams; the first one is the connecting side.
+     * @throws IOException Thrown, if the connection failed.
+     */
+    public static TcpDuplexStream[] createLoopbackPair() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket connectingSocket = null;
+
+        try {
+            connectingSocket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+            Socket acceptedSocket = serverSocket.accept();
+            return new TcpDuplexStream[] { new TcpDuplexStream(connectingSocket), new TcpDuplexStream(acceptedSocket) };
+        } catch (IOException e) {
+            if (connectingSocket != null) {
+                connectingSocket.close();
+            }
+
+            throw e;
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * @return The TCP socket.
+     */
+    public Socket getSocket() {
+        return mSocket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return (mSocket.isConnected() && !mSocket.isClosed());
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,8 @@
+package org.thaliproject.p2p.btconnectorlib;
+
+/**
+ * JUnit category of the timing benchmarks. The benchmarks are left out of the unit tests and run
+ * only on request with "gradlew test -Pbenchmarks".
+ */
+public interface Benchmark {
+}
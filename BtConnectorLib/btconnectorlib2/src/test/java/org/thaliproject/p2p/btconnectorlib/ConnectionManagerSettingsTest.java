@@ -308,6 +308,266 @@ public class ConnectionManagerSettingsTest {
         assertThat("Apply count is not incremented", applyCnt, is(equalTo(2)));
     }
 
+    @Test
+    public void testCompressionEnabled() throws Exception {
+        assertThat("The default value of the compression is set",
+                mConnectionManagerSettings.getCompressionEnabled(),
+                is(ConnectionManagerSettings.DEFAULT_COMPRESSION_ENABLED));
+
+        mConnectionManagerSettings.setCompressionEnabled(true);
+        assertThat("The compression is properly set (true)",
+                mConnectionManagerSettings.getCompressionEnabled(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("compression_enabled"),
+                is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setCompressionEnabled(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setCompressionEnabled(false);
+        assertThat("The compression is properly set (false)",
+                mConnectionManagerSettings.getCompressionEnabled(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testTypedFramingEnabled() throws Exception {
+        assertThat("The default value of the typed framing is set",
+                mConnectionManagerSettings.getTypedFramingEnabled(),
+                is(ConnectionManagerSettings.DEFAULT_TYPED_FRAMING_ENABLED));
+
+        mConnectionManagerSettings.setTypedFramingEnabled(true);
+        assertThat("The typed framing is properly set (true)",
+                mConnectionManagerSettings.getTypedFramingEnabled(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("typed_framing_enabled"),
+                is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setTypedFramingEnabled(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setTypedFramingEnabled(false);
+        assertThat("The typed framing is properly set (false)",
+                mConnectionManagerSettings.getTypedFramingEnabled(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testFlowControlWindowSize() throws Exception {
+        assertThat("The default value of the flow control window size is set",
+                mConnectionManagerSettings.getFlowControlWindowSize(),
+                is(ConnectionManagerSettings.DEFAULT_FLOW_CONTROL_WINDOW_SIZE_IN_BYTES));
+
+        mConnectionManagerSettings.setFlowControlWindowSize(65536);
+        assertThat("The flow control window size is properly set",
+                mConnectionManagerSettings.getFlowControlWindowSize(), is(65536));
+        assertThat((Integer) mSharedPreferencesMap.get("flow_control_window_size"),
+                is(65536));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setFlowControlWindowSize(-1);
+        assertThat("A negative value is ignored",
+                mConnectionManagerSettings.getFlowControlWindowSize(), is(65536));
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setFlowControlWindowSize(0);
+        assertThat("The flow control window size is properly set (zero)",
+                mConnectionManagerSettings.getFlowControlWindowSize(), is(0));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testPersistentServerSocket() throws Exception {
+        assertThat("The default value of the persistent server socket is set",
+                mConnectionManagerSettings.getPersistentServerSocket(),
+                is(ConnectionManagerSettings.DEFAULT_PERSISTENT_SERVER_SOCKET));
+
+        mConnectionManagerSettings.setPersistentServerSocket(true);
+        assertThat("The persistent server socket is properly set (true)",
+                mConnectionManagerSettings.getPersistentServerSocket(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("persistent_server_socket"),
+                is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setPersistentServerSocket(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setPersistentServerSocket(false);
+        assertThat("The persistent server socket is properly set (false)",
+                mConnectionManagerSettings.getPersistentServerSocket(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testBinaryHandshakeEnabled() throws Exception {
+        assertThat("The default value of the binary handshake is set",
+                mConnectionManagerSettings.getBinaryHandshakeEnabled(),
+                is(ConnectionManagerSettings.DEFAULT_BINARY_HANDSHAKE_ENABLED));
+
+        mConnectionManagerSettings.setBinaryHandshakeEnabled(true);
+        assertThat("The binary handshake is properly set (true)",
+                mConnectionManagerSettings.getBinaryHandshakeEnabled(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("binary_handshake_enabled"),
+                is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setBinaryHandshakeEnabled(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setBinaryHandshakeEnabled(false);
+        assertThat("The binary handshake is properly set (false)",
+                mConnectionManagerSettings.getBinaryHandshakeEnabled(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testConnectionRacingEnabled() throws Exception {
+        assertThat("The default value of the connection racing is set",
+                mConnectionManagerSettings.getConnectionRacingEnabled(),
+                is(ConnectionManagerSettings.DEFAULT_CONNECTION_RACING_ENABLED));
+
+        mConnectionManagerSettings.setConnectionRacingEnabled(true);
+        assertThat("The connection racing is properly set (true)",
+                mConnectionManagerSettings.getConnectionRacingEnabled(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("connection_racing_enabled"),
+                is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setConnectionRacingEnabled(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setConnectionRacingEnabled(false);
+        assertThat("The connection racing is properly set (false)",
+                mConnectionManagerSettings.getConnectionRacingEnabled(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testMaxNumberOfConcurrentConnectionAttempts() throws Exception {
+        assertThat("The default value of the maximum number of concurrent connection attempts is set",
+                mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts(),
+                is(ConnectionManagerSettings.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS));
+
+        mConnectionManagerSettings.setMaxNumberOfConcurrentConnectionAttempts(2);
+        assertThat("The maximum number of concurrent connection attempts is properly set",
+                mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts(), is(2));
+        assertThat((Integer) mSharedPreferencesMap.get("max_number_of_concurrent_connection_attempts"),
+                is(2));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setMaxNumberOfConcurrentConnectionAttempts(-1);
+        assertThat("A negative value is ignored",
+                mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts(), is(2));
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+    }
+
+    @Test
+    public void testPeerBackoffEnabled() throws Exception {
+        assertThat("The default value of the peer backoff is set",
+                mConnectionManagerSettings.getPeerBackoffEnabled(),
+                is(ConnectionManagerSettings.DEFAULT_PEER_BACKOFF_ENABLED));
+
+        mConnectionManagerSettings.setPeerBackoffEnabled(true);
+        assertThat("The peer backoff is properly set (true)",
+                mConnectionManagerSettings.getPeerBackoffEnabled(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("peer_backoff_enabled"),
+                is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setPeerBackoffEnabled(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setPeerBackoffEnabled(false);
+        assertThat("The peer backoff is properly set (false)",
+                mConnectionManagerSettings.getPeerBackoffEnabled(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testDuplicateConnectionArbitrationEnabled() throws Exception {
+        assertThat("The default value of the duplicate connection arbitration is set",
+                mConnectionManagerSettings.getDuplicateConnectionArbitrationEnabled(),
+                is(ConnectionManagerSettings.DEFAULT_DUPLICATE_CONNECTION_ARBITRATION_ENABLED));
+
+        mConnectionManagerSettings.setDuplicateConnectionArbitrationEnabled(true);
+        assertThat("The duplicate connection arbitration is properly set (true)",
+                mConnectionManagerSettings.getDuplicateConnectionArbitrationEnabled(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("duplicate_connection_arbitration_enabled"),
+                is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setDuplicateConnectionArbitrationEnabled(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setDuplicateConnectionArbitrationEnabled(false);
+        assertThat("The duplicate connection arbitration is properly set (false)",
+                mConnectionManagerSettings.getDuplicateConnectionArbitrationEnabled(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testPeerPortCacheEnabled() throws Exception {
+        assertThat("The default value of the peer port cache is set",
+                mConnectionManagerSettings.getPeerPortCacheEnabled(),
+                is(ConnectionManagerSettings.DEFAULT_PEER_PORT_CACHE_ENABLED));
+
+        mConnectionManagerSettings.setPeerPortCacheEnabled(true);
+        assertThat("The peer port cache is properly set (true)",
+                mConnectionManagerSettings.getPeerPortCacheEnabled(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("peer_port_cache_enabled"), is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setPeerPortCacheEnabled(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setPeerPortCacheEnabled(false);
+        assertThat("The peer port cache is properly set (false)",
+                mConnectionManagerSettings.getPeerPortCacheEnabled(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testAdaptiveConnectionTimeoutEnabled() throws Exception {
+        assertThat("The default value of the adaptive connection timeout is set",
+                mConnectionManagerSettings.getAdaptiveConnectionTimeoutEnabled(),
+                is(ConnectionManagerSettings.DEFAULT_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED));
+
+        mConnectionManagerSettings.setAdaptiveConnectionTimeoutEnabled(true);
+        assertThat("The adaptive connection timeout is properly set (true)",
+                mConnectionManagerSettings.getAdaptiveConnectionTimeoutEnabled(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("adaptive_connection_timeout_enabled"), is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setAdaptiveConnectionTimeoutEnabled(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setAdaptiveConnectionTimeoutEnabled(false);
+        assertThat("The adaptive connection timeout is properly set (false)",
+                mConnectionManagerSettings.getAdaptiveConnectionTimeoutEnabled(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testHandshakeExecutorEnabled() throws Exception {
+        assertThat("The default value of the handshake executor is set",
+                mConnectionManagerSettings.getHandshakeExecutorEnabled(),
+                is(ConnectionManagerSettings.DEFAULT_HANDSHAKE_EXECUTOR_ENABLED));
+
+        mConnectionManagerSettings.setHandshakeExecutorEnabled(true);
+        assertThat("The handshake executor is properly set (true)",
+                mConnectionManagerSettings.getHandshakeExecutorEnabled(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("handshake_executor_enabled"), is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setHandshakeExecutorEnabled(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setHandshakeExecutorEnabled(false);
+        assertThat("The handshake executor is properly set (false)",
+                mConnectionManagerSettings.getHandshakeExecutorEnabled(), is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
     @Test
     public void testLoad() throws Exception {
 
@@ -321,6 +581,28 @@ public class ConnectionManagerSettingsTest {
                 .getInt(contains("port_number"), anyInt());
         verify(mMockSharedPreferences, atLeast(1))
                 .getInt(contains("max_number_of_connection_attempt_retries"), anyInt());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("compression_enabled"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("persistent_server_socket"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("binary_handshake_enabled"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("connection_racing_enabled"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getInt(contains("max_number_of_concurrent_connection_attempts"), anyInt());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("peer_backoff_enabled"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("duplicate_connection_arbitration_enabled"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("peer_port_cache_enabled"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("adaptive_connection_timeout_enabled"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("typed_framing_enabled"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getInt(contains("flow_control_window_size"), anyInt());
     }
 
     @Test
@@ -341,5 +623,53 @@ public class ConnectionManagerSettingsTest {
         assertThat("Require a handshake protocol is properly set to default",
                 mConnectionManagerSettings.getHandshakeRequired(),
                 is(BluetoothConnector.DEFAULT_HANDSHAKE_REQUIRED));
+
+        assertThat("The compression is properly set to default",
+                mConnectionManagerSettings.getCompressionEnabled(),
+                is(BluetoothConnector.DEFAULT_COMPRESSION_ENABLED));
+
+        assertThat("The typed framing is properly set to default",
+                mConnectionManagerSettings.getTypedFramingEnabled(),
+                is(BluetoothConnector.DEFAULT_TYPED_FRAMING_ENABLED));
+
+        assertThat("The flow control window size is properly set to default",
+                mConnectionManagerSettings.getFlowControlWindowSize(),
+                is(BluetoothConnector.DEFAULT_FLOW_CONTROL_WINDOW_SIZE_IN_BYTES));
+
+        assertThat("The persistent server socket is properly set to default",
+                mConnectionManagerSettings.getPersistentServerSocket(),
+                is(BluetoothConnector.DEFAULT_PERSISTENT_SERVER_SOCKET));
+
+        assertThat("The binary handshake is properly set to default",
+                mConnectionManagerSettings.getBinaryHandshakeEnabled(),
+                is(BluetoothConnector.DEFAULT_BINARY_HANDSHAKE_ENABLED));
+
+        assertThat("The connection racing is properly set to default",
+                mConnectionManagerSettings.getConnectionRacingEnabled(),
+                is(BluetoothConnector.DEFAULT_CONNECTION_RACING_ENABLED));
+
+        assertThat("The maximum number of concurrent connection attempts is properly set to default",
+                mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts(),
+                is(BluetoothConnector.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS));
+
+        assertThat("The peer backoff is properly set to default",
+                mConnectionManagerSettings.getPeerBackoffEnabled(),
+                is(BluetoothConnector.DEFAULT_PEER_BACKOFF_ENABLED));
+
+        assertThat("The duplicate connection arbitration is properly set to default",
+                mConnectionManagerSettings.getDuplicateConnectionArbitrationEnabled(),
+                is(BluetoothConnector.DEFAULT_DUPLICATE_CONNECTION_ARBITRATION_ENABLED));
+
+        assertThat("The peer port cache is properly set to default",
+                mConnectionManagerSettings.getPeerPortCacheEnabled(),
+                is(BluetoothConnector.DEFAULT_PEER_PORT_CACHE_ENABLED));
+
+        assertThat("The adaptive connection timeout is properly set to default",
+                mConnectionManagerSettings.getAdaptiveConnectionTimeoutEnabled(),
+                is(BluetoothConnector.DEFAULT_ADAPTIVE_CONNECTION_TIMEOUT_ENABLED));
+
+        assertThat("The handshake executor is properly set to default",
+                mConnectionManagerSettings.getHandshakeExecutorEnabled(),
+                is(BluetoothConnector.DEFAULT_HANDSHAKE_EXECUTOR_ENABLED));
     }
 }
\ No newline at end of file
@@ -27,6 +27,7 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.atLeastOnce;
@@ -144,7 +145,7 @@ public class ConnectionManagerTest {
         when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn("01:02:03:04:05:06 ");
         when(mMockBluetoothManager.getRemoteDevice(anyString())).thenReturn(mBluetoothDevice);
         when(mMockBluetoothConnector.connect(isA(BluetoothDevice.class),
-                isA(PeerProperties.class))).thenReturn(true);
+                isA(PeerProperties.class), any(byte[].class))).thenReturn(true);
         Field field = cm.getClass().getDeclaredField("mBluetoothConnector");
         field.setAccessible(true);
         Field modifiersField = Field.class.getDeclaredField("modifiers");
@@ -245,11 +246,17 @@ public class ConnectionManagerTest {
 
         when(mMockBluetoothManager.getRemoteDevice(anyString())).thenReturn(mMockBluetoothDevice);
         when(mMockBluetoothConnector.connect(
-                isA(BluetoothDevice.class), isA(PeerProperties.class))).thenReturn(true);
+                isA(BluetoothDevice.class), isA(PeerProperties.class), any(byte[].class))).thenReturn(true);
         assertThat("Returns true if connected",
                 connectionManager.connect(mMockPeerProperties), is(true));
+
+        byte[] earlyData = new byte[] { 1, 2, 3 };
+        assertThat("Returns true if connected with early data",
+                connectionManager.connect(mMockPeerProperties, earlyData), is(true));
+        verify(mMockBluetoothConnector, times(1)).connect(mMockBluetoothDevice, mMockPeerProperties, earlyData);
+
         when(mMockBluetoothConnector.connect(
-                isA(BluetoothDevice.class), isA(PeerProperties.class))).thenReturn(false);
+                isA(BluetoothDevice.class), isA(PeerProperties.class), any(byte[].class))).thenReturn(false);
         assertThat("Returns false if cannot connect",
                 connectionManager.connect(mMockPeerProperties), is(false));
 
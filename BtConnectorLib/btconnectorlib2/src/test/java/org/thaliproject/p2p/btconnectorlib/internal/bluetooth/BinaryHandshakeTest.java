@@ -0,0 +1,384 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.thaliproject.p2p.btconnectorlib.Benchmark;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+public class BinaryHandshakeTest {
+
+    private static final String PEER_NAME = "Peer name";
+    private static final String MAC_ADDRESS = "0A:1B:2C:3D:4E:5F";
+    private static final String JSON_ID_PEER_NAME = "name";
+    private static final String JSON_ID_PEER_BLUETOOTH_MAC_ADDRESS = "address";
+
+    @Mock
+    BluetoothSocket mMockBluetoothSocket;
+    @Mock
+    BluetoothDevice mMockBluetoothDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(MAC_ADDRESS);
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, true);
+
+        assertThat("The message has the header and the name",
+                message.length, is(BinaryHandshake.HEADER_SIZE_IN_BYTES + PEER_NAME.length()));
+        assertThat("The message is recognized as a binary handshake message",
+                BinaryHandshake.isBinaryHandshakeMessage(message, message.length), is(true));
+        assertThat("The version is set", message[2], is(BinaryHandshake.VERSION));
+        assertThat("The compression flag and the typed framing flag it requires are set", message[3],
+                is((byte) (BinaryHandshake.FLAG_COMPRESSION_DEFLATE | BinaryHandshake.FLAG_TYPED_FRAMING)));
+        assertThat("The MAC address is encoded as six bytes",
+                Arrays.copyOfRange(message, 4, 10),
+                is(new byte[] { 0x0A, 0x1B, 0x2C, 0x3D, 0x4E, 0x5F }));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeEmptyName() throws Exception {
+        BinaryHandshake.encode("", MAC_ADDRESS, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeInvalidBluetoothMacAddress() throws Exception {
+        BinaryHandshake.encode(PEER_NAME, "00:11:22:33:44", false);
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        String name = "Vertäilu ✓";
+        byte[] message = BinaryHandshake.encode(name, MAC_ADDRESS, false);
+        PeerProperties peerProperties = BinaryHandshake.decode(message, message.length, MAC_ADDRESS, true);
+
+        assertThat("The message is decoded", peerProperties, is(notNullValue()));
+        assertThat("The name is decoded", peerProperties.getName(), is(name));
+        assertThat("The MAC address is the one of the sender",
+                peerProperties.getBluetoothMacAddress(), is(MAC_ADDRESS));
+        assertThat("The compression is not enabled, when the sender does not support it",
+                peerProperties.isCompressionEnabled(), is(false));
+    }
+
+    @Test
+    public void testDecodeNegotiatesCompression() throws Exception {
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, true);
+
+        assertThat("The compression is enabled, when both support it",
+                BinaryHandshake.decode(message, message.length, MAC_ADDRESS, true).isCompressionEnabled(),
+                is(true));
+        assertThat("The compression is not enabled, when we do not support it",
+                BinaryHandshake.decode(message, message.length, MAC_ADDRESS, false).isCompressionEnabled(),
+                is(false));
+    }
+
+    @Test
+    public void testDecodeInvalidMessages() throws Exception {
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false);
+
+        assertThat("The MAC address must match the one of the sender",
+                BinaryHandshake.decode(message, message.length, "0A:1B:2C:3D:4E:50", false),
+                is(nullValue()));
+        assertThat("The MAC address of the sender must be known",
+                BinaryHandshake.decode(message, message.length, null, false),
+                is(nullValue()));
+        assertThat("A truncated name is invalid",
+                BinaryHandshake.decode(message, message.length - 1, MAC_ADDRESS, false),
+                is(nullValue()));
+        assertThat("A truncated header is invalid",
+                BinaryHandshake.decode(message, BinaryHandshake.HEADER_SIZE_IN_BYTES - 1, MAC_ADDRESS, false),
+                is(nullValue()));
+
+        byte[] versionZeroMessage = message.clone();
+        versionZeroMessage[2] = 0;
+
+        assertThat("Version zero is invalid",
+                BinaryHandshake.decode(versionZeroMessage, versionZeroMessage.length, MAC_ADDRESS, false),
+                is(nullValue()));
+    }
+
+    @Test
+    public void testDecodeNewerVersion() throws Exception {
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false);
+        byte[] newerMessage = Arrays.copyOf(message, message.length + 4);
+        newerMessage[2] = BinaryHandshake.VERSION + 1;
+        newerMessage[3] |= 0x80; // Unknown flag
+
+        PeerProperties peerProperties =
+                BinaryHandshake.decode(newerMessage, newerMessage.length, MAC_ADDRESS, false);
+
+        assertThat("The fields of a newer version are ignored", peerProperties, is(notNullValue()));
+        assertThat("The name is decoded", peerProperties.getName(), is(PEER_NAME));
+    }
+
+    @Test
+    public void testEncodeDeclined() throws Exception {
+        byte[] declinedMessage = BinaryHandshake.encodeDeclined();
+
+        assertThat("The declined message is recognized",
+                BinaryHandshake.isDeclinedMessage(declinedMessage, declinedMessage.length),
+                is(true));
+        assertThat("The declined message is not a handshake message",
+                BinaryHandshake.decode(declinedMessage, declinedMessage.length, MAC_ADDRESS, false),
+                is(nullValue()));
+        assertThat("A truncated declined message is not recognized",
+                BinaryHandshake.isDeclinedMessage(declinedMessage, declinedMessage.length - 1),
+                is(false));
+
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false);
+
+        assertThat("A handshake message is not taken for the declined message",
+                BinaryHandshake.isDeclinedMessage(message, message.length),
+                is(false));
+    }
+
+    @Test
+    public void testEncodeAndDecodeEarlyData() throws Exception {
+        byte[] earlyData = "GET /".getBytes(StandardCharsets.UTF_8);
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, true, earlyData);
+
+        assertThat("The early data flag is set",
+                message[3] & BinaryHandshake.FLAG_EARLY_DATA, is(BinaryHandshake.FLAG_EARLY_DATA));
+
+        PeerProperties peerProperties = BinaryHandshake.decode(message, message.length, MAC_ADDRESS, true);
+
+        assertThat("The message is decoded", peerProperties, is(notNullValue()));
+        assertThat("The name is decoded", peerProperties.getName(), is(PEER_NAME));
+        assertThat("The compression is negotiated", peerProperties.isCompressionEnabled(), is(true));
+        assertThat("The early data is decoded", peerProperties.getEarlyData(), is(earlyData));
+
+        assertThat("Truncated early data is invalid",
+                BinaryHandshake.decode(message, message.length - 1, MAC_ADDRESS, true), is(nullValue()));
+
+        message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false, new byte[0]);
+
+        assertThat("Empty early data is not sent", message.length,
+                is(BinaryHandshake.HEADER_SIZE_IN_BYTES + PEER_NAME.length()));
+        assertThat("A message without early data has none",
+                BinaryHandshake.decode(message, message.length, MAC_ADDRESS, false).getEarlyData(),
+                is(nullValue()));
+    }
+
+    @Test
+    public void testDecodePreservesBytesPastMessage() throws Exception {
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false, new byte[] { 1, 2 });
+        byte[] buffer = Arrays.copyOf(message, 1024); // As read to a receive buffer
+        buffer[message.length] = 3; // The sender wrote after the handshake
+        buffer[message.length + 1] = 4;
+
+        PeerProperties peerProperties = BinaryHandshake.decode(buffer, message.length + 2, MAC_ADDRESS, false);
+
+        assertThat("The early data is kept apart from the bytes past the message",
+                peerProperties.getEarlyData(), is(new byte[] { 1, 2 }));
+        assertThat("The bytes past the message are buffered",
+                peerProperties.getBufferedData(), is(new byte[] { 3, 4 }));
+
+        message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false);
+        buffer = Arrays.copyOf(message, 1024);
+        buffer[message.length] = 5;
+        peerProperties = BinaryHandshake.decode(buffer, message.length + 1, MAC_ADDRESS, false);
+
+        assertThat("The bytes past a message without early data are not early data",
+                peerProperties.getEarlyData(), is(nullValue()));
+        assertThat("The bytes past a message without early data are preserved",
+                peerProperties.getBufferedData(), is(new byte[] { 5 }));
+        assertThat("A message without trailing bytes has no buffered data",
+                BinaryHandshake.decode(message, message.length, MAC_ADDRESS, false).getBufferedData(),
+                is(nullValue()));
+    }
+
+    @Test
+    public void testDecodeTooLongEarlyData() throws Exception {
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false, new byte[] { 1 });
+        final int earlyDataLength = BinaryHandshake.MAX_EARLY_DATA_SIZE_IN_BYTES + 1;
+        byte[] buffer = Arrays.copyOf(message, message.length - 1 + earlyDataLength);
+        buffer[message.length - 3] = (byte) (earlyDataLength >>> 8);
+        buffer[message.length - 2] = (byte) earlyDataLength;
+
+        assertThat("The early data longer than the maximum is invalid",
+                BinaryHandshake.decode(buffer, buffer.length, MAC_ADDRESS, false), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeTooLongEarlyData() throws Exception {
+        BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false,
+                new byte[BinaryHandshake.MAX_EARLY_DATA_SIZE_IN_BYTES + 1]);
+    }
+
+    @Test
+    public void testEncodeAndDecodeFramingFeatures() throws Exception {
+        byte[] earlyData = new byte[] { 1, 2, 3 };
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, true, true, 4096, earlyData);
+
+        assertThat("The typed framing and the flow control flags are set",
+                message[3] & (BinaryHandshake.FLAG_TYPED_FRAMING | BinaryHandshake.FLAG_FLOW_CONTROL),
+                is(BinaryHandshake.FLAG_TYPED_FRAMING | BinaryHandshake.FLAG_FLOW_CONTROL));
+
+        PeerProperties peerProperties = BinaryHandshake.decode(message, message.length, MAC_ADDRESS, true, false, 1024);
+
+        assertThat("The typed framing is negotiated", peerProperties.isTypedFramingEnabled(), is(true));
+        assertThat("The compression is not negotiated, if we do not support it",
+                peerProperties.isCompressionEnabled(), is(false));
+        assertThat("The smaller flow control window is used", peerProperties.getFlowControlWindowSize(), is(1024));
+        assertThat("The early data follows the flow control window", peerProperties.getEarlyData(), is(earlyData));
+
+        peerProperties = BinaryHandshake.decode(message, message.length, MAC_ADDRESS, false, false, 0);
+
+        assertThat("The typed framing is not negotiated, if we do not support it",
+                peerProperties.isTypedFramingEnabled(), is(false));
+        assertThat("The flow control is not negotiated without the typed framing",
+                peerProperties.getFlowControlWindowSize(), is(0));
+
+        message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false, false, 0, null);
+        peerProperties = BinaryHandshake.decode(message, message.length, MAC_ADDRESS, true, true, 1024);
+
+        assertThat("The typed framing is not negotiated, if the peer does not support it",
+                peerProperties.isTypedFramingEnabled(), is(false));
+        assertThat("The compression is not negotiated, if the peer does not support it",
+                peerProperties.isCompressionEnabled(), is(false));
+        assertThat("The flow control is not negotiated, if the peer does not offer it",
+                peerProperties.getFlowControlWindowSize(), is(0));
+
+        message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false, false, 4096, null);
+
+        assertThat("The truncated flow control window is invalid",
+                BinaryHandshake.decode(message, message.length - 1, MAC_ADDRESS, true, false, 1024),
+                is(nullValue()));
+    }
+
+    @Test
+    public void testDecodeShortFormBluetoothMacAddress() throws Exception {
+        byte[] message = BinaryHandshake.encode(PEER_NAME, "0A:1B:2C:3D:4E:5F", false);
+
+        assertThat("The MAC address without leading zeros matches",
+                BinaryHandshake.decode(message, message.length, "A:1B:2C:3D:4E:5F", false),
+                is(notNullValue()));
+    }
+
+    @Test
+    public void testValidateReceivedHandshakeMessage() throws Exception {
+        byte[] message = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, true);
+        byte[] buffer = Arrays.copyOf(message, 1024); // As read to a receive buffer
+
+        PeerProperties peerProperties = BluetoothUtils.validateReceivedHandshakeMessage(
+                buffer, message.length, mMockBluetoothSocket, true);
+
+        assertThat("The binary handshake message is validated", peerProperties, is(notNullValue()));
+        assertThat("The name is resolved", peerProperties.getName(), is(PEER_NAME));
+        assertThat("The compression is negotiated", peerProperties.isCompressionEnabled(), is(true));
+
+        assertThat("The simple handshake message is still accepted",
+                BluetoothUtils.validateReceivedHandshakeMessage(
+                        BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY,
+                        BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY.length,
+                        mMockBluetoothSocket).getBluetoothMacAddress(),
+                is(MAC_ADDRESS));
+    }
+
+    @Test
+    public void testBinaryMessageIsSmallerThanJson() throws Exception {
+        final byte[] jsonMessage = createJsonMessage();
+        final byte[] binaryMessage = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false);
+
+        assertThat("The JSON message is valid",
+                BluetoothUtils.validateReceivedHandshakeMessage(jsonMessage, jsonMessage.length, mMockBluetoothSocket),
+                is(notNullValue()));
+        assertThat("The binary message is valid",
+                BinaryHandshake.decode(binaryMessage, binaryMessage.length, MAC_ADDRESS, false),
+                is(notNullValue()));
+        assertThat("The binary message is smaller than the JSON one",
+                binaryMessage.length < jsonMessage.length, is(true));
+    }
+
+    /**
+     * Benchmark of encoding and decoding the binary handshake message compared to the JSON
+     * identity string.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testEncodeAndDecodeComparedToJson() throws Exception {
+        final int numberOfIterations = 20000;
+        final byte[] jsonMessage = createJsonMessage();
+        final byte[] binaryMessage = BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false);
+        int numberOfValidMessages = 0;
+
+        // Warm up
+        for (int i = 0; i < numberOfIterations; i++) {
+            BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false);
+            BinaryHandshake.decode(binaryMessage, binaryMessage.length, MAC_ADDRESS, false);
+            new JSONObject()
+                    .put(JSON_ID_PEER_NAME, PEER_NAME)
+                    .put(JSON_ID_PEER_BLUETOOTH_MAC_ADDRESS, MAC_ADDRESS)
+                    .toString().getBytes(StandardCharsets.UTF_8);
+            BluetoothUtils.validateReceivedHandshakeMessage(jsonMessage, jsonMessage.length, mMockBluetoothSocket);
+        }
+
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < numberOfIterations; i++) {
+            BinaryHandshake.encode(PEER_NAME, MAC_ADDRESS, false);
+        }
+
+        final long binaryEncodeTime = System.nanoTime() - startTime;
+        startTime = System.nanoTime();
+
+        for (int i = 0; i < numberOfIterations; i++) {
+            if (BinaryHandshake.decode(binaryMessage, binaryMessage.length, MAC_ADDRESS, false) != null) {
+                numberOfValidMessages++;
+            }
+        }
+
+        final long binaryDecodeTime = System.nanoTime() - startTime;
+        startTime = System.nanoTime();
+
+        for (int i = 0; i < numberOfIterations; i++) {
+            new JSONObject()
+                    .put(JSON_ID_PEER_NAME, PEER_NAME)
+                    .put(JSON_ID_PEER_BLUETOOTH_MAC_ADDRESS, MAC_ADDRESS)
+                    .toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        final long jsonEncodeTime = System.nanoTime() - startTime;
+        startTime = System.nanoTime();
+
+        for (int i = 0; i < numberOfIterations; i++) {
+            BluetoothUtils.validateReceivedHandshakeMessage(jsonMessage, jsonMessage.length, mMockBluetoothSocket);
+        }
+
+        final long jsonDecodeTime = System.nanoTime() - startTime;
+
+        System.out.println("Handshake message: binary " + binaryMessage.length + " bytes, encode "
+                + binaryEncodeTime / numberOfIterations + " ns, decode " + binaryDecodeTime / numberOfIterations
+                + " ns; JSON " + jsonMessage.length + " bytes, encode " + jsonEncodeTime / numberOfIterations
+                + " ns, decode " + jsonDecodeTime / numberOfIterations + " ns");
+
+        assertThat("Every binary message is decoded", numberOfValidMessages, is(numberOfIterations));
+    }
+
+    private static byte[] createJsonMessage() throws Exception {
+        return new JSONObject()
+                .put(JSON_ID_PEER_NAME, PEER_NAME)
+                .put(JSON_ID_PEER_BLUETOOTH_MAC_ADDRESS, MAC_ADDRESS)
+                .toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -6,7 +6,6 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.CountDownTimer;
 import android.os.Handler;
 
 import org.junit.After;
@@ -18,22 +17,35 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
+import org.thaliproject.p2p.btconnectorlib.utils.HandshakeExecutor;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
-import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -62,7 +74,7 @@ public class BluetoothConnectorTest {
     @Mock
     PeerProperties mMockPeerProperties;
     @Mock
-    CountDownTimer mMockConnectionTimeoutTimer;
+    ScheduledFuture<?> mMockConnectionTimeout;
     @Mock
     BluetoothClientThread mMockBluetoothClientThread;
     @Mock
@@ -117,41 +129,30 @@ public class BluetoothConnectorTest {
         Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
         clientThreadsField.setAccessible(true);
         CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
-
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
+        Map<BluetoothClientThread, ScheduledFuture<?>> connectionTimeouts = getConnectionTimeouts();
 
         mBluetoothConnector.setConnectionTimeout(
                 BluetoothConnector.DEFAULT_CONNECTION_TIMEOUT_IN_MILLISECONDS);
         assertThat("No timeout is set If the given value is the same as the current one",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+                connectionTimeouts.isEmpty(),
+                is(true));
 
         mBluetoothConnector.setConnectionTimeout(-1);
         assertThat("No timeout is set If the given value is negative",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+                connectionTimeouts.isEmpty(),
+                is(true));
 
         mBluetoothConnector.setConnectionTimeout(0);
         assertThat("No timeout is set If the given value is 0",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
-
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+                connectionTimeouts.isEmpty(),
+                is(true));
 
         // No client threads added
         mBluetoothConnector.setConnectionTimeout(1000);
 
         assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
-
-        // check if the timer is canceled
-        verify(mMockConnectionTimeoutTimer, times(1))
-                .cancel();
-
-        reset(mMockConnectionTimeoutTimer);
+                connectionTimeouts.isEmpty(),
+                is(true));
 
         // With client threads added
         myClientThreads.add(mMockBluetoothClientThread);
@@ -160,12 +161,81 @@ public class BluetoothConnectorTest {
         mBluetoothConnector.setConnectionTimeout(1500);
 
         assertThat("The proper timeout is set",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                instanceOf(CountDownTimer.class));
+                connectionTimeouts.get(mMockBluetoothClientThread),
+                is(notNullValue()));
+        assertThat("The deadline is based on the new timeout",
+                connectionTimeouts.get(mMockBluetoothClientThread).getDelay(TimeUnit.MILLISECONDS) <= 1500,
+                is(true));
 
-        // check if the timer is not canceled
-        verify(mMockConnectionTimeoutTimer, never())
-                .cancel();
+        // Disabling the timeout cancels the scheduled one
+        connectionTimeouts.put(mMockBluetoothClientThread, mMockConnectionTimeout);
+        mBluetoothConnector.setConnectionTimeout(0);
+
+        verify(mMockConnectionTimeout, times(1))
+                .cancel(false);
+        assertThat("No timeout is set If the given value is 0",
+                connectionTimeouts.isEmpty(),
+                is(true));
+    }
+
+    @Test
+    public void testConnectionTimeout() throws Exception {
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
+
+        final CountDownLatch connectLatch = new CountDownLatch(1);
+        final long connectionTimeoutInMilliseconds = 100;
+
+        when(mMockHandler.post(any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                try {
+                    ((Runnable) invocation.getArguments()[0]).run();
+                } catch (RuntimeException e) {
+                    // Uncaught exceptions of the client thread are rethrown on the handler
+                }
+
+                return true;
+            }
+        });
+
+        when(mMockBluetoothDevice.createInsecureRfcommSocketToServiceRecord(any(UUID.class)))
+                .thenAnswer(new Answer<BluetoothSocket>() {
+                    @Override
+                    public BluetoothSocket answer(InvocationOnMock invocation) throws Throwable {
+                        try {
+                            connectLatch.await(); // Never connects
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted");
+                        }
+
+                        throw new IOException("Released");
+                    }
+                });
+
+        // Do not depend on the settings left by the other tests
+        mBluetoothConnector.setInsecureRfcommSocketPort(BluetoothConnector.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
+        mBluetoothConnector.setConnectionRacingEnabled(false);
+        mBluetoothConnector.setMaxNumberOfConcurrentConnectionAttempts(
+                BluetoothConnector.UNLIMITED_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS);
+        mBluetoothConnector.setConnectionTimeout(connectionTimeoutInMilliseconds);
+        final long startTime = System.currentTimeMillis();
+
+        try {
+            assertThat("The connection attempt is started",
+                    mBluetoothConnector.connect(mMockBluetoothDevice, mMockPeerProperties),
+                    is(true));
+
+            verify(mMockListener, timeout(2000).times(1)).onConnectionTimeout(mMockPeerProperties);
+
+            assertThat("The timeout fires soon after the deadline, not on a polling interval",
+                    System.currentTimeMillis() - startTime < 1000,
+                    is(true));
+            assertThat("The timeout is no longer scheduled", getConnectionTimeouts().isEmpty(), is(true));
+        } finally {
+            connectLatch.countDown();
+        }
     }
 
     @Test
@@ -362,10 +432,8 @@ public class BluetoothConnectorTest {
     @Test
     public void testShutdown() throws Exception {
 
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        Map<BluetoothClientThread, ScheduledFuture<?>> connectionTimeouts = getConnectionTimeouts();
+        connectionTimeouts.put(mMockBluetoothClientThread, mMockConnectionTimeout);
 
         Field stoppingServerField = mBluetoothConnector.getClass()
                 .getDeclaredField("mIsStoppingServer");
@@ -459,6 +527,174 @@ public class BluetoothConnectorTest {
         verify(mMockListener, times(1)).onConnecting(name, address);
     }
 
+    @Test
+    public void testConnect_queuedAttemptIsCancelled() throws Exception {
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        PeerProperties firstPeerProperties = new PeerProperties("01:02:03:04:05:06");
+        PeerProperties secondPeerProperties = new PeerProperties("01:02:03:04:05:07");
+
+        when(mMockBluetoothDevice.getName()).thenReturn("my device name");
+        when(mMockBluetoothDevice.getAddress()).thenReturn("my device address");
+        when(mMockBluetoothDevice.createInsecureRfcommSocketToServiceRecord(any(UUID.class)))
+                .thenAnswer(new Answer<BluetoothSocket>() {
+                    @Override
+                    public BluetoothSocket answer(InvocationOnMock invocation) throws Throwable {
+                        releaseLatch.await(); // Keeps the first attempt running
+                        throw new IOException("Released");
+                    }
+                });
+
+        mBluetoothConnector.setMaxNumberOfConcurrentConnectionAttempts(1);
+
+        try {
+            assertThat("The first attempt is started",
+                    mBluetoothConnector.connect(mMockBluetoothDevice, firstPeerProperties), is(true));
+            assertThat("The second attempt is accepted",
+                    mBluetoothConnector.connect(mMockBluetoothDevice, secondPeerProperties), is(true));
+            assertThat("The second attempt is queued",
+                    mBluetoothConnector.getNumberOfQueuedConnectionAttempts(), is(1));
+            verify(mMockListener, times(2)).onConnecting("my device name", "my device address");
+
+            assertThat("The queued attempt is cancelled",
+                    mBluetoothConnector.cancelConnectionAttempt(secondPeerProperties), is(true));
+            assertThat("The queue is empty",
+                    mBluetoothConnector.getNumberOfQueuedConnectionAttempts(), is(0));
+            assertThat("The queued attempt is not cancelled twice",
+                    mBluetoothConnector.cancelConnectionAttempt(secondPeerProperties), is(false));
+        } finally {
+            releaseLatch.countDown();
+        }
+    }
+
+    @Test
+    public void testConnect_peerBackoff() throws Exception {
+        PeerProperties peerProperties = new PeerProperties("01:02:03:04:05:06");
+        Field peerFailureTrackerField = mBluetoothConnector.getClass().getDeclaredField("mPeerFailureTracker");
+        peerFailureTrackerField.setAccessible(true);
+        PeerFailureTracker peerFailureTracker = (PeerFailureTracker) peerFailureTrackerField.get(mBluetoothConnector);
+
+        for (int i = 0; i < PeerFailureTracker.DEFAULT_FAILURE_THRESHOLD; i++) {
+            peerFailureTracker.onFailure(peerProperties.getBluetoothMacAddress());
+        }
+
+        assertThat("The peer is backed off from",
+                mBluetoothConnector.getRemainingPeerBackoffTime(peerProperties.getBluetoothMacAddress()) > 0,
+                is(true));
+
+        mBluetoothConnector.setPeerBackoffEnabled(true);
+
+        assertThat("Connecting fails right away",
+                mBluetoothConnector.connect(mMockBluetoothDevice, peerProperties), is(false));
+        verify(mMockListener, times(1)).onConnectionFailed(eq(peerProperties), anyString());
+        verify(mMockListener, never()).onConnecting(anyString(), anyString());
+        assertThat("No client thread is created", mBluetoothConnector.getNumberOfQueuedConnectionAttempts(), is(0));
+    }
+
+    @Test
+    public void testGetPreferredPort() throws Exception {
+        final String peerAddress = "01:02:03:04:05:06";
+        Field peerPortCacheField = mBluetoothConnector.getClass().getDeclaredField("mPeerPortCache");
+        peerPortCacheField.setAccessible(true);
+        PeerPortCache peerPortCache = (PeerPortCache) peerPortCacheField.get(mBluetoothConnector);
+
+        mBluetoothConnector.setInsecureRfcommSocketPort(BluetoothConnector.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
+        mBluetoothConnector.setPeerPortCacheEnabled(true);
+
+        assertThat("The port setting is used for an unknown peer",
+                mBluetoothConnector.getPreferredPort(peerAddress),
+                is(BluetoothConnector.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT));
+
+        peerPortCache.put(peerAddress, 7);
+
+        assertThat("The port, which last worked with the peer, is used",
+                mBluetoothConnector.getPreferredPort(peerAddress), is(7));
+
+        mBluetoothConnector.setPeerPortCacheEnabled(false);
+
+        assertThat("The port setting is used, when the cache is disabled",
+                mBluetoothConnector.getPreferredPort(peerAddress),
+                is(BluetoothConnector.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT));
+    }
+
+    @Test
+    public void testGetConnectionTimeout_adaptive() throws Exception {
+        final String peerAddress = "01:02:03:04:05:06";
+        Field connectTimeEstimatorField = mBluetoothConnector.getClass().getDeclaredField("mConnectTimeEstimator");
+        connectTimeEstimatorField.setAccessible(true);
+        ConnectTimeEstimator connectTimeEstimator =
+                (ConnectTimeEstimator) connectTimeEstimatorField.get(mBluetoothConnector);
+
+        mBluetoothConnector.setConnectionTimeout(20000);
+        mBluetoothConnector.setAdaptiveConnectionTimeoutEnabled(true);
+
+        assertThat("The connection timeout is used without samples",
+                mBluetoothConnector.getConnectionTimeout(peerAddress), is(20000L));
+
+        connectTimeEstimator.onConnected(peerAddress, 2000);
+
+        assertThat("The timeout is derived from the connect time",
+                mBluetoothConnector.getConnectionTimeout(peerAddress), is(6000L));
+
+        mBluetoothConnector.setAdaptiveConnectionTimeoutEnabled(false);
+
+        assertThat("The connection timeout is used, when the adaptive timeout is disabled",
+                mBluetoothConnector.getConnectionTimeout(peerAddress), is(20000L));
+    }
+
+    @Test
+    public void testSetHandshakeExecutorEnabled() throws Exception {
+        assertThat("No handshake executor is used by default",
+                mBluetoothConnector.getHandshakeExecutor(), is(nullValue()));
+
+        mBluetoothConnector.setHandshakeExecutorEnabled(true);
+        HandshakeExecutor handshakeExecutor = mBluetoothConnector.getHandshakeExecutor();
+
+        assertThat("A handshake executor is installed", handshakeExecutor, is(notNullValue()));
+
+        mBluetoothConnector.setHandshakeExecutorEnabled(true);
+
+        assertThat("The handshake executor is kept, when enabled again",
+                mBluetoothConnector.getHandshakeExecutor(), is(handshakeExecutor));
+
+        mBluetoothConnector.setHandshakeExecutorEnabled(false);
+
+        assertThat("The handshake executor is removed",
+                mBluetoothConnector.getHandshakeExecutor(), is(nullValue()));
+        assertThat("The removed handshake executor accepts no more handshakes",
+                handshakeExecutor.execute(mock(BluetoothSocketIoThread.class), mock(HandshakeExecutor.Listener.class)),
+                is(false));
+    }
+
+    @Test
+    public void testShutdown_handshakeExecutor() throws Exception {
+        mBluetoothConnector.setHandshakeExecutorEnabled(true);
+        HandshakeExecutor handshakeExecutor = mBluetoothConnector.getHandshakeExecutor();
+
+        mBluetoothConnector.shutdown();
+
+        assertThat("The handshake executor is shut down with the connector",
+                handshakeExecutor.execute(mock(BluetoothSocketIoThread.class), mock(HandshakeExecutor.Listener.class)),
+                is(false));
+    }
+
+    @Test
+    public void testGetConnectionRaceStagger() throws Exception {
+        final String peerAddress = "01:02:03:04:05:06";
+        Field connectTimeEstimatorField = mBluetoothConnector.getClass().getDeclaredField("mConnectTimeEstimator");
+        connectTimeEstimatorField.setAccessible(true);
+        ConnectTimeEstimator connectTimeEstimator =
+                (ConnectTimeEstimator) connectTimeEstimatorField.get(mBluetoothConnector);
+
+        assertThat("The default stagger is used without samples",
+                mBluetoothConnector.getConnectionRaceStagger(peerAddress),
+                is(BluetoothClientThread.DEFAULT_CONNECTION_RACE_STAGGER_IN_MILLISECONDS));
+
+        connectTimeEstimator.onConnected(peerAddress, 3000);
+
+        assertThat("The stagger is the connect time of the peer",
+                mBluetoothConnector.getConnectionRaceStagger(peerAddress), is(3000L));
+    }
+
     @Test
     public void testCancelConnectionAttempt_exception() throws Exception {
         thrown.expect(NullPointerException.class);
@@ -467,10 +703,8 @@ public class BluetoothConnectorTest {
 
     @Test
     public void testCancelConnectionAttempt() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        Map<BluetoothClientThread, ScheduledFuture<?>> connectionTimeouts = getConnectionTimeouts();
+        connectionTimeouts.put(mMockBluetoothClientThread, mMockConnectionTimeout);
 
         Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
         clientThreadsField.setAccessible(true);
@@ -491,9 +725,9 @@ public class BluetoothConnectorTest {
                 mBluetoothConnector.cancelConnectionAttempt(mMockPeerProperties),
                 is(true));
 
-        // check if the timer was canceled
-        verify(mMockConnectionTimeoutTimer, times(1))
-                .cancel();
+        // check if the timeout was canceled
+        verify(mMockConnectionTimeout, times(1))
+                .cancel(false);
 
         // Wait for the other thread
         Thread.sleep(500);
@@ -522,6 +756,172 @@ public class BluetoothConnectorTest {
         verify(mMockListener, times(1)).onConnected(mMockBluetoothSocket, true, mMockPeerProperties);
     }
 
+    @Test
+    public void testOnIncomingConnectionHandshakeReceived_duplicateIsDeclined() throws Exception {
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
+
+        Field myBluetoothMacAddressField = mBluetoothConnector.getClass().getDeclaredField("mMyBluetoothMacAddress");
+        myBluetoothMacAddressField.setAccessible(true);
+        myBluetoothMacAddressField.set(mBluetoothConnector, "01:02:03:04:05:06"); // Lower than the peer
+        mBluetoothConnector.setDuplicateConnectionArbitrationEnabled(true);
+
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+
+        PeerProperties peerProperties = new PeerProperties("0A:0B:0C:0D:0E:0F");
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(new PeerProperties("0a:0b:0c:0d:0e:0f"));
+        when(mMockBluetoothClientThread.getHandshakeRequired()).thenReturn(true);
+        mBluetoothConnector.onSocketConnected(mMockBluetoothSocket, peerProperties, mMockBluetoothClientThread);
+
+        assertThat("The incoming connection is declined",
+                mBluetoothConnector.onIncomingConnectionHandshakeReceived(peerProperties), is(false));
+        verify(mMockHandler, never()).post(any(Runnable.class));
+        assertThat("The outgoing connection attempt is kept", myClientThreads.size(), is(1));
+        assertThat("The duplicate is counted", mBluetoothConnector.getNumberOfDuplicateConnectionsAvoided(), is(1L));
+    }
+
+    @Test
+    public void testOnIncomingConnectionHandshakeReceived_socketConnectedBeforeHandshake() throws Exception {
+        // Our socket is connected, but the client thread has not started the handshake yet. The
+        // peer may receive our handshake any moment and keep our link, so we must keep it too.
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
+
+        Field myBluetoothMacAddressField = mBluetoothConnector.getClass().getDeclaredField("mMyBluetoothMacAddress");
+        myBluetoothMacAddressField.setAccessible(true);
+        myBluetoothMacAddressField.set(mBluetoothConnector, "01:02:03:04:05:06"); // Lower than the peer
+        mBluetoothConnector.setDuplicateConnectionArbitrationEnabled(true);
+
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+
+        PeerProperties peerProperties = new PeerProperties("0A:0B:0C:0D:0E:0F");
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(peerProperties);
+        when(mMockBluetoothClientThread.getHandshakeRequired()).thenReturn(true);
+        when(mMockBluetoothClientThread.getId()).thenReturn(123456789L);
+
+        assertThat("Before our socket is connected, the incoming connection is accepted",
+                mBluetoothConnector.onIncomingConnectionHandshakeReceived(peerProperties), is(true));
+        assertThat("The outgoing connection attempt is cancelled", myClientThreads.isEmpty(), is(true));
+
+        myClientThreads.add(mMockBluetoothClientThread);
+        mBluetoothConnector.onSocketConnected(mMockBluetoothSocket, peerProperties, mMockBluetoothClientThread);
+
+        assertThat("Once our socket is connected, the incoming connection is declined",
+                mBluetoothConnector.onIncomingConnectionHandshakeReceived(peerProperties), is(false));
+        assertThat("The outgoing connection is kept", myClientThreads.size(), is(1));
+        verify(mMockListener, never()).onConnected(any(BluetoothSocket.class), anyBoolean(), any(PeerProperties.class));
+    }
+
+    @Test
+    public void testOnIncomingConnectionHandshakeReceived_outgoingNotConnectedIsCancelled() throws Exception {
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
+
+        Field myBluetoothMacAddressField = mBluetoothConnector.getClass().getDeclaredField("mMyBluetoothMacAddress");
+        myBluetoothMacAddressField.setAccessible(true);
+        myBluetoothMacAddressField.set(mBluetoothConnector, "01:02:03:04:05:06"); // Lower than the peer
+        mBluetoothConnector.setDuplicateConnectionArbitrationEnabled(true);
+
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+
+        PeerProperties peerProperties = new PeerProperties("0A:0B:0C:0D:0E:0F");
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(peerProperties);
+        when(mMockBluetoothClientThread.getId()).thenReturn(123456789L);
+
+        assertThat("The incoming connection is accepted, since the outgoing one may still fail",
+                mBluetoothConnector.onIncomingConnectionHandshakeReceived(peerProperties), is(true));
+        assertThat("The outgoing connection attempt is cancelled", myClientThreads.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testOnIncomingConnectionHandshakeReceived_duplicateOutgoingIsCancelled() throws Exception {
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
+
+        Field myBluetoothMacAddressField = mBluetoothConnector.getClass().getDeclaredField("mMyBluetoothMacAddress");
+        myBluetoothMacAddressField.setAccessible(true);
+        myBluetoothMacAddressField.set(mBluetoothConnector, "0F:02:03:04:05:06"); // Higher than the peer
+        mBluetoothConnector.setDuplicateConnectionArbitrationEnabled(true);
+
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+
+        PeerProperties peerProperties = new PeerProperties("0A:0B:0C:0D:0E:0F");
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(peerProperties);
+        when(mMockBluetoothClientThread.getHandshakeRequired()).thenReturn(true);
+        when(mMockBluetoothClientThread.getId()).thenReturn(123456789L);
+        mBluetoothConnector.onSocketConnected(mMockBluetoothSocket, peerProperties, mMockBluetoothClientThread);
+
+        final ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+
+        assertThat("The incoming connection is accepted",
+                mBluetoothConnector.onIncomingConnectionHandshakeReceived(peerProperties), is(true));
+        verify(mMockHandler, times(1)).post(captor.capture());
+        assertThat("The outgoing connection attempt is cancelled", myClientThreads.isEmpty(), is(true));
+        assertThat("The duplicate is counted", mBluetoothConnector.getNumberOfDuplicateConnectionsAvoided(), is(1L));
+
+        Thread thread = new Thread(captor.getValue());
+        thread.start();
+        // Wait for the other thread
+        Thread.sleep(500);
+        verify(mMockBluetoothClientThread, times(1))
+                .shutdown();
+        verify(mMockListener, times(1)).onConnectionFailed(eq(peerProperties), anyString());
+
+        // Without a connection attempt to the same peer
+        assertThat("Not a duplicate", mBluetoothConnector.onIncomingConnectionHandshakeReceived(
+                new PeerProperties("0B:0B:0C:0D:0E:0F")), is(true));
+        assertThat("Not a duplicate", mBluetoothConnector.getNumberOfDuplicateConnectionsAvoided(), is(1L));
+    }
+
+    @Test
+    public void testOnIncomingConnectionHandshakeReceived_recentOutgoingConnection() throws Exception {
+        Field myBluetoothMacAddressField = mBluetoothConnector.getClass().getDeclaredField("mMyBluetoothMacAddress");
+        myBluetoothMacAddressField.setAccessible(true);
+        myBluetoothMacAddressField.set(mBluetoothConnector, "0F:02:03:04:05:06"); // Higher than the peer
+        mBluetoothConnector.setDuplicateConnectionArbitrationEnabled(true);
+
+        PeerProperties peerProperties = new PeerProperties("0A:0B:0C:0D:0E:0F");
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(peerProperties);
+        when(mMockBluetoothClientThread.getId()).thenReturn(123456789L);
+
+        Method handleSuccessfulClientThreadMethod = mBluetoothConnector.getClass().getDeclaredMethod(
+                "handleSuccessfulClientThread",
+                BluetoothClientThread.class, BluetoothSocket.class, PeerProperties.class);
+        handleSuccessfulClientThreadMethod.setAccessible(true);
+        handleSuccessfulClientThreadMethod.invoke(
+                mBluetoothConnector, mMockBluetoothClientThread, mMockBluetoothSocket, peerProperties);
+
+        when(mMockBluetoothSocket.isConnected()).thenReturn(true);
+
+        assertThat("The incoming connection is declined, since our outgoing connection is established",
+                mBluetoothConnector.onIncomingConnectionHandshakeReceived(peerProperties), is(false));
+
+        when(mMockBluetoothSocket.isConnected()).thenReturn(false);
+
+        assertThat("The reconnect is accepted, after our outgoing connection was closed",
+                mBluetoothConnector.onIncomingConnectionHandshakeReceived(peerProperties), is(true));
+    }
+
     @Test
     public void testOnIncomingConnectionConnected_notConnected() throws Exception {
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
@@ -643,10 +1043,8 @@ public class BluetoothConnectorTest {
 
     @Test
     public void testOnSocketConnected() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        Map<BluetoothClientThread, ScheduledFuture<?>> connectionTimeouts = getConnectionTimeouts();
+        connectionTimeouts.put(mMockBluetoothClientThread, mMockConnectionTimeout);
 
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
         handlerField.setAccessible(true);
@@ -680,10 +1078,10 @@ public class BluetoothConnectorTest {
         mBluetoothConnector.onSocketConnected(mMockBluetoothSocket, mMockPeerProperties,
                 mMockBluetoothClientThread);
 
-        verify(mMockConnectionTimeoutTimer, times(1)).cancel();
-        assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        verify(mMockConnectionTimeout, times(1)).cancel(false);
+        assertThat("No timeout is set as the client thread is removed",
+                connectionTimeouts.isEmpty(),
+                is(true));
         verify(mMockHandler, never()).post(captor.capture());
 
         // handshake required, notify the listener
@@ -699,10 +1097,10 @@ public class BluetoothConnectorTest {
         mBluetoothConnector.onSocketConnected(mMockBluetoothSocket, mMockPeerProperties,
                 mMockBluetoothClientThread);
 
-        verify(mMockConnectionTimeoutTimer, times(1)).cancel();
-        assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        verify(mMockConnectionTimeout, times(1)).cancel(false);
+        assertThat("No timeout is set as the client thread is removed",
+                connectionTimeouts.isEmpty(),
+                is(true));
         verify(mMockHandler, times(1)).post(captor.capture());
 
         Thread thread = new Thread(captor.getValue());
@@ -715,10 +1113,8 @@ public class BluetoothConnectorTest {
 
     @Test
     public void testOnSocketConnected_success() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        Map<BluetoothClientThread, ScheduledFuture<?>> connectionTimeouts = getConnectionTimeouts();
+        connectionTimeouts.put(mMockBluetoothClientThread, mMockConnectionTimeout);
 
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
         handlerField.setAccessible(true);
@@ -750,10 +1146,10 @@ public class BluetoothConnectorTest {
         mBluetoothConnector.onSocketConnected(mMockBluetoothSocket, mMockPeerProperties,
                 mMockBluetoothClientThread);
 
-        verify(mMockConnectionTimeoutTimer, times(1)).cancel();
-        assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        verify(mMockConnectionTimeout, times(1)).cancel(false);
+        assertThat("No timeout is set as the client thread is removed",
+                connectionTimeouts.isEmpty(),
+                is(true));
         verify(mMockHandler, times(1)).post(captor.capture());
 
         Thread thread = new Thread(captor.getValue());
@@ -766,10 +1162,8 @@ public class BluetoothConnectorTest {
 
     @Test
     public void testOnHandshakeSucceeded() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        Map<BluetoothClientThread, ScheduledFuture<?>> connectionTimeouts = getConnectionTimeouts();
+        connectionTimeouts.put(mMockBluetoothClientThread, mMockConnectionTimeout);
 
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
         handlerField.setAccessible(true);
@@ -801,10 +1195,10 @@ public class BluetoothConnectorTest {
         mBluetoothConnector.onHandshakeSucceeded(mMockBluetoothSocket, mMockPeerProperties,
                 mMockBluetoothClientThread);
 
-        verify(mMockConnectionTimeoutTimer, times(1)).cancel();
-        assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        verify(mMockConnectionTimeout, times(1)).cancel(false);
+        assertThat("No timeout is set as the client thread is removed",
+                connectionTimeouts.isEmpty(),
+                is(true));
         verify(mMockHandler, times(1)).post(captor.capture());
 
         Thread thread = new Thread(captor.getValue());
@@ -817,10 +1211,8 @@ public class BluetoothConnectorTest {
 
     @Test
     public void testOnConnectionFailed() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        Map<BluetoothClientThread, ScheduledFuture<?>> connectionTimeouts = getConnectionTimeouts();
+        connectionTimeouts.put(mMockBluetoothClientThread, mMockConnectionTimeout);
 
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
         handlerField.setAccessible(true);
@@ -853,4 +1245,83 @@ public class BluetoothConnectorTest {
 
         verify(mMockListener, times(1)).onConnectionFailed(mMockPeerProperties, msg);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testOnConnectionFailed_peerPortCache() throws Exception {
+        final String peerAddress = "01:02:03:04:05:06";
+        Field peerPortCacheField = mBluetoothConnector.getClass().getDeclaredField("mPeerPortCache");
+        peerPortCacheField.setAccessible(true);
+        PeerPortCache peerPortCache = (PeerPortCache) peerPortCacheField.get(mBluetoothConnector);
+
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
+
+        when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn(peerAddress);
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(mMockPeerProperties);
+        peerPortCache.put(peerAddress, 7);
+
+        mBluetoothConnector.setPeerPortCacheEnabled(false);
+        mBluetoothConnector.onConnectionFailed(mMockPeerProperties, "error message", mMockBluetoothClientThread);
+
+        assertThat("The cached port is kept, when the cache is disabled",
+                peerPortCache.getPort(peerAddress, 0), is(7));
+
+        mBluetoothConnector.setPeerPortCacheEnabled(true);
+        mBluetoothConnector.onConnectionFailed(mMockPeerProperties, "error message", mMockBluetoothClientThread);
+
+        assertThat("The cached port is forgotten, when the cache is enabled",
+                peerPortCache.getPort(peerAddress, 0), is(0));
+    }
+
+    @Test
+    public void testOnConnectionDeclined() throws Exception {
+        final String peerAddress = "01:02:03:04:05:06";
+        Field peerPortCacheField = mBluetoothConnector.getClass().getDeclaredField("mPeerPortCache");
+        peerPortCacheField.setAccessible(true);
+        PeerPortCache peerPortCache = (PeerPortCache) peerPortCacheField.get(mBluetoothConnector);
+
+        Field peerFailureTrackerField = mBluetoothConnector.getClass().getDeclaredField("mPeerFailureTracker");
+        peerFailureTrackerField.setAccessible(true);
+        PeerFailureTracker peerFailureTracker = (PeerFailureTracker) peerFailureTrackerField.get(mBluetoothConnector);
+
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
+
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+
+        when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn(peerAddress);
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(mMockPeerProperties);
+        peerPortCache.put(peerAddress, 7);
+        mBluetoothConnector.setPeerPortCacheEnabled(true);
+
+        for (int i = 0; i < PeerFailureTracker.DEFAULT_FAILURE_THRESHOLD; i++) {
+            mBluetoothConnector.onConnectionDeclined(mMockPeerProperties, mMockBluetoothClientThread);
+        }
+
+        assertThat("The client thread is removed", myClientThreads.isEmpty(), is(true));
+        assertThat("A declined attempt is not a failure of the peer",
+                peerFailureTracker.getState(peerAddress), is(PeerFailureTracker.CircuitState.CLOSED));
+        assertThat("The peer is not backed off from",
+                mBluetoothConnector.getRemainingPeerBackoffTime(peerAddress), is(0L));
+        assertThat("The cached port is kept",
+                peerPortCache.getPort(peerAddress, 0), is(7));
+
+        final ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mMockHandler, times(PeerFailureTracker.DEFAULT_FAILURE_THRESHOLD)).post(captor.capture());
+        captor.getValue().run();
+        verify(mMockListener, times(1)).onConnectionFailed(eq(mMockPeerProperties), anyString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<BluetoothClientThread, ScheduledFuture<?>> getConnectionTimeouts() throws Exception {
+        Field connectionTimeoutsField = mBluetoothConnector.getClass().getDeclaredField("mConnectionTimeouts");
+        connectionTimeoutsField.setAccessible(true);
+        return (Map<BluetoothClientThread, ScheduledFuture<?>>) connectionTimeoutsField.get(mBluetoothConnector);
+    }
+}
@@ -25,15 +25,23 @@ import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -69,6 +77,7 @@ public class BluetoothServerThreadTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        when(mMockListener.onIncomingConnectionHandshakeReceived(any(PeerProperties.class))).thenReturn(true);
 
         mBluetoothServerThread = new BluetoothServerThread(mMockListener,
                 mMockBluetoothAdapter, myUUID, myServerName, myIdentityId);
@@ -282,6 +291,195 @@ public class BluetoothServerThreadTest {
         verify(mMockListener, times(1)).onServerStopped();
     }
 
+    @Test
+    public void testRun_PersistentServerSocket() throws Exception {
+        final int numberOfConnections = 3;
+        final AtomicInteger numberOfAccepts = new AtomicInteger();
+        mBluetoothServerThread.setHandshakeRequired(false);
+        mBluetoothServerThread.setPersistentServerSocket(true);
+
+        assertThat("The persistent server socket mode is set",
+                mBluetoothServerThread.getPersistentServerSocket(), is(true));
+
+        when(mMockBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(myServerName, myUUID))
+                .thenReturn(mMockBluetoothServerSocket);
+
+        when(mMockBluetoothServerSocket.accept()).thenAnswer(new Answer<BluetoothSocket>() {
+            @Override
+            public BluetoothSocket answer(InvocationOnMock invocation) throws
+                    InterruptedException, IllegalAccessException {
+                if (numberOfAccepts.incrementAndGet() == numberOfConnections) {
+                    mStopThreadField.set(mBluetoothServerThread, true);
+                }
+
+                return mMockBluetoothSocket;
+            }
+        });
+
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn("0A:1B:2C:3D:4E:5F");
+
+        Thread service = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mBluetoothServerThread.run();
+            }
+        });
+        service.start();
+        service.join(MAX_TIMEOUT);
+
+        verify(mMockListener, times(numberOfConnections)).onIncomingConnectionConnected(
+                any(BluetoothSocket.class), any(PeerProperties.class));
+        verify(mMockBluetoothAdapter, times(1))
+                .listenUsingInsecureRfcommWithServiceRecord(myServerName, myUUID);
+        verify(mMockBluetoothServerSocket, times(1)).close();
+        verify(mMockListener, times(1)).onServerStopped();
+
+        assertThat("The accepted connections are counted",
+                mBluetoothServerThread.getNumberOfAcceptedConnections(), is((long) numberOfConnections));
+        assertThat("The server socket is created only once",
+                mBluetoothServerThread.getNumberOfServerSocketsCreated(), is(1L));
+        assertThat("The accept rate is measured",
+                mBluetoothServerThread.getAcceptRate() > 0d, is(true));
+    }
+
+    @Test
+    public void testRun_BurstOfIncomingConnections() throws Exception {
+        final int numberOfConnectionAttempts = 20;
+        BurstResult nonPersistentResult = runBurstOfIncomingConnections(false, numberOfConnectionAttempts);
+        BurstResult persistentResult = runBurstOfIncomingConnections(true, numberOfConnectionAttempts);
+
+        assertThat("Re-listening after every accept makes some of the attempts fail",
+                nonPersistentResult.numberOfFailedAttempts > 0, is(true));
+        assertThat("No attempt fails, when the server socket is kept open",
+                persistentResult.numberOfFailedAttempts, is(0));
+        assertThat("The persistent server socket fails fewer attempts",
+                persistentResult.numberOfFailedAttempts < nonPersistentResult.numberOfFailedAttempts, is(true));
+        assertThat("The persistent server socket is created only once",
+                persistentResult.numberOfServerSocketsCreated, is(1L));
+        assertThat("The non-persistent server socket is recreated after every accept",
+                nonPersistentResult.numberOfServerSocketsCreated > 1, is(true));
+    }
+
+    private static class BurstResult {
+        int numberOfFailedAttempts;
+        long numberOfServerSocketsCreated;
+    }
+
+    /**
+     * Simulates a peer connecting in a burst. A connection attempt succeeds only while the server
+     * socket is listening, and registering the service record for a new server socket takes time.
+     *
+     * @param persistentServerSocket The server socket mode.
+     * @param numberOfConnectionAttempts The number of connection attempts in the burst.
+     * @return The result of the burst.
+     */
+    private BurstResult runBurstOfIncomingConnections(
+            boolean persistentServerSocket, int numberOfConnectionAttempts) throws Exception {
+        final long serviceRecordRegistrationTimeInMilliseconds = 20;
+        final long connectionAttemptIntervalInMilliseconds = 2;
+        final AtomicBoolean isListening = new AtomicBoolean(false);
+        final BlockingQueue<BluetoothSocket> pendingConnections = new LinkedBlockingQueue<>();
+        final AtomicInteger numberOfConnectedConnections = new AtomicInteger();
+        BluetoothAdapter bluetoothAdapter = mock(BluetoothAdapter.class);
+        final BluetoothServerSocket bluetoothServerSocket = mock(BluetoothServerSocket.class);
+
+        BluetoothServerThread.Listener listener = new BluetoothServerThread.Listener() {
+            @Override
+            public void onIncomingConnectionConnected(BluetoothSocket bluetoothSocket, PeerProperties peerProperties) {
+                numberOfConnectedConnections.incrementAndGet();
+            }
+
+            @Override
+            public boolean onIncomingConnectionHandshakeReceived(PeerProperties peerProperties) {
+                return true;
+            }
+
+            @Override
+            public void onIncomingConnectionFailed(String reason) {
+            }
+
+            @Override
+            public void onServerStopped() {
+            }
+
+            @Override
+            public void onBluetoothServerSocketConsecutiveCreationFailureCountLimitExceeded(int failureCount) {
+            }
+        };
+
+        when(bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(myServerName, myUUID))
+                .thenAnswer(new Answer<BluetoothServerSocket>() {
+                    @Override
+                    public BluetoothServerSocket answer(InvocationOnMock invocation) throws InterruptedException {
+                        Thread.sleep(serviceRecordRegistrationTimeInMilliseconds);
+                        isListening.set(true);
+                        return bluetoothServerSocket;
+                    }
+                });
+
+        when(bluetoothServerSocket.accept()).thenAnswer(new Answer<BluetoothSocket>() {
+            @Override
+            public BluetoothSocket answer(InvocationOnMock invocation) throws InterruptedException, IOException {
+                while (isListening.get()) {
+                    BluetoothSocket bluetoothSocket = pendingConnections.poll(10, TimeUnit.MILLISECONDS);
+
+                    if (bluetoothSocket != null) {
+                        return bluetoothSocket;
+                    }
+                }
+
+                throw new IOException("Server socket closed");
+            }
+        });
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                isListening.set(false);
+                pendingConnections.clear();
+                return null;
+            }
+        }).when(bluetoothServerSocket).close();
+
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn("0A:1B:2C:3D:4E:5F");
+
+        BluetoothServerThread bluetoothServerThread = new BluetoothServerThread(
+                listener, bluetoothAdapter, myUUID, myServerName, myIdentityId);
+        bluetoothServerThread.setHandshakeRequired(false);
+        bluetoothServerThread.setPersistentServerSocket(persistentServerSocket);
+        bluetoothServerThread.start();
+
+        long startTime = System.currentTimeMillis();
+
+        while (!isListening.get() && System.currentTimeMillis() - startTime < MAX_TIMEOUT) {
+            Thread.sleep(1);
+        }
+
+        for (int i = 0; i < numberOfConnectionAttempts; i++) {
+            if (isListening.get()) {
+                pendingConnections.add(mMockBluetoothSocket);
+            }
+
+            Thread.sleep(connectionAttemptIntervalInMilliseconds);
+        }
+
+        startTime = System.currentTimeMillis();
+
+        while (!pendingConnections.isEmpty() && System.currentTimeMillis() - startTime < MAX_TIMEOUT) {
+            Thread.sleep(1);
+        }
+
+        bluetoothServerThread.shutdown();
+        bluetoothServerThread.join(MAX_TIMEOUT);
+
+        BurstResult result = new BurstResult();
+        result.numberOfFailedAttempts = numberOfConnectionAttempts - numberOfConnectedConnections.get();
+        result.numberOfServerSocketsCreated = bluetoothServerThread.getNumberOfServerSocketsCreated();
+        return result;
+    }
+
     @Test
     public void testShutdown() throws Exception {
         Field mBluetoothServerSocketField = mBluetoothServerThread.getClass()
@@ -428,6 +626,36 @@ public class BluetoothServerThreadTest {
                 mySocketIoThreads.isEmpty(), is(true));
     }
 
+    @Test
+    public void testOnBytesRead_declined() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+
+        Field mSocketIoThreadsField = mBluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mySocketIoThreads
+                = new CopyOnWriteArrayList<>();
+        mSocketIoThreadsField.set(mBluetoothServerThread, mySocketIoThreads);
+        mySocketIoThreads.add(mMockBluetoothSocketIoThread);
+
+        when(mMockBluetoothSocketIoThread.getSocket()).thenReturn(mMockBluetoothSocket);
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+        when(mMockListener.onIncomingConnectionHandshakeReceived(any(PeerProperties.class))).thenReturn(false);
+
+        mBluetoothServerThread.onBytesRead(BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY,
+                15, mMockBluetoothSocketIoThread);
+
+        // check that the peer is told about the decline and the socket is closed
+        verify(mMockBluetoothSocketIoThread, times(1)).write(aryEq(BinaryHandshake.encodeDeclined()));
+        verify(mMockBluetoothSocketIoThread, times(1)).write(any(byte[].class));
+        verify(mMockBluetoothSocketIoThread, times(1)).close(true, true);
+        verify(mMockListener, never()).onIncomingConnectionFailed(anyString());
+
+        assertThat("The thread is removed from the list of IO threads",
+                mySocketIoThreads.isEmpty(), is(true));
+    }
+
     @Test
     public void testOnBytesWritten() throws Exception {
         Field mSocketIoThreadsField = mBluetoothServerThread.getClass()
@@ -467,4 +695,95 @@ public class BluetoothServerThreadTest {
         assertThat("The thread is removed from the list of IO threads",
                 mySocketIoThreads.isEmpty(), is(true));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testOnHandshakeTimeout() throws Exception {
+        Field mSocketIoThreadsField = mBluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mySocketIoThreads
+                = new CopyOnWriteArrayList<>();
+        mSocketIoThreadsField.set(mBluetoothServerThread, mySocketIoThreads);
+        mySocketIoThreads.add(mMockBluetoothSocketIoThread);
+
+        mBluetoothServerThread.onHandshakeTimeout(mMockBluetoothSocketIoThread);
+
+        // check if the associated thread is closed
+        verify(mMockBluetoothSocketIoThread, times(1)).close(true, true);
+        verify(mMockListener, times(1)).onIncomingConnectionFailed(anyString());
+
+        assertThat("The thread is removed from the list of IO threads",
+                mySocketIoThreads.isEmpty(), is(true));
+
+        // A handshake completed in the meanwhile is not closed
+        mBluetoothServerThread.onHandshakeTimeout(mMockBluetoothSocketIoThread);
+
+        verify(mMockBluetoothSocketIoThread, times(1)).close(true, true);
+        verify(mMockListener, times(1)).onIncomingConnectionFailed(anyString());
+    }
+
+    @Test
+    public void testOnBytesRead_binaryHandshakeIsRespondedInBinary() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+        BluetoothServerThread bluetoothServerThread = new BluetoothServerThread(mMockListener,
+                mMockBluetoothAdapter, myUUID, myServerName,
+                "{\"name\":\"Server\",\"address\":\"01:02:03:04:05:06\"}");
+
+        Field mSocketIoThreadsField = bluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mySocketIoThreads
+                = new CopyOnWriteArrayList<>();
+        mSocketIoThreadsField.set(bluetoothServerThread, mySocketIoThreads);
+        mySocketIoThreads.add(mMockBluetoothSocketIoThread);
+
+        when(mMockBluetoothSocketIoThread.getSocket()).thenReturn(mMockBluetoothSocket);
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+        when(mMockBluetoothSocketIoThread.write(any(byte[].class))).thenReturn(true);
+
+        byte[] handshakeMessage = BinaryHandshake.encode("Client", macAddress, false);
+        bluetoothServerThread.onBytesRead(handshakeMessage, handshakeMessage.length, mMockBluetoothSocketIoThread);
+
+        ArgumentCaptor<byte[]> responseCaptor = ArgumentCaptor.forClass(byte[].class);
+        verify(mMockBluetoothSocketIoThread, times(1)).write(responseCaptor.capture());
+
+        assertThat("The response is a binary handshake message",
+                BinaryHandshake.isBinaryHandshakeMessage(
+                        responseCaptor.getValue(), responseCaptor.getValue().length), is(true));
+        assertThat("The response contains our identity",
+                BinaryHandshake.decode(responseCaptor.getValue(), responseCaptor.getValue().length,
+                        "01:02:03:04:05:06", false).getName(), is("Server"));
+    }
+
+    @Test
+    public void testOnBytesRead_earlyDataIsDeliveredWithPeerProperties() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+        BluetoothServerThread bluetoothServerThread = new BluetoothServerThread(mMockListener,
+                mMockBluetoothAdapter, myUUID, myServerName,
+                "{\"name\":\"Server\",\"address\":\"01:02:03:04:05:06\"}");
+
+        Field mSocketIoThreadsField = bluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mySocketIoThreads
+                = new CopyOnWriteArrayList<>();
+        mSocketIoThreadsField.set(bluetoothServerThread, mySocketIoThreads);
+        mySocketIoThreads.add(mMockBluetoothSocketIoThread);
+
+        when(mMockBluetoothSocketIoThread.getSocket()).thenReturn(mMockBluetoothSocket);
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+        when(mMockBluetoothSocketIoThread.write(any(byte[].class))).thenReturn(true);
+
+        byte[] earlyData = "GET /".getBytes(StandardCharsets.UTF_8);
+        byte[] handshakeMessage = BinaryHandshake.encode("Client", macAddress, false, earlyData);
+        bluetoothServerThread.onBytesRead(handshakeMessage, handshakeMessage.length, mMockBluetoothSocketIoThread);
+
+        ArgumentCaptor<PeerProperties> peerPropertiesCaptor = ArgumentCaptor.forClass(PeerProperties.class);
+        verify(mMockBluetoothSocketIoThread, times(1)).setPeerProperties(peerPropertiesCaptor.capture());
+
+        assertThat("The early data is set to the peer properties passed on with the connection",
+                peerPropertiesCaptor.getValue().getEarlyData(), is(earlyData));
+    }
+}
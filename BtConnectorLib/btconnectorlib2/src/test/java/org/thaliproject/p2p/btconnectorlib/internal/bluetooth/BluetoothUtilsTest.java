@@ -12,6 +12,9 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
@@ -137,6 +140,69 @@ public class BluetoothUtilsTest {
                 is(macAddress));
     }
 
+    @Test
+    public void testValidateReceivedHandshakeMessage_CompressionNotNegotiatedWithSimpleHandshake() throws Exception {
+        when(mMockBluetoothDevice.getAddress()).thenReturn("0A:1B:2C:3D:4E:5F");
+
+        assertThat("The simple handshake cannot advertise the compression",
+                BluetoothUtils.validateReceivedHandshakeMessage(
+                        BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY,
+                        15, mMockBluetoothSocket, true).isCompressionEnabled(),
+                is(false));
+    }
+
+    @Test
+    public void testValidateReceivedHandshakeMessage_FramingNegotiatedWithJson() throws Exception {
+        when(mMockBluetoothDevice.getAddress()).thenReturn("0A:1B:2C:3D:4E:5F");
+        byte[] handshakeMessage = new JSONObject()
+                .put("name", "Peer name")
+                .put("address", "0A:1B:2C:3D:4E:5F")
+                .put(BluetoothUtils.HANDSHAKE_JSON_ID_FRAMING, BluetoothUtils.HANDSHAKE_FRAMING_TYPED)
+                .put(BluetoothUtils.HANDSHAKE_JSON_ID_COMPRESSION, BluetoothUtils.HANDSHAKE_COMPRESSION_DEFLATE)
+                .put(BluetoothUtils.HANDSHAKE_JSON_ID_FLOW_CONTROL_WINDOW, 4096)
+                .toString().getBytes(StandardCharsets.UTF_8);
+
+        PeerProperties peerProperties = BluetoothUtils.validateReceivedHandshakeMessage(
+                handshakeMessage, handshakeMessage.length, mMockBluetoothSocket, true, true, 8192);
+
+        assertThat("The typed framing is negotiated", peerProperties.isTypedFramingEnabled(), is(true));
+        assertThat("The compression is negotiated", peerProperties.isCompressionEnabled(), is(true));
+        assertThat("The smaller flow control window is used", peerProperties.getFlowControlWindowSize(), is(4096));
+
+        peerProperties = BluetoothUtils.validateReceivedHandshakeMessage(
+                handshakeMessage, handshakeMessage.length, mMockBluetoothSocket);
+
+        assertThat("Nothing is negotiated, if we support nothing", peerProperties.isTypedFramingEnabled(), is(false));
+        assertThat("The compression is not negotiated", peerProperties.isCompressionEnabled(), is(false));
+        assertThat("The flow control is not negotiated", peerProperties.getFlowControlWindowSize(), is(0));
+    }
+
+    @Test
+    public void testValidateReceivedHandshakeMessage_BytesPastSimpleHandshake() throws Exception {
+        when(mMockBluetoothDevice.getAddress()).thenReturn("0A:1B:2C:3D:4E:5F");
+        byte[] buffer = Arrays.copyOf(BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY, 256);
+        buffer[15] = 1;
+        buffer[16] = 2;
+
+        PeerProperties peerProperties = BluetoothUtils.validateReceivedHandshakeMessage(buffer, 17, mMockBluetoothSocket);
+
+        assertThat("The handshake is valid", peerProperties, is(notNullValue()));
+        assertThat("The bytes past the handshake are buffered",
+                peerProperties.getBufferedData(), is(new byte[] { 1, 2 }));
+    }
+
+    @Test
+    public void testGetJsonObjectLength() throws Exception {
+        byte[] bytes = "{\"name\":\"a}\\\"{\",\"x\":{\"y\":1}}tail".getBytes(StandardCharsets.UTF_8);
+
+        assertThat("The object ends at the matching brace outside the strings",
+                BluetoothUtils.getJsonObjectLength(bytes, bytes.length), is(bytes.length - 4));
+        assertThat("An incomplete object has no length",
+                BluetoothUtils.getJsonObjectLength(bytes, 10), is(-1));
+        assertThat("Not an object",
+                BluetoothUtils.getJsonObjectLength("thali".getBytes(StandardCharsets.UTF_8), 5), is(-1));
+    }
+
     @Test
     public void testPreviouslyUsedAlternativeChannelOrPort() throws Exception {
         // get default port
@@ -0,0 +1,120 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConnectTimeEstimatorTest {
+
+    private static final String PEER_ADDRESS = "01:02:03:04:05:06";
+    private static final String OTHER_PEER_ADDRESS = "01:02:03:04:05:07";
+    private static final long MAX_TIMEOUT = 15000;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidMinTimeout() throws Exception {
+        new ConnectTimeEstimator(-1);
+    }
+
+    @Test
+    public void testNoSamples() throws Exception {
+        ConnectTimeEstimator connectTimeEstimator = new ConnectTimeEstimator(0);
+
+        assertThat("The maximum is used without samples",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, MAX_TIMEOUT), is(MAX_TIMEOUT));
+        assertThat("The disabled timeout is returned as is",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, 0), is(0L));
+    }
+
+    @Test
+    public void testFirstSample() throws Exception {
+        ConnectTimeEstimator connectTimeEstimator = new ConnectTimeEstimator(0);
+        connectTimeEstimator.onConnected(PEER_ADDRESS, 1000);
+
+        assertThat("The timeout is three times the first sample",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, MAX_TIMEOUT), is(3000L));
+        assertThat("The global estimate is used for the other peers",
+                connectTimeEstimator.getTimeout(OTHER_PEER_ADDRESS, MAX_TIMEOUT), is(3000L));
+        assertThat("The global estimate is used for the unknown address",
+                connectTimeEstimator.getTimeout(null, MAX_TIMEOUT), is(3000L));
+        assertThat("The address is case insensitive",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS.toLowerCase(), MAX_TIMEOUT), is(3000L));
+        assertThat("The timeout is bounded by the maximum",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, 2000), is(2000L));
+    }
+
+    @Test
+    public void testStableConnectTimes() throws Exception {
+        ConnectTimeEstimator connectTimeEstimator = new ConnectTimeEstimator(0);
+
+        for (int i = 0; i < 50; i++) {
+            connectTimeEstimator.onConnected(PEER_ADDRESS, 2000);
+        }
+
+        final long timeout = connectTimeEstimator.getTimeout(PEER_ADDRESS, MAX_TIMEOUT);
+        assertThat("The timeout converges towards the connect time", timeout >= 2000 && timeout < 2100, is(true));
+        assertThat("The number of samples is recorded", connectTimeEstimator.getNumberOfSamples(), is(50));
+    }
+
+    @Test
+    public void testPeerEstimateIsPreferred() throws Exception {
+        ConnectTimeEstimator connectTimeEstimator = new ConnectTimeEstimator(0);
+        connectTimeEstimator.onConnected(PEER_ADDRESS, 1000);
+        connectTimeEstimator.onConnected(OTHER_PEER_ADDRESS, 4000);
+
+        assertThat("The estimate of the peer is used",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, MAX_TIMEOUT), is(3000L));
+        assertThat("The estimate of the other peer is used",
+                connectTimeEstimator.getTimeout(OTHER_PEER_ADDRESS, MAX_TIMEOUT), is(12000L));
+    }
+
+    @Test
+    public void testMinTimeout() throws Exception {
+        ConnectTimeEstimator connectTimeEstimator = new ConnectTimeEstimator(5000);
+        connectTimeEstimator.onConnected(PEER_ADDRESS, 100);
+
+        assertThat("The timeout is at least the minimum",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, MAX_TIMEOUT), is(5000L));
+        assertThat("The maximum is preferred over the minimum",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, 4000), is(4000L));
+    }
+
+    @Test
+    public void testTimeoutsDoubleTheTimeout() throws Exception {
+        ConnectTimeEstimator connectTimeEstimator = new ConnectTimeEstimator(0);
+        connectTimeEstimator.onConnected(PEER_ADDRESS, 1000);
+
+        connectTimeEstimator.onTimeout(OTHER_PEER_ADDRESS);
+        assertThat("The timeout of the peer without samples is based on the global estimate",
+                connectTimeEstimator.getTimeout(OTHER_PEER_ADDRESS, MAX_TIMEOUT), is(6000L));
+
+        connectTimeEstimator.onTimeout(PEER_ADDRESS);
+        connectTimeEstimator.onTimeout(PEER_ADDRESS);
+        assertThat("The timeout is doubled for every timeout",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, MAX_TIMEOUT), is(12000L));
+
+        connectTimeEstimator.onTimeout(PEER_ADDRESS);
+        assertThat("The doubled timeout is bounded by the maximum",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, MAX_TIMEOUT), is(MAX_TIMEOUT));
+
+        connectTimeEstimator.onConnected(PEER_ADDRESS, 1000);
+        assertThat("A successful connection resets the timeouts",
+                connectTimeEstimator.getTimeout(PEER_ADDRESS, MAX_TIMEOUT) < 6000, is(true));
+    }
+
+    @Test
+    public void testGetSmoothedConnectTime() throws Exception {
+        ConnectTimeEstimator connectTimeEstimator = new ConnectTimeEstimator(0);
+
+        assertThat("The default is used without samples",
+                connectTimeEstimator.getSmoothedConnectTime(PEER_ADDRESS, 2000), is(2000L));
+
+        connectTimeEstimator.onConnected(PEER_ADDRESS, 1000);
+        connectTimeEstimator.onConnected(OTHER_PEER_ADDRESS, 4000);
+
+        assertThat("The connect time of the peer is used",
+                connectTimeEstimator.getSmoothedConnectTime(PEER_ADDRESS, 2000), is(1000L));
+        assertThat("The global connect time is used for the unknown peer",
+                connectTimeEstimator.getSmoothedConnectTime(null, 2000), is(1375L));
+    }
+}
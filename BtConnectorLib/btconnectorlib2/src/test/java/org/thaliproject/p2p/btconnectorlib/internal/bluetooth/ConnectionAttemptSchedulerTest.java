@@ -0,0 +1,165 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConnectionAttemptSchedulerTest {
+
+    private final CountDownLatch mReleaseLatch = new CountDownLatch(1);
+    private final List<Thread> mAttempts = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        mReleaseLatch.countDown();
+
+        for (Thread attempt : mAttempts) {
+            if (attempt.getState() != Thread.State.NEW) {
+                attempt.join(1000);
+            }
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testSubmitNull() throws Exception {
+        new ConnectionAttemptScheduler(1).submit(null, ConnectionAttemptScheduler.DEFAULT_PRIORITY);
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        ConnectionAttemptScheduler scheduler =
+                new ConnectionAttemptScheduler(ConnectionAttemptScheduler.UNLIMITED_NUMBER_OF_CONCURRENT_ATTEMPTS);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat("The attempt is started", scheduler.submit(createAttempt(), 0), is(true));
+        }
+
+        assertThat("All the attempts are running", scheduler.getNumberOfRunningAttempts(), is(3));
+        assertThat("Nothing is queued", scheduler.getNumberOfQueuedAttempts(), is(0));
+    }
+
+    @Test
+    public void testLimitAndFifoOrder() throws Exception {
+        ConnectionAttemptScheduler scheduler = new ConnectionAttemptScheduler(1);
+        Thread first = createAttempt();
+        Thread second = createAttempt();
+        Thread third = createAttempt();
+
+        assertThat("The first attempt is started", scheduler.submit(first, 0), is(true));
+        assertThat("The second attempt is queued", scheduler.submit(second, 0), is(false));
+        assertThat("The third attempt is queued", scheduler.submit(third, 0), is(false));
+        assertThat("The queued attempts are not started", second.getState(), is(Thread.State.NEW));
+        assertThat("Two attempts are queued", scheduler.getNumberOfQueuedAttempts(), is(2));
+
+        assertThat("A running attempt is not reported as queued", scheduler.remove(first), is(false));
+        assertThat("The attempt queued first is started next", isStarted(second), is(true));
+        assertThat("The other one is still queued", third.getState(), is(Thread.State.NEW));
+
+        scheduler.remove(second);
+        assertThat("The last attempt is started", isStarted(third), is(true));
+        assertThat("The queue is empty", scheduler.getNumberOfQueuedAttempts(), is(0));
+        assertThat("The queued attempts are counted", scheduler.getTotalNumberOfQueuedAttempts(), is(2L));
+        assertThat("The queue wait time of every started attempt is recorded",
+                scheduler.getQueueWaitTimeHistogram().getCount(), is(3L));
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        ConnectionAttemptScheduler scheduler = new ConnectionAttemptScheduler(1);
+        Thread running = createAttempt();
+        Thread lowPriority = createAttempt();
+        Thread highPriority = createAttempt();
+
+        scheduler.submit(running, 0);
+        scheduler.submit(lowPriority, 0);
+        scheduler.submit(highPriority, 5);
+        scheduler.remove(running);
+
+        assertThat("The attempt with the higher priority is started first", isStarted(highPriority), is(true));
+        assertThat("The attempt with the lower priority is still queued", lowPriority.getState(), is(Thread.State.NEW));
+    }
+
+    @Test
+    public void testRemoveQueuedAttempt() throws Exception {
+        ConnectionAttemptScheduler scheduler = new ConnectionAttemptScheduler(1);
+        Thread running = createAttempt();
+        Thread queued = createAttempt();
+
+        scheduler.submit(running, 0);
+        scheduler.submit(queued, 0);
+
+        assertThat("The queued attempt is reported as queued", scheduler.remove(queued), is(true));
+        assertThat("The queue is empty", scheduler.getNumberOfQueuedAttempts(), is(0));
+
+        scheduler.remove(running);
+        assertThat("The removed attempt is never started", queued.getState(), is(Thread.State.NEW));
+        assertThat("Nothing is running", scheduler.getNumberOfRunningAttempts(), is(0));
+    }
+
+    @Test
+    public void testListenerIsNotifiedWhenAttemptsStart() throws Exception {
+        ConnectionAttemptScheduler scheduler = new ConnectionAttemptScheduler(1);
+        final List<Thread> startedAttempts = new ArrayList<>();
+        Thread running = createAttempt();
+        Thread queued = createAttempt();
+
+        scheduler.setListener(new ConnectionAttemptScheduler.Listener() {
+            @Override
+            public void onAttemptStarted(Thread attempt) {
+                startedAttempts.add(attempt);
+            }
+        });
+
+        scheduler.submit(running, 0);
+        scheduler.submit(queued, 0);
+
+        assertThat("Only the started attempt is notified", startedAttempts.size(), is(1));
+        assertThat("The queued attempt is known to be queued", scheduler.isQueued(queued), is(true));
+        assertThat("The running attempt is not queued", scheduler.isQueued(running), is(false));
+
+        scheduler.remove(running);
+
+        assertThat("The queued attempt is notified when started", startedAttempts.get(1), is(queued));
+        assertThat("The started attempt is no longer queued", scheduler.isQueued(queued), is(false));
+    }
+
+    @Test
+    public void testRaisingLimitStartsQueuedAttempts() throws Exception {
+        ConnectionAttemptScheduler scheduler = new ConnectionAttemptScheduler(1);
+        Thread running = createAttempt();
+        Thread queued = createAttempt();
+
+        scheduler.submit(running, 0);
+        scheduler.submit(queued, 0);
+        scheduler.setMaxNumberOfConcurrentAttempts(2);
+
+        assertThat("The queued attempt is started", isStarted(queued), is(true));
+        assertThat("Both attempts are running", scheduler.getNumberOfRunningAttempts(), is(2));
+    }
+
+    private Thread createAttempt() {
+        Thread attempt = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mReleaseLatch.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+
+        attempt.setDaemon(true);
+        mAttempts.add(attempt);
+        return attempt;
+    }
+
+    private static boolean isStarted(Thread attempt) {
+        return (attempt.getState() != Thread.State.NEW);
+    }
+}
@@ -0,0 +1,191 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class ConnectionRaceTest {
+
+    private static final int SYSTEM_DECIDED_PORT = BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
+    private static final int ROTATING_PORT = 0;
+    private static final long SLOW_CONNECT_TIME_IN_MILLISECONDS = 10000;
+
+    private final Map<Integer, BluetoothSocket> mSockets = new HashMap<>();
+    private final List<Integer> mCreatedPorts = new CopyOnWriteArrayList<>();
+    private final ConnectionRace.SocketFactory mSocketFactory = new ConnectionRace.SocketFactory() {
+        @Override
+        public BluetoothSocket createSocket(int port) throws IOException {
+            mCreatedPorts.add(port);
+            return mSockets.get(port);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        ConnectionRace.resetStatistics();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorNoPorts() throws Exception {
+        new ConnectionRace(new int[0], 100, mSocketFactory);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testConstructorNullSocketFactory() throws Exception {
+        new ConnectionRace(new int[] { SYSTEM_DECIDED_PORT }, 100, null);
+    }
+
+    @Test
+    public void testFirstStrategyWinsWithoutStartingTheOthers() throws Exception {
+        BluetoothSocket systemDecidedPortSocket = createSocket(10, true);
+        mSockets.put(SYSTEM_DECIDED_PORT, systemDecidedPortSocket);
+        mSockets.put(ROTATING_PORT, createSocket(10, true));
+        ConnectionRace connectionRace =
+                new ConnectionRace(new int[] { SYSTEM_DECIDED_PORT, ROTATING_PORT }, 200, mSocketFactory);
+
+        assertThat("The first strategy wins", connectionRace.run(), is(systemDecidedPortSocket));
+        assertThat("The port of the winner is known", connectionRace.getWinningPort(), is(SYSTEM_DECIDED_PORT));
+
+        Thread.sleep(300); // Past the turn of the second strategy
+        assertThat("The second strategy is not started", mCreatedPorts.size(), is(1));
+        verify(systemDecidedPortSocket, never()).close();
+        assertThat("The win is recorded", ConnectionRace.getStatisticsReport(),
+                containsString("system decided port: 1/1 succeeded, 1 won"));
+        assertThat("The strategy not started is not recorded", ConnectionRace.getStatisticsReport(),
+                containsString("rotating port: 0/0 succeeded, 0 won"));
+    }
+
+    @Test
+    public void testFasterStrategyWinsAndTheOthersAreCancelled() throws Exception {
+        BluetoothSocket systemDecidedPortSocket = createSocket(SLOW_CONNECT_TIME_IN_MILLISECONDS, true);
+        BluetoothSocket rotatingPortSocket = createSocket(10, true);
+        mSockets.put(SYSTEM_DECIDED_PORT, systemDecidedPortSocket);
+        mSockets.put(ROTATING_PORT, rotatingPortSocket);
+        ConnectionRace connectionRace =
+                new ConnectionRace(new int[] { SYSTEM_DECIDED_PORT, ROTATING_PORT }, 20, mSocketFactory);
+
+        long startTime = System.currentTimeMillis();
+
+        assertThat("The faster strategy wins", connectionRace.run(), is(rotatingPortSocket));
+        assertThat("The race does not wait for the slower strategy",
+                System.currentTimeMillis() - startTime < SLOW_CONNECT_TIME_IN_MILLISECONDS, is(true));
+        assertThat("The port of the winner is known", connectionRace.getWinningPort(), is(ROTATING_PORT));
+        verify(systemDecidedPortSocket, atLeastOnce()).close();
+        verify(rotatingPortSocket, never()).close();
+
+        Thread.sleep(50); // Let the cancelled attempt finish
+        assertThat("The cancelled attempt is not counted as a failure", ConnectionRace.getStatisticsReport(),
+                containsString("system decided port: 0/0 succeeded"));
+        assertThat("The win is recorded", ConnectionRace.getStatisticsReport(),
+                containsString("rotating port: 1/1 succeeded, 1 won"));
+    }
+
+    @Test
+    public void testAllStrategiesFail() throws Exception {
+        mSockets.put(SYSTEM_DECIDED_PORT, createSocket(10, false));
+        mSockets.put(ROTATING_PORT, createSocket(10, false));
+        ConnectionRace connectionRace =
+                new ConnectionRace(new int[] { SYSTEM_DECIDED_PORT, ROTATING_PORT }, 20, mSocketFactory);
+
+        try {
+            connectionRace.run();
+            fail("Should have thrown an IOException");
+        } catch (IOException e) {
+            assertThat("The exception of a strategy is thrown", e.getMessage(), is("Connection refused"));
+        }
+
+        assertThat("Both strategies were started", mCreatedPorts.size(), is(2));
+        assertThat("The failures are recorded", ConnectionRace.getStatisticsReport(),
+                is("system decided port: 0/1 succeeded, 0 won; rotating port: 0/1 succeeded, 0 won; "
+                        + "fixed port: 0/0 succeeded, 0 won"));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final BluetoothSocket systemDecidedPortSocket = createSocket(SLOW_CONNECT_TIME_IN_MILLISECONDS, true);
+        mSockets.put(SYSTEM_DECIDED_PORT, systemDecidedPortSocket);
+        mSockets.put(ROTATING_PORT, createSocket(SLOW_CONNECT_TIME_IN_MILLISECONDS, true));
+        final ConnectionRace connectionRace =
+                new ConnectionRace(new int[] { SYSTEM_DECIDED_PORT, ROTATING_PORT }, 20, mSocketFactory);
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+
+                connectionRace.cancel();
+            }
+        }.start();
+
+        try {
+            connectionRace.run();
+            fail("Should have thrown an IOException");
+        } catch (IOException e) {
+            assertThat("The race is cancelled", e.getMessage(), is("Connection race cancelled"));
+        }
+
+        verify(systemDecidedPortSocket, atLeastOnce()).close();
+    }
+
+    /**
+     * Creates a socket, whose connect() blocks for the given time or until the socket is closed.
+     *
+     * @param connectTimeInMilliseconds The time the connect() call takes.
+     * @param succeeds If true, connect() succeeds. If false, it fails.
+     * @return The socket.
+     */
+    private BluetoothSocket createSocket(final long connectTimeInMilliseconds, final boolean succeeds)
+            throws IOException {
+        final CountDownLatch closedLatch = new CountDownLatch(1);
+        BluetoothSocket socket = mock(BluetoothSocket.class);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                if (closedLatch.await(connectTimeInMilliseconds, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Socket closed");
+                }
+
+                if (!succeeds) {
+                    throw new IOException("Connection refused");
+                }
+
+                return null;
+            }
+        }).when(socket).connect();
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                closedLatch.countDown();
+                return null;
+            }
+        }).when(socket).close();
+
+        return socket;
+    }
+}
@@ -0,0 +1,141 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PeerFailureTrackerTest {
+
+    private static final String PEER_ADDRESS = "01:02:03:04:05:06";
+    private static final String OTHER_PEER_ADDRESS = "01:02:03:04:05:07";
+
+    // No jitter
+    @SuppressWarnings("serial")
+    private final Random mRandom = new Random() {
+        @Override
+        public double nextDouble() {
+            return 0.5d;
+        }
+    };
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidThreshold() throws Exception {
+        new PeerFailureTracker(0, 100, 1000, mRandom);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidBackoffTimes() throws Exception {
+        new PeerFailureTracker(1, 1000, 100, mRandom);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testConstructorNullRandom() throws Exception {
+        new PeerFailureTracker(1, 100, 1000, null);
+    }
+
+    @Test
+    public void testCircuitOpensAfterThreshold() throws Exception {
+        PeerFailureTracker peerFailureTracker = new PeerFailureTracker(3, 1000, 10000, mRandom);
+
+        peerFailureTracker.onFailure(PEER_ADDRESS);
+        peerFailureTracker.onFailure(PEER_ADDRESS);
+        assertThat("The circuit is closed below the threshold",
+                peerFailureTracker.getState(PEER_ADDRESS), is(PeerFailureTracker.CircuitState.CLOSED));
+        assertThat("Connecting is allowed below the threshold", peerFailureTracker.tryAcquire(PEER_ADDRESS), is(true));
+
+        peerFailureTracker.onFailure(PEER_ADDRESS);
+        assertThat("The circuit opens at the threshold",
+                peerFailureTracker.getState(PEER_ADDRESS), is(PeerFailureTracker.CircuitState.OPEN));
+        assertThat("Connecting is not allowed", peerFailureTracker.tryAcquire(PEER_ADDRESS), is(false));
+        assertThat("The backoff time is the base time",
+                peerFailureTracker.getRemainingBackoffTime(PEER_ADDRESS) > 900
+                        && peerFailureTracker.getRemainingBackoffTime(PEER_ADDRESS) <= 1000, is(true));
+
+        assertThat("The other peers are not affected", peerFailureTracker.tryAcquire(OTHER_PEER_ADDRESS), is(true));
+        assertThat("The unknown address is allowed", peerFailureTracker.tryAcquire(null), is(true));
+        assertThat("The report contains the peer", peerFailureTracker.getReport(),
+                containsString(PEER_ADDRESS + ": OPEN, 3 consecutive failures"));
+    }
+
+    @Test
+    public void testSuccessClosesTheCircuit() throws Exception {
+        PeerFailureTracker peerFailureTracker = new PeerFailureTracker(2, 1000, 10000, mRandom);
+
+        peerFailureTracker.onFailure(PEER_ADDRESS);
+        peerFailureTracker.onSuccess(PEER_ADDRESS);
+        peerFailureTracker.onFailure(PEER_ADDRESS);
+
+        assertThat("The consecutive failures are reset by a success",
+                peerFailureTracker.getState(PEER_ADDRESS), is(PeerFailureTracker.CircuitState.CLOSED));
+    }
+
+    @Test
+    public void testHalfOpenTrial() throws Exception {
+        PeerFailureTracker peerFailureTracker = new PeerFailureTracker(1, 50, 1000, mRandom);
+
+        peerFailureTracker.onFailure(PEER_ADDRESS);
+        assertThat("Connecting is not allowed", peerFailureTracker.tryAcquire(PEER_ADDRESS), is(false));
+
+        Thread.sleep(100);
+
+        assertThat("The trial attempt is allowed after the backoff time",
+                peerFailureTracker.tryAcquire(PEER_ADDRESS), is(true));
+        assertThat("The circuit is half-open",
+                peerFailureTracker.getState(PEER_ADDRESS), is(PeerFailureTracker.CircuitState.HALF_OPEN));
+        assertThat("Only one trial attempt is allowed", peerFailureTracker.tryAcquire(PEER_ADDRESS), is(false));
+
+        peerFailureTracker.onSuccess(PEER_ADDRESS);
+        assertThat("A successful trial closes the circuit",
+                peerFailureTracker.getState(PEER_ADDRESS), is(PeerFailureTracker.CircuitState.CLOSED));
+        assertThat("The report is empty", peerFailureTracker.getReport(), is(""));
+    }
+
+    @Test
+    public void testFailedTrialDoublesTheBackoffTime() throws Exception {
+        PeerFailureTracker peerFailureTracker = new PeerFailureTracker(1, 50, 1000, mRandom);
+
+        peerFailureTracker.onFailure(PEER_ADDRESS);
+        Thread.sleep(100);
+        assertThat("The trial attempt is allowed", peerFailureTracker.tryAcquire(PEER_ADDRESS), is(true));
+
+        peerFailureTracker.onFailure(PEER_ADDRESS);
+        assertThat("A failed trial opens the circuit again",
+                peerFailureTracker.getState(PEER_ADDRESS), is(PeerFailureTracker.CircuitState.OPEN));
+        assertThat("The backoff time is doubled",
+                peerFailureTracker.getRemainingBackoffTime(PEER_ADDRESS) > 50, is(true));
+    }
+
+    @Test
+    public void testCancelledTrial() throws Exception {
+        PeerFailureTracker peerFailureTracker = new PeerFailureTracker(1, 50, 1000, mRandom);
+
+        peerFailureTracker.onFailure(PEER_ADDRESS);
+        Thread.sleep(100);
+        assertThat("The trial attempt is allowed", peerFailureTracker.tryAcquire(PEER_ADDRESS), is(true));
+
+        peerFailureTracker.onCancelled(PEER_ADDRESS);
+        assertThat("The next attempt is the trial instead",
+                peerFailureTracker.tryAcquire(PEER_ADDRESS), is(true));
+    }
+
+    @Test
+    public void testGetBackoffTime() throws Exception {
+        assertThat("The base time with exponent zero",
+                PeerFailureTracker.getBackoffTime(100, 10000, 0, mRandom), is(100L));
+        assertThat("The base time is doubled",
+                PeerFailureTracker.getBackoffTime(100, 10000, 3, mRandom), is(800L));
+        assertThat("The maximum is not exceeded",
+                PeerFailureTracker.getBackoffTime(100, 10000, 100, mRandom), is(10000L));
+
+        Random random = new Random(1);
+
+        for (int i = 0; i < 100; i++) {
+            long backoffTime = PeerFailureTracker.getBackoffTime(1000, 10000, 0, random);
+            assertThat("The jitter is within limits", backoffTime >= 750 && backoffTime <= 1250, is(true));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PeerPortCacheTest {
+
+    private static final String PEER_ADDRESS = "01:02:03:04:05:0A";
+    private static final String OTHER_PEER_ADDRESS = "01:02:03:04:05:0B";
+
+    @Mock
+    SharedPreferences mMockSharedPreferences;
+
+    @Mock
+    SharedPreferences.Editor mMockEditor;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mMockSharedPreferences.edit()).thenReturn(mMockEditor);
+    }
+
+    @Test
+    public void testPutAndGetPort() throws Exception {
+        PeerPortCache peerPortCache = new PeerPortCache(mMockSharedPreferences);
+
+        assertThat("The default port is returned for an unknown peer",
+                peerPortCache.getPort(PEER_ADDRESS, 0), is(0));
+
+        peerPortCache.put(PEER_ADDRESS, 5);
+        peerPortCache.put(OTHER_PEER_ADDRESS, BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
+
+        assertThat("The cached port is returned", peerPortCache.getPort(PEER_ADDRESS, 0), is(5));
+        assertThat("The address is case insensitive",
+                peerPortCache.getPort(PEER_ADDRESS.toLowerCase(), 0), is(5));
+        assertThat("The system decided port is cached",
+                peerPortCache.getPort(OTHER_PEER_ADDRESS, 0),
+                is(BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT));
+        assertThat("The default port is returned for the unknown address", peerPortCache.getPort(null, 3), is(3));
+
+        peerPortCache.put(PEER_ADDRESS, 0);
+        peerPortCache.put(null, 7);
+        assertThat("The rotating port and the unknown address are ignored", peerPortCache.size(), is(2));
+        assertThat("The port is unchanged", peerPortCache.getPort(PEER_ADDRESS, 0), is(5));
+
+        peerPortCache.remove(PEER_ADDRESS);
+        assertThat("The removed port is forgotten", peerPortCache.getPort(PEER_ADDRESS, 0), is(0));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        PeerPortCache peerPortCache = new PeerPortCache(mMockSharedPreferences);
+        peerPortCache.put(PEER_ADDRESS, 5);
+        peerPortCache.put(PEER_ADDRESS, 5);
+        peerPortCache.put(OTHER_PEER_ADDRESS, 12);
+
+        ArgumentCaptor<String> peerPortsCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mMockEditor, times(2)).putString(eq(PeerPortCache.KEY_PEER_PORTS), peerPortsCaptor.capture());
+        verify(mMockEditor, times(2)).apply();
+        assertThat("The ports are saved", peerPortsCaptor.getValue(),
+                is(PEER_ADDRESS + "=5," + OTHER_PEER_ADDRESS + "=12"));
+
+        when(mMockSharedPreferences.getString(eq(PeerPortCache.KEY_PEER_PORTS), anyString()))
+                .thenReturn(peerPortsCaptor.getValue() + ",invalid,01:02:03:04:05:0C=x");
+        PeerPortCache loadedPeerPortCache = new PeerPortCache(mMockSharedPreferences);
+
+        assertThat("The valid entries are loaded", loadedPeerPortCache.size(), is(2));
+        assertThat("The port is loaded", loadedPeerPortCache.getPort(PEER_ADDRESS, 0), is(5));
+        assertThat("The port is loaded", loadedPeerPortCache.getPort(OTHER_PEER_ADDRESS, 0), is(12));
+    }
+
+    @Test
+    public void testWithoutPreferences() throws Exception {
+        PeerPortCache peerPortCache = new PeerPortCache(null);
+        peerPortCache.put(PEER_ADDRESS, 5);
+
+        assertThat("The port is cached in memory", peerPortCache.getPort(PEER_ADDRESS, 0), is(5));
+        verify(mMockSharedPreferences, never()).edit();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPeerIsEvicted() throws Exception {
+        PeerPortCache peerPortCache = new PeerPortCache(mMockSharedPreferences);
+
+        for (int i = 0; i < PeerPortCache.MAX_NUMBER_OF_CACHED_PEERS; i++) {
+            peerPortCache.put(String.format("01:02:03:04:05:%02X", i), 1);
+        }
+
+        peerPortCache.getPort("01:02:03:04:05:00", 0); // The first peer is now the most recently used
+        peerPortCache.put(PEER_ADDRESS.replace("01:", "0F:"), 2);
+
+        assertThat("The size is limited", peerPortCache.size(), is(PeerPortCache.MAX_NUMBER_OF_CACHED_PEERS));
+        assertThat("The recently used peer is kept", peerPortCache.getPort("01:02:03:04:05:00", 0), is(1));
+        assertThat("The least recently used peer is evicted",
+                peerPortCache.getPort("01:02:03:04:05:01", 0), is(0));
+    }
+}
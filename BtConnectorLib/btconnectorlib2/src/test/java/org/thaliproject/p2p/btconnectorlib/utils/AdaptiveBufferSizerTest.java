@@ -0,0 +1,107 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AdaptiveBufferSizerTest {
+
+    private AdaptiveBufferSizer mAdaptiveBufferSizer;
+
+    @Before
+    public void setUp() throws Exception {
+        mAdaptiveBufferSizer = new AdaptiveBufferSizer(256, 1024, 16 * 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidBounds() throws Exception {
+        new AdaptiveBufferSizer(1024, 1024, 512);
+    }
+
+    @Test
+    public void testInitialSizeIsClamped() throws Exception {
+        assertThat("The initial size is raised to the minimum",
+                new AdaptiveBufferSizer(256, 100, 1024).getBufferSize(), is(256));
+        assertThat("The initial size is lowered to the maximum",
+                new AdaptiveBufferSizer(256, 4096, 1024).getBufferSize(), is(1024));
+    }
+
+    @Test
+    public void testGrowsOnFullReads() throws Exception {
+        mAdaptiveBufferSizer.onRead(1024, 1024);
+
+        assertThat("A single full read does not grow the buffer", mAdaptiveBufferSizer.getBufferSize(), is(1024));
+
+        mAdaptiveBufferSizer.onRead(1024, 1024);
+
+        assertThat("Consecutive full reads double the buffer", mAdaptiveBufferSizer.getBufferSize(), is(2048));
+
+        for (int i = 0; i < 20; i++) {
+            int bufferSize = mAdaptiveBufferSizer.getBufferSize();
+            mAdaptiveBufferSizer.onRead(bufferSize, bufferSize);
+        }
+
+        assertThat("The buffer does not grow beyond the maximum", mAdaptiveBufferSizer.getBufferSize(), is(16 * 1024));
+        assertThat("The growth decisions are counted", mAdaptiveBufferSizer.getNumberOfTimesGrown(), is(4L));
+        assertThat("The largest size is recorded", mAdaptiveBufferSizer.getLargestBufferSize(), is(16 * 1024));
+    }
+
+    @Test
+    public void testShrinksAfterSmallReads() throws Exception {
+        mAdaptiveBufferSizer.onRead(1024, 1024);
+        mAdaptiveBufferSizer.onRead(1024, 1024);
+
+        for (int i = 0; i < 15; i++) {
+            mAdaptiveBufferSizer.onRead(300, 2048);
+        }
+
+        assertThat("The buffer is not shrunk before the window is full", mAdaptiveBufferSizer.getBufferSize(), is(2048));
+
+        mAdaptiveBufferSizer.onRead(300, 2048);
+
+        assertThat("The buffer is shrunk to fit the recent reads", mAdaptiveBufferSizer.getBufferSize(), is(512));
+        assertThat("The shrink decision is counted", mAdaptiveBufferSizer.getNumberOfTimesShrunk(), is(1L));
+
+        for (int i = 0; i < 16; i++) {
+            mAdaptiveBufferSizer.onRead(10, 512);
+        }
+
+        assertThat("The buffer does not shrink below the minimum", mAdaptiveBufferSizer.getBufferSize(), is(256));
+    }
+
+    @Test
+    public void testOccasionalLargeReadDoesNotPreventShrinking() throws Exception {
+        for (int i = 0; i < 16; i++) {
+            mAdaptiveBufferSizer.onRead((i == 5) ? 1000 : 100, 1024);
+        }
+
+        assertThat("The buffer follows the 90th percentile", mAdaptiveBufferSizer.getBufferSize(), is(256));
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        mAdaptiveBufferSizer.onRead(1, 1024);
+        mAdaptiveBufferSizer.onRead(100, 1024);
+        mAdaptiveBufferSizer.onRead(128, 1024);
+        mAdaptiveBufferSizer.onRead(129, 1024);
+        mAdaptiveBufferSizer.onRead(0, 1024);
+        int[] histogram = mAdaptiveBufferSizer.getHistogram();
+
+        assertThat("Reads of one byte are in the first bucket", histogram[0], is(1));
+        assertThat("Reads up to a power of two are in its bucket", histogram[7], is(2));
+        assertThat("Reads above a power of two are in the next bucket", histogram[8], is(1));
+        assertThat("Empty reads are ignored", mAdaptiveBufferSizer.getNumberOfReads(), is(4L));
+        assertThat("The bytes are counted", mAdaptiveBufferSizer.getNumberOfBytesRead(), is(358L));
+
+        for (int i = 0; i < 16; i++) {
+            mAdaptiveBufferSizer.onRead(1000, 2000);
+        }
+
+        histogram = mAdaptiveBufferSizer.getHistogram();
+
+        assertThat("The old reads roll out of the histogram", histogram[7], is(0));
+        assertThat("The window holds the recent reads", histogram[10], is(16));
+    }
+}
@@ -5,34 +5,60 @@ import android.bluetooth.BluetoothSocket;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.thaliproject.p2p.btconnectorlib.Benchmark;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class BluetoothSocketIoThreadTest {
 
+    private static final int FRAME_STREAM_BUFFER_SIZE_IN_BYTES = 1024;
+    private static final int IO_ENGINE_MESSAGE_SIZE_IN_BYTES = 100;
+
     @Mock
     BluetoothSocket mMockBluetoothSocket;
 
@@ -193,6 +219,60 @@ public class BluetoothSocketIoThreadTest {
                 any(BluetoothSocketIoThread.class));
     }
 
+    @Test
+    public void testGatherWrite() throws Exception {
+        File file = File.createTempFile("gather", ".bin");
+        file.deleteOnExit();
+        byte[] fileContent = new byte[20000];
+        new Random(4).nextBytes(fileContent);
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        fileOutputStream.write(fileContent);
+        fileOutputStream.close();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        MappedByteBuffer mappedByteBuffer =
+                randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileContent.length);
+        randomAccessFile.close();
+        mappedByteBuffer.position(1000);
+        ByteBuffer body = mappedByteBuffer.slice();
+        ByteBuffer header = ByteBuffer.wrap(new byte[] { 0, 1, 2, 3, 4, 5 }, 2, 4);
+        ByteBuffer trailer = ByteBuffer.allocateDirect(3);
+        trailer.put(new byte[] { 9, 8, 7 }).flip();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(new byte[] { 2, 3, 4, 5 });
+        expected.write(fileContent, 1000, fileContent.length - 1000);
+        expected.write(new byte[] { 9, 8, 7 });
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(createSocket(outputStream), mMockListener);
+
+        assertThat("The buffers are written", bluetoothSocketIoThread.write(header, body, trailer), is(true));
+        assertThat("The bytes are written in order", outputStream.toByteArray(), is(expected.toByteArray()));
+        assertThat("The positions of the buffers are unchanged", header.position(), is(2));
+        assertThat("The positions of the buffers are unchanged", body.position(), is(0));
+        verify(mMockListener, times(1)).onBytesWritten((byte[]) isNull(),
+                eq(expected.size()), eq(bluetoothSocketIoThread));
+        assertThat("The total is accounted for",
+                bluetoothSocketIoThread.getNumberOfBytesWritten(), is((long) expected.size()));
+    }
+
+    @Test
+    public void testGatherWriteCoalescesSmallBuffers() throws Exception {
+        SlowOutputStream outputStream = new SlowOutputStream();
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(createSocket(outputStream), mMockListener);
+
+        assertThat("The buffers are written", bluetoothSocketIoThread.write(
+                ByteBuffer.wrap(new byte[10]), ByteBuffer.allocateDirect(20), ByteBuffer.wrap(new byte[30])), is(true));
+        assertThat("The small buffers are written with one stream write", outputStream.getNumberOfWrites(), is(1L));
+        assertThat("All bytes are written", outputStream.getNumberOfBytesWritten(), is(60L));
+
+        bluetoothSocketIoThread.write(new byte[40]);
+
+        assertThat("The total includes all writes", bluetoothSocketIoThread.getNumberOfBytesWritten(), is(100L));
+    }
+
     @Test
     public void testClose() throws Exception {
         Field shuttingDownField = mBluetoothSocketIoThread.getClass().getDeclaredField("mIsShuttingDown");
@@ -230,4 +310,1399 @@ public class BluetoothSocketIoThreadTest {
         assertThat("Should be set to true if closing",
                 shuttingDownField.getBoolean(mBluetoothSocketIoThread), is(true));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testWriteFrame() throws Exception {
+        byte[] payload = "some text".getBytes();
+        assertThat("should return true if written properly",
+                mBluetoothSocketIoThread.writeFrame(payload), is(true));
+        verify(mMockOutputStream, times(1)).write(FrameCodec.encode(payload));
+        verify(mMockListener, times(1)).onBytesWritten(payload, payload.length, mBluetoothSocketIoThread);
+
+        doThrow(IOException.class).when(mMockOutputStream).write(any(byte[].class));
+
+        reset(mMockListener);
+        assertThat("should return false on failure",
+                mBluetoothSocketIoThread.writeFrame(payload), is(false));
+        verify(mMockListener, never()).onBytesWritten(any(byte[].class), anyInt(),
+                any(BluetoothSocketIoThread.class));
+    }
+
+    @Test
+    public void testWriteFrameFromBuffers() throws Exception {
+        byte[] body = new byte[10000];
+        new Random(5).nextBytes(body);
+        ByteBuffer header = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(createSocket(outputStream), mMockListener);
+
+        assertThat("The frame is written",
+                bluetoothSocketIoThread.writeFrame(header, ByteBuffer.wrap(body)), is(true));
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(new byte[] { 1, 2, 3 });
+        payload.write(body);
+
+        assertThat("The parts are written as one frame", outputStream.toByteArray(),
+                is(FrameCodec.encode(payload.toByteArray())));
+        assertThat("The positions of the buffers are unchanged", header.position(), is(0));
+        verify(mMockListener, times(1)).onBytesWritten((byte[]) isNull(),
+                eq(payload.size()), eq(bluetoothSocketIoThread));
+
+        bluetoothSocketIoThread.setTypedFramingEnabled(true);
+        bluetoothSocketIoThread.setFlowControlWindowSize(100);
+        outputStream.reset();
+
+        assertThat("The frame is typed, when the flow control is on",
+                bluetoothSocketIoThread.writeFrame(ByteBuffer.wrap(new byte[] { 4, 5 })), is(true));
+        assertThat("The frame has the data type", outputStream.toByteArray(), is(new byte[] { 3, 0, 4, 5 }));
+        bluetoothSocketIoThread.writeFrame(ByteBuffer.wrap(new byte[98]));
+
+        assertThat("The flow control credits are consumed",
+                bluetoothSocketIoThread.writeFrame(ByteBuffer.wrap(new byte[1])), is(false));
+    }
+
+    @Test
+    public void testRunFramed() throws Exception {
+        final byte[] first = "first".getBytes();
+        final byte[] second = new byte[1000];
+        Arrays.fill(second, (byte) 1);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(FrameCodec.encode(first));
+        stream.write(FrameCodec.encode(second));
+
+        BluetoothSocket bluetoothSocket = createLoopbackSocket(stream.toByteArray());
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final int[] frameCount = new int[1];
+
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(bluetoothSocket, mMockListener);
+        bluetoothSocketIoThread.setBufferSize(64); // Forces the second frame to be reassembled
+        bluetoothSocketIoThread.setFrameListener(new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+                frameCount[0]++;
+                received.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            }
+        });
+
+        assertThat("Setting a frame listener turns on the framed mode",
+                bluetoothSocketIoThread.isFramed(), is(true));
+
+        bluetoothSocketIoThread.run();
+
+        assertThat("Both frames are received", frameCount[0], is(2));
+        assertThat("The frames are intact", received.size(), is(first.length + second.length));
+        verify(mMockListener, never()).onBytesRead(any(byte[].class),
+                anyInt(), any(BluetoothSocketIoThread.class));
+        verify(mMockListener, times(1)).onDisconnected(anyString(),
+                any(BluetoothSocketIoThread.class));
+    }
+
+    @Test
+    public void testRunFramedWithBufferedData() throws Exception {
+        final byte[] first = "first".getBytes();
+        final byte[] second = "second".getBytes();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(FrameCodec.encode(first));
+        stream.write(FrameCodec.encode(second));
+        final byte[] bytes = stream.toByteArray();
+        final int splitIndex = bytes.length - 3; // The second frame is split
+
+        // The bytes before the split were read together with the handshake
+        PeerProperties peerProperties = new PeerProperties("0A:1B:2C:3D:4E:5F");
+        peerProperties.setBufferedData(Arrays.copyOf(bytes, splitIndex));
+        BluetoothSocket bluetoothSocket = createLoopbackSocket(Arrays.copyOfRange(bytes, splitIndex, bytes.length));
+        final List<String> received = new ArrayList<>();
+
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(bluetoothSocket, mMockListener);
+        bluetoothSocketIoThread.setPeerProperties(peerProperties);
+        bluetoothSocketIoThread.setFrameListener(new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+                received.add(new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining()));
+            }
+        });
+
+        bluetoothSocketIoThread.run();
+
+        assertThat("Both frames are received", received.size(), is(2));
+        assertThat("The buffered data is read first", received.get(0), is("first"));
+        assertThat("The frame split between the buffered data and the socket is intact",
+                received.get(1), is("second"));
+        assertThat("The buffered data is consumed", peerProperties.getBufferedData(), is(nullValue()));
+    }
+
+    @Test
+    public void testNegotiatedFramingIsApplied() throws Exception {
+        PeerProperties peerProperties = new PeerProperties("0A:1B:2C:3D:4E:5F");
+        peerProperties.setTypedFramingEnabled(true);
+        peerProperties.setCompressionEnabled(true);
+        peerProperties.setFlowControlWindowSize(1000);
+
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(createLoopbackSocket(new byte[0]), mMockListener);
+        bluetoothSocketIoThread.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        bluetoothSocketIoThread.applyNegotiatedFraming(peerProperties);
+        bluetoothSocketIoThread.run();
+
+        assertThat("The typed framing is on", bluetoothSocketIoThread.isTypedFramingEnabled(), is(true));
+        assertThat("The compression is on", bluetoothSocketIoThread.isCompressionEnabled(), is(true));
+        assertThat("The negotiated flow control window is used",
+                bluetoothSocketIoThread.getFlowControlWindow().getWindowSize(), is(1000));
+    }
+
+    @Test
+    public void testNotNegotiatedFramingIsTurnedOff() throws Exception {
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(createLoopbackSocket(new byte[0]), mMockListener);
+        bluetoothSocketIoThread.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        bluetoothSocketIoThread.setTypedFramingEnabled(true);
+        bluetoothSocketIoThread.setCompressionEnabled(true);
+        bluetoothSocketIoThread.setFlowControlWindowSize(1000);
+        bluetoothSocketIoThread.setKeepAlive(1000, 3);
+        bluetoothSocketIoThread.applyNegotiatedFraming(new PeerProperties("0A:1B:2C:3D:4E:5F"));
+        bluetoothSocketIoThread.run();
+
+        assertThat("The typed framing is off, since it was not negotiated",
+                bluetoothSocketIoThread.isTypedFramingEnabled(), is(false));
+        assertThat("The compression is off", bluetoothSocketIoThread.isCompressionEnabled(), is(false));
+        assertThat("The flow control is off", bluetoothSocketIoThread.getFlowControlWindow(), is(nullValue()));
+        assertThat("The keepalive requiring the typed framing is off",
+                bluetoothSocketIoThread.getKeepAlive(), is(nullValue()));
+    }
+
+    @Test
+    public void testSetPeerPropertiesKeepsFraming() throws Exception {
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(createLoopbackSocket(new byte[0]), mMockListener);
+        bluetoothSocketIoThread.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        bluetoothSocketIoThread.setTypedFramingEnabled(true);
+        bluetoothSocketIoThread.setFlowControlWindowSize(1000);
+        bluetoothSocketIoThread.setPeerProperties(new PeerProperties("0A:1B:2C:3D:4E:5F"));
+        bluetoothSocketIoThread.run();
+
+        assertThat("The typed framing set by the caller is kept",
+                bluetoothSocketIoThread.isTypedFramingEnabled(), is(true));
+        assertThat("The flow control set by the caller is kept",
+                bluetoothSocketIoThread.getFlowControlWindow().getWindowSize(), is(1000));
+    }
+
+    @Test
+    public void testRunFramedFrameTooLarge() throws Exception {
+        BluetoothSocket bluetoothSocket = createLoopbackSocket(FrameCodec.encode(new byte[100]));
+        BluetoothSocketIoThread.FrameListener mockFrameListener =
+                mock(BluetoothSocketIoThread.FrameListener.class);
+
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(bluetoothSocket, mMockListener);
+        bluetoothSocketIoThread.setFrameListener(mockFrameListener);
+        bluetoothSocketIoThread.setMaxFrameSize(99);
+        bluetoothSocketIoThread.run();
+
+        verify(mockFrameListener, never()).onFrameReceived(any(ByteBuffer.class),
+                any(BluetoothSocketIoThread.class));
+        verify(mMockListener, times(1)).onDisconnected(anyString(), eq(bluetoothSocketIoThread));
+    }
+
+    @Test
+    public void testRunRecyclesReadBuffers() throws Exception {
+        byte[] incomingBytes = new byte[1000];
+        ByteBufferPool bufferPool = new ByteBufferPool();
+
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(createLoopbackSocket(incomingBytes), mMockListener);
+        bluetoothSocketIoThread.setBufferSize(100);
+        bluetoothSocketIoThread.setBufferPool(bufferPool);
+        bluetoothSocketIoThread.run();
+
+        verify(mMockListener, times(10)).onBytesRead(any(byte[].class), eq(100),
+                eq(bluetoothSocketIoThread));
+        assertThat("The read buffer is reused", bufferPool.getNumberOfAllocations(), is(1L));
+        assertThat("The read buffer is returned to the pool",
+                bufferPool.getNumberOfFreeBuffers(100), is(1));
+    }
+
+    @Test
+    public void testRetainReadBuffer() throws Exception {
+        byte[] incomingBytes = new byte[200];
+
+        for (int i = 0; i < incomingBytes.length; i++) {
+            incomingBytes[i] = (byte) i;
+        }
+
+        final ByteBufferPool bufferPool = new ByteBufferPool();
+        final List<ByteBufferPool.Lease> retainedLeases = new ArrayList<>();
+
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(
+                createLoopbackSocket(incomingBytes), new BluetoothSocketIoThread.Listener() {
+            @Override
+            public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+                retainedLeases.add(who.retainReadBuffer());
+            }
+
+            @Override
+            public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+            }
+
+            @Override
+            public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+            }
+        });
+
+        bluetoothSocketIoThread.setBufferSize(100);
+        bluetoothSocketIoThread.setBufferPool(bufferPool);
+
+        assertThat("Nothing to retain outside a callback",
+                bluetoothSocketIoThread.retainReadBuffer(), is(nullValue()));
+
+        bluetoothSocketIoThread.run();
+
+        assertThat("Both reads are retained", retainedLeases.size(), is(2));
+        assertThat("Retained buffers are not reused",
+                retainedLeases.get(0) != retainedLeases.get(1), is(true));
+        assertThat("The first retained buffer is intact", retainedLeases.get(0).array()[99], is((byte) 99));
+        assertThat("The second retained buffer is intact", retainedLeases.get(1).array()[0], is((byte) 100));
+
+        for (ByteBufferPool.Lease lease : retainedLeases) {
+            assertThat("Only the retained reference is left", lease.getReferenceCount(), is(1));
+            lease.release();
+        }
+
+        assertThat("The buffers are returned to the pool once released",
+                bufferPool.getNumberOfFreeBuffers(100), is(3));
+    }
+
+    @Test
+    public void testEnqueue() throws Exception {
+        byte[] bytes = "hello".getBytes();
+        SocketWriterThread.WriteRequest writeRequest = mBluetoothSocketIoThread.enqueue(bytes);
+
+        assertThat("The write succeeds", writeRequest.get(5, TimeUnit.SECONDS), is(true));
+        verify(mMockOutputStream, times(1)).write(bytes, 0, bytes.length);
+        verify(mMockListener, timeout(5000).times(1))
+                .onBytesWritten(bytes, bytes.length, mBluetoothSocketIoThread);
+        assertThat("The writer thread is created",
+                mBluetoothSocketIoThread.getSocketWriterThread(), is(notNullValue()));
+
+        mBluetoothSocketIoThread.close(true, true);
+        assertThat("Writes after closing fail", mBluetoothSocketIoThread.enqueue(bytes).get(), is(false));
+    }
+
+    @Test
+    public void testFlowControl() throws Exception {
+        final int windowSize = 1000;
+        BluetoothSocket[] socketPair = createPipedSocketPair();
+        final int[] receivedBytes = new int[1];
+        final CountDownLatch receivedLatch = new CountDownLatch(1);
+        final CountDownLatch writableLatch = new CountDownLatch(1);
+
+        BluetoothSocketIoThread sender = new BluetoothSocketIoThread(socketPair[0], mMockListener);
+        sender.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        sender.setTypedFramingEnabled(true);
+        sender.setFlowControlWindowSize(windowSize);
+        sender.setWritabilityListener(new BluetoothSocketIoThread.WritabilityListener() {
+            @Override
+            public void onWritable(BluetoothSocketIoThread who) {
+                writableLatch.countDown();
+            }
+        });
+
+        final BluetoothSocketIoThread receiver = new BluetoothSocketIoThread(socketPair[1], mMockListener);
+        receiver.setTypedFramingEnabled(true);
+        receiver.setFlowControlWindowSize(windowSize);
+        receiver.setConsumeOnReceive(false);
+        receiver.setFrameListener(new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+                synchronized (receivedBytes) {
+                    receivedBytes[0] += frame.remaining();
+
+                    if (receivedBytes[0] >= 1200) {
+                        receivedLatch.countDown();
+                    }
+                }
+            }
+        });
+
+        sender.start();
+        receiver.start();
+
+        int numberOfFramesWritten = 0;
+
+        while (sender.isWritable()) {
+            assertThat("The frame is written", sender.writeFrame(new byte[300]), is(true));
+            numberOfFramesWritten++;
+        }
+
+        assertThat("The sender runs out of credits after the window", numberOfFramesWritten, is(4));
+        assertThat("Frames are not written without credits", sender.writeFrame(new byte[1]), is(false));
+        assertThat("The receiver gets the frames", receivedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The sender stays blocked until the data is consumed",
+                writableLatch.await(100, TimeUnit.MILLISECONDS), is(false));
+
+        receiver.onBytesConsumed(1200);
+
+        assertThat("The sender is notified when writable again", writableLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The sender is writable again", sender.isWritable(), is(true));
+        assertThat("The sender has the granted credits", sender.getFlowControlWindow().getSendCredits(), is(1000L));
+
+        sender.close(true, true);
+        receiver.close(true, true);
+    }
+
+    @Test
+    public void testFlowControlViolation() throws Exception {
+        // The peer sends more than the window without waiting for credits
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(FrameCodec.encode((byte) 0, new byte[100], 0, 100));
+        stream.write(FrameCodec.encode((byte) 0, new byte[1], 0, 1));
+        BluetoothSocketIoThread.FrameListener mockFrameListener =
+                mock(BluetoothSocketIoThread.FrameListener.class);
+
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(createLoopbackSocket(stream.toByteArray()), mMockListener);
+        bluetoothSocketIoThread.setFrameListener(mockFrameListener);
+        bluetoothSocketIoThread.setTypedFramingEnabled(true);
+        bluetoothSocketIoThread.setFlowControlWindowSize(100);
+        bluetoothSocketIoThread.setConsumeOnReceive(false);
+        bluetoothSocketIoThread.run();
+
+        verify(mockFrameListener, times(1)).onFrameReceived(any(ByteBuffer.class), eq(bluetoothSocketIoThread));
+        verify(mMockListener, times(1)).onDisconnected(eq("The peer sent data without credits"),
+                eq(bluetoothSocketIoThread));
+    }
+
+    @Test
+    public void testReaderDoesNotBlockOnControlFrames() throws Exception {
+        // The output stream is stuck as if the peer had stopped reading
+        final CountDownLatch unblockLatch = new CountDownLatch(1);
+        final CountDownLatch blockedLatch = new CountDownLatch(1);
+        OutputStream stuckOutputStream = new OutputStream() {
+            @Override
+            public void write(int oneByte) throws IOException {
+                write(new byte[] { (byte) oneByte }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                blockedLatch.countDown();
+
+                try {
+                    unblockLatch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        };
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(FrameCodec.encode((byte) 3, new byte[8], 0, 8)); // Ping
+
+        for (int i = 0; i < 3; i++) {
+            stream.write(FrameCodec.encode((byte) 0, new byte[60], 0, 60));
+        }
+
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(stream.toByteArray()));
+        when(bluetoothSocket.getOutputStream()).thenReturn(stuckOutputStream);
+        BluetoothSocketIoThread.FrameListener mockFrameListener = mock(BluetoothSocketIoThread.FrameListener.class);
+
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(bluetoothSocket, mMockListener);
+        bluetoothSocketIoThread.setFrameListener(mockFrameListener);
+        bluetoothSocketIoThread.setTypedFramingEnabled(true);
+        bluetoothSocketIoThread.setFlowControlWindowSize(100);
+        bluetoothSocketIoThread.start();
+        bluetoothSocketIoThread.join(5000);
+
+        assertThat("The reader is not blocked by the stuck output stream", bluetoothSocketIoThread.isAlive(), is(false));
+        verify(mockFrameListener, times(3)).onFrameReceived(any(ByteBuffer.class), eq(bluetoothSocketIoThread));
+        assertThat("The pong and the credits are left to the writer thread",
+                blockedLatch.await(5, TimeUnit.SECONDS), is(true));
+
+        unblockLatch.countDown();
+        SocketWriterThread socketWriterThread = bluetoothSocketIoThread.getSocketWriterThread();
+
+        for (int i = 0; i < 500 && socketWriterThread.getNumberOfPendingWrites() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        assertThat("The control frames are written", socketWriterThread.getNumberOfPendingWrites(), is(0));
+        verify(mMockListener, never()).onBytesWritten(any(byte[].class), anyInt(), any(BluetoothSocketIoThread.class));
+
+        bluetoothSocketIoThread.close(true, true);
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        BluetoothSocket[] socketPair = createPipedSocketPair();
+        final byte[] compressiblePayload = new byte[2000];
+        final byte[] incompressiblePayload = new byte[2000];
+        new Random(1).nextBytes(incompressiblePayload);
+
+        for (int i = 0; i < compressiblePayload.length; i++) {
+            compressiblePayload[i] = (byte) ('a' + i % 7);
+        }
+
+        final List<byte[]> receivedFrames = new CopyOnWriteArrayList<>();
+        final List<ByteBufferPool.Lease> retainedLeases = new CopyOnWriteArrayList<>();
+        final CountDownLatch receivedLatch = new CountDownLatch(2);
+
+        BluetoothSocketIoThread sender = new BluetoothSocketIoThread(socketPair[0], mMockListener);
+        sender.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        sender.setTypedFramingEnabled(true);
+        sender.setCompressionEnabled(true);
+
+        final BluetoothSocketIoThread receiver = new BluetoothSocketIoThread(socketPair[1], mMockListener);
+        receiver.setTypedFramingEnabled(true);
+        receiver.setCompressionEnabled(true);
+        receiver.setFrameListener(new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+                retainedLeases.add(who.retainReadBuffer());
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                receivedFrames.add(bytes);
+                receivedLatch.countDown();
+            }
+        });
+
+        assertThat("The compression is on", sender.isCompressionEnabled(), is(true));
+
+        sender.start();
+        receiver.start();
+
+        assertThat("The compressible frame is written", sender.writeFrame(compressiblePayload), is(true));
+        assertThat("The incompressible frame is written", sender.writeFrame(incompressiblePayload), is(true));
+        assertThat("The receiver gets the frames", receivedLatch.await(5, TimeUnit.SECONDS), is(true));
+
+        assertThat("The compressed frame is decompressed", receivedFrames.get(0), is(compressiblePayload));
+        assertThat("The uncompressed frame is intact", receivedFrames.get(1), is(incompressiblePayload));
+        assertThat("One frame was compressed", sender.getFrameCompressor().getNumberOfFramesCompressed(), is(1L));
+        assertThat("One frame was not compressed", sender.getFrameCompressor().getNumberOfFramesNotCompressed(), is(1L));
+        assertThat("The decompressed buffer can be retained", retainedLeases.get(0), is(notNullValue()));
+        assertThat("The retained buffer holds the payload",
+                Arrays.copyOf(retainedLeases.get(0).array(), compressiblePayload.length), is(compressiblePayload));
+
+        for (ByteBufferPool.Lease lease : retainedLeases) {
+            lease.release();
+        }
+
+        sender.close(true, true);
+        receiver.close(true, true);
+    }
+
+    @Test
+    public void testCompressedFrameWithoutCompression() throws Exception {
+        FrameCompressor frameCompressor = new FrameCompressor();
+        byte[] compressedBlock = frameCompressor.compress(new byte[1000], 0, 1000);
+        frameCompressor.end();
+
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(
+                createLoopbackSocket(FrameCodec.encode((byte) 2, compressedBlock, 0, compressedBlock.length)),
+                mMockListener);
+        bluetoothSocketIoThread.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        bluetoothSocketIoThread.setTypedFramingEnabled(true);
+        bluetoothSocketIoThread.setFlowControlWindowSize(10000);
+        bluetoothSocketIoThread.run();
+
+        verify(mMockListener, times(1)).onDisconnected(
+                eq("Received a compressed frame, but the compression is off"), eq(bluetoothSocketIoThread));
+    }
+
+    @Test
+    public void testEnqueueFrameReassemblesSlicedBulkFrames() throws Exception {
+        BluetoothSocket[] socketPair = createFlushingPipedSocketPair();
+        final byte[] bulkPayload = new byte[200000]; // Larger than the pipe, so the writer blocks
+        new Random(1).nextBytes(bulkPayload);
+        final List<byte[]> receivedFrames = new CopyOnWriteArrayList<>();
+        final CountDownLatch receivedLatch = new CountDownLatch(2);
+
+        BluetoothSocketIoThread sender = new BluetoothSocketIoThread(socketPair[0], mMockListener);
+        sender.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        sender.setTypedFramingEnabled(true);
+        sender.setFlowControlWindowSize(1 << 20);
+        sender.setWriteSliceSize(1000);
+
+        BluetoothSocketIoThread receiver = new BluetoothSocketIoThread(socketPair[1], mMockListener);
+        receiver.setTypedFramingEnabled(true);
+        receiver.setFlowControlWindowSize(1 << 20);
+        receiver.setFrameListener(new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                receivedFrames.add(bytes);
+                receivedLatch.countDown();
+            }
+        });
+
+        sender.start();
+        SocketWriterThread.WriteRequest bulkWriteRequest =
+                sender.enqueueFrame(bulkPayload, SocketWriterThread.Priority.BULK);
+        SocketWriterThread.WriteRequest controlWriteRequest =
+                sender.enqueueFrame("ack".getBytes(), SocketWriterThread.Priority.CONTROL);
+        receiver.start();
+
+        assertThat("The frames are received", receivedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The control frame overtakes the bulk frame", new String(receivedFrames.get(0)), is("ack"));
+        assertThat("The bulk frame is reassembled", Arrays.equals(receivedFrames.get(1), bulkPayload), is(true));
+        assertThat("The writes succeed", bulkWriteRequest.get(5, TimeUnit.SECONDS)
+                && controlWriteRequest.get(5, TimeUnit.SECONDS), is(true));
+        assertThat("The bulk frame is written in slices",
+                sender.getSocketWriterThread().getNumberOfSlicesWritten(), is(200L));
+        verify(mMockListener, times(1)).onBytesWritten(eq(bulkPayload), eq(bulkPayload.length), eq(sender));
+        verify(mMockListener, never()).onDisconnected(anyString(), any(BluetoothSocketIoThread.class));
+
+        sender.close(true, true);
+        receiver.close(true, true);
+    }
+
+    /**
+     * Measures how long a control frame waits while a bulk transfer saturates a link of about
+     * 1 MB/s. Without the slicing, it would wait for the rest of the two megabyte bulk frame.
+     */
+    @Test
+    public void testControlFrameLatencyDuringBulkTransfer() throws Exception {
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(createSocket(new ThrottledOutputStream()), mMockListener);
+        bluetoothSocketIoThread.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        bluetoothSocketIoThread.setTypedFramingEnabled(true);
+        bluetoothSocketIoThread.setFlowControlWindowSize(4 << 20);
+
+        SocketWriterThread.WriteRequest bulkWriteRequest =
+                bluetoothSocketIoThread.enqueueFrame(new byte[2 << 20], SocketWriterThread.Priority.BULK);
+        Thread.sleep(200);
+
+        final long startTime = System.nanoTime();
+        SocketWriterThread.WriteRequest controlWriteRequest =
+                bluetoothSocketIoThread.enqueueFrame(new byte[16], SocketWriterThread.Priority.CONTROL);
+
+        assertThat("The control frame is written", controlWriteRequest.get(5, TimeUnit.SECONDS), is(true));
+
+        final long latencyInMilliseconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+        assertThat("The bulk transfer is still in progress", bulkWriteRequest.isDone(), is(false));
+        assertThat("The control frame waits for one slice at most (" + latencyInMilliseconds + " ms)",
+                latencyInMilliseconds < 100, is(true));
+
+        bluetoothSocketIoThread.close(true, true);
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        BluetoothSocket[] socketPair = createFlushingPipedSocketPair();
+        BluetoothSocketIoThread.FrameListener mockFrameListener = mock(BluetoothSocketIoThread.FrameListener.class);
+
+        BluetoothSocketIoThread first = new BluetoothSocketIoThread(socketPair[0], mMockListener);
+        first.setFrameListener(mockFrameListener);
+        first.setTypedFramingEnabled(true);
+        first.setKeepAlive(20, 50);
+
+        BluetoothSocketIoThread second = new BluetoothSocketIoThread(socketPair[1], mMockListener);
+        second.setFrameListener(mockFrameListener);
+        second.setTypedFramingEnabled(true);
+        second.setKeepAlive(20, 50);
+
+        assertThat("The keepalive is set", first.getKeepAlive(), is(notNullValue()));
+
+        first.start();
+        second.start();
+
+        for (int i = 0; i < 500 && (first.getKeepAlive().getNumberOfPongsReceived() < 3
+                || second.getKeepAlive().getNumberOfPongsReceived() < 3); i++) {
+            Thread.sleep(10);
+        }
+
+        assertThat("The first side receives pongs", first.getKeepAlive().getNumberOfPongsReceived() >= 3, is(true));
+        assertThat("The second side receives pongs", second.getKeepAlive().getNumberOfPongsReceived() >= 3, is(true));
+        assertThat("The round-trip time is measured",
+                first.getKeepAlive().getSmoothedRoundTripTimeInMilliseconds() >= 0, is(true));
+
+        assertThat("Data frames are still delivered", first.writeFrame(new byte[10]), is(true));
+        verify(mockFrameListener, timeout(5000).times(1)).onFrameReceived(any(ByteBuffer.class), eq(second));
+        verify(mockFrameListener, never()).onFrameReceived(any(ByteBuffer.class), eq(first));
+        verify(mMockListener, never()).onDisconnected(anyString(), any(BluetoothSocketIoThread.class));
+
+        first.close(true, true);
+        second.close(true, true);
+    }
+
+    @Test
+    public void testKeepAliveTimeout() throws Exception {
+        // The peer never sends anything, but the socket does not fail either until closed
+        final CountDownLatch closedLatch = new CountDownLatch(1);
+        InputStream silentInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    closedLatch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+
+                throw new IOException("Socket closed");
+            }
+
+            @Override
+            public void close() throws IOException {
+                closedLatch.countDown();
+            }
+        };
+
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(silentInputStream);
+        when(bluetoothSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(bluetoothSocket, mMockListener);
+        bluetoothSocketIoThread.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        bluetoothSocketIoThread.setTypedFramingEnabled(true);
+        bluetoothSocketIoThread.setKeepAlive(20, 3);
+
+        final long startTime = System.currentTimeMillis();
+        bluetoothSocketIoThread.start();
+
+        verify(mMockListener, timeout(2000).times(1)).onDisconnected(
+                eq("Keepalive timeout: Nothing received in 60 ms"), eq(bluetoothSocketIoThread));
+
+        assertThat("The dead peer is detected quickly", System.currentTimeMillis() - startTime < 1500, is(true));
+        assertThat("Pings were sent", bluetoothSocketIoThread.getKeepAlive().getNumberOfPingsSent() >= 1, is(true));
+
+        bluetoothSocketIoThread.join(2000);
+
+        assertThat("The thread exits", bluetoothSocketIoThread.isAlive(), is(false));
+        verify(mMockListener, times(1)).onDisconnected(anyString(), eq(bluetoothSocketIoThread));
+    }
+
+    @Test
+    public void testWriterThreadCoalescesSmallMessages() throws Exception {
+        final int numberOfMessages = 2000;
+        final byte[] message = new byte[32];
+        SlowOutputStream queuedOutputStream = new SlowOutputStream();
+        writeWithWriterThread(queuedOutputStream, message, numberOfMessages);
+
+        assertThat("All messages are written with the writer thread",
+                queuedOutputStream.getNumberOfBytesWritten(), is((long) numberOfMessages * message.length));
+        assertThat("The writer thread coalesces the messages",
+                queuedOutputStream.getNumberOfWrites() < numberOfMessages, is(true));
+    }
+
+    /**
+     * Compares writing small messages with a new thread per write (the way the test application
+     * used to do) to the writer thread with coalescing. Every write to the stream has a fixed cost
+     * simulating the overhead of a write to an RFCOMM socket.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testSmallMessageThroughputComparedToThreadPerWrite() throws Exception {
+        final int numberOfMessages = 2000;
+        final byte[] message = new byte[32];
+
+        // Thread per write
+        final SlowOutputStream threadPerWriteOutputStream = new SlowOutputStream();
+        final BluetoothSocketIoThread threadPerWriteIoThread =
+                new BluetoothSocketIoThread(createSocket(threadPerWriteOutputStream), mMockListener);
+        Thread[] threads = new Thread[numberOfMessages];
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < numberOfMessages; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    threadPerWriteIoThread.write(message);
+                }
+            };
+
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long threadPerWriteElapsedNanos = System.nanoTime() - startTime;
+
+        // Writer thread
+        SlowOutputStream queuedOutputStream = new SlowOutputStream();
+        long queuedElapsedNanos = writeWithWriterThread(queuedOutputStream, message, numberOfMessages);
+
+        System.out.println("Thread per write: "
+                + (long) (numberOfMessages / (threadPerWriteElapsedNanos / 1e9)) + " messages/s ("
+                + threadPerWriteOutputStream.getNumberOfWrites() + " socket writes), writer thread: "
+                + (long) (numberOfMessages / (queuedElapsedNanos / 1e9)) + " messages/s ("
+                + queuedOutputStream.getNumberOfWrites() + " socket writes)");
+    }
+
+    @Test
+    public void testFramedModeAndRawModeReceiveAllFrames() throws Exception {
+        final int numberOfFrames = 2000;
+        final byte[] streamBytes = createFrameStream(numberOfFrames);
+        final int[] rawFrameCount = new int[1];
+        final int[] framedFrameCount = new int[1];
+
+        readInRawMode(streamBytes, rawFrameCount);
+        readInFramedMode(streamBytes, framedFrameCount);
+
+        assertThat("All frames are reassembled in the raw mode", rawFrameCount[0], is(numberOfFrames));
+        assertThat("All frames are received in the framed mode", framedFrameCount[0], is(numberOfFrames));
+    }
+
+    /**
+     * Loopback benchmark comparing the framed mode to the raw mode with the kind of reassembly
+     * applications have to do on top of it (copying the fragments into a growable array).
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testFramedModeThroughputComparedToRawMode() throws Exception {
+        final int numberOfFrames = 20000;
+        final byte[] streamBytes = createFrameStream(numberOfFrames);
+        long rawElapsedNanos = readInRawMode(streamBytes, new int[1]);
+        long framedElapsedNanos = readInFramedMode(streamBytes, new int[1]);
+
+        System.out.println("Raw read loop with reassembly: "
+                + (long) (numberOfFrames / (rawElapsedNanos / 1e9)) + " frames/s, framed mode: "
+                + (long) (numberOfFrames / (framedElapsedNanos / 1e9)) + " frames/s");
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        byte[] incomingBytes = new byte[1000];
+        final CountDownLatch disconnectedLatch = new CountDownLatch(1);
+        SlowOutputStream outputStream = new SlowOutputStream();
+
+        BluetoothSocket bluetoothSocket = createLoopbackSocket(incomingBytes);
+        when(bluetoothSocket.getOutputStream()).thenReturn(outputStream);
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(
+                bluetoothSocket, new BluetoothSocketIoThread.Listener() {
+            @Override
+            public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+            }
+
+            @Override
+            public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+            }
+
+            @Override
+            public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+                disconnectedLatch.countDown();
+            }
+        });
+
+        bluetoothSocketIoThread.setBufferSize(300);
+        bluetoothSocketIoThread.start();
+
+        assertThat("The end of stream is detected", disconnectedLatch.await(5, TimeUnit.SECONDS), is(true));
+
+        SocketIoStatistics statistics = bluetoothSocketIoThread.getStatistics();
+
+        assertThat("The bytes read are counted", statistics.getNumberOfBytesRead(), is(1000L));
+        assertThat("The reads are counted", statistics.getNumberOfReads(), is(4L));
+        assertThat("The read sizes are in the histogram", statistics.getReadSizeHistogram()[9], is(3L));
+        assertThat("The read sizes are in the histogram", statistics.getReadSizeHistogram()[7], is(1L));
+
+        bluetoothSocketIoThread.write(new byte[10]);
+        bluetoothSocketIoThread.writeFrame(new byte[20]);
+        bluetoothSocketIoThread.enqueue(new byte[30]).get(5, TimeUnit.SECONDS);
+        CompactHistogram writeDurationHistogram = statistics.getWriteDurationHistogram();
+
+        assertThat("The writes of all paths are counted", statistics.getNumberOfWrites(), is(3L));
+        assertThat("The bytes on the wire are counted", statistics.getNumberOfBytesWritten(), is(61L));
+        assertThat("The write durations are recorded", writeDurationHistogram.getCount(), is(3L));
+        assertThat("The write durations include the time blocked in the stream",
+                writeDurationHistogram.getValueAtPercentile(50) >= SlowOutputStream.WRITE_COST_IN_NANOSECONDS, is(true));
+        assertThat("The activity is tracked", statistics.getTimeSinceLastActivityInMilliseconds() < 1000, is(true));
+        bluetoothSocketIoThread.close(true, true);
+    }
+
+    @Test
+    public void testStartOnIoEngine() throws Exception {
+        byte[] incomingBytes = new byte[1000];
+        Arrays.fill(incomingBytes, (byte) 7);
+        final int[] numberOfBytesRead = new int[1];
+        final CountDownLatch disconnectedLatch = new CountDownLatch(1);
+        SocketIoEngine ioEngine = new SocketIoEngine(1, 5);
+
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(
+                createLoopbackSocket(incomingBytes), new BluetoothSocketIoThread.Listener() {
+            @Override
+            public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+                numberOfBytesRead[0] += size;
+            }
+
+            @Override
+            public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+            }
+
+            @Override
+            public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+                disconnectedLatch.countDown();
+            }
+        });
+
+        bluetoothSocketIoThread.start(ioEngine);
+
+        assertThat("The end of stream is detected", disconnectedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("All bytes are read", numberOfBytesRead[0], is(incomingBytes.length));
+        assertThat("No thread is started for the socket", bluetoothSocketIoThread.isAlive(), is(false));
+
+        // The loop unregisters the socket after the listener has been notified
+        for (int i = 0; i < 100 && ioEngine.getNumberOfRegistrations() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        assertThat("The socket is unregistered", ioEngine.getNumberOfRegistrations(), is(0));
+
+        try {
+            bluetoothSocketIoThread.start(ioEngine);
+            assertThat("Starting twice fails", false, is(true));
+        } catch (IllegalStateException e) {
+        }
+
+        ioEngine.shutdown();
+    }
+
+    @Test
+    public void testRemoteCloseOnIoEngine() throws Exception {
+        final int[] numberOfBytesRead = new int[1];
+        final CountDownLatch disconnectedLatch = new CountDownLatch(1);
+        SocketIoEngine ioEngine = new SocketIoEngine(1, 5, 50, 1);
+        TcpDuplexStream[] tcpDuplexStreams = TcpDuplexStream.createLoopbackPair();
+
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(
+                tcpDuplexStreams[0], new BluetoothSocketIoThread.Listener() {
+            @Override
+            public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+                numberOfBytesRead[0] += size;
+            }
+
+            @Override
+            public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+            }
+
+            @Override
+            public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+                disconnectedLatch.countDown();
+            }
+        });
+
+        bluetoothSocketIoThread.start(ioEngine);
+        tcpDuplexStreams[1].getOutputStream().write(new byte[100]);
+
+        // Let the socket go idle so that it is probed
+        for (int i = 0; i < 100 && ioEngine.getNumberOfProbes() == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        assertThat("The idle socket is probed", ioEngine.getNumberOfProbes() > 0, is(true));
+        assertThat("The socket still looks connected", tcpDuplexStreams[0].isConnected(), is(true));
+
+        tcpDuplexStreams[1].close();
+
+        assertThat("The remote close is detected", disconnectedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("All bytes are read", numberOfBytesRead[0], is(100));
+
+        for (int i = 0; i < 100 && ioEngine.getNumberOfRegistrations() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        assertThat("The socket is unregistered", ioEngine.getNumberOfRegistrations(), is(0));
+
+        bluetoothSocketIoThread.close(true, true);
+        ioEngine.shutdown();
+    }
+
+    /**
+     * Scale test running many simulated sockets, half of them in the framed mode, on an I/O engine
+     * with two loop threads.
+     */
+    @Test
+    public void testIoEngineWithManySockets() throws Exception {
+        final int numberOfSockets = 60;
+        SocketIoEngine ioEngine = new SocketIoEngine(2, 5, 50, 2);
+        OutputStream[] outputStreams = new OutputStream[numberOfSockets];
+        BluetoothSocketIoThread[] bluetoothSocketIoThreads = new BluetoothSocketIoThread[numberOfSockets];
+        final int numberOfThreadsBefore = Thread.activeCount();
+
+        transferOnIoEngine(ioEngine, outputStreams, bluetoothSocketIoThreads, 50);
+
+        // Let the sockets idle longer than the end of stream probe delay
+        Thread.sleep(300);
+        final int numberOfThreadsAfter = Thread.activeCount();
+
+        assertThat("The idle sockets are probed", ioEngine.getNumberOfProbes() > 0, is(true));
+        assertThat("Only the loop threads and the bounded probe threads are started",
+                numberOfThreadsAfter - numberOfThreadsBefore <= ioEngine.getNumberOfLoopThreads() + 2, is(true));
+        assertThat("All sockets are registered", ioEngine.getNumberOfRegistrations(), is(numberOfSockets));
+
+        closeOnIoEngine(ioEngine, outputStreams, bluetoothSocketIoThreads);
+
+        assertThat("The closed sockets are unregistered", ioEngine.getNumberOfRegistrations(), is(0));
+        ioEngine.shutdown();
+    }
+
+    /**
+     * Benchmark of the throughput of many simulated sockets, half of them in the framed mode, on
+     * an I/O engine with two loop threads.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testIoEngineThroughputWithManySockets() throws Exception {
+        final int numberOfSockets = 60;
+        final int numberOfMessagesPerSocket = 500;
+        SocketIoEngine ioEngine = new SocketIoEngine(2, 5, 50, 2);
+        OutputStream[] outputStreams = new OutputStream[numberOfSockets];
+        BluetoothSocketIoThread[] bluetoothSocketIoThreads = new BluetoothSocketIoThread[numberOfSockets];
+
+        long elapsedNanos = transferOnIoEngine(ioEngine, outputStreams, bluetoothSocketIoThreads,
+                numberOfMessagesPerSocket);
+        long numberOfBytes = (long) numberOfSockets * numberOfMessagesPerSocket * IO_ENGINE_MESSAGE_SIZE_IN_BYTES;
+
+        System.out.println(numberOfSockets + " sockets on " + ioEngine.getNumberOfLoopThreads()
+                + " loop threads: " + (long) (numberOfBytes / (elapsedNanos / 1e9) / 1024) + " KB/s, "
+                + ioEngine.getNumberOfReadableEvents() + " readable events, "
+                + ioEngine.getNumberOfPolls() + " polls");
+
+        closeOnIoEngine(ioEngine, outputStreams, bluetoothSocketIoThreads);
+        ioEngine.shutdown();
+    }
+
+    /**
+     * Compares the number of reads (and listener callbacks) needed to receive a megabyte with the
+     * default fixed buffer size and with the adaptive buffer sizing.
+     */
+    @Test
+    public void testAdaptiveBufferSizeReducesReadsPerMegabyte() throws Exception {
+        final byte[] streamBytes = new byte[1024 * 1024];
+        final long[] fixedCallbackCount = new long[1];
+        final long[] adaptiveCallbackCount = new long[1];
+
+        readWithFixedBuffer(streamBytes, fixedCallbackCount);
+        BluetoothSocketIoThread adaptiveThread = new BluetoothSocketIoThread(
+                createLoopbackSocket(streamBytes), new CountingListener(adaptiveCallbackCount));
+        readWithAdaptiveBuffer(adaptiveThread);
+        AdaptiveBufferSizer adaptiveBufferSizer = adaptiveThread.getAdaptiveBufferSizer();
+
+        assertThat("The fixed buffer needs a read per 256 bytes", fixedCallbackCount[0], is(4096L));
+        assertThat("The adaptive buffer needs far fewer reads",
+                adaptiveCallbackCount[0] * 10 < fixedCallbackCount[0], is(true));
+        assertThat("The adaptive buffer reached the maximum size",
+                adaptiveBufferSizer.getLargestBufferSize(), is(AdaptiveBufferSizer.DEFAULT_MAX_BUFFER_SIZE_IN_BYTES));
+        assertThat("The reads are recorded", adaptiveBufferSizer.getNumberOfReads(), is(adaptiveCallbackCount[0]));
+        assertThat("All bytes are read", adaptiveBufferSizer.getNumberOfBytesRead(), is((long) streamBytes.length));
+    }
+
+    /**
+     * Loopback benchmark of receiving a megabyte with the default fixed buffer size and with the
+     * adaptive buffer sizing.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testAdaptiveBufferSizeReadTimePerMegabyte() throws Exception {
+        final byte[] streamBytes = new byte[1024 * 1024];
+        final long[] fixedCallbackCount = new long[1];
+        final long[] adaptiveCallbackCount = new long[1];
+
+        long fixedElapsedNanos = readWithFixedBuffer(streamBytes, fixedCallbackCount);
+        BluetoothSocketIoThread adaptiveThread = new BluetoothSocketIoThread(
+                createLoopbackSocket(streamBytes), new CountingListener(adaptiveCallbackCount));
+        long adaptiveElapsedNanos = readWithAdaptiveBuffer(adaptiveThread);
+
+        System.out.println("Reads per MB with a fixed buffer: " + fixedCallbackCount[0]
+                + " (" + fixedElapsedNanos / 1000000 + " ms), with an adaptive buffer: "
+                + adaptiveCallbackCount[0] + " (" + adaptiveElapsedNanos / 1000000 + " ms), "
+                + adaptiveThread.getAdaptiveBufferSizer());
+    }
+
+    /**
+     * Starts a simulated socket for each slot of the given arrays on the given I/O engine, every
+     * other one in the framed mode, and writes the given number of messages to each.
+     *
+     * @return The time it took to receive all the messages in nanoseconds.
+     */
+    private static long transferOnIoEngine(
+            SocketIoEngine ioEngine, OutputStream[] outputStreams, BluetoothSocketIoThread[] bluetoothSocketIoThreads,
+            int numberOfMessagesPerSocket) throws Exception {
+        final int numberOfSockets = bluetoothSocketIoThreads.length;
+        final byte[] message = new byte[IO_ENGINE_MESSAGE_SIZE_IN_BYTES];
+        final long expectedNumberOfBytes = (long) numberOfSockets * numberOfMessagesPerSocket * message.length;
+        final long[] numberOfBytesReceived = new long[1];
+        final CountDownLatch receivedLatch = new CountDownLatch(1);
+
+        BluetoothSocketIoThread.Listener listener = new BluetoothSocketIoThread.Listener() {
+            @Override
+            public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+                onReceived(size);
+            }
+
+            @Override
+            public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+            }
+
+            @Override
+            public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+            }
+
+            private void onReceived(int numberOfBytes) {
+                synchronized (numberOfBytesReceived) {
+                    numberOfBytesReceived[0] += numberOfBytes;
+
+                    if (numberOfBytesReceived[0] == expectedNumberOfBytes) {
+                        receivedLatch.countDown();
+                    }
+                }
+            }
+        };
+
+        BluetoothSocketIoThread.FrameListener frameListener = new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+                synchronized (numberOfBytesReceived) {
+                    numberOfBytesReceived[0] += frame.remaining();
+
+                    if (numberOfBytesReceived[0] == expectedNumberOfBytes) {
+                        receivedLatch.countDown();
+                    }
+                }
+            }
+        };
+
+        for (int i = 0; i < numberOfSockets; i++) {
+            BluetoothSocket[] socketPair = createPipedSocketPair();
+            when(socketPair[1].isConnected()).thenReturn(true);
+            outputStreams[i] = socketPair[0].getOutputStream();
+            bluetoothSocketIoThreads[i] = new BluetoothSocketIoThread(socketPair[1], listener);
+
+            if (i % 2 == 0) {
+                bluetoothSocketIoThreads[i].setFrameListener(frameListener);
+            }
+
+            bluetoothSocketIoThreads[i].start(ioEngine);
+        }
+
+        long startTime = System.nanoTime();
+
+        for (int j = 0; j < numberOfMessagesPerSocket; j++) {
+            for (int i = 0; i < numberOfSockets; i++) {
+                outputStreams[i].write((i % 2 == 0) ? FrameCodec.encode(message) : message);
+            }
+        }
+
+        assertThat("All bytes are received", receivedLatch.await(10, TimeUnit.SECONDS), is(true));
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Closes the sockets started with transferOnIoEngine() and waits for them to be unregistered.
+     */
+    private static void closeOnIoEngine(
+            SocketIoEngine ioEngine, OutputStream[] outputStreams, BluetoothSocketIoThread[] bluetoothSocketIoThreads)
+            throws Exception {
+        for (int i = 0; i < bluetoothSocketIoThreads.length; i++) {
+            bluetoothSocketIoThreads[i].close(true, true);
+            outputStreams[i].close(); // A blocked pipe read returns only when the writer closes
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (ioEngine.getNumberOfRegistrations() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Writes the given message the given number of times with the writer thread.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private long writeWithWriterThread(OutputStream outputStream, byte[] message, int numberOfMessages)
+            throws Exception {
+        BluetoothSocketIoThread queuedIoThread =
+                new BluetoothSocketIoThread(createSocket(outputStream), mMockListener);
+        queuedIoThread.setMaxNumberOfPendingWrites(numberOfMessages);
+        SocketWriterThread.WriteRequest lastWriteRequest = null;
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < numberOfMessages; i++) {
+            lastWriteRequest = queuedIoThread.enqueue(message);
+        }
+
+        assertThat("The writes succeed", lastWriteRequest.get(30, TimeUnit.SECONDS), is(true));
+        long elapsedNanos = System.nanoTime() - startTime;
+        queuedIoThread.close(false, false);
+        return elapsedNanos;
+    }
+
+    /**
+     * @return A stream of the given number of encoded frames of 300 bytes.
+     */
+    private static byte[] createFrameStream(int numberOfFrames) throws IOException {
+        byte[] payload = new byte[300];
+        Arrays.fill(payload, (byte) 0x55);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        for (int i = 0; i < numberOfFrames; i++) {
+            stream.write(FrameCodec.encode(payload));
+        }
+
+        return stream.toByteArray();
+    }
+
+    /**
+     * Reads the given frame stream in the raw mode with application level reassembly.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private static long readInRawMode(byte[] streamBytes, int[] frameCount) throws IOException {
+        BluetoothSocketIoThread rawThread = new BluetoothSocketIoThread(
+                createLoopbackSocket(streamBytes), new ReassemblingListener(frameCount));
+        rawThread.setBufferSize(FRAME_STREAM_BUFFER_SIZE_IN_BYTES);
+        long startTime = System.nanoTime();
+        rawThread.run();
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Reads the given frame stream in the framed mode.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private long readInFramedMode(byte[] streamBytes, final int[] frameCount) throws IOException {
+        BluetoothSocketIoThread framedThread =
+                new BluetoothSocketIoThread(createLoopbackSocket(streamBytes), mMockListener);
+        framedThread.setBufferSize(FRAME_STREAM_BUFFER_SIZE_IN_BYTES);
+        framedThread.setFrameListener(new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+                frameCount[0]++;
+            }
+        });
+        long startTime = System.nanoTime();
+        framedThread.run();
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Reads the given bytes with the default fixed buffer size.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private static long readWithFixedBuffer(byte[] streamBytes, long[] callbackCount) throws IOException {
+        BluetoothSocketIoThread fixedThread = new BluetoothSocketIoThread(
+                createLoopbackSocket(streamBytes), new CountingListener(callbackCount));
+        long startTime = System.nanoTime();
+        fixedThread.run();
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Reads to the end of stream with the default adaptive buffer sizing.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private static long readWithAdaptiveBuffer(BluetoothSocketIoThread adaptiveThread) {
+        adaptiveThread.setAdaptiveBufferSize(
+                AdaptiveBufferSizer.DEFAULT_MIN_BUFFER_SIZE_IN_BYTES, AdaptiveBufferSizer.DEFAULT_MAX_BUFFER_SIZE_IN_BYTES);
+        long startTime = System.nanoTime();
+        adaptiveThread.run();
+        return System.nanoTime() - startTime;
+    }
+
+    private static BluetoothSocket createLoopbackSocket(byte[] incomingBytes) throws IOException {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(incomingBytes));
+        when(bluetoothSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        return bluetoothSocket;
+    }
+
+    private static BluetoothSocket createSocket(OutputStream outputStream) throws IOException {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(bluetoothSocket.getOutputStream()).thenReturn(outputStream);
+        return bluetoothSocket;
+    }
+
+    /**
+     * Creates two sockets connected to each other with pipes.
+     */
+    private static BluetoothSocket[] createPipedSocketPair() throws IOException {
+        PipedInputStream firstInputStream = new PipedInputStream(65536);
+        PipedInputStream secondInputStream = new PipedInputStream(65536);
+        BluetoothSocket firstSocket = mock(BluetoothSocket.class);
+        BluetoothSocket secondSocket = mock(BluetoothSocket.class);
+        when(firstSocket.getInputStream()).thenReturn(firstInputStream);
+        when(firstSocket.getOutputStream()).thenReturn(new PipedOutputStream(secondInputStream));
+        when(secondSocket.getInputStream()).thenReturn(secondInputStream);
+        when(secondSocket.getOutputStream()).thenReturn(new PipedOutputStream(firstInputStream));
+        return new BluetoothSocket[] { firstSocket, secondSocket };
+    }
+
+    /**
+     * Creates two sockets connected to each other with pipes, which wake up the reader on every
+     * write instead of letting it poll.
+     */
+    private static BluetoothSocket[] createFlushingPipedSocketPair() throws IOException {
+        BluetoothSocket[] socketPair = createPipedSocketPair();
+
+        for (BluetoothSocket socket : socketPair) {
+            final OutputStream outputStream = socket.getOutputStream();
+
+            when(socket.getOutputStream()).thenReturn(new OutputStream() {
+                @Override
+                public void write(int oneByte) throws IOException {
+                    write(new byte[] { (byte) oneByte }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    outputStream.write(bytes, offset, length);
+                    outputStream.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    outputStream.close();
+                }
+            });
+        }
+
+        return socketPair;
+    }
+
+    /**
+     * Output stream taking about a microsecond per byte.
+     */
+    private static class ThrottledOutputStream extends OutputStream {
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[] { (byte) oneByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                Thread.sleep(length / 1000, (length % 1000) * 1000);
+            } catch (InterruptedException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Output stream with a fixed cost per write.
+     */
+    private static class SlowOutputStream extends OutputStream {
+        private static final long WRITE_COST_IN_NANOSECONDS = 50000;
+        private long mNumberOfWrites = 0;
+        private long mNumberOfBytesWritten = 0;
+
+        synchronized long getNumberOfWrites() {
+            return mNumberOfWrites;
+        }
+
+        synchronized long getNumberOfBytesWritten() {
+            return mNumberOfBytesWritten;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[] { (byte) oneByte }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            long endTime = System.nanoTime() + WRITE_COST_IN_NANOSECONDS;
+
+            while (System.nanoTime() < endTime) {
+                // Busy wait to simulate the cost of the write
+            }
+
+            mNumberOfWrites++;
+            mNumberOfBytesWritten += length;
+        }
+    }
+
+    /**
+     * Counts the reads.
+     */
+    private static class CountingListener implements BluetoothSocketIoThread.Listener {
+        private final long[] mCallbackCount;
+
+        CountingListener(long[] callbackCount) {
+            mCallbackCount = callbackCount;
+        }
+
+        @Override
+        public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+            mCallbackCount[0]++;
+        }
+
+        @Override
+        public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+        }
+
+        @Override
+        public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+        }
+    }
+
+    /**
+     * Reassembles length-prefixed frames from raw reads the way applications do without the
+     * framed mode.
+     */
+    private static class ReassemblingListener implements BluetoothSocketIoThread.Listener {
+        private final ByteArrayOutputStream mPendingBytes = new ByteArrayOutputStream();
+        private final int[] mFrameCount;
+
+        ReassemblingListener(int[] frameCount) {
+            mFrameCount = frameCount;
+        }
+
+        @Override
+        public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+            mPendingBytes.write(bytes, 0, size);
+            byte[] pending = mPendingBytes.toByteArray();
+            int position = 0;
+
+            while (true) {
+                int frameLength = 0;
+                int shift = 0;
+                int headerPosition = position;
+                boolean headerComplete = false;
+
+                while (headerPosition < pending.length) {
+                    byte headerByte = pending[headerPosition++];
+                    frameLength |= (headerByte & 0x7F) << shift;
+                    shift += 7;
+
+                    if ((headerByte & 0x80) == 0) {
+                        headerComplete = true;
+                        break;
+                    }
+                }
+
+                if (!headerComplete || pending.length - headerPosition < frameLength) {
+                    break;
+                }
+
+                byte[] frame = Arrays.copyOfRange(pending, headerPosition, headerPosition + frameLength);
+                mFrameCount[0] += (frame.length == frameLength) ? 1 : 0;
+                position = headerPosition + frameLength;
+            }
+
+            mPendingBytes.reset();
+            mPendingBytes.write(pending, position, pending.length - position);
+        }
+
+        @Override
+        public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+        }
+
+        @Override
+        public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+        }
+    }
+}
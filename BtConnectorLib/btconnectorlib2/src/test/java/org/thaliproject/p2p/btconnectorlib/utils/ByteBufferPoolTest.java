@@ -0,0 +1,163 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ByteBufferPoolTest {
+
+    private ByteBufferPool mByteBufferPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mByteBufferPool = new ByteBufferPool(2);
+    }
+
+    @Test
+    public void testLease() throws Exception {
+        ByteBufferPool.Lease lease = mByteBufferPool.lease(100);
+
+        assertThat("The buffer has the requested size", lease.capacity(), is(100));
+        assertThat("The backing array has the requested size", lease.array().length, is(100));
+        assertThat("The lease holds one reference", lease.getReferenceCount(), is(1));
+        assertThat("One buffer is allocated", mByteBufferPool.getNumberOfAllocations(), is(1L));
+        assertThat("One lease is handed out", mByteBufferPool.getNumberOfLeases(), is(1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLeaseNegativeSize() throws Exception {
+        mByteBufferPool.lease(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorNegativeNumberOfFreeBuffers() throws Exception {
+        new ByteBufferPool(-1);
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() throws Exception {
+        ByteBufferPool.Lease first = mByteBufferPool.lease(100);
+        first.release();
+
+        assertThat("The buffer is returned to the pool", mByteBufferPool.getNumberOfFreeBuffers(100), is(1));
+
+        ByteBufferPool.Lease second = mByteBufferPool.lease(100);
+
+        assertThat("The same buffer is handed out again", second.array(), is(first.array()));
+        assertThat("No new buffer is allocated", mByteBufferPool.getNumberOfAllocations(), is(1L));
+        assertThat("The free list is empty", mByteBufferPool.getNumberOfFreeBuffers(100), is(0));
+
+        ByteBufferPool.Lease other = mByteBufferPool.lease(200);
+        assertThat("Buffers of other sizes are not reused", other.capacity(), is(200));
+        assertThat("A new buffer is allocated", mByteBufferPool.getNumberOfAllocations(), is(2L));
+    }
+
+    @Test
+    public void testRetain() throws Exception {
+        ByteBufferPool.Lease lease = mByteBufferPool.lease(100);
+        lease.retain();
+
+        assertThat("The lease holds two references", lease.getReferenceCount(), is(2));
+
+        lease.release();
+        assertThat("The buffer is not returned while referenced",
+                mByteBufferPool.getNumberOfFreeBuffers(100), is(0));
+
+        lease.release();
+        assertThat("The buffer is returned once all the references are released",
+                mByteBufferPool.getNumberOfFreeBuffers(100), is(1));
+    }
+
+    @Test
+    public void testReleaseTwice() throws Exception {
+        ByteBufferPool.Lease lease = mByteBufferPool.lease(100);
+        lease.release();
+
+        try {
+            lease.release();
+            fail("Releasing a released lease should fail");
+        } catch (IllegalStateException e) {
+            assertThat("The buffer is returned only once", mByteBufferPool.getNumberOfFreeBuffers(100), is(1));
+        }
+
+        try {
+            lease.retain();
+            fail("Retaining a released lease should fail");
+        } catch (IllegalStateException e) {
+            assertThat("The lease stays released", lease.getReferenceCount(), is(0));
+        }
+    }
+
+    @Test
+    public void testNumberOfFreeBuffersIsBounded() throws Exception {
+        ByteBufferPool.Lease[] leases = new ByteBufferPool.Lease[3];
+
+        for (int i = 0; i < leases.length; i++) {
+            leases[i] = mByteBufferPool.lease(100);
+        }
+
+        for (ByteBufferPool.Lease lease : leases) {
+            lease.release();
+        }
+
+        assertThat("Only the maximum number of free buffers is kept",
+                mByteBufferPool.getNumberOfFreeBuffers(100), is(2));
+    }
+
+    @Test
+    public void testGetByteBuffer() throws Exception {
+        ByteBufferPool.Lease lease = mByteBufferPool.lease(10);
+        lease.array()[3] = 42;
+
+        ByteBuffer byteBuffer = lease.getByteBuffer(3, 5);
+
+        assertThat("The view starts at the given offset", byteBuffer.get(0), is((byte) 42));
+        assertThat("The view has the given length", byteBuffer.remaining(), is(5));
+        assertThat("The view is backed by the leased buffer", byteBuffer.array(), is(lease.array()));
+    }
+
+    @Test
+    public void testConcurrentLeaseAndRelease() throws Exception {
+        final int numberOfThreads = 4;
+        final int numberOfIterations = 10000;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+
+        for (int i = 0; i < numberOfThreads; i++) {
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int j = 0; j < numberOfIterations; j++) {
+                        ByteBufferPool.Lease lease = mByteBufferPool.lease(64);
+                        lease.retain();
+                        lease.release();
+                        lease.release();
+                    }
+                }
+            });
+        }
+
+        startLatch.countDown();
+        executorService.shutdown();
+        assertThat("All the threads finish", executorService.awaitTermination(30, TimeUnit.SECONDS), is(true));
+
+        assertThat("Every lease is counted", mByteBufferPool.getNumberOfLeases(),
+                is((long) numberOfThreads * numberOfIterations));
+        assertThat("The free list stays bounded", mByteBufferPool.getNumberOfFreeBuffers(64) <= 2, is(true));
+    }
+}
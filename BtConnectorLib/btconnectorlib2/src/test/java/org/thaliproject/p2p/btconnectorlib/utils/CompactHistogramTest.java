@@ -0,0 +1,135 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.thaliproject.p2p.btconnectorlib.Benchmark;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CompactHistogramTest {
+
+    private CompactHistogram mCompactHistogram;
+
+    @Before
+    public void setUp() throws Exception {
+        mCompactHistogram = new CompactHistogram();
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertThat("Nothing is counted", mCompactHistogram.getCount(), is(0L));
+        assertThat("The percentiles are zero", mCompactHistogram.getValueAtPercentile(99), is(0L));
+        assertThat("The mean is zero", mCompactHistogram.getMean(), is(0d));
+    }
+
+    @Test
+    public void testBuckets() throws Exception {
+        for (long value = 0; value < 100000; value++) {
+            final int bucketIndex = CompactHistogram.getBucketIndex(value);
+            final long upperBound = CompactHistogram.getBucketUpperBound(bucketIndex);
+
+            assertThat("The value is within its bucket", value <= upperBound, is(true));
+            assertThat("The previous bucket ends below the value",
+                    bucketIndex == 0 || CompactHistogram.getBucketUpperBound(bucketIndex - 1) < value, is(true));
+            assertThat("The relative error is at most 1/8", upperBound - value <= value / 8, is(true));
+        }
+
+        assertThat("Small values are exact", CompactHistogram.getBucketUpperBound(
+                CompactHistogram.getBucketIndex(7)), is(7L));
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        for (int i = 1; i <= 1000; i++) {
+            mCompactHistogram.record(i * 1000);
+        }
+
+        assertThat("The values are counted", mCompactHistogram.getCount(), is(1000L));
+        assertThat("The maximum is exact", mCompactHistogram.getMax(), is(1000000L));
+        assertThat("The mean is exact", mCompactHistogram.getMean(), is(500500d));
+        assertPercentile(50, 500000);
+        assertPercentile(90, 900000);
+        assertPercentile(99, 990000);
+        assertThat("The 100th percentile is the maximum", mCompactHistogram.getValueAtPercentile(100), is(1000000L));
+    }
+
+    @Test
+    public void testOutOfRangeValues() throws Exception {
+        mCompactHistogram.record(-5);
+        mCompactHistogram.record(Long.MAX_VALUE);
+
+        assertThat("Negative values are recorded as zero", mCompactHistogram.getValueAtPercentile(50), is(0L));
+        assertThat("Too large values are clamped",
+                mCompactHistogram.getMax(), is(CompactHistogram.MAX_TRACKABLE_VALUE));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final int numberOfThreads = 4;
+        final int numberOfValuesPerThread = 100000;
+        recordConcurrently(numberOfThreads, numberOfValuesPerThread);
+
+        assertThat("No value is lost", mCompactHistogram.getCount(), is((long) numberOfThreads * numberOfValuesPerThread));
+    }
+
+    /**
+     * Benchmark of recording values from several threads at the same time.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testConcurrentRecordingSpeed() throws Exception {
+        final int numberOfThreads = 4;
+        final int numberOfValuesPerThread = 1000000;
+        long elapsedNanos = recordConcurrently(numberOfThreads, numberOfValuesPerThread);
+
+        System.out.println("Recording a value took "
+                + (elapsedNanos / ((long) numberOfThreads * numberOfValuesPerThread)) + " ns on average with "
+                + numberOfThreads + " threads");
+    }
+
+    /**
+     * Records random values from the given number of threads.
+     *
+     * @return The time it took in nanoseconds.
+     */
+    private long recordConcurrently(int numberOfThreads, final int numberOfValuesPerThread) throws Exception {
+        Thread[] threads = new Thread[numberOfThreads];
+
+        for (int i = 0; i < numberOfThreads; i++) {
+            final int seed = i;
+
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+
+                    for (int j = 0; j < numberOfValuesPerThread; j++) {
+                        mCompactHistogram.record(random.nextInt(1000000));
+                    }
+                }
+            };
+        }
+
+        long startTime = System.nanoTime();
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        return System.nanoTime() - startTime;
+    }
+
+    private void assertPercentile(double percentile, long expectedValue) {
+        long value = mCompactHistogram.getValueAtPercentile(percentile);
+        assertThat("The " + percentile + "th percentile is within 1/8 of " + expectedValue + ": " + value,
+                value >= expectedValue && value <= expectedValue + expectedValue / 8, is(true));
+    }
+}
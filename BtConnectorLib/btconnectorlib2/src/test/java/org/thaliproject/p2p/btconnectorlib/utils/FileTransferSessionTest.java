@@ -0,0 +1,296 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FileTransferSessionTest {
+
+    private static final int CHUNK_SIZE_IN_BYTES = 16 * 1024;
+    private static final String TRANSFER_ID = "transfer-1";
+    private File mSourceFile;
+    private File mDestinationFile;
+    private byte[] mFileContent;
+    private FileTransferSession mSender;
+    private FileTransferSession mReceiver;
+    private RecordingListener mSenderListener;
+    private RecordingListener mReceiverListener;
+
+    @Before
+    public void setUp() throws Exception {
+        mFileContent = new byte[1024 * 1024 + 1234];
+        new Random(1).nextBytes(mFileContent);
+        mSourceFile = File.createTempFile("source", ".bin");
+        mDestinationFile = File.createTempFile("destination", ".bin");
+        mDestinationFile.delete();
+        Files.write(mSourceFile.toPath(), mFileContent);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        closeSessions();
+        mSourceFile.delete();
+        mDestinationFile.delete();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testConstructorNullListener() throws Exception {
+        new FileTransferSession(mock(BluetoothSocket.class), null);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testSendMissingFile() throws Exception {
+        createSessions(null);
+        mSender.send(TRANSFER_ID, new File(mSourceFile.getPath() + ".missing"));
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        createSessions(null);
+        FileTransferSession.Transfer transfer = mSender.send(TRANSFER_ID, mSourceFile);
+
+        assertThat("The transfer is offered", transfer, is(notNullValue()));
+        assertThat("The sender completes", mSenderListener.mCompletedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The receiver completes", mReceiverListener.mCompletedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The transfer is completed", transfer.getState(), is(FileTransferSession.Transfer.State.COMPLETED));
+        assertThat("The whole file is acknowledged", transfer.getNumberOfBytesTransferred(), is((long) mFileContent.length));
+        assertThat("The transfer starts from the beginning", transfer.getResumeOffset(), is(0L));
+        assertThat("The file is received intact", readDestinationFile(), is(mFileContent));
+        assertThat("The receiver gets the transfer ID", mReceiverListener.mOfferedTransferId, is(TRANSFER_ID));
+    }
+
+    @Test
+    public void testResumeFromPartialFile() throws Exception {
+        final int numberOfBytesReceivedEarlier = 300000;
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(mDestinationFile)) {
+            fileOutputStream.write(mFileContent, 0, numberOfBytesReceivedEarlier);
+        }
+
+        createSessions(null);
+        FileTransferSession.Transfer transfer = mSender.send(TRANSFER_ID, mSourceFile);
+
+        assertThat("The receiver completes", mReceiverListener.mCompletedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The transfer resumes from the last whole chunk", transfer.getResumeOffset(),
+                is((long) (numberOfBytesReceivedEarlier - numberOfBytesReceivedEarlier % CHUNK_SIZE_IN_BYTES)));
+        assertThat("The receiver resumes from the same offset",
+                mReceiverListener.mLastTransfer.getResumeOffset(), is(transfer.getResumeOffset()));
+        assertThat("Only the rest of the file is sent",
+                mSender.getBluetoothSocketIoThread().getNumberOfBytesWritten() < mFileContent.length - 250000, is(true));
+        assertThat("The file is received intact", readDestinationFile(), is(mFileContent));
+    }
+
+    @Test
+    public void testResumeAfterDisconnect() throws Exception {
+        final long disconnectAfterBytes = 512 * 1024;
+        createSessions(null);
+        mReceiverListener.mDisconnectAfterBytes = disconnectAfterBytes;
+        FileTransferSession.Transfer transfer = mSender.send(TRANSFER_ID, mSourceFile);
+
+        assertThat("The sender is disconnected", mSenderListener.mDisconnectedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The transfer fails", transfer.getState(), is(FileTransferSession.Transfer.State.FAILED));
+        assertThat("The transfer is incomplete", mDestinationFile.length() < mFileContent.length, is(true));
+
+        // Reconnect
+        closeSessions();
+        createSessions(null);
+        FileTransferSession.Transfer resumedTransfer = mSender.send(TRANSFER_ID, mSourceFile);
+
+        assertThat("The sender completes", mSenderListener.mCompletedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The receiver completes", mReceiverListener.mCompletedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The transfer resumes from what was received before the disconnect",
+                resumedTransfer.getResumeOffset() >= disconnectAfterBytes, is(true));
+        assertThat("The file is received intact", readDestinationFile(), is(mFileContent));
+    }
+
+    @Test
+    public void testCorruptedChunkIsResent() throws Exception {
+        createSessions(10000);
+        FileTransferSession.Transfer transfer = mSender.send(TRANSFER_ID, mSourceFile);
+
+        assertThat("The sender completes", mSenderListener.mCompletedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The receiver completes", mReceiverListener.mCompletedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The receiver detects the corruption",
+                mReceiverListener.mLastTransfer.getNumberOfChecksumFailures(), is(1L));
+        assertThat("The sender resends", transfer.getNumberOfChecksumFailures(), is(1L));
+        assertThat("The file is received intact", readDestinationFile(), is(mFileContent));
+    }
+
+    @Test
+    public void testRejectedTransfer() throws Exception {
+        createSessions(null);
+        mReceiverListener.mReject = true;
+        FileTransferSession.Transfer transfer = mSender.send(TRANSFER_ID, mSourceFile);
+
+        assertThat("The sender is notified", mSenderListener.mFailedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("The transfer fails", transfer.getState(), is(FileTransferSession.Transfer.State.FAILED));
+        assertThat("Nothing is written", mDestinationFile.exists(), is(false));
+    }
+
+    @Test
+    public void testAlreadyReceivedFile() throws Exception {
+        Files.write(mDestinationFile.toPath(), mFileContent);
+        createSessions(null);
+        FileTransferSession.Transfer transfer = mSender.send(TRANSFER_ID, mSourceFile);
+
+        assertThat("The sender completes", mSenderListener.mCompletedLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat("Nothing is sent", transfer.getResumeOffset(), is((long) mFileContent.length));
+    }
+
+    @Test
+    public void testChecksumCoversOffset() throws Exception {
+        byte[] data = Arrays.copyOf(mFileContent, 100);
+
+        assertThat("The same data at a different offset has a different checksum",
+                FileTransferSession.calculateChecksum(0, data, 0, data.length)
+                        == FileTransferSession.calculateChecksum(100, data, 0, data.length), is(false));
+    }
+
+    /**
+     * Creates a connected pair of sessions.
+     *
+     * @param corruptedBytePosition The position of a byte to corrupt in the stream from the sender
+     *                              to the receiver or null, if none.
+     */
+    private void createSessions(final Integer corruptedBytePosition) throws Exception {
+        PipedInputStream senderInputStream = new PipedInputStream(65536);
+        PipedInputStream receiverInputStream = new PipedInputStream(65536);
+        BluetoothSocket senderSocket = mock(BluetoothSocket.class);
+        BluetoothSocket receiverSocket = mock(BluetoothSocket.class);
+        // Flush each write to wake up the reader of the pipe immediately instead of after its poll interval
+        OutputStream senderOutputStream = new FlushingOutputStream(new PipedOutputStream(receiverInputStream),
+                (corruptedBytePosition != null) ? corruptedBytePosition : -1);
+
+        when(senderSocket.getInputStream()).thenReturn(senderInputStream);
+        when(senderSocket.getOutputStream()).thenReturn(senderOutputStream);
+        when(receiverSocket.getInputStream()).thenReturn(receiverInputStream);
+        when(receiverSocket.getOutputStream()).thenReturn(
+                new FlushingOutputStream(new PipedOutputStream(senderInputStream), -1));
+
+        mSenderListener = new RecordingListener();
+        mReceiverListener = new RecordingListener();
+        mSender = new FileTransferSession(senderSocket, mSenderListener);
+        mReceiver = new FileTransferSession(receiverSocket, mReceiverListener);
+        mSender.setChunkSize(CHUNK_SIZE_IN_BYTES);
+        mSender.start();
+        mReceiver.start();
+    }
+
+    private void closeSessions() {
+        if (mSender != null) {
+            mSender.close();
+            mReceiver.close();
+        }
+    }
+
+    private byte[] readDestinationFile() throws IOException {
+        return Files.readAllBytes(mDestinationFile.toPath());
+    }
+
+    private class RecordingListener implements FileTransferSession.Listener {
+        final CountDownLatch mCompletedLatch = new CountDownLatch(1);
+        final CountDownLatch mFailedLatch = new CountDownLatch(1);
+        final CountDownLatch mDisconnectedLatch = new CountDownLatch(1);
+        volatile boolean mReject = false;
+        volatile long mDisconnectAfterBytes = Long.MAX_VALUE;
+        volatile String mOfferedTransferId;
+        volatile FileTransferSession.Transfer mLastTransfer;
+
+        @Override
+        public File onTransferOffered(String transferId, long fileSize) {
+            mOfferedTransferId = transferId;
+            return mReject ? null : mDestinationFile;
+        }
+
+        @Override
+        public void onTransferProgress(FileTransferSession.Transfer transfer) {
+            mLastTransfer = transfer;
+
+            if (transfer.isIncoming() && transfer.getNumberOfBytesTransferred() >= mDisconnectAfterBytes) {
+                mDisconnectAfterBytes = Long.MAX_VALUE;
+                mReceiver.close();
+            }
+        }
+
+        @Override
+        public void onTransferCompleted(FileTransferSession.Transfer transfer) {
+            mLastTransfer = transfer;
+            mCompletedLatch.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(FileTransferSession.Transfer transfer, String reason) {
+            mLastTransfer = transfer;
+            mFailedLatch.countDown();
+        }
+
+        @Override
+        public void onDisconnected(String reason, FileTransferSession who) {
+            mDisconnectedLatch.countDown();
+        }
+    }
+
+    /**
+     * Flushes the wrapped stream after each write and optionally flips the bits of the byte at the
+     * given position of the stream.
+     */
+    private static class FlushingOutputStream extends OutputStream {
+        private final OutputStream mOutputStream;
+        private final long mCorruptedBytePosition;
+        private long mPosition = 0;
+
+        FlushingOutputStream(OutputStream outputStream, long corruptedBytePosition) {
+            mOutputStream = outputStream;
+            mCorruptedBytePosition = corruptedBytePosition;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[] { (byte) oneByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (mCorruptedBytePosition >= mPosition && mCorruptedBytePosition < mPosition + length) {
+                bytes = Arrays.copyOfRange(bytes, offset, offset + length);
+                offset = 0;
+                bytes[(int) (mCorruptedBytePosition - mPosition)] ^= 0xff;
+            }
+
+            mPosition += length;
+            mOutputStream.write(bytes, offset, length);
+            mOutputStream.flush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOutputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOutputStream.close();
+        }
+    }
+}
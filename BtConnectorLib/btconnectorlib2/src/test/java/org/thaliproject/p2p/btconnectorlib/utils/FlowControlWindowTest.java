@@ -0,0 +1,51 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FlowControlWindowTest {
+
+    private FlowControlWindow mFlowControlWindow;
+
+    @Before
+    public void setUp() throws Exception {
+        mFlowControlWindow = new FlowControlWindow(100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidWindowSize() throws Exception {
+        new FlowControlWindow(0);
+    }
+
+    @Test
+    public void testSendCredits() throws Exception {
+        assertThat("Initially writable", mFlowControlWindow.isWritable(), is(true));
+        assertThat("The credits are consumed", mFlowControlWindow.tryConsumeSendCredits(60), is(true));
+        assertThat("Still writable", mFlowControlWindow.isWritable(), is(true));
+        assertThat("A frame larger than the remaining credits can be sent",
+                mFlowControlWindow.tryConsumeSendCredits(60), is(true));
+        assertThat("The credits are overdrawn", mFlowControlWindow.getSendCredits(), is(-20L));
+        assertThat("No longer writable", mFlowControlWindow.isWritable(), is(false));
+        assertThat("Nothing can be sent without credits", mFlowControlWindow.tryConsumeSendCredits(1), is(false));
+
+        assertThat("Not writable until the overdraft is covered", mFlowControlWindow.addSendCredits(20), is(false));
+        assertThat("Writable again", mFlowControlWindow.addSendCredits(50), is(true));
+        assertThat("Already writable", mFlowControlWindow.addSendCredits(50), is(false));
+        assertThat("The credits are added", mFlowControlWindow.getSendCredits(), is(100L));
+    }
+
+    @Test
+    public void testReceiveCredits() throws Exception {
+        assertThat("The peer can send the window", mFlowControlWindow.onBytesReceived(100), is(true));
+        assertThat("The peer must not send without credits", mFlowControlWindow.onBytesReceived(1), is(false));
+
+        assertThat("Credits are not granted below half of the window",
+                mFlowControlWindow.onBytesConsumed(49), is(0));
+        assertThat("The consumed bytes are granted in a batch",
+                mFlowControlWindow.onBytesConsumed(1), is(50));
+        assertThat("The peer can send again", mFlowControlWindow.onBytesReceived(50), is(true));
+    }
+}
@@ -0,0 +1,219 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class FrameCodecTest {
+
+    private List<byte[]> mDecodedFrames;
+    private FrameCodec mFrameCodec;
+
+    @Before
+    public void setUp() throws Exception {
+        mDecodedFrames = new ArrayList<>();
+        mFrameCodec = new FrameCodec(new FrameCodec.Listener() {
+            @Override
+            public void onFrameDecoded(ByteBuffer frame) {
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                mDecodedFrames.add(bytes);
+            }
+        }, 1024);
+    }
+
+    @Test
+    public void testHeaderSize() throws Exception {
+        assertThat("Zero fits in one byte", FrameCodec.getHeaderSize(0), is(1));
+        assertThat("127 fits in one byte", FrameCodec.getHeaderSize(127), is(1));
+        assertThat("128 needs two bytes", FrameCodec.getHeaderSize(128), is(2));
+        assertThat("16383 needs two bytes", FrameCodec.getHeaderSize(16383), is(2));
+        assertThat("16384 needs three bytes", FrameCodec.getHeaderSize(16384), is(3));
+        assertThat("The maximum integer needs five bytes",
+                FrameCodec.getHeaderSize(Integer.MAX_VALUE), is(FrameCodec.MAX_HEADER_SIZE_IN_BYTES));
+    }
+
+    @Test
+    public void testWriteHeader() throws Exception {
+        byte[] header = new byte[FrameCodec.MAX_HEADER_SIZE_IN_BYTES];
+
+        assertThat("One byte is written", FrameCodec.writeHeader(5, header, 0), is(1));
+        assertThat("The value is written as is", header[0], is((byte) 5));
+
+        assertThat("Two bytes are written", FrameCodec.writeHeader(300, header, 0), is(2));
+        assertThat("The least significant group comes first", header[0], is((byte) 0xAC));
+        assertThat("The most significant group comes last", header[1], is((byte) 0x02));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteHeaderNegativeLength() throws Exception {
+        FrameCodec.writeHeader(-1, new byte[FrameCodec.MAX_HEADER_SIZE_IN_BYTES], 0);
+    }
+
+    @Test
+    public void testDecodeWholeFrames() throws Exception {
+        byte[] first = "first".getBytes();
+        byte[] second = new byte[200];
+        Arrays.fill(second, (byte) 7);
+
+        byte[] stream = concatenate(FrameCodec.encode(first), FrameCodec.encode(second));
+        mFrameCodec.decode(stream, 0, stream.length);
+
+        assertThat("Both frames are decoded", mDecodedFrames.size(), is(2));
+        assertThat("The first frame is intact", Arrays.equals(mDecodedFrames.get(0), first), is(true));
+        assertThat("The second frame is intact", Arrays.equals(mDecodedFrames.get(1), second), is(true));
+        assertThat("No partial frame is left", mFrameCodec.hasPartialFrame(), is(false));
+    }
+
+    @Test
+    public void testEncodeWithType() throws Exception {
+        byte[] stream = FrameCodec.encode((byte) 3, "xxbody".getBytes(), 2, 4);
+        mFrameCodec.decode(stream, 0, stream.length);
+
+        assertThat("The frame is decoded", mDecodedFrames.size(), is(1));
+        assertThat("The type is the first byte of the payload", mDecodedFrames.get(0)[0], is((byte) 3));
+        assertThat("The rest of the payload follows the type",
+                new String(mDecodedFrames.get(0), 1, 4), is("body"));
+    }
+
+    @Test
+    public void testDecodeFragmentedFrames() throws Exception {
+        byte[] first = new byte[500];
+        byte[] second = "second".getBytes();
+
+        for (int i = 0; i < first.length; i++) {
+            first[i] = (byte) i;
+        }
+
+        byte[] firstFrame = FrameCodec.encode(first);
+        byte[] stream = concatenate(firstFrame, FrameCodec.encode(second));
+
+        // Feed the stream one byte at a time
+        for (int i = 0; i < stream.length; i++) {
+            mFrameCodec.decode(stream, i, 1);
+
+            if (i < firstFrame.length - 1) {
+                assertThat("A frame is pending", mFrameCodec.hasPartialFrame(), is(true));
+            }
+        }
+
+        assertThat("Both frames are decoded", mDecodedFrames.size(), is(2));
+        assertThat("The first frame is intact", Arrays.equals(mDecodedFrames.get(0), first), is(true));
+        assertThat("The second frame is intact", Arrays.equals(mDecodedFrames.get(1), second), is(true));
+    }
+
+    @Test
+    public void testDecodeEmptyFrame() throws Exception {
+        byte[] stream = FrameCodec.encode(new byte[0]);
+        mFrameCodec.decode(stream, 0, stream.length);
+
+        assertThat("The empty frame is decoded", mDecodedFrames.size(), is(1));
+        assertThat("The frame has no payload", mDecodedFrames.get(0).length, is(0));
+    }
+
+    @Test
+    public void testDecodeFrameTooLarge() throws Exception {
+        byte[] stream = FrameCodec.encode(new byte[mFrameCodec.getMaxFrameSize() + 1]);
+
+        try {
+            mFrameCodec.decode(stream, 0, stream.length);
+            fail("Frames larger than the maximum frame size should be rejected");
+        } catch (IOException e) {
+            assertThat("No frame is decoded", mDecodedFrames.size(), is(0));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeMalformedHeader() throws Exception {
+        byte[] stream = new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1 };
+        mFrameCodec.decode(stream, 0, stream.length);
+    }
+
+    @Test
+    public void testReassemblyBufferIsPooled() throws Exception {
+        ByteBufferPool bufferPool = new ByteBufferPool();
+        FrameCodec frameCodec = new FrameCodec(new FrameCodec.Listener() {
+            @Override
+            public void onFrameDecoded(ByteBuffer frame) {
+            }
+        }, 1024, bufferPool);
+
+        byte[] stream = FrameCodec.encode(new byte[500]);
+
+        for (int i = 0; i < 3; i++) {
+            // Split the frame to force reassembly
+            frameCodec.decode(stream, 0, 10);
+            frameCodec.decode(stream, 10, stream.length - 10);
+        }
+
+        assertThat("The reassembly buffer is reused", bufferPool.getNumberOfAllocations(), is(1L));
+
+        frameCodec.release();
+        assertThat("The reassembly buffer is returned to the pool",
+                bufferPool.getNumberOfFreeBuffers(1024), is(1));
+    }
+
+    @Test
+    public void testRetainCurrentFrameBuffer() throws Exception {
+        final ByteBufferPool bufferPool = new ByteBufferPool();
+        final List<ByteBufferPool.Lease> retainedLeases = new ArrayList<>();
+        final FrameCodec[] frameCodec = new FrameCodec[1];
+
+        frameCodec[0] = new FrameCodec(new FrameCodec.Listener() {
+            @Override
+            public void onFrameDecoded(ByteBuffer frame) {
+                retainedLeases.add(frameCodec[0].retainCurrentFrameBuffer());
+            }
+        }, 1024, bufferPool);
+
+        assertThat("Nothing to retain outside a callback",
+                frameCodec[0].retainCurrentFrameBuffer(), is(nullValue()));
+
+        // A whole frame in a leased buffer is retained without copying
+        byte[] frame = FrameCodec.encode("whole".getBytes());
+        ByteBufferPool.Lease sourceLease = bufferPool.lease(frame.length);
+        System.arraycopy(frame, 0, sourceLease.array(), 0, frame.length);
+        frameCodec[0].decode(sourceLease, 0, frame.length);
+        assertThat("The source buffer is retained", retainedLeases.get(0), is(sourceLease));
+        assertThat("The source buffer has two references", sourceLease.getReferenceCount(), is(2));
+
+        // Reassembled frames are retained and the next frame is reassembled to a new buffer
+        byte[] first = new byte[300];
+        Arrays.fill(first, (byte) 1);
+        byte[] second = new byte[300];
+        Arrays.fill(second, (byte) 2);
+        byte[] stream = concatenate(FrameCodec.encode(first), FrameCodec.encode(second));
+
+        for (int i = 0; i < stream.length; i += 100) {
+            frameCodec[0].decode(stream, i, Math.min(100, stream.length - i));
+        }
+
+        assertThat("All frames are retained", retainedLeases.size(), is(3));
+        assertThat("The reassembly buffer is not reused while retained",
+                retainedLeases.get(1) != retainedLeases.get(2), is(true));
+        assertThat("The first reassembled frame is intact", retainedLeases.get(1).array()[299], is((byte) 1));
+        assertThat("The codec dropped its reference to the first reassembly buffer",
+                retainedLeases.get(1).getReferenceCount(), is(1));
+
+        retainedLeases.get(1).release();
+        assertThat("The released reassembly buffer is returned to the pool",
+                bufferPool.getNumberOfFreeBuffers(1024), is(1));
+    }
+
+    private static byte[] concatenate(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
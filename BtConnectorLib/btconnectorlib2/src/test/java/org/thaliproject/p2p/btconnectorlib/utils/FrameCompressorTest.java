@@ -0,0 +1,249 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.thaliproject.p2p.btconnectorlib.Benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class FrameCompressorTest {
+
+    private static final String JSON_DOCUMENT =
+            "{\"_id\":\"c0ffee\",\"_rev\":\"1-abc\",\"name\":\"Peer name\",\"address\":\"01:23:45:67:89:AB\","
+            + "\"type\":\"message\",\"timestamp\":1460000000000,\"data\":\"Hello, is there anybody out there?\"}";
+
+    private FrameCompressor mFrameCompressor;
+
+    @Before
+    public void setUp() throws Exception {
+        mFrameCompressor = new FrameCompressor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFrameCompressor.end();
+    }
+
+    @Test
+    public void testCompressAndDecompress() throws Exception {
+        byte[] payload = createJsonPayload(10);
+        byte[] compressedBlock = mFrameCompressor.compress(payload, 0, payload.length);
+
+        assertThat("The payload is compressed", compressedBlock, is(notNullValue()));
+        assertThat("The compressed block is smaller", compressedBlock.length < payload.length, is(true));
+        assertThat("The uncompressed length is in the header",
+                FrameCompressor.getUncompressedLength(ByteBuffer.wrap(compressedBlock)), is(payload.length));
+
+        byte[] decompressed = new byte[payload.length];
+        int length = mFrameCompressor.decompress(ByteBuffer.wrap(compressedBlock), decompressed);
+
+        assertThat("The length is correct", length, is(payload.length));
+        assertThat("The payload is restored", decompressed, is(payload));
+        assertThat("The frame is counted", mFrameCompressor.getNumberOfFramesCompressed(), is(1L));
+        assertThat("The ratio is below one", mFrameCompressor.getCompressionRatio() < 1d, is(true));
+    }
+
+    @Test
+    public void testCompressWithOffset() throws Exception {
+        byte[] payload = createJsonPayload(3);
+        byte[] array = new byte[payload.length + 20];
+        System.arraycopy(payload, 0, array, 10, payload.length);
+        byte[] compressedBlock = mFrameCompressor.compress(array, 10, payload.length);
+        byte[] decompressed = new byte[payload.length];
+        mFrameCompressor.decompress(ByteBuffer.wrap(compressedBlock), decompressed);
+
+        assertThat("The payload is restored", decompressed, is(payload));
+    }
+
+    @Test
+    public void testDictionaryHelpsSmallPayloads() throws Exception {
+        byte[] payload = JSON_DOCUMENT.getBytes(StandardCharsets.UTF_8);
+        FrameCompressor compressorWithoutDictionary = new FrameCompressor(
+                Deflater.DEFAULT_COMPRESSION, null,
+                FrameCompressor.DEFAULT_MIN_PAYLOAD_SIZE_TO_COMPRESS_IN_BYTES);
+
+        byte[] withDictionary = mFrameCompressor.compress(payload, 0, payload.length);
+        byte[] withoutDictionary = compressorWithoutDictionary.compress(payload, 0, payload.length);
+        compressorWithoutDictionary.end();
+
+        assertThat("A single document compresses with the dictionary", withDictionary, is(notNullValue()));
+        assertThat("The dictionary improves the ratio", withoutDictionary == null
+                || withDictionary.length < withoutDictionary.length, is(true));
+    }
+
+    @Test
+    public void testSmallPayloadIsNotCompressed() throws Exception {
+        byte[] payload = new byte[FrameCompressor.DEFAULT_MIN_PAYLOAD_SIZE_TO_COMPRESS_IN_BYTES - 1];
+
+        assertThat("Too small payloads are not compressed",
+                mFrameCompressor.compress(payload, 0, payload.length), is(nullValue()));
+        assertThat("The frame is counted", mFrameCompressor.getNumberOfFramesNotCompressed(), is(1L));
+    }
+
+    @Test
+    public void testIncompressiblePayloadsAreBypassed() throws Exception {
+        byte[] randomPayload = new byte[1000];
+        new Random(1).nextBytes(randomPayload);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat("Random data is not compressed",
+                    mFrameCompressor.compress(randomPayload, 0, randomPayload.length), is(nullValue()));
+        }
+
+        long compressionTime = mFrameCompressor.getCompressionTimeInNanoseconds();
+        byte[] compressiblePayload = createJsonPayload(10);
+
+        assertThat("The compressor bypasses frames after incompressible ones",
+                mFrameCompressor.compress(compressiblePayload, 0, compressiblePayload.length), is(nullValue()));
+        assertThat("No time is spent on bypassed frames",
+                mFrameCompressor.getCompressionTimeInNanoseconds(), is(compressionTime));
+
+        byte[] compressedBlock = null;
+
+        for (int i = 0; i < 10 && compressedBlock == null; i++) {
+            compressedBlock = mFrameCompressor.compress(compressiblePayload, 0, compressiblePayload.length);
+        }
+
+        assertThat("The compressor tries again after bypassing", compressedBlock, is(notNullValue()));
+        assertThat("Incompressible and bypassed frames are counted",
+                mFrameCompressor.getNumberOfFramesNotCompressed() >= 4, is(true));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecompressTooSmallDestination() throws Exception {
+        byte[] payload = createJsonPayload(10);
+        byte[] compressedBlock = mFrameCompressor.compress(payload, 0, payload.length);
+        mFrameCompressor.decompress(ByteBuffer.wrap(compressedBlock), new byte[payload.length - 1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecompressTruncatedBlock() throws Exception {
+        byte[] payload = createJsonPayload(10);
+        byte[] compressedBlock = mFrameCompressor.compress(payload, 0, payload.length);
+        mFrameCompressor.decompress(
+                ByteBuffer.wrap(Arrays.copyOf(compressedBlock, compressedBlock.length / 2)),
+                new byte[payload.length]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecompressGarbage() throws Exception {
+        byte[] garbage = new byte[100];
+        new Random(2).nextBytes(garbage);
+        garbage[0] = 50; // Uncompressed length
+        mFrameCompressor.decompress(ByteBuffer.wrap(garbage), new byte[50]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecompressAfterEnd() throws Exception {
+        byte[] payload = createJsonPayload(10);
+        byte[] compressedBlock = mFrameCompressor.compress(payload, 0, payload.length);
+        mFrameCompressor.end();
+        mFrameCompressor.decompress(ByteBuffer.wrap(compressedBlock), new byte[payload.length]);
+    }
+
+    @Test
+    public void testCompressionOfJsonAndRandomPayloads() throws Exception {
+        final int numberOfFrames = 200;
+        byte[] jsonPayload = createJsonPayload(8);
+        byte[] randomPayload = new byte[jsonPayload.length];
+        new Random(3).nextBytes(randomPayload);
+
+        for (byte[] payload : new byte[][] { jsonPayload, randomPayload }) {
+            FrameCompressor frameCompressor = new FrameCompressor();
+            long numberOfBytesOut = compressFrames(frameCompressor, payload, numberOfFrames);
+
+            assertThat("Compression never makes the wire bytes grow",
+                    numberOfBytesOut <= (long) numberOfFrames * payload.length, is(true));
+
+            if (payload == randomPayload) {
+                assertThat("No random frame is compressed",
+                        frameCompressor.getNumberOfFramesNotCompressed() == numberOfFrames, is(true));
+            } else {
+                assertThat("JSON compresses well", frameCompressor.getCompressionRatio() < 0.5d, is(true));
+            }
+
+            frameCompressor.end();
+        }
+    }
+
+    /**
+     * Benchmark of the compression speed and the effective throughput over a slow link. The link
+     * speed is roughly what we see with RFCOMM between two phones.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testCompressionThroughputComparedToLinkSpeed() throws Exception {
+        final double linkSpeedInBytesPerSecond = 300 * 1024;
+        final int numberOfFrames = 2000;
+        byte[] jsonPayload = createJsonPayload(8);
+        byte[] randomPayload = new byte[jsonPayload.length];
+        new Random(3).nextBytes(randomPayload);
+
+        for (byte[] payload : new byte[][] { jsonPayload, randomPayload }) {
+            FrameCompressor frameCompressor = new FrameCompressor();
+            long numberOfBytesOut = compressFrames(frameCompressor, payload, numberOfFrames);
+            long numberOfBytesIn = (long) numberOfFrames * payload.length;
+            double cpuSeconds = frameCompressor.getCompressionTimeInNanoseconds() / 1e9;
+            double linkSecondsUncompressed = numberOfBytesIn / linkSpeedInBytesPerSecond;
+            double linkSecondsCompressed = numberOfBytesOut / linkSpeedInBytesPerSecond;
+
+            System.out.println((payload == jsonPayload ? "JSON" : "Random") + " payload: "
+                    + "compression " + (long) (numberOfBytesIn / Math.max(cpuSeconds, 1e-9) / (1024 * 1024)) + " MB/s"
+                    + " (" + (long) (cpuSeconds * 1000) + " ms CPU), wire ratio "
+                    + String.format("%.2f", (double) numberOfBytesOut / numberOfBytesIn)
+                    + ", effective link throughput "
+                    + (long) (numberOfBytesIn / (linkSecondsCompressed + cpuSeconds) / 1024) + " KB/s vs "
+                    + (long) (numberOfBytesIn / linkSecondsUncompressed / 1024) + " KB/s uncompressed");
+
+            if (payload == randomPayload) {
+                assertThat("Bypassing keeps the wasted CPU time small",
+                        cpuSeconds < linkSecondsUncompressed / 10, is(true));
+            }
+
+            frameCompressor.end();
+        }
+    }
+
+    /**
+     * Compresses the given payload as the given number of frames.
+     *
+     * @return The number of bytes on the wire, when the frames not compressed are sent as is.
+     */
+    private static long compressFrames(FrameCompressor frameCompressor, byte[] payload, int numberOfFrames)
+            throws Exception {
+        long numberOfBytesOut = 0;
+
+        for (int i = 0; i < numberOfFrames; i++) {
+            byte[] compressedBlock = frameCompressor.compress(payload, 0, payload.length);
+            numberOfBytesOut += (compressedBlock != null) ? compressedBlock.length : payload.length;
+        }
+
+        return numberOfBytesOut;
+    }
+
+    private static byte[] createJsonPayload(int numberOfDocuments) {
+        StringBuilder stringBuilder = new StringBuilder("{\"docs\":[");
+
+        for (int i = 0; i < numberOfDocuments; i++) {
+            if (i > 0) {
+                stringBuilder.append(',');
+            }
+
+            stringBuilder.append(JSON_DOCUMENT.replace("c0ffee", "c0ffee" + i));
+        }
+
+        return stringBuilder.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
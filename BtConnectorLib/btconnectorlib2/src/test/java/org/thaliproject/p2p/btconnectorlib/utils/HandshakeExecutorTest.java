@@ -0,0 +1,227 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HandshakeExecutorTest {
+
+    private HandshakeExecutor mHandshakeExecutor;
+    private final List<PipeDuplexStream> mPeerStreams = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        if (mHandshakeExecutor != null) {
+            mHandshakeExecutor.shutdown();
+        }
+
+        for (PipeDuplexStream peerStream : mPeerStreams) {
+            peerStream.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidNumberOfWorkerThreads() throws Exception {
+        new HandshakeExecutor(0, 1, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidTimeout() throws Exception {
+        new HandshakeExecutor(1, 1, 0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testExecuteNull() throws Exception {
+        mHandshakeExecutor = new HandshakeExecutor();
+        mHandshakeExecutor.execute(null, new FakeTimeoutListener());
+    }
+
+    @Test
+    public void testHandshakesRunOnBoundedNumberOfWorkers() throws Exception {
+        final int numberOfHandshakes = 8;
+        mHandshakeExecutor = new HandshakeExecutor(2, numberOfHandshakes, 5000);
+        final CountDownLatch handshakesReadLatch = new CountDownLatch(numberOfHandshakes);
+        final Set<Thread> workerThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+        BluetoothSocketIoThread.Listener listener = new FakeSocketIoThreadListener() {
+            @Override
+            public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+                workerThreads.add(Thread.currentThread());
+                handshakesReadLatch.countDown();
+            }
+        };
+
+        for (int i = 0; i < numberOfHandshakes; i++) {
+            BluetoothSocketIoThread handshakeThread = createHandshakeThread(listener);
+            assertThat("The handshake is queued",
+                    mHandshakeExecutor.execute(handshakeThread, new FakeTimeoutListener()), is(true));
+        }
+
+        for (PipeDuplexStream peerStream : mPeerStreams) {
+            peerStream.getOutputStream().write("handshake".getBytes());
+        }
+
+        assertThat("All the handshakes are read",
+                handshakesReadLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The handshakes are run on the worker threads only",
+                workerThreads.size() <= 2, is(true));
+        waitForCompletedHandshakes(numberOfHandshakes);
+        assertThat("The handshakes are completed",
+                mHandshakeExecutor.getNumberOfCompletedHandshakes(), is((long) numberOfHandshakes));
+        assertThat("The queue wait time of every handshake is recorded",
+                mHandshakeExecutor.getQueueWaitTimeHistogram().getCount(), is((long) numberOfHandshakes));
+        assertThat("Nothing timed out", mHandshakeExecutor.getNumberOfTimedOutHandshakes(), is(0L));
+    }
+
+    @Test
+    public void testHandshakeIsRejectedWhenQueueIsFull() throws Exception {
+        mHandshakeExecutor = new HandshakeExecutor(1, 1, 5000);
+        BluetoothSocketIoThread.Listener listener = new FakeSocketIoThreadListener();
+
+        // The first one occupies the only worker, since the peer never sends anything
+        assertThat("The first handshake is queued",
+                mHandshakeExecutor.execute(createHandshakeThread(listener), new FakeTimeoutListener()), is(true));
+        waitForEmptyQueue();
+        assertThat("The second handshake is queued",
+                mHandshakeExecutor.execute(createHandshakeThread(listener), new FakeTimeoutListener()), is(true));
+        assertThat("The third handshake is rejected",
+                mHandshakeExecutor.execute(createHandshakeThread(listener), new FakeTimeoutListener()), is(false));
+        assertThat("The rejected handshakes are counted",
+                mHandshakeExecutor.getNumberOfRejectedHandshakes(), is(1L));
+        assertThat("One handshake is pending", mHandshakeExecutor.getNumberOfPendingHandshakes(), is(1));
+    }
+
+    @Test
+    public void testSlowHandshakeTimesOut() throws Exception {
+        mHandshakeExecutor = new HandshakeExecutor(1, 1, 100);
+        final CountDownLatch disconnectedLatch = new CountDownLatch(1);
+        final BluetoothSocketIoThread handshakeThread = createHandshakeThread(new FakeSocketIoThreadListener());
+        final FakeTimeoutListener timeoutListener = new FakeTimeoutListener() {
+            @Override
+            public void onHandshakeTimeout(BluetoothSocketIoThread who) {
+                super.onHandshakeTimeout(who);
+                who.close(true, true);
+                disconnectedLatch.countDown();
+            }
+        };
+
+        assertThat("The handshake is queued",
+                mHandshakeExecutor.execute(handshakeThread, timeoutListener), is(true));
+        assertThat("The listener is notified about the timeout",
+                disconnectedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The listener is given the handshake thread",
+                timeoutListener.mTimedOutHandshakeThread, is(handshakeThread));
+        assertThat("The timed out handshakes are counted",
+                mHandshakeExecutor.getNumberOfTimedOutHandshakes(), is(1L));
+
+        // The worker is freed by closing the socket, so the next handshake gets to run
+        final CountDownLatch handshakeReadLatch = new CountDownLatch(1);
+        BluetoothSocketIoThread nextHandshakeThread = createHandshakeThread(new FakeSocketIoThreadListener() {
+            @Override
+            public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+                handshakeReadLatch.countDown();
+            }
+        });
+
+        assertThat("The next handshake is queued",
+                mHandshakeExecutor.execute(nextHandshakeThread, new FakeTimeoutListener()), is(true));
+        mPeerStreams.get(1).getOutputStream().write("handshake".getBytes());
+        assertThat("The next handshake is read",
+                handshakeReadLatch.await(5, TimeUnit.SECONDS), is(true));
+        waitForCompletedHandshakes(1);
+        assertThat("The timed out handshake is not counted as completed",
+                mHandshakeExecutor.getNumberOfCompletedHandshakes(), is(1L));
+    }
+
+    @Test
+    public void testShutdownGracefullyRunsQueuedHandshakes() throws Exception {
+        mHandshakeExecutor = new HandshakeExecutor(1, 1, 5000);
+        final CountDownLatch handshakesReadLatch = new CountDownLatch(2);
+
+        BluetoothSocketIoThread.Listener listener = new FakeSocketIoThreadListener() {
+            @Override
+            public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+                handshakesReadLatch.countDown();
+            }
+        };
+
+        assertThat("The first handshake is queued",
+                mHandshakeExecutor.execute(createHandshakeThread(listener), new FakeTimeoutListener()), is(true));
+        waitForEmptyQueue();
+        assertThat("The second handshake is queued",
+                mHandshakeExecutor.execute(createHandshakeThread(listener), new FakeTimeoutListener()), is(true));
+
+        mHandshakeExecutor.shutdownGracefully();
+
+        assertThat("No new handshakes are accepted",
+                mHandshakeExecutor.execute(createHandshakeThread(listener), new FakeTimeoutListener()), is(false));
+
+        mPeerStreams.get(0).getOutputStream().write("handshake".getBytes());
+        mPeerStreams.get(1).getOutputStream().write("handshake".getBytes());
+
+        assertThat("The running and the queued handshakes are read",
+                handshakesReadLatch.await(5, TimeUnit.SECONDS), is(true));
+        waitForCompletedHandshakes(2);
+        assertThat("The handshakes are completed",
+                mHandshakeExecutor.getNumberOfCompletedHandshakes(), is(2L));
+    }
+
+    private BluetoothSocketIoThread createHandshakeThread(BluetoothSocketIoThread.Listener listener) throws Exception {
+        PipeDuplexStream[] streams = PipeDuplexStream.createPair();
+        mPeerStreams.add(streams[1]);
+        BluetoothSocketIoThread handshakeThread = new BluetoothSocketIoThread(streams[0], listener);
+        handshakeThread.setExitThreadAfterRead(true);
+        return handshakeThread;
+    }
+
+    private void waitForCompletedHandshakes(long numberOfHandshakes) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+
+        while (mHandshakeExecutor.getNumberOfCompletedHandshakes() < numberOfHandshakes
+                && System.currentTimeMillis() - startTime < 5000) {
+            Thread.sleep(5);
+        }
+    }
+
+    private void waitForEmptyQueue() throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+
+        while (mHandshakeExecutor.getNumberOfPendingHandshakes() > 0
+                && System.currentTimeMillis() - startTime < 5000) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static class FakeSocketIoThreadListener implements BluetoothSocketIoThread.Listener {
+        @Override
+        public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
+        }
+
+        @Override
+        public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
+        }
+
+        @Override
+        public void onDisconnected(String reason, BluetoothSocketIoThread who) {
+        }
+    }
+
+    private static class FakeTimeoutListener implements HandshakeExecutor.Listener {
+        volatile BluetoothSocketIoThread mTimedOutHandshakeThread = null;
+
+        @Override
+        public void onHandshakeTimeout(BluetoothSocketIoThread handshakeThread) {
+            mTimedOutHandshakeThread = handshakeThread;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class KeepAliveTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidInterval() throws Exception {
+        new KeepAlive(0, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxNumberOfMissedIntervals() throws Exception {
+        new KeepAlive(1000, 0);
+    }
+
+    @Test
+    public void testRoundTripTime() throws Exception {
+        KeepAlive keepAlive = new KeepAlive(1000, 3);
+
+        assertThat("No round-trip time before the first pong",
+                keepAlive.getSmoothedRoundTripTimeInMilliseconds(), is(-1d));
+
+        keepAlive.onPongReceived(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(80));
+
+        assertThat("The first sample is taken as is",
+                Math.round(keepAlive.getSmoothedRoundTripTimeInMilliseconds()), is(80L));
+        assertThat("The variation starts from half of the first sample",
+                Math.round(keepAlive.getRoundTripTimeVariationInMilliseconds()), is(40L));
+
+        keepAlive.onPongReceived(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(160));
+
+        assertThat("The latest sample is kept", Math.round(keepAlive.getLastRoundTripTimeInMilliseconds()), is(160L));
+        assertThat("The later samples are smoothed",
+                Math.round(keepAlive.getSmoothedRoundTripTimeInMilliseconds()), is(90L));
+        assertThat("The variation follows the deviation",
+                Math.round(keepAlive.getRoundTripTimeVariationInMilliseconds()), is(50L));
+        assertThat("The pongs are counted", keepAlive.getNumberOfPongsReceived(), is(2L));
+    }
+
+    @Test
+    public void testInvalidPongIsIgnored() throws Exception {
+        KeepAlive keepAlive = new KeepAlive(1000, 3);
+        keepAlive.onPongReceived(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+        assertThat("A pong from the future is ignored", keepAlive.getNumberOfPongsReceived(), is(0L));
+        assertThat("The round-trip time is not updated",
+                keepAlive.getSmoothedRoundTripTimeInMilliseconds(), is(-1d));
+    }
+
+    @Test
+    public void testTimeoutAndActivity() throws Exception {
+        final AtomicInteger numberOfPings = new AtomicInteger();
+        final CountDownLatch timeoutLatch = new CountDownLatch(1);
+        final KeepAlive keepAlive = new KeepAlive(20, 5);
+
+        keepAlive.start(new KeepAlive.Callback() {
+            @Override
+            public void sendPing(long pingTimeInNanoseconds) throws IOException {
+                numberOfPings.incrementAndGet();
+            }
+
+            @Override
+            public void onTimeout(String reason) {
+                timeoutLatch.countDown();
+            }
+        });
+
+        // Keep the peer alive for a while
+        final long endTime = System.currentTimeMillis() + 300;
+
+        while (System.currentTimeMillis() < endTime) {
+            keepAlive.onActivity();
+            Thread.sleep(5);
+        }
+
+        assertThat("No timeout while there is activity", timeoutLatch.getCount(), is(1L));
+        assertThat("Pings are sent at the interval", numberOfPings.get() >= 5, is(true));
+        assertThat("Times out without activity", timeoutLatch.await(2, TimeUnit.SECONDS), is(true));
+
+        final int numberOfPingsAfterTimeout = numberOfPings.get();
+        Thread.sleep(100);
+
+        assertThat("No pings after the timeout", numberOfPings.get(), is(numberOfPingsAfterTimeout));
+        keepAlive.stop();
+    }
+}
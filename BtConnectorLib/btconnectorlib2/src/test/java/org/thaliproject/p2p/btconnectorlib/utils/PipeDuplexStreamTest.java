@@ -0,0 +1,167 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class PipeDuplexStreamTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPipeSize() throws Exception {
+        PipeDuplexStream.createPair(0);
+    }
+
+    @Test
+    public void testBytesWrapAroundThePipe() throws Exception {
+        PipeDuplexStream[] pair = PipeDuplexStream.createPair(10);
+        byte[] readBytes = new byte[7];
+
+        for (int i = 0; i < 5; i++) {
+            byte[] bytes = new byte[] { (byte) i, 1, 2, 3, 4, 5, 6 };
+            pair[0].getOutputStream().write(bytes);
+
+            assertThat("The bytes are available", pair[1].getInputStream().available(), is(7));
+            assertThat("The bytes are read", readFully(pair[1].getInputStream(), readBytes), is(7));
+            assertThat("The bytes are intact", Arrays.equals(readBytes, bytes), is(true));
+        }
+    }
+
+    @Test
+    public void testWriteBlocksWhileThePipeIsFull() throws Exception {
+        final PipeDuplexStream[] pair = PipeDuplexStream.createPair(100);
+        final byte[] bytes = new byte[1000];
+        new Random(1).nextBytes(bytes);
+        final CountDownLatch writtenLatch = new CountDownLatch(1);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pair[1].getOutputStream().write(bytes);
+                    writtenLatch.countDown();
+                } catch (IOException e) {
+                }
+            }
+        }).start();
+
+        assertThat("The write blocks until read", writtenLatch.await(100, TimeUnit.MILLISECONDS), is(false));
+
+        byte[] readBytes = new byte[bytes.length];
+
+        assertThat("All the bytes are read", readFully(pair[0].getInputStream(), readBytes), is(bytes.length));
+        assertThat("The write completes", writtenLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The bytes are intact", Arrays.equals(readBytes, bytes), is(true));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        final PipeDuplexStream[] pair = PipeDuplexStream.createPair();
+        final AtomicReference<Exception> readException = new AtomicReference<>();
+        final CountDownLatch readFailedLatch = new CountDownLatch(1);
+
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pair[0].getInputStream().read(new byte[10]);
+                } catch (IOException e) {
+                    readException.set(e);
+                    readFailedLatch.countDown();
+                }
+            }
+        });
+
+        readerThread.start();
+        Thread.sleep(50);
+
+        assertThat("Connected", pair[0].isConnected(), is(true));
+
+        pair[0].close();
+
+        assertThat("The blocked read fails", readFailedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("Not connected after closing", pair[0].isConnected(), is(false));
+        assertThat("The peer reads the end of stream", pair[1].getInputStream().read(new byte[10]), is(-1));
+
+        try {
+            pair[1].getOutputStream().write(1);
+            assertThat("Writing to a closed peer fails", true, is(false));
+        } catch (IOException e) {
+            assertThat("The pipe is broken", e.getMessage(), is("Broken pipe"));
+        }
+    }
+
+    @Test
+    public void testFramedTransferOverPipes() throws Exception {
+        PipeDuplexStream[] pair = PipeDuplexStream.createPair();
+        BluetoothSocketIoThread.Listener mockListener = mock(BluetoothSocketIoThread.Listener.class);
+        final int numberOfFrames = 1000;
+        final CountDownLatch receivedLatch = new CountDownLatch(numberOfFrames);
+
+        BluetoothSocketIoThread sender = new BluetoothSocketIoThread(pair[0], mockListener);
+        sender.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        sender.setTypedFramingEnabled(true);
+        sender.setFlowControlWindowSize(64 * 1024);
+
+        BluetoothSocketIoThread receiver = new BluetoothSocketIoThread(pair[1], mockListener);
+        receiver.setTypedFramingEnabled(true);
+        receiver.setFlowControlWindowSize(64 * 1024);
+        receiver.setFrameListener(new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+                receivedLatch.countDown();
+            }
+        });
+
+        assertThat("There is no Bluetooth socket", sender.getSocket() == null, is(true));
+
+        sender.start();
+        receiver.start();
+
+        for (int i = 0; i < numberOfFrames; i++) {
+            while (!sender.writeFrame(new byte[1000])) {
+                Thread.sleep(1);
+            }
+        }
+
+        assertThat("The frames are received", receivedLatch.await(10, TimeUnit.SECONDS), is(true));
+
+        sender.close(true, true);
+
+        verify(mockListener, timeout(5000)).onDisconnected(anyString(), eq(receiver));
+        verify(mockListener, never()).onDisconnected(anyString(), eq(sender));
+        receiver.close(true, true);
+    }
+
+    private static int readFully(InputStream inputStream, byte[] bytes) throws IOException {
+        int numberOfBytesRead = 0;
+
+        while (numberOfBytesRead < bytes.length) {
+            final int result = inputStream.read(bytes, numberOfBytesRead, bytes.length - numberOfBytesRead);
+
+            if (result < 0) {
+                break;
+            }
+
+            numberOfBytesRead += result;
+        }
+
+        return numberOfBytesRead;
+    }
+}
@@ -0,0 +1,312 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SocketIoEngineTest {
+
+    private SocketIoEngine mSocketIoEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mSocketIoEngine = new SocketIoEngine(2, 5);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSocketIoEngine.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidNumberOfLoopThreads() throws Exception {
+        new SocketIoEngine(0, 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidEndOfStreamProbeDelay() throws Exception {
+        new SocketIoEngine(2, 5, 0, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidMaxNumberOfProbeThreads() throws Exception {
+        new SocketIoEngine(2, 5, 50, -1);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testRegisterNull() throws Exception {
+        mSocketIoEngine.register(null);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRegisterAfterShutdown() throws Exception {
+        mSocketIoEngine.shutdown();
+        mSocketIoEngine.register(new FakeSelectable(0));
+    }
+
+    @Test
+    public void testReadableChannelIsNotified() throws Exception {
+        FakeSelectable selectable = new FakeSelectable(3);
+        mSocketIoEngine.register(selectable);
+
+        assertThat("The channel is notified until it has no more data",
+                selectable.mDrainedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The channel stays registered", mSocketIoEngine.getNumberOfRegistrations(), is(1));
+        assertThat("The readable events are counted", mSocketIoEngine.getNumberOfReadableEvents(), is(3L));
+
+        selectable.mNumberOfReadsLeft.set(-1); // End of stream
+
+        assertThat("The channel is notified about the end of stream",
+                selectable.mEndOfStreamLatch.await(5, TimeUnit.SECONDS), is(true));
+        waitForRegistrations(0);
+        assertThat("The channel is unregistered", mSocketIoEngine.getNumberOfRegistrations(), is(0));
+    }
+
+    @Test
+    public void testPollFailure() throws Exception {
+        FakeSelectable selectable = new FakeSelectable(0);
+        selectable.mFailPoll = true;
+        mSocketIoEngine.register(selectable);
+
+        assertThat("The channel is notified about the failure",
+                selectable.mFailedLatch.await(5, TimeUnit.SECONDS), is(true));
+        waitForRegistrations(0);
+        assertThat("The failed channel is unregistered", mSocketIoEngine.getNumberOfRegistrations(), is(0));
+    }
+
+    @Test
+    public void testChannelsAreDistributedToLoopThreads() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final Thread[] loopThreads = new Thread[2];
+
+        for (int i = 0; i < 2; i++) {
+            final int index = i;
+
+            mSocketIoEngine.register(new FakeSelectable(1) {
+                @Override
+                public boolean onReadable(int numberOfBytesAvailable) {
+                    loopThreads[index] = Thread.currentThread();
+                    latch.countDown();
+                    return super.onReadable(numberOfBytesAvailable);
+                }
+            });
+        }
+
+        assertThat("Both channels are notified", latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The channels are serviced by different loop threads", loopThreads[0] != loopThreads[1], is(true));
+    }
+
+    @Test
+    public void testUnregister() throws Exception {
+        FakeSelectable selectable = new FakeSelectable(0);
+        mSocketIoEngine.register(selectable);
+
+        assertThat("The channel is unregistered", mSocketIoEngine.unregister(selectable), is(true));
+        assertThat("The channel is unregistered only once", mSocketIoEngine.unregister(selectable), is(false));
+        assertThat("No channels left", mSocketIoEngine.getNumberOfRegistrations(), is(0));
+    }
+
+    @Test
+    public void testIdleChannelIsProbed() throws Exception {
+        mSocketIoEngine.shutdown();
+        mSocketIoEngine = new SocketIoEngine(1, 5, 50, 2);
+        FakeSelectable selectable = new FakeSelectable(0);
+        mSocketIoEngine.register(selectable);
+
+        assertThat("The idle channel is probed",
+                selectable.mProbeStartedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The probed channel stays registered", mSocketIoEngine.getNumberOfRegistrations(), is(1));
+        assertThat("The probe is counted", mSocketIoEngine.getNumberOfProbes(), is(1L));
+
+        long numberOfPolls = mSocketIoEngine.getNumberOfPolls();
+        Thread.sleep(50);
+        assertThat("The probed channel is not polled", mSocketIoEngine.getNumberOfPolls(), is(numberOfPolls));
+
+        selectable.mProbeResults.put(2); // Has data again
+
+        assertThat("The channel is returned to the loop and read",
+                selectable.mDrainedLatch.await(5, TimeUnit.SECONDS), is(true));
+
+        selectable.mProbeResults.put(-1); // The peer closes the channel
+
+        assertThat("The end of stream found by the probe is notified",
+                selectable.mEndOfStreamLatch.await(5, TimeUnit.SECONDS), is(true));
+        waitForRegistrations(0);
+        assertThat("The channel is unregistered", mSocketIoEngine.getNumberOfRegistrations(), is(0));
+        assertThat("The channel was probed twice", mSocketIoEngine.getNumberOfProbes(), is(2L));
+    }
+
+    @Test
+    public void testProbeFailure() throws Exception {
+        mSocketIoEngine.shutdown();
+        mSocketIoEngine = new SocketIoEngine(1, 5, 50, 2);
+        FakeSelectable selectable = new FakeSelectable(0);
+        mSocketIoEngine.register(selectable);
+        selectable.mProbeResults.put(FakeSelectable.PROBE_FAILS);
+
+        assertThat("The channel is notified about the failure",
+                selectable.mFailedLatch.await(5, TimeUnit.SECONDS), is(true));
+        waitForRegistrations(0);
+        assertThat("The failed channel is unregistered", mSocketIoEngine.getNumberOfRegistrations(), is(0));
+    }
+
+    @Test
+    public void testNumberOfProbedChannelsIsBounded() throws Exception {
+        mSocketIoEngine.shutdown();
+        mSocketIoEngine = new SocketIoEngine(1, 5, 20, 1);
+        FakeSelectable[] selectables = new FakeSelectable[3];
+
+        for (int i = 0; i < selectables.length; i++) {
+            selectables[i] = new FakeSelectable(0);
+            mSocketIoEngine.register(selectables[i]);
+        }
+
+        Thread.sleep(200); // Several probe delays
+
+        assertThat("Only one channel is probed at a time", mSocketIoEngine.getNumberOfProbedChannels(), is(1));
+        assertThat("Only one probe was started", mSocketIoEngine.getNumberOfProbes(), is(1L));
+        assertThat("All channels stay registered", mSocketIoEngine.getNumberOfRegistrations(), is(3));
+
+        for (FakeSelectable selectable : selectables) {
+            if (selectable.mProbeStartedLatch.getCount() == 0) {
+                selectable.mProbeResults.put(-1); // Frees the probe thread
+
+                assertThat("The end of stream is notified",
+                        selectable.mEndOfStreamLatch.await(5, TimeUnit.SECONDS), is(true));
+            }
+        }
+
+        waitForRegistrations(2);
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (mSocketIoEngine.getNumberOfProbes() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertThat("The next idle channel is probed", mSocketIoEngine.getNumberOfProbes(), is(2L));
+    }
+
+    @Test
+    public void testChannelNotNeedingProbeIsNotProbed() throws Exception {
+        mSocketIoEngine.shutdown();
+        mSocketIoEngine = new SocketIoEngine(1, 5, 20, 1);
+        FakeSelectable selectable = new FakeSelectable(0);
+        selectable.mIsProbeNeeded = false;
+        mSocketIoEngine.register(selectable);
+
+        Thread.sleep(100);
+
+        assertThat("The channel is not probed", mSocketIoEngine.getNumberOfProbes(), is(0L));
+        assertThat("The channel is still polled", mSocketIoEngine.getNumberOfProbedChannels(), is(0));
+        assertThat("The channel stays registered", mSocketIoEngine.getNumberOfRegistrations(), is(1));
+    }
+
+    @Test
+    public void testUnregisterProbedChannel() throws Exception {
+        mSocketIoEngine.shutdown();
+        mSocketIoEngine = new SocketIoEngine(1, 5, 50, 2);
+        FakeSelectable selectable = new FakeSelectable(0);
+        mSocketIoEngine.register(selectable);
+
+        assertThat("The idle channel is probed",
+                selectable.mProbeStartedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The probed channel is unregistered", mSocketIoEngine.unregister(selectable), is(true));
+        assertThat("No channels left", mSocketIoEngine.getNumberOfRegistrations(), is(0));
+
+        selectable.mProbeResults.put(-1);
+        Thread.sleep(50);
+        assertThat("The unregistered channel is not notified", selectable.mEndOfStreamLatch.getCount(), is(1L));
+    }
+
+    private void waitForRegistrations(int numberOfRegistrations) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (mSocketIoEngine.getNumberOfRegistrations() != numberOfRegistrations
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A channel with the given number of reads worth of data. The probe returns the number of
+     * reads put to the probe results (-1 for the end of stream).
+     */
+    private static class FakeSelectable implements SocketIoEngine.Selectable {
+        static final int PROBE_FAILS = Integer.MIN_VALUE;
+        final AtomicInteger mNumberOfReadsLeft;
+        final BlockingQueue<Integer> mProbeResults = new LinkedBlockingQueue<>();
+        final CountDownLatch mProbeStartedLatch = new CountDownLatch(1);
+        final CountDownLatch mDrainedLatch = new CountDownLatch(1);
+        final CountDownLatch mEndOfStreamLatch = new CountDownLatch(1);
+        final CountDownLatch mFailedLatch = new CountDownLatch(1);
+        volatile boolean mFailPoll = false;
+        volatile boolean mIsProbeNeeded = true;
+
+        FakeSelectable(int numberOfReads) {
+            mNumberOfReadsLeft = new AtomicInteger(numberOfReads);
+        }
+
+        @Override
+        public int poll() throws IOException {
+            if (mFailPoll) {
+                throw new IOException("Poll failed");
+            }
+
+            int numberOfReadsLeft = mNumberOfReadsLeft.get();
+            return (numberOfReadsLeft < 0) ? -1 : numberOfReadsLeft * 10;
+        }
+
+        @Override
+        public int probe() throws IOException {
+            mProbeStartedLatch.countDown();
+            int numberOfReads;
+
+            try {
+                numberOfReads = mProbeResults.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Probe interrupted");
+            }
+
+            if (numberOfReads == PROBE_FAILS) {
+                throw new IOException("Probe failed");
+            }
+
+            mNumberOfReadsLeft.set(numberOfReads);
+            return (numberOfReads < 0) ? -1 : numberOfReads * 10;
+        }
+
+        @Override
+        public boolean isProbeNeeded() {
+            return mIsProbeNeeded;
+        }
+
+        @Override
+        public boolean onReadable(int numberOfBytesAvailable) {
+            if (numberOfBytesAvailable < 0) {
+                mEndOfStreamLatch.countDown();
+                return false;
+            }
+
+            if (mNumberOfReadsLeft.decrementAndGet() == 0) {
+                mDrainedLatch.countDown();
+            }
+
+            return true;
+        }
+
+        @Override
+        public void onPollFailed(IOException e) {
+            mFailedLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SocketWriterThreadTest {
+
+    private BlockingOutputStream mOutputStream;
+    private List<SocketWriterThread.WriteRequest> mCompletedWriteRequests;
+    private SocketWriterThread mSocketWriterThread;
+
+    @Before
+    public void setUp() throws Exception {
+        mOutputStream = new BlockingOutputStream();
+        mCompletedWriteRequests = new ArrayList<>();
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, new Object(),
+                new SocketWriterThread.Listener() {
+                    @Override
+                    public void onWriteCompleted(SocketWriterThread.WriteRequest writeRequest, boolean wasSuccessful) {
+                        if (wasSuccessful) {
+                            synchronized (mCompletedWriteRequests) {
+                                mCompletedWriteRequests.add(writeRequest);
+                            }
+                        }
+                    }
+                }, 4, 16);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mOutputStream.unblock();
+        mSocketWriterThread.shutdown();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testConstructorNullOutputStream() throws Exception {
+        new SocketWriterThread(null, new Object(), null, 1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorInvalidQueueSize() throws Exception {
+        new SocketWriterThread(new ByteArrayOutputStream(), new Object(),
+                new SocketWriterThread.Listener() {
+                    @Override
+                    public void onWriteCompleted(SocketWriterThread.WriteRequest writeRequest, boolean wasSuccessful) {
+                    }
+                }, 0, 1);
+    }
+
+    @Test
+    public void testEnqueue() throws Exception {
+        mSocketWriterThread.start();
+        SocketWriterThread.WriteRequest writeRequest = mSocketWriterThread.enqueue("hello".getBytes());
+
+        assertThat("The write succeeds", writeRequest.get(5, TimeUnit.SECONDS), is(true));
+        assertThat("The write is done", writeRequest.isDone(), is(true));
+        assertThat("The bytes are written", new String(mOutputStream.toByteArray()), is("hello"));
+        assertThat("The listener is notified", mCompletedWriteRequests.size(), is(1));
+    }
+
+    @Test
+    public void testEnqueueByteBuffer() throws Exception {
+        mSocketWriterThread.start();
+        ByteBuffer byteBuffer = ByteBuffer.wrap("xxhelloxx".getBytes(), 2, 5);
+        ByteBuffer directByteBuffer = ByteBuffer.allocateDirect(5);
+        directByteBuffer.put(" you".getBytes());
+        directByteBuffer.flip();
+
+        mSocketWriterThread.enqueue(byteBuffer);
+        SocketWriterThread.WriteRequest writeRequest = mSocketWriterThread.enqueue(directByteBuffer);
+
+        assertThat("The writes succeed", writeRequest.get(5, TimeUnit.SECONDS), is(true));
+        assertThat("The remaining bytes are written",
+                new String(mOutputStream.toByteArray()), is("hello you"));
+        assertThat("The position of the buffer is not changed", byteBuffer.position(), is(2));
+    }
+
+    @Test
+    public void testSmallWritesAreCoalesced() throws Exception {
+        // Block the first write so that the following ones pile up in the queue
+        mOutputStream.block();
+        mSocketWriterThread.start();
+        SocketWriterThread.WriteRequest firstWriteRequest = mSocketWriterThread.enqueue("first".getBytes());
+        mOutputStream.awaitBlockedWrite();
+
+        SocketWriterThread.WriteRequest[] writeRequests = new SocketWriterThread.WriteRequest[] {
+                mSocketWriterThread.enqueue("a".getBytes()),
+                mSocketWriterThread.enqueue("b".getBytes()),
+                mSocketWriterThread.enqueue("c".getBytes()),
+                mSocketWriterThread.enqueue(new byte[20]) // Larger than the coalescing buffer
+        };
+
+        mOutputStream.unblock();
+
+        assertThat("The first write succeeds", firstWriteRequest.get(5, TimeUnit.SECONDS), is(true));
+
+        for (SocketWriterThread.WriteRequest writeRequest : writeRequests) {
+            assertThat("The queued writes succeed", writeRequest.get(5, TimeUnit.SECONDS), is(true));
+        }
+
+        assertThat("Every write request is counted", mSocketWriterThread.getNumberOfWriteRequests(), is(5L));
+        assertThat("The small writes are coalesced into one write",
+                mSocketWriterThread.getNumberOfStreamWrites(), is(3L));
+        assertThat("The order of the bytes is preserved",
+                new String(Arrays.copyOf(mOutputStream.toByteArray(), 8)), is("firstabc"));
+        assertThat("The listener is notified for each write", mCompletedWriteRequests.size(), is(5));
+    }
+
+    @Test
+    public void testEnqueueWhenQueueIsFull() throws Exception {
+        mOutputStream.block();
+        mSocketWriterThread.start();
+        mSocketWriterThread.enqueue("first".getBytes());
+        mOutputStream.awaitBlockedWrite();
+
+        for (int i = 0; i < 4; i++) {
+            mSocketWriterThread.enqueue(new byte[1]);
+        }
+
+        assertThat("The queue is full", mSocketWriterThread.getNumberOfPendingWrites(), is(4));
+
+        SocketWriterThread.WriteRequest writeRequest = mSocketWriterThread.enqueue(new byte[1]);
+
+        assertThat("The write fails immediately", writeRequest.isDone(), is(true));
+        assertThat("The write is not successful", writeRequest.get(), is(false));
+    }
+
+    @Test
+    public void testHigherPriorityWritesFirst() throws Exception {
+        mOutputStream.block();
+        mSocketWriterThread.start();
+        mSocketWriterThread.enqueue("first".getBytes());
+        mOutputStream.awaitBlockedWrite();
+
+        SocketWriterThread.WriteRequest bulkWriteRequest =
+                mSocketWriterThread.enqueue("b".getBytes(), SocketWriterThread.Priority.BULK);
+        mSocketWriterThread.enqueue("i".getBytes(), SocketWriterThread.Priority.INTERACTIVE);
+        mSocketWriterThread.enqueue("c".getBytes(), SocketWriterThread.Priority.CONTROL);
+
+        assertThat("The writes are pending", mSocketWriterThread.getNumberOfPendingWrites(), is(3));
+        assertThat("One bulk write is pending",
+                mSocketWriterThread.getNumberOfPendingWrites(SocketWriterThread.Priority.BULK), is(1));
+
+        mOutputStream.unblock();
+
+        assertThat("The bulk write succeeds", bulkWriteRequest.get(5, TimeUnit.SECONDS), is(true));
+        assertThat("The pending writes are written in the order of priority",
+                new String(mOutputStream.toByteArray()), is("firstcib"));
+    }
+
+    @Test
+    public void testBulkFrameIsWrittenInSlices() throws Exception {
+        SocketWriterThread.FrameHeaderEncoder frameHeaderEncoder = new SocketWriterThread.FrameHeaderEncoder() {
+            @Override
+            public byte[] encodeHeader(int sliceLength, boolean isFirstSlice, boolean isLastSlice) {
+                if (!isLastSlice) {
+                    return "+".getBytes();
+                }
+
+                return isFirstSlice ? "=".getBytes() : ".".getBytes();
+            }
+        };
+
+        SocketWriterThread socketWriterThread = new SocketWriterThread(mOutputStream, new Object(),
+                new SocketWriterThread.Listener() {
+                    @Override
+                    public void onWriteCompleted(SocketWriterThread.WriteRequest writeRequest, boolean wasSuccessful) {
+                    }
+                }, 4, 16, 4);
+
+        mOutputStream.block();
+        socketWriterThread.start();
+        SocketWriterThread.WriteRequest bulkWriteRequest = socketWriterThread.enqueueFrame(
+                "abcdefghij".getBytes(), SocketWriterThread.Priority.BULK, frameHeaderEncoder, true);
+        mOutputStream.awaitBlockedWrite();
+
+        // Enqueued while the first slice is being written
+        SocketWriterThread.WriteRequest controlWriteRequest =
+                socketWriterThread.enqueue("x".getBytes(), SocketWriterThread.Priority.CONTROL);
+        socketWriterThread.enqueueFrame(
+                "yz".getBytes(), SocketWriterThread.Priority.INTERACTIVE, frameHeaderEncoder, true);
+        SocketWriterThread.WriteRequest otherBulkWriteRequest = socketWriterThread.enqueueFrame(
+                "uv".getBytes(), SocketWriterThread.Priority.BULK, frameHeaderEncoder, true);
+
+        assertThat("A started write cannot be cancelled", bulkWriteRequest.cancel(false), is(false));
+
+        mOutputStream.unblock();
+
+        assertThat("The bulk write succeeds", bulkWriteRequest.get(5, TimeUnit.SECONDS), is(true));
+        assertThat("The other bulk write succeeds", otherBulkWriteRequest.get(5, TimeUnit.SECONDS), is(true));
+        assertThat("The control write succeeds", controlWriteRequest.isDone(), is(true));
+        assertThat("The higher priority writes are written between the slices, the other bulk write after them",
+                new String(mOutputStream.toByteArray()), is("+abcdx=yz+efgh.ij=uv"));
+        assertThat("The slices are counted", socketWriterThread.getNumberOfSlicesWritten(), is(3L));
+
+        socketWriterThread.shutdown();
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        mOutputStream.block();
+        mSocketWriterThread.start();
+        mSocketWriterThread.enqueue("first".getBytes());
+        mOutputStream.awaitBlockedWrite();
+
+        SocketWriterThread.WriteRequest cancelledWriteRequest = mSocketWriterThread.enqueue("x".getBytes());
+        SocketWriterThread.WriteRequest writeRequest = mSocketWriterThread.enqueue("y".getBytes());
+
+        assertThat("A pending write can be cancelled", cancelledWriteRequest.cancel(false), is(true));
+        assertThat("The write is cancelled", cancelledWriteRequest.isCancelled(), is(true));
+
+        mOutputStream.unblock();
+
+        assertThat("The other write succeeds", writeRequest.get(5, TimeUnit.SECONDS), is(true));
+        assertThat("The cancelled write is not written",
+                new String(mOutputStream.toByteArray()), is("firsty"));
+        assertThat("A completed write cannot be cancelled", writeRequest.cancel(false), is(false));
+    }
+
+    @Test
+    public void testWriteFailureFailsPendingWrites() throws Exception {
+        mOutputStream.block();
+        mSocketWriterThread.start();
+        SocketWriterThread.WriteRequest firstWriteRequest = mSocketWriterThread.enqueue("first".getBytes());
+        mOutputStream.awaitBlockedWrite();
+
+        SocketWriterThread.WriteRequest pendingWriteRequest = mSocketWriterThread.enqueue(new byte[100]);
+        mOutputStream.failAndUnblock();
+
+        assertThat("The failed write is completed", firstWriteRequest.get(5, TimeUnit.SECONDS), is(false));
+        assertThat("The pending write fails", pendingWriteRequest.get(5, TimeUnit.SECONDS), is(false));
+
+        mSocketWriterThread.join(5000);
+        assertThat("The thread exits", mSocketWriterThread.isAlive(), is(false));
+        assertThat("Writes after the failure fail",
+                mSocketWriterThread.enqueue(new byte[1]).get(), is(false));
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        mOutputStream.block();
+        mSocketWriterThread.start();
+        mSocketWriterThread.enqueue("first".getBytes());
+        mOutputStream.awaitBlockedWrite();
+
+        SocketWriterThread.WriteRequest pendingWriteRequest = mSocketWriterThread.enqueue(new byte[1]);
+        mSocketWriterThread.shutdown();
+
+        assertThat("The pending write fails", pendingWriteRequest.get(5, TimeUnit.SECONDS), is(false));
+        assertThat("Writes after shutdown fail", mSocketWriterThread.enqueue(new byte[1]).get(), is(false));
+    }
+
+    /**
+     * Output stream, whose writes can be blocked to let the queue fill up.
+     */
+    private static class BlockingOutputStream extends OutputStream {
+        private final ByteArrayOutputStream mByteArrayOutputStream = new ByteArrayOutputStream();
+        private final CountDownLatch mBlockedWriteLatch = new CountDownLatch(1);
+        private CountDownLatch mUnblockLatch = new CountDownLatch(0);
+        private volatile boolean mFail = false;
+
+        void block() {
+            mUnblockLatch = new CountDownLatch(1);
+        }
+
+        void unblock() {
+            mUnblockLatch.countDown();
+        }
+
+        void failAndUnblock() {
+            mFail = true;
+            unblock();
+        }
+
+        void awaitBlockedWrite() throws InterruptedException {
+            assertThat("A write is blocked", mBlockedWriteLatch.await(5, TimeUnit.SECONDS), is(true));
+        }
+
+        synchronized byte[] toByteArray() {
+            return mByteArrayOutputStream.toByteArray();
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[] { (byte) oneByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            mBlockedWriteLatch.countDown();
+
+            try {
+                mUnblockLatch.await();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+
+            if (mFail) {
+                throw new IOException("Broken pipe");
+            }
+
+            synchronized (this) {
+                mByteArrayOutputStream.write(bytes, offset, length);
+            }
+        }
+    }
+}
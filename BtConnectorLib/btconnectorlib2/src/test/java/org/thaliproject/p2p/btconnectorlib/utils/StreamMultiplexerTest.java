@@ -0,0 +1,298 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.thaliproject.p2p.btconnectorlib.Benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StreamMultiplexerTest {
+
+    private static final int WINDOW_SIZE_IN_BYTES = 1000;
+    private StreamMultiplexer mInitiator;
+    private StreamMultiplexer mAcceptor;
+    private BlockingQueue<StreamMultiplexer.Channel> mChannelsOpenedByInitiator;
+    private CountDownLatch mAcceptorDisconnectedLatch;
+
+    @Before
+    public void setUp() throws Exception {
+        PipedInputStream initiatorInputStream = new PipedInputStream(65536);
+        PipedInputStream acceptorInputStream = new PipedInputStream(65536);
+        BluetoothSocket initiatorSocket = mock(BluetoothSocket.class);
+        BluetoothSocket acceptorSocket = mock(BluetoothSocket.class);
+        when(initiatorSocket.getInputStream()).thenReturn(initiatorInputStream);
+        when(initiatorSocket.getOutputStream()).thenReturn(new PipedOutputStream(acceptorInputStream));
+        when(acceptorSocket.getInputStream()).thenReturn(acceptorInputStream);
+        when(acceptorSocket.getOutputStream()).thenReturn(new PipedOutputStream(initiatorInputStream));
+
+        mChannelsOpenedByInitiator = new LinkedBlockingQueue<>();
+        mAcceptorDisconnectedLatch = new CountDownLatch(1);
+
+        mInitiator = new StreamMultiplexer(initiatorSocket, true, new StreamMultiplexer.Listener() {
+            @Override
+            public void onChannelOpened(StreamMultiplexer.Channel channel) {
+            }
+
+            @Override
+            public void onDisconnected(String reason, StreamMultiplexer who) {
+            }
+        });
+
+        mAcceptor = new StreamMultiplexer(acceptorSocket, false, new StreamMultiplexer.Listener() {
+            @Override
+            public void onChannelOpened(StreamMultiplexer.Channel channel) {
+                channel.setListener(new RecordingChannelListener());
+                mChannelsOpenedByInitiator.add(channel);
+            }
+
+            @Override
+            public void onDisconnected(String reason, StreamMultiplexer who) {
+                mAcceptorDisconnectedLatch.countDown();
+            }
+        });
+
+        mInitiator.setChannelWindowSize(WINDOW_SIZE_IN_BYTES);
+        mAcceptor.setChannelWindowSize(WINDOW_SIZE_IN_BYTES);
+        mInitiator.setMaxChunkSize(100);
+        mAcceptor.setMaxChunkSize(100);
+        mInitiator.start();
+        mAcceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mInitiator.close();
+        mAcceptor.close();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testConstructorNullListener() throws Exception {
+        new StreamMultiplexer(mock(BluetoothSocket.class), true, null);
+    }
+
+    @Test
+    public void testOpenChannel() throws Exception {
+        StreamMultiplexer.Channel first = mInitiator.openChannel(new RecordingChannelListener());
+        StreamMultiplexer.Channel second = mInitiator.openChannel(new RecordingChannelListener());
+
+        assertThat("The initiator uses odd channel IDs", first.getId(), is(1));
+        assertThat("The channel IDs are not reused", second.getId(), is(3));
+        assertThat("The channels are open", mInitiator.getNumberOfChannels(), is(2));
+
+        StreamMultiplexer.Channel remoteFirst = mChannelsOpenedByInitiator.poll(5, TimeUnit.SECONDS);
+        StreamMultiplexer.Channel remoteSecond = mChannelsOpenedByInitiator.poll(5, TimeUnit.SECONDS);
+
+        assertThat("The peer is notified about the first channel", remoteFirst.getId(), is(1));
+        assertThat("The peer is notified about the second channel", remoteSecond.getId(), is(3));
+
+        StreamMultiplexer.Channel acceptorChannel = mAcceptor.openChannel(new RecordingChannelListener());
+        assertThat("The acceptor uses even channel IDs", acceptorChannel.getId(), is(2));
+    }
+
+    @Test
+    public void testOpenManyChannels() throws Exception {
+        final int numberOfChannels = 1000;
+        openChannels(numberOfChannels);
+
+        assertThat("The channels are open", mInitiator.getNumberOfChannels(), is(numberOfChannels));
+    }
+
+    /**
+     * Benchmark of opening channels, which should take microseconds, since it does not wait for
+     * the peer.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testOpenChannelTakesMicroseconds() throws Exception {
+        final int numberOfChannels = 1000;
+        long elapsedNanos = openChannels(numberOfChannels);
+
+        System.out.println("Opening a channel took " + (elapsedNanos / numberOfChannels / 1000) + " us on average");
+    }
+
+    @Test
+    public void testDataExchange() throws Exception {
+        RecordingChannelListener initiatorListener = new RecordingChannelListener();
+        StreamMultiplexer.Channel channel = mInitiator.openChannel(initiatorListener);
+        byte[] message = new byte[250];
+
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+
+        assertThat("The whole message is written", channel.write(message), is(message.length));
+
+        StreamMultiplexer.Channel remoteChannel = mChannelsOpenedByInitiator.poll(5, TimeUnit.SECONDS);
+        RecordingChannelListener remoteListener = (RecordingChannelListener) remoteChannel.getListener();
+        remoteListener.awaitBytes(message.length);
+        assertThat("The message is intact", remoteListener.getBytes(), is(message));
+
+        assertThat("The reply is written", remoteChannel.write("reply".getBytes()), is(5));
+        initiatorListener.awaitBytes(5);
+        assertThat("The reply is received", new String(initiatorListener.getBytes()), is("reply"));
+    }
+
+    @Test
+    public void testPerChannelFlowControl() throws Exception {
+        final CountDownLatch writableLatch = new CountDownLatch(1);
+        StreamMultiplexer.Channel blockedChannel = mInitiator.openChannel(new RecordingChannelListener() {
+            @Override
+            public void onWritable(StreamMultiplexer.Channel channel) {
+                writableLatch.countDown();
+            }
+        });
+        StreamMultiplexer.Channel otherChannel = mInitiator.openChannel(new RecordingChannelListener());
+
+        StreamMultiplexer.Channel remoteBlockedChannel = mChannelsOpenedByInitiator.poll(5, TimeUnit.SECONDS);
+        StreamMultiplexer.Channel remoteOtherChannel = mChannelsOpenedByInitiator.poll(5, TimeUnit.SECONDS);
+
+        // Block the receiver of the first channel
+        final CountDownLatch releaseReceiverLatch = new CountDownLatch(1);
+        final CountDownLatch receiverBlockedLatch = new CountDownLatch(1);
+        remoteBlockedChannel.setListener(new RecordingChannelListener() {
+            @Override
+            public void onDataReceived(ByteBuffer data, StreamMultiplexer.Channel channel) {
+                super.onDataReceived(data, channel);
+                receiverBlockedLatch.countDown();
+
+                try {
+                    releaseReceiverLatch.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+
+        int numberOfBytesWritten = blockedChannel.write(new byte[5000]);
+
+        assertThat("Only the window is written", numberOfBytesWritten, is(WINDOW_SIZE_IN_BYTES));
+        assertThat("The channel is not writable", blockedChannel.isWritable(), is(false));
+        assertThat("The other channel is writable", otherChannel.isWritable(), is(true));
+        assertThat("The receiver is blocked", receiverBlockedLatch.await(5, TimeUnit.SECONDS), is(true));
+
+        releaseReceiverLatch.countDown();
+
+        assertThat("The channel becomes writable when the data is consumed",
+                writableLatch.await(5, TimeUnit.SECONDS), is(true));
+
+        otherChannel.write("other".getBytes());
+        RecordingChannelListener remoteOtherListener = (RecordingChannelListener) remoteOtherChannel.getListener();
+        remoteOtherListener.awaitBytes(5);
+        assertThat("The other channel is not affected", new String(remoteOtherListener.getBytes()), is("other"));
+    }
+
+    @Test
+    public void testIndependentClose() throws Exception {
+        StreamMultiplexer.Channel closedChannel = mInitiator.openChannel(new RecordingChannelListener());
+        StreamMultiplexer.Channel openChannel = mInitiator.openChannel(new RecordingChannelListener());
+        StreamMultiplexer.Channel remoteClosedChannel = mChannelsOpenedByInitiator.poll(5, TimeUnit.SECONDS);
+        StreamMultiplexer.Channel remoteOpenChannel = mChannelsOpenedByInitiator.poll(5, TimeUnit.SECONDS);
+
+        closedChannel.close();
+
+        assertThat("The channel is closed", closedChannel.isClosed(), is(true));
+        assertThat("The closed channel is not writable", closedChannel.write(new byte[1]), is(0));
+        assertThat("The closed channel is removed", mInitiator.getChannel(closedChannel.getId()), is(nullValue()));
+
+        RecordingChannelListener remoteClosedListener = (RecordingChannelListener) remoteClosedChannel.getListener();
+        assertThat("The peer is notified", remoteClosedListener.mClosedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The peer closes the channel", remoteClosedChannel.isClosed(), is(true));
+
+        openChannel.write("still open".getBytes());
+        RecordingChannelListener remoteOpenListener = (RecordingChannelListener) remoteOpenChannel.getListener();
+        remoteOpenListener.awaitBytes(10);
+        assertThat("The other channel stays open", remoteOpenChannel.isClosed(), is(false));
+    }
+
+    @Test
+    public void testDisconnectClosesChannels() throws Exception {
+        mInitiator.openChannel(new RecordingChannelListener());
+        StreamMultiplexer.Channel remoteChannel = mChannelsOpenedByInitiator.poll(5, TimeUnit.SECONDS);
+
+        mInitiator.close();
+
+        assertThat("The peer is notified about the disconnect",
+                mAcceptorDisconnectedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The channels are closed", remoteChannel.isClosed(), is(true));
+        assertThat("The channel listeners are notified",
+                ((RecordingChannelListener) remoteChannel.getListener()).mClosedLatch.getCount(), is(0L));
+        assertThat("No channels are left", mAcceptor.getNumberOfChannels(), is(0));
+        assertThat("Channels cannot be opened after disconnect",
+                mAcceptor.openChannel(new RecordingChannelListener()), is(nullValue()));
+    }
+
+    /**
+     * Opens the given number of channels and waits for the peer to be notified about them.
+     *
+     * @return The time opening the channels took in nanoseconds, not counting the wait.
+     */
+    private long openChannels(int numberOfChannels) throws Exception {
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < numberOfChannels; i++) {
+            assertThat("The channel is opened",
+                    mInitiator.openChannel(new RecordingChannelListener()), is(notNullValue()));
+        }
+
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        for (int i = 0; i < numberOfChannels; i++) {
+            assertThat("The peer is notified",
+                    mChannelsOpenedByInitiator.poll(5, TimeUnit.SECONDS), is(notNullValue()));
+        }
+
+        return elapsedNanos;
+    }
+
+    private static class RecordingChannelListener implements StreamMultiplexer.Channel.Listener {
+        private final ByteArrayOutputStream mReceivedBytes = new ByteArrayOutputStream();
+        final CountDownLatch mClosedLatch = new CountDownLatch(1);
+
+        synchronized byte[] getBytes() {
+            return mReceivedBytes.toByteArray();
+        }
+
+        synchronized void awaitBytes(int numberOfBytes) throws InterruptedException {
+            long endTime = System.currentTimeMillis() + 5000;
+
+            while (mReceivedBytes.size() < numberOfBytes && System.currentTimeMillis() < endTime) {
+                wait(100);
+            }
+
+            assertThat("The bytes are received", mReceivedBytes.size(), is(numberOfBytes));
+        }
+
+        @Override
+        public synchronized void onDataReceived(ByteBuffer data, StreamMultiplexer.Channel channel) {
+            mReceivedBytes.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            notifyAll();
+        }
+
+        @Override
+        public void onWritable(StreamMultiplexer.Channel channel) {
+        }
+
+        @Override
+        public void onClosed(StreamMultiplexer.Channel channel) {
+            mClosedLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.thaliproject.p2p.btconnectorlib.Benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TcpDuplexStreamTest {
+
+    @Test(expected = NullPointerException.class)
+    public void testNullSocket() throws Exception {
+        new TcpDuplexStream(null);
+    }
+
+    @Test
+    public void testLoopbackPair() throws Exception {
+        TcpDuplexStream[] pair = TcpDuplexStream.createLoopbackPair();
+
+        assertThat("Connected", pair[0].isConnected() && pair[1].isConnected(), is(true));
+        assertThat("Nagle's algorithm is off", pair[0].getSocket().getTcpNoDelay(), is(true));
+
+        pair[0].getOutputStream().write("hello".getBytes());
+        byte[] bytes = new byte[5];
+        int numberOfBytesRead = 0;
+
+        while (numberOfBytesRead < bytes.length) {
+            numberOfBytesRead += pair[1].getInputStream().read(bytes, numberOfBytesRead, bytes.length - numberOfBytesRead);
+        }
+
+        assertThat("The bytes are received", new String(bytes), is("hello"));
+
+        pair[0].close();
+
+        assertThat("Not connected after closing", pair[0].isConnected(), is(false));
+        assertThat("The peer reads the end of stream", pair[1].getInputStream().read(bytes), is(-1));
+        pair[1].close();
+    }
+
+    /**
+     * Runs a framed, flow controlled transfer over the loopback interface the way it would run
+     * over a Bluetooth socket.
+     */
+    @Test
+    public void testFramedTransferOverTcp() throws Exception {
+        SocketIoStatistics statistics = transferFramesOverTcp(4096, 256);
+
+        assertThat("The bytes are counted", statistics.getNumberOfBytesRead() >= 4096L * 256, is(true));
+    }
+
+    /**
+     * Benchmark of the framed, flow controlled transfer over the loopback interface.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testFramedTransferOverTcpThroughput() throws Exception {
+        final int frameSize = 4096;
+        final int numberOfFrames = 2048;
+        final long startTime = System.nanoTime();
+        SocketIoStatistics statistics = transferFramesOverTcp(frameSize, numberOfFrames);
+        final long durationInMilliseconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+
+        System.out.println("Framed transfer over TCP: " + ((long) frameSize * numberOfFrames / 1024) + " KB in "
+                + durationInMilliseconds + " ms, " + statistics);
+    }
+
+    /**
+     * Sends the given number of frames over a loopback pair and waits for them to be received.
+     *
+     * @return The statistics of the receiving end.
+     */
+    private static SocketIoStatistics transferFramesOverTcp(int frameSize, final int numberOfFrames)
+            throws Exception {
+        TcpDuplexStream[] pair = TcpDuplexStream.createLoopbackPair();
+        final AtomicLong numberOfBytesReceived = new AtomicLong();
+        final CountDownLatch receivedLatch = new CountDownLatch(numberOfFrames);
+
+        BluetoothSocketIoThread sender = new BluetoothSocketIoThread(pair[0], mock(BluetoothSocketIoThread.Listener.class));
+        sender.setFrameListener(mock(BluetoothSocketIoThread.FrameListener.class));
+        sender.setTypedFramingEnabled(true);
+        sender.setFlowControlWindowSize(256 * 1024);
+
+        BluetoothSocketIoThread receiver = new BluetoothSocketIoThread(pair[1], mock(BluetoothSocketIoThread.Listener.class));
+        receiver.setTypedFramingEnabled(true);
+        receiver.setFlowControlWindowSize(256 * 1024);
+        receiver.setBufferSize(64 * 1024);
+        receiver.setFrameListener(new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrameReceived(ByteBuffer frame, BluetoothSocketIoThread who) {
+                numberOfBytesReceived.addAndGet(frame.remaining());
+                receivedLatch.countDown();
+            }
+        });
+
+        sender.start();
+        receiver.start();
+        byte[] payload = new byte[frameSize];
+
+        for (int i = 0; i < numberOfFrames; i++) {
+            while (!sender.writeFrame(payload)) {
+                Thread.sleep(1);
+            }
+        }
+
+        assertThat("The frames are received", receivedLatch.await(30, TimeUnit.SECONDS), is(true));
+        assertThat("All the bytes are received", numberOfBytesReceived.get(), is((long) frameSize * numberOfFrames));
+
+        sender.close(true, true);
+        receiver.close(true, true);
+        return receiver.getStatistics();
+    }
+}
@@ -7,6 +7,7 @@ import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
+import org.thaliproject.p2p.btconnectorlib.utils.SocketWriterThread;
 import java.io.IOException;
 import java.util.Date;
 
@@ -115,12 +116,21 @@ public class Connection implements BluetoothSocketIoThread.Listener {
     }
 
     /**
-     * Tries to send the given bytes to the peer.
+     * Tries to send the given bytes to the peer. The bytes are queued and written by the writer
+     * thread of the socket.
      * @param bytes The bytes to send.
+     * @return True, if the bytes were queued. False, if the write failed right away.
      */
-    public void send(byte[] bytes) {
-        SocketWriterThread thread = new SocketWriterThread();
-        thread.write(bytes);
+    public boolean send(byte[] bytes) {
+        SocketWriterThread.WriteRequest writeRequest = mBluetoothSocketIoThread.enqueue(bytes);
+
+        // The queue being full or the writer being shut down fails the write right away
+        if (writeRequest.isDone() && !writeRequest.wasSuccessful()) {
+            Log.e(TAG, "send: Failed to write " + bytes.length + " bytes");
+            return false;
+        }
+
+        return true;
     }
 
     /**
@@ -240,25 +250,6 @@ public class Connection implements BluetoothSocketIoThread.Listener {
         mListener.onDisconnected(reason, this);
     }
 
-    /**
-     * Thread for sending data to a peer using "fire and forget" principle.
-     */
-    private class SocketWriterThread extends Thread {
-        private byte[] mBytesToWrite = null;
-
-        public void write(byte[] bytes) {
-            mBytesToWrite = bytes;
-            this.start();
-        }
-
-        @Override
-        public void run() {
-            if (!mBluetoothSocketIoThread.write(mBytesToWrite)) {
-                Log.e(TAG, "SocketWriterThread: Failed to write " + mBytesToWrite.length + " bytes");
-            }
-        }
-    }
-
     /**
      * Helper for sending large amounts of data in chunks.
      */